@@ -0,0 +1,228 @@
+package org.example;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.Message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Локальная заглушка Bot API для измерения пропускной способности {@link OutboundScheduler}.
+ *
+ * Принимает методы send*, ограничивает их так же, как Telegram (в секунду на чат и на бота),
+ * и при превышении отвечает 429 с retry_after. Остальные методы отвечают ok без результата.
+ *
+ * Запуск сервера: {@code FakeBotApiServer serve <порт> [в чат в секунду] [всего в секунду]};
+ * в config.json нужно указать botApiBaseUrl http://127.0.0.1:<порт>.
+ * Замер: {@code FakeBotApiServer bench <сообщений> <чатов>} запускает заглушку и бота в одном процессе,
+ * отправляет сообщения в полосе BULK с запросами AUTH в середине и выводит задержки и статистику планировщика.
+ */
+public class FakeBotApiServer implements AutoCloseable {
+
+    private static final Pattern JSON_CHAT_ID = Pattern.compile("\"chat_id\"\\s*:\\s*\"?(-?\\d+)");
+    private static final Pattern MEDIA_GROUP_PART = Pattern.compile("\"type\"\\s*:\\s*\"(?:photo|video|audio|document)\"");
+    private static final Pattern MULTIPART_CHAT_ID = Pattern.compile("name=\"chat_id\"\\r\\n(?:[^\\r\\n]*\\r\\n)*\\r\\n(-?\\d+)");
+
+    private final HttpServer server;
+    private final double chatPerSecond;
+    private final double chatBurst;
+    private final double globalPerSecond;
+    private final Map<String, double[]> chatBuckets = new HashMap<>();
+    private final double[] globalBucket;
+    private final AtomicInteger nextMessageId = new AtomicInteger();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param port            порт; 0 — любой свободный
+     * @param chatPerSecond   запросов в секунду в один чат
+     * @param chatBurst       допустимая серия запросов в один чат
+     * @param globalPerSecond запросов в секунду всего
+     */
+    public FakeBotApiServer(int port, double chatPerSecond, double chatBurst, double globalPerSecond) throws IOException {
+        this.chatPerSecond = chatPerSecond;
+        this.chatBurst = Math.max(1, chatBurst);
+        this.globalPerSecond = globalPerSecond;
+        this.globalBucket = new double[]{globalPerSecond, System.nanoTime()};
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        this.server.createContext("/", this::handle);
+        this.server.setExecutor(Executors.newFixedThreadPool(8, r -> {
+            Thread thread = new Thread(r, "fake-bot-api");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        this.server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String method = path.substring(path.lastIndexOf('/') + 1);
+            String body;
+            try (InputStream in = exchange.getRequestBody()) {
+                body = new String(in.readAllBytes(), StandardCharsets.ISO_8859_1);
+            }
+            if (!method.startsWith("send")) {
+                respond(exchange, 200, "{\"ok\":true,\"result\":true}");
+                return;
+            }
+            String chatId = chatIdOf(body);
+            long retryAfter = acquire(chatId);
+            if (retryAfter > 0) {
+                rejected.increment();
+                respond(exchange, 429, "{\"ok\":false,\"error_code\":429,\"description\":\"Too Many Requests: retry after "
+                        + retryAfter + "\",\"parameters\":{\"retry_after\":" + retryAfter + "}}");
+                return;
+            }
+            accepted.increment();
+            if ("sendMediaGroup".equals(method)) {
+                // По одному сообщению на каждую часть альбома
+                StringBuilder result = new StringBuilder("[");
+                Matcher part = MEDIA_GROUP_PART.matcher(body);
+                while (part.find()) {
+                    result.append(result.length() > 1 ? "," : "").append(message(chatId));
+                }
+                respond(exchange, 200, "{\"ok\":true,\"result\":" + result.append(']') + "}");
+                return;
+            }
+            respond(exchange, 200, "{\"ok\":true,\"result\":" + message(chatId) + "}");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private String message(String chatId) {
+        return "{\"message_id\":" + nextMessageId.incrementAndGet()
+                + ",\"date\":0,\"chat\":{\"id\":" + chatId + ",\"type\":\"private\"},\"text\":\"\"}";
+    }
+
+    private static String chatIdOf(String body) {
+        Matcher matcher = JSON_CHAT_ID.matcher(body);
+        if (matcher.find()) {
+            return matcher.group(1);
+        }
+        matcher = MULTIPART_CHAT_ID.matcher(body);
+        return matcher.find() ? matcher.group(1) : "0";
+    }
+
+    /**
+     * Берёт токены из ведра чата и общего ведра.
+     *
+     * @return 0, если запрос принят, иначе число секунд до повторной попытки
+     */
+    private synchronized long acquire(String chatId) {
+        long now = System.nanoTime();
+        double[] chat = chatBuckets.computeIfAbsent(chatId, k -> new double[]{chatBurst, now});
+        refill(chat, chatPerSecond, chatBurst, now);
+        refill(globalBucket, globalPerSecond, globalPerSecond, now);
+        if (chat[0] < 1 || globalBucket[0] < 1) {
+            double missing = chat[0] < 1 ? (1 - chat[0]) / chatPerSecond : (1 - globalBucket[0]) / globalPerSecond;
+            return Math.max(1, (long) Math.ceil(missing));
+        }
+        chat[0] -= 1;
+        globalBucket[0] -= 1;
+        return 0;
+    }
+
+    private static void refill(double[] bucket, double rate, double capacity, long now) {
+        bucket[0] = Math.min(capacity, bucket[0] + (now - (long) bucket[1]) * rate / 1e9);
+        bucket[1] = now;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    public String statsSummary() {
+        return "принято " + accepted.sum() + ", ответов 429 " + rejected.sum();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 2 && "serve".equals(args[0])) {
+            double chatPerSecond = args.length > 2 ? Double.parseDouble(args[2]) : 1;
+            FakeBotApiServer server = new FakeBotApiServer(Integer.parseInt(args[1]), chatPerSecond, 5,
+                    args.length > 3 ? Double.parseDouble(args[3]) : 30);
+            System.out.println("Заглушка Bot API слушает порт " + server.getPort());
+            while (true) {
+                Thread.sleep(5000);
+                System.out.println(server.statsSummary());
+            }
+        } else if (args.length >= 3 && "bench".equals(args[0])) {
+            bench(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+        } else {
+            System.err.println("Использование: FakeBotApiServer serve <порт> [в чат в секунду] [всего в секунду]"
+                    + " | bench <сообщений> <чатов>");
+            System.exit(2);
+        }
+    }
+
+    private static void bench(int messages, int chats) throws Exception {
+        Path retryFile = Files.createTempFile("outbound_bench", ".json");
+        try (FakeBotApiServer server = new FakeBotApiServer(0, 1, 5, 30)) {
+            Map<String, Object> settings = new HashMap<>();
+            settings.put("botToken", "BENCH");
+            settings.put("adminId", 1);
+            settings.put("botApiBaseUrl", "http://127.0.0.1:" + server.getPort());
+            settings.put("outboundRetryFile", retryFile.toString());
+            BotConfig config = new Gson().fromJson(new Gson().toJson(settings), BotConfig.class);
+            Bot bot = new Bot(config, null);
+            OutboundScheduler outbound = bot.getOutbound();
+
+            long started = System.nanoTime();
+            List<CompletableFuture<List<Message>>> bulk = new ArrayList<>();
+            for (int i = 0; i < messages; i++) {
+                bulk.add(outbound.submit(message(String.valueOf(1000 + i % chats), "bulk " + i), OutboundScheduler.Lane.BULK, null));
+            }
+            long authStarted = System.nanoTime();
+            outbound.submit(message(String.valueOf(1000), "auth"), OutboundScheduler.Lane.AUTH, null).join();
+            long authLatency = System.nanoTime() - authStarted;
+            CompletableFuture.allOf(bulk.toArray(new CompletableFuture[0])).join();
+            double elapsed = (System.nanoTime() - started) / 1e9;
+
+            System.out.printf("Отправлено %d сообщений в %d чатов за %.2f с (%.1f в секунду)%n",
+                    messages, chats, elapsed, messages / elapsed);
+            System.out.printf("Запрос AUTH после %d запросов BULK доставлен за %d мс%n", messages, authLatency / 1_000_000);
+            System.out.println("Планировщик: " + outbound.statsSummary());
+            System.out.println("Заглушка: " + server.statsSummary());
+            outbound.close();
+        } finally {
+            Files.deleteIfExists(retryFile);
+        }
+    }
+
+    private static SendMessage message(String chatId, String text) {
+        SendMessage sendMessage = new SendMessage();
+        sendMessage.setChatId(chatId);
+        sendMessage.setText(text);
+        return sendMessage;
+    }
+}
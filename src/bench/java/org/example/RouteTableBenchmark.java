@@ -0,0 +1,90 @@
+package org.example;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Замер {@link RouteTable} против прежней схемы {@code HashMap<Long, SimpleEntry<Long, Long>>}.
+ *
+ * Для каждого размера заполняет таблицу маршрутами с возрастающими id сообщений (как их выдаёт Telegram)
+ * и выводит занятую память на запись и среднее время поиска по случайным существующим ключам.
+ * Память считается по разнице занятой кучи до и после заполнения, поэтому запускать стоит с запасом -Xmx.
+ *
+ * Запуск: {@code RouteTableBenchmark [размер ...]}, по умолчанию 1000000 и 10000000.
+ * Прежняя схема замеряется только для размеров до 2000000: на 10M она не помещается в разумную кучу.
+ */
+public class RouteTableBenchmark {
+
+    private static final int LOOKUPS = 5_000_000;
+    private static final int BOXED_LIMIT = 2_000_000;
+
+    public static void main(String[] args) {
+        int[] sizes = args.length > 0
+                ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[]{1_000_000, 10_000_000};
+        for (int size : sizes) {
+            measureTable(size);
+            if (size <= BOXED_LIMIT) {
+                measureBoxed(size);
+            }
+        }
+    }
+
+    private static void measureTable(int size) {
+        long before = usedHeap();
+        RouteTable table = new RouteTable();
+        for (int i = 1; i <= size; i++) {
+            table.put(i, 1000 + i % 4, -100_000L - i % 5_000, 0);
+        }
+        long bytes = usedHeap() - before;
+
+        Random random = new Random(42);
+        long checksum = 0;
+        // Прогрев JIT
+        for (int i = 0; i < LOOKUPS / 5; i++) {
+            checksum += table.chatIdAt(table.indexOf(1 + random.nextInt(size)));
+        }
+        long started = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            int slot = table.indexOf(1 + random.nextInt(size));
+            checksum += table.userBotIdAt(slot) + table.chatIdAt(slot);
+        }
+        double nanos = (double) (System.nanoTime() - started) / LOOKUPS;
+        System.out.printf("RouteTable, %d записей: %.1f Б/запись по куче (%.1f Б по массивам), поиск %.0f нс (%d)%n",
+                size, (double) bytes / size, (double) table.memoryBytes() / size, nanos, checksum & 1);
+    }
+
+    private static void measureBoxed(int size) {
+        long before = usedHeap();
+        Map<Long, AbstractMap.SimpleEntry<Long, Long>> map = new HashMap<>();
+        for (int i = 1; i <= size; i++) {
+            map.put((long) i, new AbstractMap.SimpleEntry<>(1000L + i % 4, -100_000L - i % 5_000));
+        }
+        long bytes = usedHeap() - before;
+
+        Random random = new Random(42);
+        long checksum = 0;
+        for (int i = 0; i < LOOKUPS / 5; i++) {
+            checksum += map.get((long) (1 + random.nextInt(size))).getValue();
+        }
+        long started = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            AbstractMap.SimpleEntry<Long, Long> route = map.get((long) (1 + random.nextInt(size)));
+            checksum += route.getKey() + route.getValue();
+        }
+        double nanos = (double) (System.nanoTime() - started) / LOOKUPS;
+        System.out.printf("HashMap<Long, SimpleEntry>, %d записей: %.1f Б/запись, поиск %.0f нс (%d)%n",
+                size, (double) bytes / size, nanos, checksum & 1);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,95 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Замер {@link SearchIndex} на синтетической переписке.
+ *
+ * Индексирует заданное число сообщений из слов с неравномерной частотой (частые слова встречаются почти везде,
+ * редкие — в единицах сообщений), затем измеряет время поиска по одному слову, по двум словам и по началу слова.
+ *
+ * Запуск: {@code SearchBenchmark [сообщений] [каталог]}, по умолчанию 2000000 и временный каталог.
+ */
+public class SearchBenchmark {
+
+    private static final String LETTERS = "абвгдежзийклмнопрстуфхцчшщыьэюя";
+    private static final int VOCABULARY = 200_000;
+    private static final int QUERIES = 2_000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        Path directory = args.length > 1 ? Path.of(args[1]) : Files.createTempDirectory("search-benchmark");
+        Random random = new Random(42);
+        String[] words = new String[VOCABULARY];
+        for (int i = 0; i < VOCABULARY; i++) {
+            words[i] = word(random);
+        }
+
+        SearchIndex index = new SearchIndex(directory, 50_000);
+        long started = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            StringBuilder text = new StringBuilder();
+            int length = 5 + random.nextInt(25);
+            for (int w = 0; w < length; w++) {
+                text.append(words[zipf(random)]).append(' ');
+            }
+            // Очередь индекса ограничена: замер ждёт, а не теряет документы
+            while (index.queueDepth() > 5_000) {
+                Thread.sleep(1);
+            }
+            index.add(1 + i % 4, 1000 + i % 500, i, System.currentTimeMillis(), false, "Контакт " + i % 500, text.toString());
+        }
+        while (index.queueDepth() > 0) {
+            Thread.sleep(10);
+        }
+        double seconds = (System.nanoTime() - started) / 1e9;
+        System.out.printf("Индексирование: %d сообщений за %.1f с — %.0f сообщений/с%n", count, seconds, count / seconds);
+
+        measure("одно слово", index, random, () -> words[zipf(random)]);
+        measure("два слова", index, random, () -> words[zipf(random)] + " " + words[zipf(random)]);
+        measure("редкое слово", index, random, () -> words[VOCABULARY / 2 + random.nextInt(VOCABULARY / 2)]);
+        measure("начало слова", index, random, () -> words[zipf(random)].substring(0, 3) + "*");
+        System.out.println(index.statsSummary());
+        index.close();
+    }
+
+    private static void measure(String name, SearchIndex index, Random random, Supplier<String> query) {
+        // Прогрев JIT
+        for (int i = 0; i < QUERIES / 4; i++) {
+            index.search(query.get(), 0, 10);
+        }
+        long[] latencies = new long[QUERIES];
+        long hits = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            String text = query.get();
+            long started = System.nanoTime();
+            hits += index.search(text, 0, 10).size();
+            latencies[i] = System.nanoTime() - started;
+        }
+        Arrays.sort(latencies);
+        System.out.printf("Поиск (%s): p50 %.2f мс, p99 %.2f мс, макс %.2f мс, найдено в среднем %.1f%n", name,
+                latencies[QUERIES / 2] / 1e6, latencies[QUERIES * 99 / 100] / 1e6, latencies[QUERIES - 1] / 1e6,
+                (double) hits / QUERIES);
+    }
+
+    /**
+     * Номер слова с частотой, убывающей примерно как 1/номер.
+     */
+    private static int zipf(Random random) {
+        return (int) Math.min(VOCABULARY - 1, Math.exp(random.nextDouble() * Math.log(VOCABULARY)) - 1);
+    }
+
+    private static String word(Random random) {
+        int length = 4 + random.nextInt(7);
+        StringBuilder word = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            word.append(LETTERS.charAt(random.nextInt(LETTERS.length())));
+        }
+        return word.toString();
+    }
+}
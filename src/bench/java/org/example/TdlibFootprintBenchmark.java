@@ -0,0 +1,94 @@
+package org.example;
+
+import it.tdlight.client.APIToken;
+import it.tdlight.client.AuthenticationSupplier;
+import it.tdlight.client.SimpleTelegramClient;
+import it.tdlight.client.SimpleTelegramClientBuilder;
+import it.tdlight.client.TDLibSettings;
+import it.tdlight.jni.TdApi;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Замер потоков и RSS процесса на 1, 10 и 50 аккаунтах в одной {@link TdlibRuntime}.
+ *
+ * Для каждого числа аккаунтов создаёт новую среду, поднимает клиентов на тестовых дата-центрах Telegram
+ * с отдельными базами во временном каталоге и ждёт, пока база каждого клиента откроется. Авторизация
+ * не нужна: после открытия базы у клиента уже есть все его нативные структуры. Выводит прирост потоков
+ * и RSS относительно момента перед первым клиентом, всего и на аккаунт, то есть ту же величину, что /stats.
+ *
+ * Запуск: {@code gradle bench -PbenchMain=TdlibFootprintBenchmark --args="api_id api_hash [число ...]"}.
+ * Нужны нативные библиотеки TDLight для текущей платформы и любые действующие api_id/api_hash.
+ */
+public class TdlibFootprintBenchmark {
+
+    private static final long OPEN_TIMEOUT_SECONDS = 60;
+    // Номера тестовых дата-центров Telegram имеют вид 99966XYYYY
+    private static final long TEST_PHONE_BASE = 9996620000L;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Использование: TdlibFootprintBenchmark api_id api_hash [число аккаунтов ...]");
+            return;
+        }
+        APIToken apiToken = new APIToken(Integer.parseInt(args[0]), args[1]);
+        int[] counts = args.length > 2
+                ? Arrays.stream(args, 2, args.length).mapToInt(Integer::parseInt).toArray()
+                : new int[]{1, 10, 50};
+        for (int count : counts) {
+            measure(apiToken, count);
+        }
+    }
+
+    private static void measure(APIToken apiToken, int accounts) throws Exception {
+        Path directory = Files.createTempDirectory("tdlib-footprint");
+        try (TdlibRuntime runtime = new TdlibRuntime()) {
+            int startThreads = threadCount();
+            long startRss = TdlibRuntime.residentSetBytes();
+
+            List<SimpleTelegramClient> clients = new ArrayList<>();
+            List<CompletableFuture<Void>> opened = new ArrayList<>();
+            for (int i = 0; i < accounts; i++) {
+                TDLibSettings settings = TDLibSettings.create(apiToken);
+                settings.setUseTestDatacenter(true);
+                settings.setDatabaseDirectoryPath(directory.resolve("account-" + i).resolve("data"));
+                settings.setDownloadedFilesDirectoryPath(directory.resolve("account-" + i).resolve("downloads"));
+
+                CompletableFuture<Void> databaseOpened = new CompletableFuture<>();
+                SimpleTelegramClientBuilder builder = runtime.builder(settings);
+                builder.addUpdateHandler(TdApi.UpdateAuthorizationState.class, update -> {
+                    if (!(update.authorizationState instanceof TdApi.AuthorizationStateWaitTdlibParameters)) {
+                        databaseOpened.complete(null);
+                    }
+                });
+                opened.add(databaseOpened);
+                clients.add(runtime.build(builder, AuthenticationSupplier.user(String.valueOf(TEST_PHONE_BASE + i))));
+            }
+            CompletableFuture.allOf(opened.toArray(new CompletableFuture[0])).get(OPEN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            // Даём TDLib закончить фоновую инициализацию после открытия баз
+            Thread.sleep(2_000);
+
+            int threads = threadCount() - startThreads;
+            long rss = TdlibRuntime.residentSetBytes() - startRss;
+            System.out.printf("%d аккаунтов: потоков +%d (%.1f на аккаунт), RSS +%.1f МБ (%.1f МБ на аккаунт)%n",
+                    accounts, threads, (double) threads / accounts,
+                    rss / (1024.0 * 1024), rss / (1024.0 * 1024) / accounts);
+
+            for (SimpleTelegramClient client : clients) {
+                client.close();
+                runtime.clientClosed();
+            }
+        }
+    }
+
+    private static int threadCount() {
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+}
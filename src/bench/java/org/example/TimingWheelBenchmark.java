@@ -0,0 +1,84 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Замер {@link TimingWheel} при большом числе ожидающих задач.
+ *
+ * Добавляет заданное число задач с дальними сроками (от минуты до суток), отменяет десятую часть,
+ * затем на фоне этих задач добавляет пробные задачи со сроками в ближайшие секунды и измеряет опоздание
+ * их срабатывания. Для сравнения замеряется добавление того же числа задач в ScheduledThreadPoolExecutor.
+ *
+ * Запуск: {@code TimingWheelBenchmark [задач] [тик, мс]}, по умолчанию 1000000 и 100.
+ */
+public class TimingWheelBenchmark {
+
+    private static final int PROBES = 20_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        long tickMs = args.length > 1 ? Long.parseLong(args[1]) : 100;
+        Random random = new Random(42);
+
+        long[] drifts = new long[PROBES];
+        int[] fired = new int[1];
+        CountDownLatch probesDone = new CountDownLatch(PROBES);
+        TimingWheel<Integer> wheel = new TimingWheel<>(tickMs, TimeUnit.MILLISECONDS, "wheel-benchmark", due -> {
+            long now = System.nanoTime();
+            for (TimingWheel.Timeout<Integer> timeout : due) {
+                int probe = timeout.value();
+                if (probe >= 0) {
+                    drifts[probe] = now - timeout.deadlineNanos();
+                    fired[0]++;
+                    probesDone.countDown();
+                }
+            }
+        });
+
+        List<TimingWheel.Timeout<Integer>> timeouts = new ArrayList<>(count);
+        long started = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            long delay = TimeUnit.SECONDS.toNanos(60 + random.nextInt(24 * 3600));
+            timeouts.add(wheel.schedule(-1, System.nanoTime() + delay));
+        }
+        long insertNanos = System.nanoTime() - started;
+        System.out.printf("Добавление %d задач: %.0f нс на задачу%n", count, (double) insertNanos / count);
+
+        int cancels = count / 10;
+        started = System.nanoTime();
+        for (int i = 0; i < cancels; i++) {
+            wheel.cancel(timeouts.get(i * 10));
+        }
+        long cancelNanos = System.nanoTime() - started;
+        System.out.printf("Отмена %d задач: %.0f нс на задачу, ожидают %d%n", cancels, (double) cancelNanos / cancels, wheel.size());
+
+        started = System.nanoTime();
+        for (int i = 0; i < PROBES; i++) {
+            wheel.schedule(i, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200 + random.nextInt(5000)));
+        }
+        System.out.printf("Пробные задачи: %d со сроком 0.2–5.2 с добавлены за %d мс%n", PROBES,
+                (System.nanoTime() - started) / 1_000_000);
+        if (!probesDone.await(30, TimeUnit.SECONDS)) {
+            System.out.println("Сработали не все пробные задачи: " + fired[0]);
+        }
+        Arrays.sort(drifts);
+        System.out.printf("Опоздание срабатывания (тик %d мс), мс: мин %.2f, p50 %.2f, p99 %.2f, макс %.2f%n", tickMs,
+                drifts[0] / 1e6, drifts[PROBES / 2] / 1e6, drifts[PROBES * 99 / 100] / 1e6, drifts[PROBES - 1] / 1e6);
+        wheel.close();
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        started = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            executor.schedule(() -> { }, 60 + random.nextInt(24 * 3600), TimeUnit.SECONDS);
+        }
+        System.out.printf("Для сравнения, ScheduledThreadPoolExecutor: %.0f нс на задачу%n",
+                (double) (System.nanoTime() - started) / count);
+        executor.shutdownNow();
+    }
+}
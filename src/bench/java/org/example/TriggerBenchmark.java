@@ -0,0 +1,100 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Замер пропускной способности {@link KeywordAutomaton} на синтетическом наборе правил.
+ *
+ * Генерирует шаблоны (слова, фразы и шаблоны со {@code *}) и сообщения из кириллических слов, часть которых
+ * совпадает с шаблонами, затем сравнивает один проход автомата с наивной проверкой каждого шаблона через indexOf.
+ *
+ * Запуск: {@code TriggerBenchmark [шаблонов] [сообщений]}, по умолчанию 10000 и 200000.
+ */
+public class TriggerBenchmark {
+
+    private static final String LETTERS = "абвгдежзийклмнопрстуфхцчшщыьэюя";
+
+    public static void main(String[] args) {
+        int patternCount = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int messageCount = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+        Random random = new Random(42);
+
+        List<String> patterns = new ArrayList<>(patternCount);
+        for (int i = 0; i < patternCount; i++) {
+            String pattern = word(random);
+            if (i % 5 == 0) {
+                pattern += " " + word(random);
+            } else if (i % 7 == 0) {
+                pattern += "*";
+            }
+            patterns.add(pattern);
+        }
+        List<String> messages = new ArrayList<>(messageCount);
+        long characters = 0;
+        for (int i = 0; i < messageCount; i++) {
+            StringBuilder message = new StringBuilder();
+            int words = 10 + random.nextInt(30);
+            for (int w = 0; w < words; w++) {
+                // Примерно каждое десятое слово берётся из шаблонов, в разном регистре и с "ё"
+                String word = random.nextInt(10) == 0
+                        ? patterns.get(random.nextInt(patternCount)).replace("*", "ами").toUpperCase()
+                        : word(random);
+                message.append(word).append(random.nextInt(8) == 0 ? ", " : " ");
+            }
+            characters += message.length();
+            messages.add(message.toString());
+        }
+
+        long started = System.nanoTime();
+        KeywordAutomaton automaton = KeywordAutomaton.compile(patterns);
+        System.out.printf("Построение: %d шаблонов, %d состояний за %d мс%n", patternCount, automaton.size(),
+                (System.nanoTime() - started) / 1_000_000);
+
+        // Прогрев JIT
+        for (int i = 0; i < Math.min(messageCount, 20_000); i++) {
+            automaton.match(messages.get(i));
+        }
+        started = System.nanoTime();
+        long matches = 0;
+        for (String message : messages) {
+            matches += automaton.match(message).cardinality();
+        }
+        double seconds = (System.nanoTime() - started) / 1e9;
+        System.out.printf("Автомат: %d сообщений (%.1f МБ текста) за %.2f с — %.0f сообщений/с, %.1f МБ/с, совпадений %d%n",
+                messageCount, characters * 2 / 1e6, seconds, messageCount / seconds, characters * 2 / 1e6 / seconds, matches);
+
+        // Наивная проверка слишком медленная для всего набора: замеряется на части сообщений
+        int naiveCount = Math.max(1, Math.min(messageCount, 2_000));
+        List<String> normalizedPatterns = new ArrayList<>(patternCount);
+        for (String pattern : patterns) {
+            normalizedPatterns.add(KeywordAutomaton.normalize(pattern.replace("*", "")).trim());
+        }
+        started = System.nanoTime();
+        long naiveMatches = 0;
+        for (int i = 0; i < naiveCount; i++) {
+            String normalized = KeywordAutomaton.normalize(messages.get(i));
+            BitSet found = new BitSet();
+            for (int p = 0; p < normalizedPatterns.size(); p++) {
+                if (normalized.contains(normalizedPatterns.get(p))) {
+                    found.set(p);
+                }
+            }
+            naiveMatches += found.cardinality();
+        }
+        double naiveSeconds = (System.nanoTime() - started) / 1e9;
+        System.out.printf("Наивный поиск (indexOf по каждому шаблону, без границ слов): %.0f сообщений/с, совпадений на %d сообщениях %d%n",
+                naiveCount / naiveSeconds, naiveCount, naiveMatches);
+    }
+
+    private static String word(Random random) {
+        int length = 4 + random.nextInt(6);
+        StringBuilder word = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            word.append(LETTERS.charAt(random.nextInt(LETTERS.length())));
+        }
+        return word.toString();
+    }
+}
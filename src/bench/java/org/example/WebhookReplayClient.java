@@ -0,0 +1,89 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Локальный клиент, воспроизводящий обновления Telegram на {@link WebhookReceiver}.
+ * Используется для проверки режима webhook без Telegram и для измерения нагрузки.
+ *
+ * Обновления читаются из файла по одному JSON-объекту на строку и отправляются POST-запросами
+ * с заголовком секрета. В конце выводятся пропускная способность, распределение задержек и коды ответов.
+ *
+ * Запуск: {@code WebhookReplayClient <url> <secret> <updates.jsonl> [параллельность] [повторы]}
+ */
+public class WebhookReplayClient {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 3) {
+            System.err.println("Использование: WebhookReplayClient <url> <secret> <updates.jsonl> [параллельность] [повторы]");
+            System.exit(2);
+        }
+        URI uri = URI.create(args[0]);
+        String secretToken = args[1];
+        List<String> updates = Files.readAllLines(Path.of(args[2])).stream()
+                .filter(line -> !line.isBlank())
+                .toList();
+        if (updates.isEmpty()) {
+            System.err.println("Файл обновлений пуст: " + args[2]);
+            System.exit(2);
+        }
+        int concurrency = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+        int repeat = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+
+        HttpClient httpClient = HttpClient.newHttpClient();
+        Semaphore inFlight = new Semaphore(concurrency);
+        int total = updates.size() * repeat;
+        long[] latencies = new long[total];
+        Map<Integer, Integer> statuses = new TreeMap<>();
+        List<CompletableFuture<Void>> requests = new ArrayList<>(total);
+
+        long started = System.nanoTime();
+        for (int i = 0; i < total; i++) {
+            HttpRequest request = HttpRequest.newBuilder(uri)
+                    .header("Content-Type", "application/json")
+                    .header(WebhookReceiver.SECRET_HEADER, secretToken)
+                    .POST(HttpRequest.BodyPublishers.ofString(updates.get(i % updates.size())))
+                    .build();
+            inFlight.acquire();
+            int index = i;
+            long sentAt = System.nanoTime();
+            requests.add(httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                    .handle((response, error) -> {
+                        latencies[index] = System.nanoTime() - sentAt;
+                        synchronized (statuses) {
+                            statuses.merge(error != null ? -1 : response.statusCode(), 1, Integer::sum);
+                        }
+                        inFlight.release();
+                        return null;
+                    }));
+        }
+        CompletableFuture.allOf(requests.toArray(new CompletableFuture[0])).join();
+        long elapsed = System.nanoTime() - started;
+
+        Arrays.sort(latencies);
+        System.out.printf("Отправлено %d обновлений за %.2f с (%.0f в секунду), параллельность %d%n",
+                total, elapsed / 1e9, total / (elapsed / 1e9), concurrency);
+        System.out.printf("Задержка, мс: p50 %.2f, p95 %.2f, p99 %.2f, max %.2f%n",
+                percentile(latencies, 0.50), percentile(latencies, 0.95), percentile(latencies, 0.99),
+                latencies[total - 1] / 1e6);
+        System.out.println("Коды ответов (-1 — ошибка соединения): " + statuses);
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
@@ -0,0 +1,187 @@
+package org.example;
+
+import com.google.gson.reflect.TypeToken;
+import it.tdlight.jni.TdApi;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Автоответчик: отвечает на типовые вопросы прямо из аккаунта, получившего сообщение,
+ * через {@link UserBot#sendMessage}, без пересылки администратору и запросов Bot API.
+ *
+ * Правило — ключевая фраза (как у триггеров, см. {@link KeywordAutomaton}) и шаблон ответа;
+ * в шаблоне подставляются {username} отправителя и {chat} — название чата, если они уже есть
+ * в кэше аккаунта. Все правила проверяются одним проходом автомата на потоке обновлений TDLib.
+ * Отвечает только в личных чатах, не чаще одного раза за период ожидания в чат и не больше
+ * бюджета ответов в час на аккаунт. Исходное сообщение при этом пересылается администратору как обычно.
+ */
+public class AutoResponder {
+
+    // Сколько чатов с недавним ответом помнить, прежде чем удалять записи с истёкшим ожиданием
+    private static final int MAX_COOLDOWN_ENTRIES = 10000;
+
+    /**
+     * Правило автоответа: фраза, шаблон ответа и аккаунт, к которому оно относится (0 — все аккаунты).
+     */
+    public record Rule(int id, long account, String pattern, String template) implements KeywordRuleStore.KeywordRule {
+    }
+
+    private record ChatKey(long account, long chatId) {
+    }
+
+    /**
+     * Ответы аккаунта за текущий час.
+     */
+    private static final class Budget {
+        long windowStartNanos;
+        int sent;
+    }
+
+    private final KeywordRuleStore<Rule> store;
+    private final long cooldownNanos;
+    private final int budgetPerHour;
+
+    private final Map<ChatKey, Long> lastReply = new ConcurrentHashMap<>();
+    private final Map<Long, Budget> budgets = new ConcurrentHashMap<>();
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder suppressedByCooldown = new LongAdder();
+    private final LongAdder suppressedByBudget = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    /**
+     * @param file            файл правил; если его нет, правил нет
+     * @param cooldownSeconds минимальный промежуток между автоответами в один чат
+     * @param budgetPerHour   сколько автоответов в час может отправить один аккаунт
+     */
+    public AutoResponder(Path file, long cooldownSeconds, int budgetPerHour) {
+        this.store = new KeywordRuleStore<>(file, new TypeToken<List<Rule>>() {}.getType(), "автоответы");
+        this.cooldownNanos = TimeUnit.SECONDS.toNanos(cooldownSeconds);
+        this.budgetPerHour = budgetPerHour;
+    }
+
+    /**
+     * Добавляет правило автоответа.
+     *
+     * @param account  api_id аккаунта или 0 для всех аккаунтов
+     * @param pattern  ключевая фраза
+     * @param template текст ответа
+     * @throws IllegalArgumentException если фраза или ответ пусты
+     */
+    public Rule add(long account, String pattern, String template) {
+        if (KeywordAutomaton.normalize(pattern).isBlank() || template.isBlank()) {
+            throw new IllegalArgumentException("Нужны фраза и текст ответа");
+        }
+        return store.add(id -> new Rule(id, account, pattern.trim(), template.trim()));
+    }
+
+    /**
+     * Удаляет правило по номеру.
+     *
+     * @return false, если правила с таким номером нет
+     */
+    public boolean remove(int id) {
+        return store.remove(id);
+    }
+
+    public List<Rule> rules() {
+        return store.rules();
+    }
+
+    /**
+     * Проверяет входящее сообщение и при совпадении отвечает из того же аккаунта.
+     * Вызывается на потоке обновлений TDLib: всё, кроме самой отправки, выполняется в памяти.
+     *
+     * @param account api_id аккаунта, получившего сообщение
+     * @param userBot аккаунт, получивший сообщение
+     * @param message входящее сообщение
+     */
+    public void onMessage(long account, UserBot userBot, TdApi.Message message) {
+        long received = System.nanoTime();
+        if (store.rules().isEmpty() || message.isOutgoing
+                // Личный чат в TDLib имеет тот же идентификатор, что и собеседник
+                || !(message.senderId instanceof TdApi.MessageSenderUser sender) || sender.userId != message.chatId) {
+            return;
+        }
+        String text = MessageConverter.text(message.content);
+        if (text == null || text.isEmpty()) {
+            return;
+        }
+        List<Rule> matched = store.match(account, text, true);
+        if (matched.isEmpty()) {
+            return;
+        }
+        Rule rule = matched.get(0);
+
+        ChatKey key = new ChatKey(account, message.chatId);
+        Long previous = lastReply.get(key);
+        if (previous != null && received - previous < cooldownNanos) {
+            suppressedByCooldown.increment();
+            return;
+        }
+        if (!takeBudget(account, received)) {
+            suppressedByBudget.increment();
+            return;
+        }
+        if (lastReply.size() >= MAX_COOLDOWN_ENTRIES) {
+            lastReply.values().removeIf(at -> received - at >= cooldownNanos);
+        }
+        lastReply.put(key, received);
+
+        userBot.sendMessage(message.chatId, render(rule.template(), userBot, sender.userId, message.chatId))
+                .whenComplete((sentMessage, error) -> {
+                    if (error != null) {
+                        failed.increment();
+                        return;
+                    }
+                    long latency = System.nanoTime() - received;
+                    sent.increment();
+                    latencyNanos.add(latency);
+                    maxLatencyNanos.accumulateAndGet(latency, Math::max);
+                });
+    }
+
+    private boolean takeBudget(long account, long now) {
+        Budget budget = budgets.computeIfAbsent(account, k -> new Budget());
+        synchronized (budget) {
+            if (budget.sent == 0 || now - budget.windowStartNanos >= TimeUnit.HOURS.toNanos(1)) {
+                budget.windowStartNanos = now;
+                budget.sent = 0;
+            }
+            if (budget.sent >= budgetPerHour) {
+                return false;
+            }
+            budget.sent++;
+            return true;
+        }
+    }
+
+    /**
+     * Подставляет в шаблон данные из кэша аккаунта; запросов к TDLib не делает.
+     */
+    private static String render(String template, UserBot userBot, long userId, long chatId) {
+        ChatInfoCache cache = userBot.getChatInfoCache();
+        ChatInfoCache.UserInfo user = cache.getUser(userId);
+        ChatInfoCache.ChatInfo chat = cache.getChat(chatId);
+        return template
+                .replace("{username}", user != null && user.username() != null ? "@" + user.username() : "")
+                .replace("{chat}", chat != null && chat.title() != null ? chat.title() : "");
+    }
+
+    public String statsSummary() {
+        long count = sent.sum();
+        return "правил " + store.rules().size() + ", отправлено " + count + ", ошибок " + failed.sum()
+                + ", подавлено (ожидание в чате) " + suppressedByCooldown.sum()
+                + ", подавлено (бюджет аккаунта) " + suppressedByBudget.sum()
+                + ", задержка ответа: средняя " + (count > 0 ? latencyNanos.sum() / count / 1_000_000 : 0)
+                + " мс, максимальная " + maxLatencyNanos.get() / 1_000_000 + " мс";
+    }
+}
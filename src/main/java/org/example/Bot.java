@@ -1,8 +1,10 @@
 package org.example;
 
 import it.tdlight.util.UnsupportedNativeLibraryException;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
 import org.telegram.telegrambots.bots.TelegramLongPollingBot;
 import org.telegram.telegrambots.meta.api.methods.PartialBotApiMethod;
+import org.telegram.telegrambots.meta.api.methods.send.SendMediaGroup;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
 import org.telegram.telegrambots.meta.api.methods.send.SendPhoto;
 import org.telegram.telegrambots.meta.api.methods.send.SendVoice;
@@ -14,21 +16,47 @@ import org.telegram.telegrambots.meta.api.objects.Update;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Бот, реализующий базовую логику обработки входящих сообщений.
  * Метод onUpdateReceived делегирует обработку команды /add в Main.
+ * Исходящие запросы проходят через {@link OutboundScheduler}, который соблюдает ограничения Telegram.
  */
 public class Bot extends TelegramLongPollingBot {
     private final BotConfig config;
-    private boolean waitingForCode = false;
+    private volatile boolean waitingForCode = false;
     private ProgramFlow flow;
-    private CompletableFuture<String> codeFuture = new CompletableFuture<>();
+    private volatile CompletableFuture<String> codeFuture = new CompletableFuture<>();
+    // Аккаунты запускаются параллельно, а ответ администратора один: вопросы задаются по очереди
+    private final Object authPromptLock = new Object();
+    private final OutboundScheduler outbound;
 
     public Bot(BotConfig config, ProgramFlow flow) {
+        super(botOptions(config));
         this.config = config;
         this.flow = flow;
+        this.outbound = new OutboundScheduler(this::executeNow, config.getOutboundGlobalPerSecond(),
+                config.getOutboundChatPerSecond(), config.getOutboundChatBurst(), Path.of(config.getOutboundRetryFile()));
+    }
+
+    /**
+     * Настройки клиента Bot API: адрес берётся из конфигурации, что позволяет использовать локальный сервер.
+     */
+    private static DefaultBotOptions botOptions(BotConfig config) {
+        DefaultBotOptions options = new DefaultBotOptions();
+        String baseUrl = config.getBotApiBaseUrl();
+        options.setBaseUrl((baseUrl.endsWith("/") ? baseUrl : baseUrl + "/") + "bot");
+        return options;
+    }
+
+    public OutboundScheduler getOutbound() {
+        return outbound;
     }
 
     @Override
@@ -41,10 +69,13 @@ public class Bot extends TelegramLongPollingBot {
                 this.flow.handleReply(message);
             } else {
                 String text = message.getText();
-                if (this.waitingForCode) {
-                    this.codeFuture.complete(text);
-                    this.codeFuture = new CompletableFuture<>();
-                    this.waitingForCode = false;
+                // Пока ждём код авторизации, команды выполняются как обычно, а кодом считается только текст без "/"
+                if (!text.startsWith("/")) {
+                    if (this.waitingForCode) {
+                        this.codeFuture.complete(text);
+                        this.codeFuture = new CompletableFuture<>();
+                        this.waitingForCode = false;
+                    }
                 }
 
                 // Если команда /add, делегируем обработку в ProgramFlow
@@ -56,6 +87,30 @@ public class Bot extends TelegramLongPollingBot {
                     }
                 }
 
+                else if (text.startsWith("/trigger")) {
+                    this.flow.processTriggerCommand(message);
+                }
+
+                else if (text.startsWith("/autoreply")) {
+                    this.flow.processAutoReplyCommand(message);
+                }
+
+                else if (text.startsWith("/schedule")) {
+                    this.flow.processScheduleCommand(message);
+                }
+
+                else if (text.startsWith("/broadcast")) {
+                    this.flow.processBroadcastCommand(message);
+                }
+
+                else if (text.startsWith("/search")) {
+                    this.flow.processSearchCommand(message);
+                }
+
+                else if (text.startsWith("/stats")) {
+                    this.flow.processStatsCommand();
+                }
+
                 else if (text.startsWith("/start")) {
                     //Здесь приветствие
                 }
@@ -69,6 +124,21 @@ public class Bot extends TelegramLongPollingBot {
         return this.codeFuture;
     }
 
+    /**
+     * Задаёт администратору вопрос авторизации и ждёт ответа. Вопросы разных аккаунтов
+     * не перемешиваются: следующий задаётся только после ответа на предыдущий.
+     *
+     * @param question текст вопроса
+     * @return ответ администратора
+     */
+    public String askAdmin(String question) throws InterruptedException, ExecutionException {
+        synchronized (authPromptLock) {
+            CompletableFuture<String> answer = waitForCode();
+            send_message(question, OutboundScheduler.Lane.AUTH);
+            return answer.get();
+        }
+    }
+
     @Override
     public String getBotUsername() {
         return config.getBotUsername();
@@ -83,36 +153,106 @@ public class Bot extends TelegramLongPollingBot {
      * Метод для отправки сообщений с опциональными параметрами
      * @param text   объект с данными сообщения
      */
-    public Message send_message(String text) {
-        // Отправка текстового сообщения
-        if (text != null && !text.isEmpty()) {
-            SendMessage sendMessage = SendMessage.builder()
-                    .chatId(String.valueOf(this.config.getAdminId()))
-                    .text(text)
-                    .build();
-            try {
-                return execute(sendMessage);
-            } catch (TelegramApiException e) {
-                e.printStackTrace();
-            }
-        }
+    public CompletableFuture<Message> send_message(String text) {
+        return send_message(text, OutboundScheduler.Lane.COMMAND);
+    }
 
-        return null;
+    /**
+     * Отправляет сообщение администратору в заданной полосе приоритета.
+     * Запросы авторизации отправляются в полосе AUTH, чтобы не ждать массовой пересылки.
+     *
+     * Не блокируется: сообщение ставится в очередь планировщика, а ошибка отправки записывается в лог.
+     * Вызывается в том числе из потока TDLib и потока long polling, которые нельзя задерживать
+     * ожиданием лимитов Telegram.
+     *
+     * @param text текст сообщения
+     * @param lane полоса приоритета
+     * @return задача, завершающаяся отправленным сообщением (null для пустого текста)
+     */
+    public CompletableFuture<Message> send_message(String text, OutboundScheduler.Lane lane) {
+        if (text == null || text.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        SendMessage sendMessage = SendMessage.builder()
+                .chatId(String.valueOf(this.config.getAdminId()))
+                .text(text)
+                .build();
+        return outbound.submit(sendMessage, lane, null)
+                .thenApply(sent -> sent.isEmpty() ? null : sent.get(0))
+                .whenComplete((sent, error) -> {
+                    if (error != null) {
+                        Main.logger.warning("Не удалось отправить сообщение администратору: "
+                                + (error instanceof CompletionException ? error.getCause() : error));
+                    }
+                });
     }
 
+    /**
+     * Отправляет запрос через планировщик в полосе массовой отправки и дожидается результата.
+     * Блокирует вызывающий поток до отправки, поэтому вызывается только из потоков конвейера пересылки.
+     */
     public Message execute(PartialBotApiMethod<?> partialBotApiMethod) throws TelegramApiException {
+        return execute(partialBotApiMethod, OutboundScheduler.Lane.BULK, null);
+    }
+
+    /**
+     * Отправляет запрос через планировщик и дожидается результата.
+     * Блокирует вызывающий поток до отправки, поэтому вызывается только из потоков конвейера пересылки.
+     *
+     * @param partialBotApiMethod запрос Bot API
+     * @param lane                полоса приоритета
+     * @param origin              исходный чат пересылаемого сообщения или null
+     */
+    public Message execute(PartialBotApiMethod<?> partialBotApiMethod, OutboundScheduler.Lane lane,
+                           OutboundScheduler.Origin origin) throws TelegramApiException {
+        List<Message> sent = submit(partialBotApiMethod, lane, origin);
+        return sent.isEmpty() ? null : sent.get(0);
+    }
+
+    /**
+     * Отправляет альбом через планировщик одним запросом и дожидается результата.
+     *
+     * @return сообщения альбома в порядке частей
+     */
+    public List<Message> executeMediaGroup(SendMediaGroup sendMediaGroup, OutboundScheduler.Lane lane,
+                                           OutboundScheduler.Origin origin) throws TelegramApiException {
+        return submit(sendMediaGroup, lane, origin);
+    }
+
+    private List<Message> submit(PartialBotApiMethod<?> partialBotApiMethod, OutboundScheduler.Lane lane,
+                                 OutboundScheduler.Origin origin) throws TelegramApiException {
+        try {
+            return outbound.submit(partialBotApiMethod, lane, origin).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof TelegramApiException cause) {
+                throw cause;
+            }
+            throw new TelegramApiException("Ошибка отправки запроса", e.getCause());
+        } catch (CancellationException e) {
+            throw new TelegramApiException("Отправка отменена: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Непосредственно отправляет запрос в Bot API, минуя планировщик.
+     */
+    private List<Message> executeNow(PartialBotApiMethod<?> partialBotApiMethod) throws TelegramApiException {
+        if (partialBotApiMethod instanceof SendMediaGroup) {
+            return this.execute((SendMediaGroup) partialBotApiMethod);
+        }
+        Message sent = null;
         if (partialBotApiMethod instanceof SendMessage) {
-            return this.execute((SendMessage) partialBotApiMethod);
+            sent = this.execute((SendMessage) partialBotApiMethod);
         } else if (partialBotApiMethod instanceof SendPhoto) {
-            return this.execute((SendPhoto) partialBotApiMethod);
+            sent = this.execute((SendPhoto) partialBotApiMethod);
         } else if (partialBotApiMethod instanceof SendVoice) {
-            return this.execute((SendVoice) partialBotApiMethod);
+            sent = this.execute((SendVoice) partialBotApiMethod);
         } else if (partialBotApiMethod instanceof SendSticker) {
-            return this.execute((SendSticker) partialBotApiMethod);
+            sent = this.execute((SendSticker) partialBotApiMethod);
         } else if (partialBotApiMethod instanceof SendAnimation) {
-            return this.execute((SendAnimation) partialBotApiMethod);
+            sent = this.execute((SendAnimation) partialBotApiMethod);
         }
-        return null;
+        return sent != null ? List.of(sent) : List.of();
     }
 
     /**
@@ -104,10 +104,9 @@ public class BotClientInteraction implements ClientInteraction {
                     question = parameter.toString();
             }
 
-            this.bot.send_message(String.format("[%s] %s:", who, question));
             String result = null;
             try {
-                result = bot.waitForCode().get();
+                result = bot.askAdmin(String.format("[%s] %s:", who, question));
             } catch (InterruptedException | ExecutionException e) {
                 throw new RuntimeException(e);
             }
@@ -4,6 +4,7 @@ import com.google.gson.Gson;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
 
 /**
  * Класс для загрузки конфигурации бота из JSON-файла.
@@ -12,6 +13,81 @@ public class BotConfig {
     private String botToken;
     private String botUsername;
     private long adminId;
+    // Режим хранения маршрутов MessageMapper: journal или mmap
+    private String mapperStorage = "journal";
+    // Политика хранения маршрутов MessageMapper: 0 — без ограничения
+    private int mapperMaxEntries = 0;
+    private int mapperMaxAgeHours = 0;
+    private boolean mapperColdSegment = true;
+    // Сколько дней вытесненный маршрут хранится в холодном сегменте; 0 — без ограничения
+    private int mapperColdMaxAgeDays = 90;
+    // Максимальное число сообщений, одновременно находящихся в конвейере пересылки; остальные ждут допуска в очереди своего чата
+    private int forwardMaxInFlight = 256;
+    // Сколько ждать следующую часть альбома перед отправкой одним SendMediaGroup
+    private long albumWindowMs = 300;
+    // Окно объединения коротких текстовых сообщений одного чата в одно; 0 — не объединять
+    private long textCoalesceWindowMs = 0;
+    // Триггеры по ключевым словам: flag — личные сообщения пересылаются все, группы и каналы по совпадению;
+    // filter — пересылаются только совпавшие сообщения
+    private String triggerMode = "flag";
+    private String triggersFile = "triggers.json";
+    // Автоответчик: файл правил, период ожидания между ответами в один чат и бюджет ответов аккаунта в час
+    private String autoRepliesFile = "autoreplies.json";
+    private long autoReplyChatCooldownSeconds = 300;
+    private int autoReplyBudgetPerHour = 30;
+    // Журнал отложенных сообщений (/schedule)
+    private String scheduledSendsFile = "scheduled_sends.log";
+    // Рассылка (/broadcast): сообщений в минуту с одного аккаунта и период отчёта о ходе рассылки
+    private int broadcastPerAccountPerMinute = 20;
+    private long broadcastProgressSeconds = 15;
+    // Поисковый индекс переписки (/search): каталог и сколько сообщений копить в памяти до записи сегмента
+    private String searchIndexDir = "search_index";
+    private int searchFlushDocs = 50000;
+    // Размер кэша сведений о чатах и пользователях каждого юзербота
+    private int chatCacheMaxEntries = 10000;
+    // Отметки о прочтении копятся по чатам не дольше окна и не больше пачки
+    private long readReceiptWindowMs = 500;
+    private int readReceiptMaxBatch = 100;
+    // Загрузка медиа: число одновременных загрузок на юзербота и таймаут одной загрузки
+    private int mediaDownloadsPerUserBot = 4;
+    private int mediaDownloadTimeoutSeconds = 30;
+    // Удалять ли пересланные медиафайлы из кэша TDLib после отправки
+    private boolean mediaDeleteAfterSend = true;
+    // Кэш уже загруженных медиафайлов: максимальное число записей и возраст записи в днях (0 — без ограничения)
+    private int mediaCacheMaxEntries = 50000;
+    private int mediaCacheMaxAgeDays = 30;
+    // Адрес Bot API (можно указать локальный сервер Bot API), таймауты и число одновременных загрузок файлов
+    private String botApiBaseUrl = "https://api.telegram.org";
+    private int botApiConnectTimeoutSeconds = 10;
+    private int botApiReadTimeoutSeconds = 60;
+    private int botApiMaxDownloads = 8;
+    // Способ передачи медиа ответов в TDLib: download — через временный файл, stream — потоково по мере скачивания
+    private String replyMediaMode = "download";
+    // Способ получения обновлений ботом: polling — long polling, webhook — встроенный HTTP-сервер
+    private String updateMode = "polling";
+    // Публичный HTTPS-адрес, который передаётся в setWebhook (обычно обратный прокси перед локальным сервером)
+    private String webhookUrl = "";
+    // Адрес и путь, на которых локальный сервер принимает обновления
+    private String webhookListenHost = "127.0.0.1";
+    private int webhookListenPort = 8081;
+    private String webhookPath = "/telegram/webhook";
+    // Секрет заголовка X-Telegram-Bot-Api-Secret-Token; если пуст, генерируется при запуске
+    private String webhookSecretToken = "";
+    private int webhookMaxConnections = 40;
+    // Ограничения исходящих запросов бота: всего в секунду, в один чат в секунду и допустимая серия в один чат
+    private double outboundGlobalPerSecond = 30;
+    private double outboundChatPerSecond = 1;
+    private double outboundChatBurst = 5;
+    // Файл очереди повторов исходящих запросов
+    private String outboundRetryFile = "outbound_retry.json";
+    // Сколько аккаунтов одновременно открывают базу TDLib при запуске
+    private int startupConcurrency = 4;
+    // Через сколько минут простоя аккаунт засыпает (клиент TDLib закрывается); 0 — не усыплять
+    private long sessionIdleMinutes = 0;
+    // Как часто спящий аккаунт просыпается, чтобы получить пропущенные сообщения; 0 — только по ответу
+    private long sessionCatchUpMinutes = 60;
+    // api_id аккаунтов, которые никогда не засыпают
+    private List<Long> alwaysOnAccounts = List.of();
 
     public String getBotToken() {
         return botToken;
@@ -25,6 +101,190 @@ public class BotConfig {
         return adminId;
     }
 
+    public String getMapperStorage() {
+        return mapperStorage;
+    }
+
+    public int getMapperMaxEntries() {
+        return mapperMaxEntries;
+    }
+
+    public int getMapperMaxAgeHours() {
+        return mapperMaxAgeHours;
+    }
+
+    public boolean isMapperColdSegment() {
+        return mapperColdSegment;
+    }
+
+    public int getMapperColdMaxAgeDays() {
+        return mapperColdMaxAgeDays;
+    }
+
+    public int getForwardMaxInFlight() {
+        return forwardMaxInFlight;
+    }
+
+    public long getAlbumWindowMs() {
+        return albumWindowMs;
+    }
+
+    public long getTextCoalesceWindowMs() {
+        return textCoalesceWindowMs;
+    }
+
+    public String getTriggerMode() {
+        return triggerMode;
+    }
+
+    public String getTriggersFile() {
+        return triggersFile;
+    }
+
+    public String getAutoRepliesFile() {
+        return autoRepliesFile;
+    }
+
+    public long getAutoReplyChatCooldownSeconds() {
+        return autoReplyChatCooldownSeconds;
+    }
+
+    public int getAutoReplyBudgetPerHour() {
+        return autoReplyBudgetPerHour;
+    }
+
+    public String getScheduledSendsFile() {
+        return scheduledSendsFile;
+    }
+
+    public int getBroadcastPerAccountPerMinute() {
+        return broadcastPerAccountPerMinute;
+    }
+
+    public long getBroadcastProgressSeconds() {
+        return broadcastProgressSeconds;
+    }
+
+    public String getSearchIndexDir() {
+        return searchIndexDir;
+    }
+
+    public int getSearchFlushDocs() {
+        return searchFlushDocs;
+    }
+
+    public int getChatCacheMaxEntries() {
+        return chatCacheMaxEntries;
+    }
+
+    public long getReadReceiptWindowMs() {
+        return readReceiptWindowMs;
+    }
+
+    public int getReadReceiptMaxBatch() {
+        return readReceiptMaxBatch;
+    }
+
+    public int getMediaDownloadsPerUserBot() {
+        return mediaDownloadsPerUserBot;
+    }
+
+    public int getMediaDownloadTimeoutSeconds() {
+        return mediaDownloadTimeoutSeconds;
+    }
+
+    public boolean isMediaDeleteAfterSend() {
+        return mediaDeleteAfterSend;
+    }
+
+    public int getMediaCacheMaxEntries() {
+        return mediaCacheMaxEntries;
+    }
+
+    public int getMediaCacheMaxAgeDays() {
+        return mediaCacheMaxAgeDays;
+    }
+
+    public String getBotApiBaseUrl() {
+        return botApiBaseUrl;
+    }
+
+    public int getBotApiConnectTimeoutSeconds() {
+        return botApiConnectTimeoutSeconds;
+    }
+
+    public int getBotApiReadTimeoutSeconds() {
+        return botApiReadTimeoutSeconds;
+    }
+
+    public int getBotApiMaxDownloads() {
+        return botApiMaxDownloads;
+    }
+
+    public String getReplyMediaMode() {
+        return replyMediaMode;
+    }
+
+    public String getUpdateMode() {
+        return updateMode;
+    }
+
+    public String getWebhookUrl() {
+        return webhookUrl;
+    }
+
+    public String getWebhookListenHost() {
+        return webhookListenHost;
+    }
+
+    public int getWebhookListenPort() {
+        return webhookListenPort;
+    }
+
+    public String getWebhookPath() {
+        return webhookPath;
+    }
+
+    public String getWebhookSecretToken() {
+        return webhookSecretToken;
+    }
+
+    public int getWebhookMaxConnections() {
+        return webhookMaxConnections;
+    }
+
+    public double getOutboundGlobalPerSecond() {
+        return outboundGlobalPerSecond;
+    }
+
+    public double getOutboundChatPerSecond() {
+        return outboundChatPerSecond;
+    }
+
+    public double getOutboundChatBurst() {
+        return outboundChatBurst;
+    }
+
+    public String getOutboundRetryFile() {
+        return outboundRetryFile;
+    }
+
+    public int getStartupConcurrency() {
+        return startupConcurrency;
+    }
+
+    public long getSessionIdleMinutes() {
+        return sessionIdleMinutes;
+    }
+
+    public long getSessionCatchUpMinutes() {
+        return sessionCatchUpMinutes;
+    }
+
+    public List<Long> getAlwaysOnAccounts() {
+        return alwaysOnAccounts;
+    }
+
     /**
      * Загружает конфигурацию из указанного файла.
      *
@@ -0,0 +1,409 @@
+package org.example;
+
+import it.tdlight.jni.TdApi;
+import org.telegram.telegrambots.meta.api.objects.Message;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Рассылка одного сообщения во множество чатов из аккаунтов юзерботов (/broadcast).
+ *
+ * Цели группируются по аккаунтам, и аккаунты отправляют параллельно. Внутри аккаунта сообщения уходят
+ * по одному с интервалом, заданным лимитом в минуту: так аккаунт не упирается в ограничения Telegram.
+ * Если Telegram всё же просит подождать (retry after N), аккаунт ждёт и повторяет тот же чат;
+ * при PEER_FLOOD рассылка из этого аккаунта прекращается. Медиафайл загружается аккаунтом один раз:
+ * после первой отправки его ссылка попадает в {@link MediaCache}, и остальные получатели получают файл по ней.
+ * Ход рассылки и скорость периодически сообщаются администратору. Все сообщения администратору ставятся
+ * в очередь бота без ожидания, поэтому поток рассылки и обработчики завершения отправок не блокируются.
+ */
+public class Broadcaster implements AutoCloseable {
+
+    // Сколько чатов аккаунта брать для цели "все чаты"
+    private static final int ALL_CHATS_LIMIT = 1000;
+    private static final Pattern RETRY_AFTER = Pattern.compile("retry after (\\d+)");
+
+    /**
+     * Цель рассылки: чат аккаунта или, если chatId равен null, все чаты аккаунта.
+     */
+    public record Target(long account, Long chatId) {
+    }
+
+    /**
+     * Очередь чатов одного аккаунта внутри рассылки. Обрабатывается строго последовательно.
+     */
+    private static final class Lane {
+        final long account;
+        final Deque<Long> chats = new ArrayDeque<>();
+        UserBot userBot;
+        // Файл уже загружен этим аккаунтом заново после отказа Telegram принять ссылку из кэша
+        boolean reuploaded;
+
+        Lane(long account) {
+            this.account = account;
+        }
+    }
+
+    private static final class Job {
+        final int id;
+        // Сообщение бота, содержимое которого рассылается; null для текстовой рассылки
+        final Message source;
+        final String text;
+        final long startedNanos = System.nanoTime();
+        final AtomicInteger total = new AtomicInteger();
+        final AtomicInteger sent = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger lanesLeft = new AtomicInteger();
+        volatile boolean cancelled;
+        ScheduledFuture<?> progress;
+        // Предыдущий отчёт о ходе рассылки ещё не отправлен
+        final AtomicBoolean reporting = new AtomicBoolean();
+
+        Job(int id, Message source, String text) {
+            this.id = id;
+            this.source = source;
+            this.text = text;
+        }
+
+        String summary() {
+            double seconds = Math.max(1e-3, (System.nanoTime() - startedNanos) / 1e9);
+            int done = sent.get() + failed.get();
+            double perMinute = done / seconds * 60;
+            String line = "Рассылка " + id + ": отправлено " + sent.get() + " из " + total.get()
+                    + ", ошибок " + failed.get() + String.format(", %.1f сообщений/мин", perMinute)
+                    + ", прошло " + (long) seconds + " с";
+            int left = total.get() - done;
+            if (left > 0 && perMinute > 0 && !cancelled) {
+                line += ", осталось около " + (long) (left / perMinute * 60) + " с";
+            }
+            return line;
+        }
+    }
+
+    private final SessionManager sessions;
+    private final ReverseMessageConverter reverseConverter;
+    private final MediaCache mediaCache;
+    private final Bot bot;
+    private final long intervalNanos;
+    private final long progressSeconds;
+    private final ScheduledExecutorService scheduler;
+    private final Map<Integer, Job> active = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    private final LongAdder finished = new LongAdder();
+    private final LongAdder sentTotal = new LongAdder();
+    private final LongAdder failedTotal = new LongAdder();
+    private final LongAdder uploads = new LongAdder();
+    private final LongAdder floodWaits = new LongAdder();
+
+    /**
+     * @param sessions            сессии аккаунтов, из которых идёт рассылка
+     * @param reverseConverter    преобразует сообщение бота в запрос TDLib
+     * @param mediaCache          кэш загруженных аккаунтами файлов
+     * @param bot                 бот для отчётов администратору
+     * @param perAccountPerMinute сколько сообщений в минуту отправляет один аккаунт
+     * @param progressSeconds     как часто сообщать администратору о ходе рассылки
+     */
+    public Broadcaster(SessionManager sessions, ReverseMessageConverter reverseConverter, MediaCache mediaCache, Bot bot,
+                       int perAccountPerMinute, long progressSeconds) {
+        this.sessions = sessions;
+        this.reverseConverter = reverseConverter;
+        this.mediaCache = mediaCache;
+        this.bot = bot;
+        this.intervalNanos = TimeUnit.MINUTES.toNanos(1) / Math.max(1, perAccountPerMinute);
+        this.progressSeconds = Math.max(1, progressSeconds);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "broadcast");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Разбирает список целей вида {@code api_id:chat_id,api_id:all}. Вместо api_id можно указать {@code *} —
+     * все известные аккаунты.
+     *
+     * @param text     список целей через запятую
+     * @param accounts api_id всех аккаунтов для {@code *}
+     * @throws IllegalArgumentException если цель не распознана
+     */
+    public static List<Target> parseTargets(String text, Collection<Long> accounts) {
+        Set<Target> targets = new LinkedHashSet<>();
+        for (String part : text.split(",")) {
+            int colon = part.indexOf(':');
+            if (colon <= 0 || colon == part.length() - 1) {
+                throw new IllegalArgumentException("Неверная цель: " + part + " (нужно api_id:chat_id или api_id:all)");
+            }
+            String account = part.substring(0, colon);
+            String chat = part.substring(colon + 1);
+            Long chatId;
+            try {
+                chatId = "all".equals(chat) ? null : Long.parseLong(chat);
+                if ("*".equals(account)) {
+                    for (Long apiId : accounts) {
+                        targets.add(new Target(apiId, chatId));
+                    }
+                } else {
+                    targets.add(new Target(Long.parseLong(account), chatId));
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Неверная цель: " + part);
+            }
+        }
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException("Нет целей рассылки");
+        }
+        return new ArrayList<>(targets);
+    }
+
+    /**
+     * Запускает рассылку. Аккаунты будятся при необходимости; отправка начинается, как только аккаунт готов.
+     *
+     * @param targets цели рассылки
+     * @param source  сообщение бота, содержимое которого рассылается, или null
+     * @param text    текст рассылки, если source равен null
+     * @return номер рассылки
+     */
+    public int start(List<Target> targets, Message source, String text) {
+        Job job = new Job(nextId.incrementAndGet(), source, text);
+        Map<Long, List<Target>> byAccount = new LinkedHashMap<>();
+        for (Target target : targets) {
+            byAccount.computeIfAbsent(target.account(), k -> new ArrayList<>()).add(target);
+        }
+        active.put(job.id, job);
+        job.lanesLeft.set(byAccount.size());
+        job.progress = scheduler.scheduleAtFixedRate(() -> reportProgress(job),
+                progressSeconds, progressSeconds, TimeUnit.SECONDS);
+        for (Map.Entry<Long, List<Target>> entry : byAccount.entrySet()) {
+            Lane lane = new Lane(entry.getKey());
+            sessions.acquire(lane.account)
+                    .thenCompose(userBot -> {
+                        lane.userBot = userBot;
+                        return resolveChats(userBot, entry.getValue());
+                    })
+                    .whenComplete((chats, error) -> {
+                        if (error != null) {
+                            Main.logger.warning("Рассылка " + job.id + ": аккаунт " + lane.account + " недоступен: " + unwrap(error));
+                            bot.send_message("Рассылка " + job.id + ": аккаунт " + lane.account + " недоступен.");
+                            laneDone(job, lane);
+                            return;
+                        }
+                        lane.chats.addAll(chats);
+                        job.total.addAndGet(chats.size());
+                        scheduler.execute(() -> sendNext(job, lane));
+                    });
+        }
+        return job.id;
+    }
+
+    /**
+     * Отправляет отчёт о ходе рассылки, не дожидаясь Bot API. Пока предыдущий отчёт стоит в очереди
+     * исходящих, новый не создаётся: отчёты не копятся, если Bot API отвечает медленно.
+     */
+    private void reportProgress(Job job) {
+        if (!job.reporting.compareAndSet(false, true)) {
+            return;
+        }
+        bot.send_message(job.summary()).whenComplete((ignored, error) -> job.reporting.set(false));
+    }
+
+    /**
+     * Раскрывает цели аккаунта в список чатов; для "все чаты" запрашивает основной список чатов у TDLib.
+     */
+    private static CompletableFuture<Set<Long>> resolveChats(UserBot userBot, List<Target> targets) {
+        Set<Long> chats = new LinkedHashSet<>();
+        boolean all = false;
+        for (Target target : targets) {
+            if (target.chatId() == null) {
+                all = true;
+            } else {
+                chats.add(target.chatId());
+            }
+        }
+        if (!all) {
+            return CompletableFuture.completedFuture(chats);
+        }
+        return userBot.getClient().send(new TdApi.GetChats(new TdApi.ChatListMain(), ALL_CHATS_LIMIT))
+                .thenApply(loaded -> {
+                    for (long chatId : loaded.chatIds) {
+                        chats.add(chatId);
+                    }
+                    return chats;
+                });
+    }
+
+    /**
+     * Отправляет следующее сообщение очереди аккаунта. Выполняется на потоке рассылки; следующая отправка
+     * планируется после завершения текущей, не раньше интервала аккаунта.
+     */
+    private void sendNext(Job job, Lane lane) {
+        Long chatId = lane.chats.peekFirst();
+        if (chatId == null || job.cancelled) {
+            lane.chats.clear();
+            laneDone(job, lane);
+            return;
+        }
+        long started = System.nanoTime();
+        prepare(job, lane.account, chatId)
+                .thenCompose(request -> send(job, lane, request))
+                .whenComplete((sentMessage, error) -> {
+                    long delayNanos = Math.max(0, intervalNanos - (System.nanoTime() - started));
+                    if (error == null) {
+                        lane.chats.pollFirst();
+                        job.sent.incrementAndGet();
+                        sentTotal.increment();
+                    } else {
+                        Throwable cause = unwrap(error);
+                        String description = String.valueOf(cause.getMessage());
+                        Matcher retryAfter = RETRY_AFTER.matcher(description);
+                        if (retryAfter.find()) {
+                            // Тот же чат повторяется после паузы, которую назвал Telegram
+                            floodWaits.increment();
+                            delayNanos = Math.max(delayNanos, TimeUnit.SECONDS.toNanos(Long.parseLong(retryAfter.group(1))));
+                        } else if (description.contains("PEER_FLOOD")) {
+                            Main.logger.warning("Рассылка " + job.id + ": аккаунт " + lane.account + " ограничен Telegram (PEER_FLOOD)");
+                            bot.send_message("Рассылка " + job.id + ": аккаунт " + lane.account
+                                    + " ограничен Telegram, оставшиеся " + lane.chats.size() + " чатов пропущены.");
+                            job.failed.addAndGet(lane.chats.size());
+                            failedTotal.add(lane.chats.size());
+                            lane.chats.clear();
+                        } else {
+                            lane.chats.pollFirst();
+                            job.failed.incrementAndGet();
+                            failedTotal.increment();
+                            Main.logger.warning("Рассылка " + job.id + ": ошибка отправки в чат " + chatId + ": " + cause);
+                        }
+                    }
+                    scheduler.schedule(() -> sendNext(job, lane), delayNanos, TimeUnit.NANOSECONDS);
+                });
+    }
+
+    private CompletableFuture<TdApi.SendMessage> prepare(Job job, long account, long chatId) {
+        if (job.source != null) {
+            return reverseConverter.convertTelegramMessage(job.source, chatId, account).thenApply(request -> {
+                // Ошибка скачивания превращается конвертером в текст; разослать его вместо медиа нельзя
+                if (ReverseMessageConverter.fileUniqueId(job.source) != null
+                        && request.inputMessageContent instanceof TdApi.InputMessageText) {
+                    throw new CompletionException(new IllegalStateException("файл рассылки не удалось получить"));
+                }
+                return request;
+            });
+        }
+        TdApi.SendMessage request = new TdApi.SendMessage();
+        request.chatId = chatId;
+        request.options = new TdApi.MessageSendOptions();
+        TdApi.InputMessageText content = new TdApi.InputMessageText();
+        content.text = new TdApi.FormattedText(job.text, null);
+        request.inputMessageContent = content;
+        return CompletableFuture.completedFuture(request);
+    }
+
+    /**
+     * Отправляет сообщение и после первой загрузки файла запоминает его ссылку, чтобы остальные
+     * получатели этого аккаунта получили файл без повторной загрузки.
+     */
+    private CompletableFuture<TdApi.Message> send(Job job, Lane lane, TdApi.SendMessage request) {
+        boolean usesCachedFile = ReverseMessageConverter.usesRemoteFile(request);
+        String fileUniqueId = job.source != null ? ReverseMessageConverter.fileUniqueId(job.source) : null;
+        return lane.userBot.getClient().sendMessage(request, true).whenComplete((sentMessage, error) -> {
+            ReplyPipeline.deleteTempFile(ReverseMessageConverter.localPath(request));
+            if (fileUniqueId == null) {
+                return;
+            }
+            if (error != null) {
+                if (usesCachedFile && !lane.reuploaded && !RETRY_AFTER.matcher(String.valueOf(unwrap(error).getMessage())).find()) {
+                    // Ссылка не принята: следующая отправка загрузит файл заново
+                    lane.reuploaded = true;
+                    mediaCache.invalidateTdlibRemoteId(lane.account, fileUniqueId);
+                }
+                return;
+            }
+            TdApi.File file = MessageConverter.mediaFile(sentMessage.content);
+            if (!usesCachedFile && file != null && file.remote != null) {
+                uploads.increment();
+                mediaCache.putTdlibRemoteId(lane.account, fileUniqueId, file.remote.id);
+            }
+        });
+    }
+
+    /**
+     * Завершает очередь аккаунта и отпускает аренду его сессии, взятую при старте рассылки.
+     */
+    private void laneDone(Job job, Lane lane) {
+        sessions.release(lane.account);
+        if (job.lanesLeft.decrementAndGet() > 0) {
+            return;
+        }
+        job.progress.cancel(false);
+        active.remove(job.id);
+        finished.increment();
+        String summary = job.summary();
+        Main.logger.info(summary);
+        bot.send_message((job.cancelled ? "Отменена. " : "Завершена. ") + summary);
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    /**
+     * Отменяет рассылку: текущие отправки завершаются, остальные чаты пропускаются.
+     *
+     * @return false, если рассылки с таким номером нет или она уже завершена
+     */
+    public boolean cancel(int id) {
+        Job job = active.get(id);
+        if (job == null) {
+            return false;
+        }
+        job.cancelled = true;
+        return true;
+    }
+
+    /**
+     * Сводки идущих рассылок.
+     */
+    public List<String> activeSummaries() {
+        List<String> summaries = new ArrayList<>();
+        for (Job job : active.values()) {
+            summaries.add(job.summary());
+        }
+        return summaries;
+    }
+
+    public String statsSummary() {
+        return "идут " + active.size() + ", завершено " + finished.sum() + ", отправлено " + sentTotal.sum()
+                + ", ошибок " + failedTotal.sum() + ", загрузок файлов " + uploads.sum()
+                + ", ожиданий по flood-лимиту " + floodWaits.sum();
+    }
+
+    /**
+     * Останавливает рассылки; неотправленные сообщения не сохраняются.
+     */
+    @Override
+    public void close() {
+        for (Job job : active.values()) {
+            job.cancelled = true;
+        }
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,221 @@
+package org.example;
+
+import it.tdlight.jni.TdApi;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Кэш сведений о чатах и пользователях одного юзербота.
+ * Хранит только то, что нужно для пересылки: тип и название чата, username пользователя.
+ * Заполняется обновлениями TDLib (UpdateNewChat, UpdateChatTitle, UpdateUser, UpdateUserFullInfo)
+ * и результатами GetChat/GetUser, поэтому в большинстве случаев пересылка обходится без запросов к TDLib.
+ * Размер ограничен, при переполнении вытесняются давно не использованные записи (LRU).
+ */
+public class ChatInfoCache {
+
+    // Наименьший id канала в TDLib; id секретных чатов меньше
+    private static final long MIN_CHANNEL_CHAT_ID = -1997852516352L;
+
+    /**
+     * Сведения о чате.
+     *
+     * @param group true для групп, супергрупп и каналов, сообщения из которых не пересылаются
+     * @param title название чата
+     */
+    public record ChatInfo(boolean group, String title) {
+    }
+
+    /**
+     * Сведения о пользователе.
+     *
+     * @param username первый активный username или null, если его нет
+     */
+    public record UserInfo(String username) {
+    }
+
+    /**
+     * Счётчики попаданий одного вида запросов.
+     * Сэкономленное время оценивается как среднее время промаха, умноженное на число попаданий.
+     */
+    private static final class Counter {
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+        final LongAdder missNanos = new LongAdder();
+
+        long savedNanos() {
+            long missCount = misses.sum();
+            return missCount == 0 ? 0 : missNanos.sum() / missCount * hits.sum();
+        }
+
+        String summary(String name) {
+            long hitCount = hits.sum();
+            long total = hitCount + misses.sum();
+            return String.format("%s: попаданий %d из %d (%.1f%%), сэкономлено ~%d мс",
+                    name, hitCount, total, total == 0 ? 0.0 : hitCount * 100.0 / total,
+                    TimeUnit.NANOSECONDS.toMillis(savedNanos()));
+        }
+    }
+
+    private final Map<Long, ChatInfo> chats;
+    private final Map<Long, UserInfo> users;
+    private final Counter chatCounter = new Counter();
+    private final Counter userCounter = new Counter();
+
+    /**
+     * @param maxEntries максимальное число записей отдельно для чатов и для пользователей
+     */
+    public ChatInfoCache(int maxEntries) {
+        this.chats = lruMap(maxEntries);
+        this.users = lruMap(maxEntries);
+    }
+
+    /**
+     * Возвращает сведения о чате и учитывает попадание.
+     * Промах учитывается при загрузке чата в {@link #chatLoaded}.
+     *
+     * @return сведения о чате или null, если чата нет в кэше
+     */
+    public ChatInfo getChat(long chatId) {
+        ChatInfo info;
+        synchronized (chats) {
+            info = chats.get(chatId);
+        }
+        if (info != null) {
+            chatCounter.hits.increment();
+        }
+        return info;
+    }
+
+    /**
+     * Возвращает сведения о пользователе и учитывает попадание.
+     * Промах учитывается при загрузке пользователя в {@link #userLoaded}.
+     *
+     * @return сведения о пользователе или null, если пользователя нет в кэше
+     */
+    public UserInfo getUser(long userId) {
+        UserInfo info;
+        synchronized (users) {
+            info = users.get(userId);
+        }
+        if (info != null) {
+            userCounter.hits.increment();
+        }
+        return info;
+    }
+
+    /**
+     * Запоминает чат, полученный запросом GetChat после промаха.
+     *
+     * @param elapsedNanos длительность запроса, используется для оценки сэкономленного времени
+     */
+    public void chatLoaded(TdApi.Chat chat, long elapsedNanos) {
+        chatCounter.misses.increment();
+        chatCounter.missNanos.add(elapsedNanos);
+        putChat(chat);
+    }
+
+    /**
+     * Запоминает пользователя, полученного запросом GetUser после промаха.
+     *
+     * @param elapsedNanos длительность запроса, используется для оценки сэкономленного времени
+     */
+    public void userLoaded(TdApi.User user, long elapsedNanos) {
+        userCounter.misses.increment();
+        userCounter.missNanos.add(elapsedNanos);
+        putUser(user);
+    }
+
+    public void onNewChat(TdApi.UpdateNewChat update) {
+        putChat(update.chat);
+    }
+
+    public void onChatTitle(TdApi.UpdateChatTitle update) {
+        synchronized (chats) {
+            ChatInfo info = chats.get(update.chatId);
+            if (info != null) {
+                chats.put(update.chatId, new ChatInfo(info.group(), update.title));
+            }
+        }
+    }
+
+    public void onUser(TdApi.UpdateUser update) {
+        putUser(update.user);
+    }
+
+    /**
+     * Полная информация о пользователе username не содержит, но говорит о том, что с пользователем
+     * идёт работа, поэтому запись только поднимается в начало очереди вытеснения.
+     */
+    public void onUserFullInfo(TdApi.UpdateUserFullInfo update) {
+        synchronized (users) {
+            users.get(update.userId);
+        }
+    }
+
+    public String statsSummary() {
+        int chatCount;
+        int userCount;
+        synchronized (chats) {
+            chatCount = chats.size();
+        }
+        synchronized (users) {
+            userCount = users.size();
+        }
+        return "чатов " + chatCount + ", пользователей " + userCount + "\n"
+                + chatCounter.summary("GetChat") + "\n"
+                + userCounter.summary("GetUser");
+    }
+
+    /**
+     * Извлекает из чата TDLib сведения, которые хранит кэш.
+     */
+    /**
+     * Определяет группу, супергруппу или канал по одному id чата, без запросов и кэша.
+     * В TDLib id пользователей положительны, обычных групп — от -1 до -999999999999, супергрупп и каналов —
+     * до -1997852516352; ниже идут секретные чаты, которые считаются личными.
+     */
+    public static boolean isGroupChatId(long chatId) {
+        return chatId < 0 && chatId >= MIN_CHANNEL_CHAT_ID;
+    }
+
+    public static ChatInfo chatInfoOf(TdApi.Chat chat) {
+        boolean group = chat.type instanceof TdApi.ChatTypeBasicGroup || chat.type instanceof TdApi.ChatTypeSupergroup;
+        return new ChatInfo(group, chat.title);
+    }
+
+    /**
+     * Возвращает первый активный username пользователя или null.
+     */
+    public static String usernameOf(TdApi.User user) {
+        if (user.usernames != null && user.usernames.activeUsernames.length != 0) {
+            return user.usernames.activeUsernames[0];
+        }
+        return null;
+    }
+
+    private void putChat(TdApi.Chat chat) {
+        ChatInfo info = chatInfoOf(chat);
+        synchronized (chats) {
+            chats.put(chat.id, info);
+        }
+    }
+
+    private void putUser(TdApi.User user) {
+        UserInfo info = new UserInfo(usernameOf(user));
+        synchronized (users) {
+            users.put(user.id, info);
+        }
+    }
+
+    private static <V> Map<Long, V> lruMap(int maxEntries) {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, V> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+}
@@ -0,0 +1,321 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * «Холодный» сегмент маршрутов, вытесненных из памяти политикой хранения.
+ * Файл состоит из отсортированных по ключу пачек (run): заголовок [magic, count]
+ * и count записей того же формата, что и в журнале. В памяти держатся только границы пачек,
+ * поиск идёт бинарным поиском по файлу от новой пачки к старой.
+ * Удалённый маршрут отмечается надгробием (userBotId равен {@link MessageJournal#TOMBSTONE}) в новой пачке,
+ * которое скрывает его записи в старых.
+ * Когда пачек становится слишком много, они сливаются в одну; при слиянии отбрасываются надгробия
+ * вместе со скрытыми ими записями и маршруты, к которым не обращались дольше срока хранения.
+ */
+class ColdRouteSegment implements AutoCloseable {
+
+    private static final int RUN_MAGIC = 0x434F4C44; // "COLD"
+    private static final int RUN_HEADER_SIZE = 8;
+    private static final int RECORD_SIZE = MessageJournal.RECORD_SIZE;
+    private static final int MAX_RUNS = 16;
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    private static final class Run {
+        final long offset;
+        final int count;
+        final long minKey;
+        final long maxKey;
+
+        Run(long offset, int count, long minKey, long maxKey) {
+            this.offset = offset;
+            this.count = count;
+            this.minKey = minKey;
+            this.maxKey = maxKey;
+        }
+
+        long recordOffset(int index) {
+            return offset + RUN_HEADER_SIZE + (long) index * RECORD_SIZE;
+        }
+    }
+
+    private final Path path;
+    private final List<Run> runs = new ArrayList<>();
+    private final ByteBuffer probe = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private FileChannel channel;
+
+    ColdRouteSegment(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        indexRuns();
+    }
+
+    /**
+     * Ищет маршрут в холодном сегменте.
+     *
+     * @return массив [userBotId, chatId] или null, если ключ не найден или удалён
+     */
+    synchronized long[] lookup(long key) throws IOException {
+        for (int r = runs.size() - 1; r >= 0; r--) {
+            Run run = runs.get(r);
+            if (key < run.minKey || key > run.maxKey) {
+                continue;
+            }
+            int low = 0;
+            int high = run.count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                readRecord(run.recordOffset(mid));
+                long midKey = probe.getLong(0);
+                if (midKey < key) {
+                    low = mid + 1;
+                } else if (midKey > key) {
+                    high = mid - 1;
+                } else if (probe.getLong(8) == MessageJournal.TOMBSTONE) {
+                    return null;
+                } else {
+                    return new long[]{probe.getLong(8), probe.getLong(16)};
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Дописывает пачку вытесненных записей (четвёрки [messageId, userBotId, chatId, touchedAt]).
+     * Пачка сортируется по ключу и сохраняется на диск до возврата из метода.
+     */
+    void appendRun(long[] records, int count) throws IOException {
+        if (count == 0) {
+            return;
+        }
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> records[i * 4]));
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        synchronized (this) {
+            long offset = channel.size();
+            buffer.putInt(RUN_MAGIC).putInt(count);
+            long position = offset;
+            for (int i : order) {
+                if (buffer.remaining() < RECORD_SIZE) {
+                    position += drain(channel, buffer, position);
+                }
+                int base = i * 4;
+                buffer.putLong(records[base]).putLong(records[base + 1])
+                        .putLong(records[base + 2]).putLong(records[base + 3]);
+            }
+            drain(channel, buffer, position);
+            channel.force(false);
+            runs.add(new Run(offset, count, records[order[0] * 4], records[order[count - 1] * 4]));
+        }
+    }
+
+    /**
+     * Отмечает маршрут удалённым, дописывая пачку из одного надгробия. Если маршрута в сегменте нет,
+     * ничего не пишет. Вызывается из того же фонового потока, что и {@link #appendRun(long[], int)}.
+     *
+     * @param now текущая минута, время надгробия
+     */
+    void remove(long key, int now) throws IOException {
+        if (lookup(key) == null) {
+            return;
+        }
+        appendRun(new long[]{key, MessageJournal.TOMBSTONE, 0L, now}, 1);
+    }
+
+    /**
+     * Сливает пачки в одну, если их накопилось больше порога.
+     * Для повторяющихся ключей сохраняется запись из более новой пачки; надгробия и маршруты,
+     * к которым не обращались с минуты ageCutoff, отбрасываются.
+     * Вызывается из того же фонового потока, что и {@link #appendRun(long[], int)}.
+     *
+     * @param ageCutoff минута, раньше которой маршруты устаревают; Integer.MIN_VALUE — без ограничения
+     */
+    void mergeIfNeeded(int ageCutoff) throws IOException {
+        List<Run> snapshot;
+        synchronized (this) {
+            if (runs.size() <= MAX_RUNS) {
+                return;
+            }
+            snapshot = new ArrayList<>(runs);
+        }
+
+        PriorityQueue<RunCursor> queue = new PriorityQueue<>(
+                Comparator.comparingLong((RunCursor c) -> c.key).thenComparing(c -> -c.runIndex));
+        for (int i = 0; i < snapshot.size(); i++) {
+            RunCursor cursor = new RunCursor(snapshot.get(i), i);
+            if (cursor.advance()) {
+                queue.add(cursor);
+            }
+        }
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        int written = 0;
+        int dropped = 0;
+        long minKey = 0;
+        long maxKey = 0;
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = RUN_HEADER_SIZE;
+            boolean first = true;
+            long lastKey = 0;
+            while (!queue.isEmpty()) {
+                RunCursor cursor = queue.poll();
+                if (first || cursor.key != lastKey) {
+                    lastKey = cursor.key;
+                    first = false;
+                    // Старше слитой пачки ничего не остаётся, поэтому надгробие больше не нужно
+                    if (cursor.userBotId == MessageJournal.TOMBSTONE || cursor.touchedAt < ageCutoff) {
+                        dropped++;
+                    } else {
+                        if (buffer.remaining() < RECORD_SIZE) {
+                            position += drain(out, buffer, position);
+                        }
+                        buffer.putLong(cursor.key).putLong(cursor.userBotId).putLong(cursor.chatId).putLong(cursor.touchedAt);
+                        if (written == 0) {
+                            minKey = cursor.key;
+                        }
+                        maxKey = cursor.key;
+                        written++;
+                    }
+                }
+                if (cursor.advance()) {
+                    queue.add(cursor);
+                }
+            }
+            // Если не осталось ни одной записи, сегмент становится пустым файлом без заголовка
+            if (written > 0) {
+                drain(out, buffer, position);
+                buffer.clear();
+                buffer.putInt(RUN_MAGIC).putInt(written);
+                drain(out, buffer, 0);
+            }
+            out.force(true);
+        }
+
+        synchronized (this) {
+            channel.close();
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            runs.clear();
+            if (written > 0) {
+                runs.add(new Run(0, written, minKey, maxKey));
+            }
+        }
+        Main.logger.info("Холодный сегмент маппинга слит: " + snapshot.size() + " пачек -> " + written + " записей, отброшено "
+                + dropped);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Читает заголовки пачек при открытии. Недописанная последняя пачка отбрасывается.
+     */
+    private void indexRuns() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RUN_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        long size = channel.size();
+        long offset = 0;
+        while (offset + RUN_HEADER_SIZE <= size) {
+            header.clear();
+            channel.read(header, offset);
+            int magic = header.getInt(0);
+            int count = header.getInt(4);
+            long end = offset + RUN_HEADER_SIZE + (long) count * RECORD_SIZE;
+            if (magic != RUN_MAGIC || count <= 0 || end > size) {
+                break;
+            }
+            readRecord(offset + RUN_HEADER_SIZE);
+            long minKey = probe.getLong(0);
+            readRecord(end - RECORD_SIZE);
+            long maxKey = probe.getLong(0);
+            runs.add(new Run(offset, count, minKey, maxKey));
+            offset = end;
+        }
+        if (offset != size) {
+            Main.logger.warning("Холодный сегмент " + path + " обрезан до последней целой пачки");
+            channel.truncate(offset);
+        }
+    }
+
+    private void readRecord(long position) throws IOException {
+        probe.clear();
+        while (probe.hasRemaining()) {
+            if (channel.read(probe, position + probe.position()) < 0) {
+                throw new IOException("Неожиданный конец холодного сегмента");
+            }
+        }
+    }
+
+    private static int drain(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += out.write(buffer, position + written);
+        }
+        buffer.clear();
+        return written;
+    }
+
+    /**
+     * Последовательное чтение одной пачки при слиянии.
+     */
+    private final class RunCursor {
+        final Run run;
+        final int runIndex;
+        final ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_SIZE / RECORD_SIZE * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        int next;
+        long key;
+        long userBotId;
+        long chatId;
+        long touchedAt;
+
+        RunCursor(Run run, int runIndex) {
+            this.run = run;
+            this.runIndex = runIndex;
+            buffer.limit(0);
+        }
+
+        boolean advance() throws IOException {
+            if (next >= run.count) {
+                return false;
+            }
+            if (!buffer.hasRemaining()) {
+                buffer.clear();
+                int records = Math.min(buffer.capacity() / RECORD_SIZE, run.count - next);
+                buffer.limit(records * RECORD_SIZE);
+                long position = run.recordOffset(next);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new IOException("Неожиданный конец холодного сегмента");
+                    }
+                }
+                buffer.flip();
+            }
+            key = buffer.getLong();
+            userBotId = buffer.getLong();
+            chatId = buffer.getLong();
+            touchedAt = buffer.getLong();
+            next++;
+            return true;
+        }
+    }
+}
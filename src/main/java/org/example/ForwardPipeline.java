@@ -0,0 +1,833 @@
+package org.example;
+
+import it.tdlight.client.SimpleTelegramClient;
+import it.tdlight.jni.TdApi;
+import org.telegram.telegrambots.meta.api.methods.PartialBotApiMethod;
+import org.telegram.telegrambots.meta.api.methods.send.SendMediaGroup;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.InputFile;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.media.InputMedia;
+import org.telegram.telegrambots.meta.api.objects.media.InputMediaPhoto;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Конвейер пересылки входящих сообщений юзерботов в бота-менеджера.
+ *
+ * Каждое сообщение проходит стадии resolve (GetChat/GetUser), download (загрузка медиа),
+ * convert (сборка запроса Bot API), send (Bot.execute) и mark-read (постановка в очередь отметок о прочтении,
+ * которые юзербот отправляет пачками, см. {@link ReadReceiptCoalescer}).
+ * Загрузка медиа не занимает потоков (см. {@link MediaDownloader}), у остальных стадий свой
+ * ограниченный пул потоков. Общее число сообщений в конвейере ограничено, а очереди стадий
+ * рассчитаны на это число, поэтому работа стадий никогда не выполняется в потоке TDLib.
+ * Обработчик обновлений TDLib не блокируется: тот же поток доставляет ответы GetChat/GetUser и UpdateFile,
+ * которых ждут стадии, и общий для всех аккаунтов. Сообщение, пришедшее в заполненный конвейер,
+ * не теряется: оно ждёт в очереди допуска своего чата, и освободившиеся места раздаются чатам по кругу.
+ *
+ * Отправка в рамках одного чата строго упорядочена: сообщение уходит только после отправки
+ * предыдущего сообщения того же чата, при этом resolve/download/convert следующих сообщений
+ * идут параллельно. Разные чаты обрабатываются независимо.
+ *
+ * Фотографии альбома (общий mediaAlbumId) TDLib присылает отдельными сообщениями. Они собираются
+ * в течение короткого окна, которое продлевается с каждой новой частью, и отправляются одним
+ * запросом SendMediaGroup, занимая одно место в очереди чата. Если набралась одна часть или
+ * Bot API не принял альбом, части отправляются по одной.
+ *
+ * Так же, если включено, собираются серии коротких текстовых сообщений одного чата: тексты,
+ * пришедшие за окно от первого сообщения серии, пересылаются одним сообщением с общим заголовком
+ * (не длиннее 4096 символов). Любое нетекстовое сообщение чата закрывает серию, чтобы не нарушить порядок.
+ *
+ * До любых запросов к TDLib текст сообщения проверяется {@link TriggerEngine}. Личные сообщения
+ * пересылаются как раньше, сообщения групп и каналов — только при совпадении с триггером; совпавшие
+ * ключевые слова указываются в заголовке. В режиме фильтра пересылаются только совпавшие сообщения.
+ */
+public class ForwardPipeline implements AutoCloseable {
+
+    private static final int RESOLVE_THREADS = 2;
+    private static final int CONVERT_THREADS = 2;
+    private static final int SEND_THREADS = 4;
+    private static final int STAGE_QUEUE_CAPACITY = 64;
+    // Bot API принимает в SendMediaGroup от 2 до 10 частей
+    private static final int MAX_ALBUM_SIZE = 10;
+    // Максимальная длина текста сообщения Bot API
+    private static final int MAX_TEXT_LENGTH = 4096;
+    // Сколько последних альбомов с совпавшим триггером помнить, чтобы не потерять части без подписи
+    private static final int TRIGGERED_ALBUMS_CAPACITY = 1024;
+
+    /**
+     * Ключ очереди отправки: чат конкретного юзербота.
+     */
+    private record ChatKey(long userBotId, long chatId) {
+    }
+
+    /**
+     * Ключ сборки: альбом или серия текстовых сообщений (albumId 0) в чате конкретного юзербота.
+     */
+    private record BatchKey(long userBotId, long chatId, long albumId) {
+    }
+
+    /**
+     * Сообщения альбома или текстовой серии, собранные за окно ожидания.
+     */
+    private static final class Batch {
+        final List<ForwardTask> tasks = new ArrayList<>();
+        final List<CompletableFuture<ForwardTask>> prepared = new ArrayList<>();
+        // Завершается, когда окно закрыто и новых сообщений не будет
+        final CompletableFuture<Void> collected = new CompletableFuture<>();
+        ScheduledFuture<?> timer;
+        int textLength;
+    }
+
+    /**
+     * Состояние сообщения, которое передаётся между стадиями.
+     */
+    private static final class ForwardTask {
+        final long userBotId;
+        final UserBot userBot;
+        final TdApi.Message message;
+        String chatTitle;
+        String username;
+        boolean skip;
+        // Правила, совпавшие с текстом сообщения
+        List<TriggerEngine.Rule> triggers = List.of();
+        MediaLease media;
+        // file_id Bot API, если медиафайл уже отправлялся через бота
+        String cachedFileId;
+        PartialBotApiMethod<?> method;
+        // Завершается, когда сообщение переслано или пересылка не удалась
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        ForwardTask(long userBotId, UserBot userBot, TdApi.Message message) {
+            this.userBotId = userBotId;
+            this.userBot = userBot;
+            this.message = message;
+        }
+    }
+
+    private final Bot bot;
+    private final MessageMapper messageMapper;
+    private final MediaCache mediaCache;
+    private final String adminChatId;
+    // Свободные места в конвейере и сообщения, ожидающие допуска, по чатам; меняются под intakeLock
+    private final Object intakeLock = new Object();
+    private int freeSlots;
+    private final Map<ChatKey, ArrayDeque<ForwardTask>> waiting = new HashMap<>();
+    // Чаты с ожидающими сообщениями в порядке очереди на следующее место
+    private final ArrayDeque<ChatKey> waitingChats = new ArrayDeque<>();
+    private int waitingCount;
+    private int maxWaiting;
+    private final long albumWindowMs;
+    private final long textWindowMs;
+    private final TriggerEngine triggerEngine;
+    private final boolean triggersOnly;
+    private final SearchIndex searchIndex;
+    // Альбомы, в подписи одной из частей которых совпал триггер
+    private final Set<Long> triggeredAlbums = Collections.synchronizedSet(Collections.newSetFromMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                    return size() > TRIGGERED_ALBUMS_CAPACITY;
+                }
+            }));
+    private final LongAdder skippedByTriggers = new LongAdder();
+    private final LongAdder queuedOverloaded = new LongAdder();
+
+    private final ExecutorService resolveExecutor;
+    private final ExecutorService convertExecutor;
+    private final ExecutorService sendExecutor;
+
+    // Последняя отправка в каждом чате: следующая отправка чата выстраивается за ней
+    private final Map<ChatKey, CompletableFuture<Void>> chatTails = new ConcurrentHashMap<>();
+
+    // Альбомы и текстовые серии, для которых ещё открыто окно ожидания
+    private final Map<BatchKey, Batch> batches = new HashMap<>();
+    private final ScheduledExecutorService batchTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "forward-batch");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final LongAdder albumsSent = new LongAdder();
+    private final LongAdder albumCallsSaved = new LongAdder();
+    private final LongAdder albumFallbacks = new LongAdder();
+    private final LongAdder textBatchesSent = new LongAdder();
+    private final LongAdder textCallsSaved = new LongAdder();
+
+    /**
+     * @param bot           бот-менеджер, через которого пересылаются сообщения
+     * @param messageMapper маппинг сообщений бота на исходные чаты
+     * @param mediaCache    кэш медиафайлов, уже загруженных через бота
+     * @param adminChatId   чат администратора, куда пересылаются сообщения
+     * @param maxInFlight   максимальное число сообщений, одновременно находящихся в конвейере
+     * @param albumWindowMs сколько ждать следующую часть альбома
+     * @param textWindowMs  окно сбора текстовой серии; 0 — тексты пересылаются по одному
+     * @param triggerEngine триггеры по ключевым словам
+     * @param triggersOnly  пересылать только сообщения, совпавшие с триггером (в том числе личные)
+     * @param searchIndex   поисковый индекс, в который попадают пересланные сообщения
+     */
+    public ForwardPipeline(Bot bot, MessageMapper messageMapper, MediaCache mediaCache, long adminChatId, int maxInFlight,
+                           long albumWindowMs, long textWindowMs, TriggerEngine triggerEngine, boolean triggersOnly,
+                           SearchIndex searchIndex) {
+        this.bot = bot;
+        this.messageMapper = messageMapper;
+        this.mediaCache = mediaCache;
+        this.adminChatId = String.valueOf(adminChatId);
+        this.freeSlots = maxInFlight;
+        // Каждое принятое сообщение занимает в очереди стадии не больше одного места
+        this.resolveExecutor = newStageExecutor("forward-resolve", RESOLVE_THREADS, maxInFlight);
+        this.convertExecutor = newStageExecutor("forward-convert", CONVERT_THREADS, maxInFlight);
+        this.sendExecutor = newStageExecutor("forward-send", SEND_THREADS, maxInFlight);
+        this.albumWindowMs = albumWindowMs;
+        this.textWindowMs = textWindowMs;
+        this.triggerEngine = triggerEngine;
+        this.triggersOnly = triggersOnly;
+        this.searchIndex = searchIndex;
+    }
+
+    /**
+     * Ставит входящее сообщение юзербота в конвейер.
+     * Вызывается из обработчика обновлений TDLib и никогда не блокируется:
+     * если в конвейере уже maxInFlight сообщений, новое сообщение ждёт в очереди допуска своего чата.
+     *
+     * @param userBotId api_id юзербота, получившего сообщение
+     * @param userBot   юзербот, получивший сообщение
+     * @param message   входящее сообщение
+     * @return завершается, когда конвейер закончил работу с сообщением и больше не обращается к клиенту юзербота
+     */
+    public CompletableFuture<Void> submit(long userBotId, UserBot userBot, TdApi.Message message) {
+        // Триггеры проверяются до допуска в конвейер и до GetChat/GetUser: несовпавшие сообщения ничего не стоят
+        List<TriggerEngine.Rule> triggers = triggerEngine.match(userBotId, MessageConverter.text(message.content));
+        if (!triggers.isEmpty() && message.mediaAlbumId != 0) {
+            triggeredAlbums.add(message.mediaAlbumId);
+        }
+        boolean triggered = !triggers.isEmpty()
+                || (message.mediaAlbumId != 0 && triggeredAlbums.contains(message.mediaAlbumId));
+        // Сообщения групп и каналов без триггера не пересылаются ни в каком режиме; тип чата виден по его id
+        if (!triggered && (triggersOnly || ChatInfoCache.isGroupChatId(message.chatId))) {
+            skippedByTriggers.increment();
+            return CompletableFuture.completedFuture(null);
+        }
+
+        ForwardTask task = new ForwardTask(userBotId, userBot, message);
+        task.triggers = triggers;
+        if (enter(task)) {
+            admit(task);
+        }
+        return task.done;
+    }
+
+    /**
+     * Занимает место в конвейере или ставит сообщение в очередь допуска его чата.
+     * Пока в очереди чата есть сообщения, новые сообщения чата встают за ними, чтобы не нарушить порядок.
+     *
+     * @return true, если место занято и сообщение можно запускать
+     */
+    private boolean enter(ForwardTask task) {
+        ChatKey key = new ChatKey(task.userBotId, task.message.chatId);
+        synchronized (intakeLock) {
+            ArrayDeque<ForwardTask> queue = waiting.get(key);
+            if (queue == null && freeSlots > 0) {
+                freeSlots--;
+                return true;
+            }
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                waiting.put(key, queue);
+                waitingChats.addLast(key);
+            }
+            queue.addLast(task);
+            waitingCount++;
+            maxWaiting = Math.max(maxWaiting, waitingCount);
+        }
+        queuedOverloaded.increment();
+        return false;
+    }
+
+    /**
+     * Освобождает место сообщения, покинувшего конвейер. Место сразу передаётся следующему ожидающему
+     * сообщению; чаты получают места по очереди, поэтому один шумный чат не задерживает остальные.
+     */
+    private void leave() {
+        ForwardTask next;
+        synchronized (intakeLock) {
+            ChatKey key = waitingChats.pollFirst();
+            if (key == null) {
+                freeSlots++;
+                return;
+            }
+            ArrayDeque<ForwardTask> queue = waiting.get(key);
+            next = queue.pollFirst();
+            waitingCount--;
+            if (queue.isEmpty()) {
+                waiting.remove(key);
+            } else {
+                waitingChats.addLast(key);
+            }
+        }
+        admit(next);
+    }
+
+    /**
+     * Запускает стадии для сообщения, занявшего место в конвейере.
+     */
+    private void admit(ForwardTask task) {
+        long userBotId = task.userBotId;
+        TdApi.Message message = task.message;
+        List<TriggerEngine.Rule> triggers = task.triggers;
+        CompletableFuture<ForwardTask> prepared = resolve(task)
+                .thenCompose(this::download)
+                .thenApplyAsync(this::convert, convertExecutor);
+
+        // Сообщения с совпавшим триггером не объединяются: у каждого свой заголовок
+        boolean textPart = textWindowMs > 0 && message.content instanceof TdApi.MessageText && triggers.isEmpty();
+        if (textWindowMs > 0 && !textPart) {
+            // Серия текстов чата закрывается, чтобы следующие тексты не обогнали это сообщение
+            closeBatch(new BatchKey(userBotId, message.chatId, 0));
+        }
+        if (message.mediaAlbumId != 0 && message.content instanceof TdApi.MessagePhoto) {
+            submitBatchPart(task, prepared, new BatchKey(userBotId, message.chatId, message.mediaAlbumId), 0);
+            return;
+        }
+        if (textPart) {
+            int textLength = ((TdApi.MessageText) message.content).text.text.length();
+            submitBatchPart(task, prepared, new BatchKey(userBotId, message.chatId, 0), textLength);
+            return;
+        }
+
+        ChatKey key = new ChatKey(userBotId, message.chatId);
+        CompletableFuture<Void> sent = chatTails.compute(key, (k, previous) -> {
+            CompletableFuture<Void> after = previous != null ? previous : CompletableFuture.completedFuture(null);
+            // Ошибка предыдущего сообщения не останавливает очередь чата
+            return after.handle((ignored, error) -> null)
+                    .thenCompose(ignored -> prepared)
+                    .thenComposeAsync(this::send, sendExecutor);
+        });
+
+        sent.whenComplete((ignored, error) -> {
+            chatTails.remove(key, sent);
+            leave();
+            // Файл больше не нужен: Bot API уже загрузил его или отправка не удалась
+            if (task.media != null) {
+                task.media.release();
+            }
+            if (error != null) {
+                Main.logger.warning("Ошибка пересылки сообщения " + message.id + " из чата " + message.chatId + ": "
+                        + (error instanceof CompletionException ? error.getCause() : error));
+            }
+        });
+        sent.thenRun(() -> markRead(task)).whenComplete((ignored, error) -> task.done.complete(null));
+    }
+
+    /**
+     * Добавляет сообщение в собираемый альбом или текстовую серию. Первое сообщение занимает место
+     * в очереди чата, остальные присоединяются к нему, пока окно ожидания не закрылось.
+     * Окно альбома продлевается с каждой частью, окно текстовой серии отсчитывается от первого сообщения.
+     */
+    private void submitBatchPart(ForwardTask task, CompletableFuture<ForwardTask> prepared, BatchKey batchKey, int textLength) {
+        boolean album = batchKey.albumId() != 0;
+        Batch batch;
+        Batch overflowed = null;
+        boolean first = false;
+        boolean full = false;
+        synchronized (batches) {
+            batch = batches.get(batchKey);
+            if (batch != null && !album && batch.textLength + textLength > MAX_TEXT_LENGTH) {
+                // Серия не помещается в одно сообщение: отправляем накопленное и начинаем новую
+                batches.remove(batchKey);
+                overflowed = batch;
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new Batch();
+                batches.put(batchKey, batch);
+                first = true;
+            }
+            batch.tasks.add(task);
+            batch.prepared.add(prepared);
+            batch.textLength += textLength;
+            Batch open = batch;
+            if (album) {
+                if (batch.timer != null) {
+                    batch.timer.cancel(false);
+                }
+                if (batch.tasks.size() >= MAX_ALBUM_SIZE) {
+                    full = true;
+                } else {
+                    batch.timer = batchTimer.schedule(() -> closeBatch(batchKey, open), albumWindowMs, TimeUnit.MILLISECONDS);
+                }
+            } else if (first) {
+                batch.timer = batchTimer.schedule(() -> closeBatch(batchKey, open), textWindowMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (overflowed != null) {
+            overflowed.timer.cancel(false);
+            overflowed.collected.complete(null);
+        }
+        if (full) {
+            closeBatch(batchKey, batch);
+        }
+        if (!first) {
+            return;
+        }
+
+        Batch collecting = batch;
+        // Сообщения готовятся независимо; ошибка одного не отменяет остальные
+        CompletableFuture<List<ForwardTask>> ready = collecting.collected.thenCompose(ignored ->
+                CompletableFuture.allOf(collecting.prepared.stream()
+                                .map(part -> part.handle((value, error) -> null))
+                                .toArray(CompletableFuture[]::new))
+                        .thenApply(done -> preparedParts(collecting)));
+
+        ChatKey key = new ChatKey(task.userBotId, task.message.chatId);
+        CompletableFuture<Void> sent = chatTails.compute(key, (k, previous) -> {
+            CompletableFuture<Void> after = previous != null ? previous : CompletableFuture.completedFuture(null);
+            return after.handle((ignored, error) -> null)
+                    .thenCompose(ignored -> ready)
+                    .thenComposeAsync(album ? this::sendAlbum : this::sendTextBatch, sendExecutor);
+        });
+
+        sent.whenComplete((ignored, error) -> {
+            chatTails.remove(key, sent);
+            for (ForwardTask part : collecting.tasks) {
+                leave();
+                if (part.media != null) {
+                    part.media.release();
+                }
+            }
+            if (error != null) {
+                Main.logger.warning("Ошибка пересылки " + (album ? "альбома " + batchKey.albumId() : "серии сообщений")
+                        + " из чата " + task.message.chatId + ": "
+                        + (error instanceof CompletionException ? error.getCause() : error));
+            }
+        });
+        sent.thenRun(() -> collecting.tasks.forEach(this::markRead))
+                .whenComplete((ignored, error) -> collecting.tasks.forEach(part -> part.done.complete(null)));
+    }
+
+    private void closeBatch(BatchKey batchKey) {
+        Batch batch;
+        synchronized (batches) {
+            batch = batches.get(batchKey);
+        }
+        if (batch != null) {
+            if (batch.timer != null) {
+                batch.timer.cancel(false);
+            }
+            closeBatch(batchKey, batch);
+        }
+    }
+
+    private void closeBatch(BatchKey batchKey, Batch batch) {
+        synchronized (batches) {
+            batches.remove(batchKey, batch);
+        }
+        batch.collected.complete(null);
+    }
+
+    /**
+     * Возвращает сообщения сборки, успешно прошедшие resolve/download/convert, в порядке поступления.
+     */
+    private static List<ForwardTask> preparedParts(Batch batch) {
+        List<ForwardTask> parts = new ArrayList<>();
+        for (int i = 0; i < batch.tasks.size(); i++) {
+            try {
+                ForwardTask part = batch.prepared.get(i).join();
+                if (!part.skip) {
+                    parts.add(part);
+                }
+            } catch (CompletionException e) {
+                Main.logger.warning("Ошибка подготовки сообщения " + batch.tasks.get(i).message.id + ": " + e.getCause());
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * Стадия resolve: получает чат и отправителя и решает, нужно ли пересылать сообщение.
+     * Групповые чаты и собственные сообщения юзербота пропускаются.
+     * Сведения берутся из кэша юзербота; запросы GetChat/GetUser выполняются только при промахе.
+     */
+    private CompletableFuture<ForwardTask> resolve(ForwardTask task) {
+        ChatInfoCache cache = task.userBot.getChatInfoCache();
+        ChatInfoCache.ChatInfo chat = cache.getChat(task.message.chatId);
+        if (chat != null) {
+            return resolveSender(task, chat);
+        }
+        long started = System.nanoTime();
+        return task.userBot.getClient().send(new TdApi.GetChat(task.message.chatId))
+                .thenComposeAsync(loaded -> {
+                    cache.chatLoaded(loaded, System.nanoTime() - started);
+                    return resolveSender(task, ChatInfoCache.chatInfoOf(loaded));
+                }, resolveExecutor);
+    }
+
+    private CompletableFuture<ForwardTask> resolveSender(ForwardTask task, ChatInfoCache.ChatInfo chat) {
+        task.chatTitle = chat.title();
+        SimpleTelegramClient client = task.userBot.getClient();
+        boolean triggered = !task.triggers.isEmpty() || triggeredAlbums.contains(task.message.mediaAlbumId);
+        // Личные сообщения пересылаются всегда, сообщения групп и каналов — только по триггеру
+        if (chat.group() && !triggered) {
+            task.skip = true;
+            return CompletableFuture.completedFuture(task);
+        }
+        if (!(task.message.senderId instanceof TdApi.MessageSenderUser senderUser)) {
+            // Пост канала или сообщение анонимного администратора: отправитель — сам чат
+            task.skip = !triggered;
+            return CompletableFuture.completedFuture(task);
+        }
+        if (isMe(client, senderUser.userId)) {
+            task.skip = true;
+            return CompletableFuture.completedFuture(task);
+        }
+        ChatInfoCache cache = task.userBot.getChatInfoCache();
+        ChatInfoCache.UserInfo user = cache.getUser(senderUser.userId);
+        if (user != null) {
+            task.username = user.username();
+            return CompletableFuture.completedFuture(task);
+        }
+        long started = System.nanoTime();
+        return client.send(new TdApi.GetUser(senderUser.userId))
+                .thenApplyAsync(loaded -> {
+                    cache.userLoaded(loaded, System.nanoTime() - started);
+                    task.username = ChatInfoCache.usernameOf(loaded);
+                    return task;
+                }, resolveExecutor);
+    }
+
+    /**
+     * Стадия download: скачивает медиафайл сообщения и берёт его в аренду до окончания отправки.
+     * Если файл уже отправлялся через бота, скачивание не нужно: он будет отправлен по file_id.
+     * Сама загрузка не занимает потоков конвейера.
+     */
+    private CompletableFuture<ForwardTask> download(ForwardTask task) {
+        if (task.skip) {
+            return CompletableFuture.completedFuture(task);
+        }
+        TdApi.File file = MessageConverter.mediaFile(task.message.content);
+        if (file != null && file.remote != null) {
+            task.cachedFileId = mediaCache.getBotFileId(file.remote.uniqueId);
+            if (task.cachedFileId != null) {
+                return CompletableFuture.completedFuture(task);
+            }
+        }
+        return MessageConverter.downloadMediaAsync(task.userBot.getMediaDownloader(), task.message)
+                .thenApply(lease -> {
+                    task.media = lease;
+                    return task;
+                });
+    }
+
+    /**
+     * Стадия convert: формирует подпись и запрос Bot API.
+     */
+    private ForwardTask convert(ForwardTask task) {
+        if (!task.skip) {
+            InputFile media = null;
+            if (task.cachedFileId != null) {
+                media = new InputFile(task.cachedFileId);
+            } else if (task.media != null) {
+                media = new InputFile(new File(task.media.getPath()));
+            }
+            task.method = MessageConverter.convert(task.message, adminChatId,
+                    triggerTag(task.triggers) + caption(task.chatTitle, task.username), media);
+        }
+        return task;
+    }
+
+    /**
+     * Стадия send: отправляет сообщение через бота и запоминает маршрут для ответов
+     * и file_id загруженного медиафайла.
+     * Если бот не смог отправить файл по file_id из кэша, ссылка удаляется и файл скачивается заново;
+     * повторная отправка идёт теми же стадиями download/convert/send и не держит поток send на время загрузки.
+     *
+     * @return завершается, когда сообщение отправлено
+     */
+    private CompletableFuture<Void> send(ForwardTask task) {
+        if (task.skip) {
+            return CompletableFuture.completedFuture(null);
+        }
+        OutboundScheduler.Origin origin = new OutboundScheduler.Origin(task.userBotId, task.message.chatId);
+        try {
+            sent(task, bot.execute(task.method, OutboundScheduler.Lane.BULK, origin));
+            return CompletableFuture.completedFuture(null);
+        } catch (TelegramApiException e) {
+            if (task.cachedFileId == null) {
+                return CompletableFuture.failedFuture(e);
+            }
+            Main.logger.warning("Файл из медиакэша не принят, загружаем заново: " + e);
+            TdApi.File file = MessageConverter.mediaFile(task.message.content);
+            mediaCache.invalidateBotFileId(file.remote.uniqueId);
+            task.cachedFileId = null;
+        }
+        return download(task)
+                .thenApplyAsync(this::convert, convertExecutor)
+                .thenAcceptAsync(retry -> {
+                    try {
+                        sent(retry, bot.execute(retry.method, OutboundScheduler.Lane.BULK, origin));
+                    } catch (TelegramApiException retryError) {
+                        throw new CompletionException(retryError);
+                    }
+                }, sendExecutor);
+    }
+
+    /**
+     * Запоминает маршрут отправленного сообщения и file_id загруженного медиафайла.
+     */
+    private void sent(ForwardTask task, Message sentMessage) {
+        messageMapper.putMapping(sentMessage.getMessageId(), task.userBotId, task.message.chatId);
+        index(task, sentMessage.getMessageId());
+        if (task.media != null) {
+            TdApi.File file = MessageConverter.mediaFile(task.message.content);
+            if (file.remote != null) {
+                mediaCache.putBotFileId(file.remote.uniqueId, ReverseMessageConverter.fileId(sentMessage));
+            }
+        }
+    }
+
+    /**
+     * Стадия send для альбома: отправляет части одним SendMediaGroup и запоминает маршрут каждой.
+     * Если части одна или Bot API не принял альбом, части отправляются по одной.
+     *
+     * @return завершается, когда отправлены все части
+     */
+    private CompletableFuture<Void> sendAlbum(List<ForwardTask> parts) {
+        if (parts.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (parts.size() > 1) {
+            ForwardTask first = parts.get(0);
+            List<TriggerEngine.Rule> triggers = new ArrayList<>();
+            for (ForwardTask part : parts) {
+                triggers.addAll(part.triggers);
+            }
+            String header = triggerTag(triggers) + caption(first.chatTitle, first.username);
+            List<InputMedia> medias = new ArrayList<>();
+            for (ForwardTask part : parts) {
+                InputMediaPhoto photo = new InputMediaPhoto();
+                if (part.cachedFileId != null) {
+                    photo.setMedia(part.cachedFileId);
+                } else {
+                    photo.setMedia(new File(part.media.getPath()), "photo" + medias.size());
+                }
+                String text = ((TdApi.MessagePhoto) part.message.content).caption.text;
+                // Заголовок с отправителем ставится в подпись первой части
+                photo.setCaption(part == first ? header + text : text);
+                medias.add(photo);
+            }
+            try {
+                List<Message> sentMessages = bot.executeMediaGroup(new SendMediaGroup(adminChatId, medias),
+                        OutboundScheduler.Lane.BULK, new OutboundScheduler.Origin(first.userBotId, first.message.chatId));
+                for (int i = 0; i < parts.size() && i < sentMessages.size(); i++) {
+                    ForwardTask part = parts.get(i);
+                    messageMapper.putMapping(sentMessages.get(i).getMessageId(), part.userBotId, part.message.chatId);
+                    index(part, sentMessages.get(i).getMessageId());
+                    TdApi.File file = MessageConverter.mediaFile(part.message.content);
+                    if (part.cachedFileId == null && file.remote != null) {
+                        mediaCache.putBotFileId(file.remote.uniqueId, ReverseMessageConverter.fileId(sentMessages.get(i)));
+                    }
+                }
+                albumsSent.increment();
+                albumCallsSaved.add(parts.size() - 1);
+                return CompletableFuture.completedFuture(null);
+            } catch (TelegramApiException e) {
+                albumFallbacks.increment();
+                Main.logger.warning("Альбом не принят, части отправляются по одной: " + e);
+            }
+        }
+        // Части уходят по порядку: следующая отправляется после предыдущей, даже если та не удалась
+        CompletableFuture<Void> chain = CompletableFuture.completedFuture(null);
+        for (ForwardTask part : parts) {
+            chain = chain.thenCompose(ignored -> send(part).exceptionally(error -> {
+                Main.logger.warning("Ошибка пересылки части альбома " + part.message.id + ": "
+                        + (error instanceof CompletionException ? error.getCause() : error));
+                return null;
+            }));
+        }
+        return chain;
+    }
+
+    /**
+     * Стадия send для текстовой серии: объединяет тексты под одним заголовком и отправляет одним сообщением.
+     * Если текст не помещается в 4096 символов, он делится на несколько сообщений по границам исходных.
+     * Каждое отправленное сообщение ведёт в исходный чат, поэтому ответ на него уходит туда же.
+     *
+     * @return завершается, когда отправлена вся серия
+     */
+    private CompletableFuture<Void> sendTextBatch(List<ForwardTask> parts) {
+        if (parts.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (parts.size() == 1) {
+            return send(parts.get(0));
+        }
+        ForwardTask first = parts.get(0);
+        String header = caption(first.chatTitle, first.username);
+        List<String> chunks = new ArrayList<>();
+        // Исходные сообщения каждого объединённого: в поиске они ведут на него
+        List<List<ForwardTask>> chunkParts = new ArrayList<>();
+        List<ForwardTask> currentParts = new ArrayList<>();
+        StringBuilder chunk = new StringBuilder(header);
+        for (ForwardTask part : parts) {
+            String text = ((TdApi.MessageText) part.message.content).text.text;
+            boolean empty = chunk.length() == header.length();
+            if (!empty && chunk.length() + 1 + text.length() > MAX_TEXT_LENGTH) {
+                chunks.add(chunk.toString());
+                chunkParts.add(currentParts);
+                chunk = new StringBuilder(header);
+                currentParts = new ArrayList<>();
+                empty = true;
+            }
+            if (!empty) {
+                chunk.append('\n');
+            }
+            chunk.append(text);
+            currentParts.add(part);
+        }
+        chunks.add(chunk.toString());
+        chunkParts.add(currentParts);
+
+        OutboundScheduler.Origin origin = new OutboundScheduler.Origin(first.userBotId, first.message.chatId);
+        for (int i = 0; i < chunks.size(); i++) {
+            SendMessage merged = new SendMessage();
+            merged.setChatId(adminChatId);
+            merged.setText(chunks.get(i));
+            Message sentMessage;
+            try {
+                sentMessage = bot.execute(merged, OutboundScheduler.Lane.BULK, origin);
+            } catch (TelegramApiException e) {
+                throw new CompletionException(e);
+            }
+            messageMapper.putMapping(sentMessage.getMessageId(), first.userBotId, first.message.chatId);
+            for (ForwardTask part : chunkParts.get(i)) {
+                index(part, sentMessage.getMessageId());
+            }
+        }
+        textBatchesSent.increment();
+        textCallsSaved.add(parts.size() - chunks.size());
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Ставит пересланное сообщение в поисковый индекс; индексирование идёт в фоне и пересылку не задерживает.
+     */
+    private void index(ForwardTask task, long botMessageId) {
+        String label = task.username != null ? task.chatTitle + " (@" + task.username + ")" : task.chatTitle;
+        searchIndex.add(task.userBotId, task.message.chatId, botMessageId, task.message.date * 1000L, false, label,
+                MessageConverter.text(task.message.content));
+    }
+
+    /**
+     * Стадия mark-read: ставит исходное сообщение в очередь отметок о прочтении.
+     */
+    private void markRead(ForwardTask task) {
+        if (!task.skip) {
+            task.userBot.getReadReceipts().markRead(task.message.chatId, task.message.id);
+        }
+    }
+
+    private static boolean isMe(SimpleTelegramClient client, long userId) {
+        TdApi.User me = client.getMe();
+        return me != null && me.id == userId;
+    }
+
+    /**
+     * Формирует заголовок пересылаемого сообщения.
+     */
+    static String caption(String chatTitle, String username) {
+        // Формируем строку с информацией об отправителе
+        String senderInfo = "";
+        if (username != null) {
+            senderInfo += " (@" + username + ")";
+        }
+        return String.format("New message from %s %s:\n", chatTitle, senderInfo);
+    }
+
+    /**
+     * Формирует строку с совпавшими ключевыми словами; пустую, если триггеров нет.
+     */
+    static String triggerTag(List<TriggerEngine.Rule> triggers) {
+        if (triggers.isEmpty()) {
+            return "";
+        }
+        StringBuilder tag = new StringBuilder("[триггер: ");
+        for (int i = 0; i < triggers.size(); i++) {
+            tag.append(i > 0 ? ", " : "").append(triggers.get(i).pattern());
+        }
+        return tag.append("]\n").toString();
+    }
+
+    public String statsSummary() {
+        int queued;
+        int queuedMax;
+        synchronized (intakeLock) {
+            queued = waitingCount;
+            queuedMax = maxWaiting;
+        }
+        return "отброшено по триггерам " + skippedByTriggers.sum() + "; ждали допуска " + queuedOverloaded.sum()
+                + ", ждут сейчас " + queued + ", наибольшая очередь " + queuedMax
+                + "; альбомов отправлено " + albumsSent.sum() + ", сэкономлено запросов " + albumCallsSaved.sum()
+                + ", альбомов отправлено по частям " + albumFallbacks.sum()
+                + "; текстовых серий " + textBatchesSent.sum() + ", сэкономлено запросов " + textCallsSaved.sum();
+    }
+
+    /**
+     * Останавливает конвейер, давая уже принятым сообщениям время завершиться.
+     * Альбомы и текстовые серии, ожидающие сообщений, отправляются сразу.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        synchronized (intakeLock) {
+            if (waitingCount > 0) {
+                Main.logger.warning("Конвейер пересылки останавливается, не дождались допуска сообщений: " + waitingCount);
+            }
+        }
+        List<BatchKey> open;
+        synchronized (batches) {
+            open = new ArrayList<>(batches.keySet());
+        }
+        for (BatchKey batchKey : open) {
+            closeBatch(batchKey);
+        }
+        batchTimer.shutdown();
+        for (ExecutorService executor : List.of(resolveExecutor, convertExecutor, sendExecutor)) {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Пул стадии. Очередь вмещает все сообщения конвейера, поэтому отказ возможен только после close();
+     * отказ завершает задачу с ошибкой, а не выполняет её в вызывающем потоке.
+     */
+    private static ExecutorService newStageExecutor(String name, int threads, int queueCapacity) {
+        AtomicInteger counter = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(STAGE_QUEUE_CAPACITY, queueCapacity)),
+                r -> {
+                    Thread thread = new Thread(r, name + "-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+}
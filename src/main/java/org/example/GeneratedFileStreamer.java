@@ -0,0 +1,100 @@
+package org.example;
+
+import it.tdlight.client.SimpleTelegramClient;
+import it.tdlight.jni.TdApi;
+
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Потоковая передача файлов Bot API в TDLib одного юзербота.
+ *
+ * Файл отправляется как InputFileGenerated с преобразованием {@code #botapi#<file_id>}.
+ * Когда TDLib запрашивает генерацию (UpdateFileGenerationStart), файл скачивается из Bot API
+ * и по мере поступления передаётся в TDLib через WriteGeneratedFilePart, поэтому TDLib начинает
+ * загрузку в Telegram, не дожидаясь окончания скачивания. Следующая часть читается из сети только
+ * после того, как TDLib принял предыдущую.
+ */
+public class GeneratedFileStreamer {
+
+    static final String CONVERSION_PREFIX = "#botapi#";
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    private final TelegramFileDownloader fileDownloader;
+    // Активные генерации; удаление из карты означает, что TDLib остановил генерацию
+    private final Map<Long, Boolean> active = new ConcurrentHashMap<>();
+    private SimpleTelegramClient client;
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder streamedBytes = new LongAdder();
+
+    public GeneratedFileStreamer(TelegramFileDownloader fileDownloader) {
+        this.fileDownloader = fileDownloader;
+    }
+
+    /**
+     * Привязывает к клиенту. Создаётся раньше клиента, потому что обработчики регистрируются на этапе сборки клиента.
+     */
+    void bind(SimpleTelegramClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Создаёт файл для отправки через TDLib, который будет загружен из Bot API потоково.
+     *
+     * @param fileId       file_id Bot API
+     * @param expectedSize ожидаемый размер файла или 0, если неизвестен
+     */
+    public static TdApi.InputFile inputFile(String fileId, long expectedSize) {
+        return new TdApi.InputFileGenerated("", CONVERSION_PREFIX + fileId, expectedSize);
+    }
+
+    /**
+     * Обработчик UpdateFileGenerationStart: запускает потоковую загрузку для файлов с преобразованием #botapi#.
+     */
+    public void onGenerationStart(TdApi.UpdateFileGenerationStart update) {
+        if (update.conversion == null || !update.conversion.startsWith(CONVERSION_PREFIX)) {
+            return;
+        }
+        long generationId = update.generationId;
+        String fileId = update.conversion.substring(CONVERSION_PREFIX.length());
+        active.put(generationId, Boolean.TRUE);
+
+        fileDownloader.streamFileAsync(fileId, CHUNK_SIZE, (offset, data) -> {
+                    if (!active.containsKey(generationId)) {
+                        return CompletableFuture.failedFuture(new CancellationException("Генерация файла остановлена"));
+                    }
+                    streamedBytes.add(data.length);
+                    return client.send(new TdApi.WriteGeneratedFilePart(generationId, offset, data));
+                })
+                .whenComplete((size, error) -> {
+                    boolean stopped = active.remove(generationId) == null;
+                    Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                    if (cause == null) {
+                        completed.increment();
+                        client.send(new TdApi.FinishFileGeneration(generationId, null));
+                    } else if (!stopped) {
+                        failed.increment();
+                        Main.logger.warning("Ошибка потоковой загрузки файла " + fileId + ": " + cause);
+                        client.send(new TdApi.FinishFileGeneration(generationId, new TdApi.Error(400, String.valueOf(cause.getMessage()))));
+                    }
+                });
+    }
+
+    /**
+     * Обработчик UpdateFileGenerationStop: прекращает передачу частей.
+     */
+    public void onGenerationStop(TdApi.UpdateFileGenerationStop update) {
+        active.remove(update.generationId);
+    }
+
+    public String statsSummary() {
+        return "потоковых загрузок активно " + active.size() + ", завершено " + completed.sum()
+                + ", ошибок " + failed.sum() + ", передано " + streamedBytes.sum() / 1024 + " КБ";
+    }
+}
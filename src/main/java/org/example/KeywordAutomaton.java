@@ -0,0 +1,242 @@
+package org.example;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Автомат Ахо — Корасик для поиска множества ключевых слов за один проход по тексту.
+ *
+ * Шаблоны и текст приводятся к одному виду {@link #normalize}: нижний регистр, ё → е, латинские буквы,
+ * похожие на кириллические, заменяются кириллическими, знаки препинания и пробелы сворачиваются в один пробел.
+ * Совпадение засчитывается только по границам слов; шаблон, оканчивающийся на {@code *}, совпадает
+ * с любым продолжением слова ("цен*" находит "цена", "ценой").
+ *
+ * Автомат неизменяем и безопасен для чтения из нескольких потоков. Переходы каждого состояния хранятся
+ * отсортированными в общих массивах и ищутся двоичным поиском, поэтому десятки тысяч шаблонов занимают
+ * несколько мегабайт, а время поиска не зависит от числа шаблонов.
+ */
+public final class KeywordAutomaton {
+
+    // Латинские буквы, которые выглядят как кириллические
+    private static final String HOMOGLYPHS_LATIN = "aceopxyk";
+    private static final String HOMOGLYPHS_CYRILLIC = "асеорхук";
+
+    // Переходы состояния s: keys/targets в диапазоне [firstEdge[s], firstEdge[s + 1])
+    private final int[] firstEdge;
+    private final char[] edgeKeys;
+    private final int[] edgeTargets;
+    private final int[] fail;
+    // Ближайшее по суффиксным ссылкам состояние, в котором заканчивается шаблон; -1 — такого нет
+    private final int[] outputLink;
+    // Шаблоны, заканчивающиеся в состоянии: outputs[s] — номера шаблонов или null
+    private final int[][] outputs;
+    private final int[] patternLengths;
+    private final boolean[] patternPrefix;
+
+    private KeywordAutomaton(int[] firstEdge, char[] edgeKeys, int[] edgeTargets, int[] fail, int[] outputLink,
+                             int[][] outputs, int[] patternLengths, boolean[] patternPrefix) {
+        this.firstEdge = firstEdge;
+        this.edgeKeys = edgeKeys;
+        this.edgeTargets = edgeTargets;
+        this.fail = fail;
+        this.outputLink = outputLink;
+        this.outputs = outputs;
+        this.patternLengths = patternLengths;
+        this.patternPrefix = patternPrefix;
+    }
+
+    /**
+     * Строит автомат. Номер шаблона в результатах поиска — его индекс в списке.
+     * Пустые после нормализации шаблоны никогда не совпадают.
+     *
+     * @param patterns ключевые слова и фразы
+     */
+    public static KeywordAutomaton compile(List<String> patterns) {
+        // Бор с переходами в хэш-таблицах; после построения переводится в компактные массивы
+        List<Map<Character, Integer>> trie = new ArrayList<>();
+        List<int[]> terminal = new ArrayList<>();
+        trie.add(new HashMap<>());
+        terminal.add(null);
+        int[] lengths = new int[patterns.size()];
+        boolean[] prefix = new boolean[patterns.size()];
+        for (int i = 0; i < patterns.size(); i++) {
+            String pattern = patterns.get(i).trim();
+            prefix[i] = pattern.endsWith("*");
+            String normalized = normalize(prefix[i] ? pattern.substring(0, pattern.length() - 1) : pattern).trim();
+            lengths[i] = normalized.length();
+            if (normalized.isEmpty()) {
+                continue;
+            }
+            int state = 0;
+            for (int j = 0; j < normalized.length(); j++) {
+                Integer next = trie.get(state).get(normalized.charAt(j));
+                if (next == null) {
+                    next = trie.size();
+                    trie.get(state).put(normalized.charAt(j), next);
+                    trie.add(new HashMap<>());
+                    terminal.add(null);
+                }
+                state = next;
+            }
+            int[] existing = terminal.get(state);
+            int[] updated = existing == null ? new int[1] : Arrays.copyOf(existing, existing.length + 1);
+            updated[updated.length - 1] = i;
+            terminal.set(state, updated);
+        }
+
+        int states = trie.size();
+        int edges = 0;
+        for (Map<Character, Integer> transitions : trie) {
+            edges += transitions.size();
+        }
+        int[] firstEdge = new int[states + 1];
+        char[] edgeKeys = new char[edges];
+        int[] edgeTargets = new int[edges];
+        int position = 0;
+        for (int s = 0; s < states; s++) {
+            firstEdge[s] = position;
+            Character[] keys = trie.get(s).keySet().toArray(new Character[0]);
+            Arrays.sort(keys);
+            for (Character key : keys) {
+                edgeKeys[position] = key;
+                edgeTargets[position] = trie.get(s).get(key);
+                position++;
+            }
+        }
+        firstEdge[states] = position;
+
+        int[][] outputs = terminal.toArray(new int[0][]);
+        int[] fail = new int[states];
+        int[] outputLink = new int[states];
+        Arrays.fill(outputLink, -1);
+        KeywordAutomaton automaton = new KeywordAutomaton(firstEdge, edgeKeys, edgeTargets, fail, outputLink, outputs,
+                lengths, prefix);
+
+        // Суффиксные ссылки строятся обходом в ширину: ссылка потомка вычисляется по ссылке родителя
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int e = firstEdge[0]; e < firstEdge[1]; e++) {
+            queue.add(edgeTargets[e]);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (int e = firstEdge[state]; e < firstEdge[state + 1]; e++) {
+                int child = edgeTargets[e];
+                char key = edgeKeys[e];
+                int candidate = fail[state];
+                int next = automaton.transition(candidate, key);
+                while (next < 0 && candidate != 0) {
+                    candidate = fail[candidate];
+                    next = automaton.transition(candidate, key);
+                }
+                fail[child] = next >= 0 ? next : 0;
+                outputLink[child] = outputs[fail[child]] != null ? fail[child] : outputLink[fail[child]];
+                queue.add(child);
+            }
+        }
+        return automaton;
+    }
+
+    /**
+     * Приводит текст к виду, в котором хранятся шаблоны.
+     */
+    public static String normalize(CharSequence text) {
+        StringBuilder normalized = new StringBuilder(text.length() + 2);
+        boolean space = true;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                normalized.append(fold(c));
+                space = false;
+            } else if (!space) {
+                normalized.append(' ');
+                space = true;
+            }
+        }
+        return normalized.toString();
+    }
+
+    private static char fold(char c) {
+        char lower = Character.toLowerCase(c);
+        if (lower == 'ё') {
+            return 'е';
+        }
+        if (lower < 128) {
+            int homoglyph = HOMOGLYPHS_LATIN.indexOf(lower);
+            if (homoglyph >= 0) {
+                return HOMOGLYPHS_CYRILLIC.charAt(homoglyph);
+            }
+        }
+        return lower;
+    }
+
+    private int transition(int state, char key) {
+        int low = firstEdge[state];
+        int high = firstEdge[state + 1] - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            char found = edgeKeys[middle];
+            if (found < key) {
+                low = middle + 1;
+            } else if (found > key) {
+                high = middle - 1;
+            } else {
+                return edgeTargets[middle];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Ищет шаблоны в тексте за один проход.
+     *
+     * @param text исходный (не нормализованный) текст
+     * @return номера совпавших шаблонов; каждый не более одного раза
+     */
+    public BitSet match(CharSequence text) {
+        String normalized = normalize(text);
+        BitSet matched = new BitSet();
+        int state = 0;
+        for (int i = 0; i < normalized.length(); i++) {
+            char c = normalized.charAt(i);
+            int next = transition(state, c);
+            while (next < 0 && state != 0) {
+                state = fail[state];
+                next = transition(state, c);
+            }
+            state = next >= 0 ? next : 0;
+            for (int s = outputs[state] != null ? state : outputLink[state]; s >= 0; s = outputLink[s]) {
+                for (int pattern : outputs[s]) {
+                    if (!matched.get(pattern) && atWordBoundaries(normalized, pattern, i)) {
+                        matched.set(pattern);
+                    }
+                }
+            }
+        }
+        return matched;
+    }
+
+    private boolean atWordBoundaries(String normalized, int pattern, int end) {
+        int start = end - patternLengths[pattern] + 1;
+        boolean startsWord = start == 0 || normalized.charAt(start - 1) == ' ';
+        boolean endsWord = patternPrefix[pattern] || end + 1 == normalized.length() || normalized.charAt(end + 1) == ' ';
+        return startsWord && endsWord;
+    }
+
+    /**
+     * Число состояний автомата (для статистики).
+     */
+    public int size() {
+        return fail.length;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "KeywordAutomaton[%d patterns, %d states]", patternLengths.length, size());
+    }
+}
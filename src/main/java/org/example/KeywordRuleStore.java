@@ -0,0 +1,162 @@
+package org.example;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * Список правил по ключевым фразам, хранящийся в JSON-файле, вместе со скомпилированным {@link KeywordAutomaton}.
+ * Общая основа {@link TriggerEngine} и {@link AutoResponder}.
+ *
+ * Изменения выполняются под блокировкой хранилища: новый список правил компилируется, подменяет прежний
+ * целиком и атомарно записывается в файл. Поиск читает текущий снимок и не блокируется.
+ *
+ * @param <R> тип правила
+ */
+public class KeywordRuleStore<R extends KeywordRuleStore.KeywordRule> {
+
+    /**
+     * Правило с ключевой фразой, относящееся к одному аккаунту или ко всем (account равен 0).
+     */
+    public interface KeywordRule {
+        int id();
+
+        long account();
+
+        String pattern();
+    }
+
+    /**
+     * Скомпилированный набор правил: номер шаблона в автомате — индекс правила в списке.
+     */
+    private record Compiled<R>(List<R> rules, KeywordAutomaton automaton) {
+    }
+
+    private final Path file;
+    private final String name;
+    private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    private volatile Compiled<R> compiled;
+    private int nextId;
+
+    /**
+     * @param file     файл правил; если его нет, список правил пуст
+     * @param listType тип списка правил для Gson
+     * @param name     название правил для сообщений в логе, например "автоответы"
+     */
+    public KeywordRuleStore(Path file, Type listType, String name) {
+        this.file = file;
+        this.name = name;
+        List<R> rules = new ArrayList<>();
+        try {
+            if (Files.exists(file)) {
+                List<R> stored = gson.fromJson(Files.readString(file), listType);
+                if (stored != null) {
+                    rules.addAll(stored);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Main.logger.warning("Не удалось прочитать " + name + " " + file + ": " + e);
+        }
+        for (R rule : rules) {
+            nextId = Math.max(nextId, rule.id());
+        }
+        this.compiled = compile(rules);
+    }
+
+    private static <R extends KeywordRule> Compiled<R> compile(List<R> rules) {
+        List<String> patterns = new ArrayList<>(rules.size());
+        for (R rule : rules) {
+            patterns.add(rule.pattern());
+        }
+        return new Compiled<>(List.copyOf(rules), KeywordAutomaton.compile(patterns));
+    }
+
+    /**
+     * Добавляет правило со следующим свободным номером.
+     *
+     * @param factory создаёт правило по его номеру
+     * @return добавленное правило
+     */
+    public synchronized R add(IntFunction<R> factory) {
+        R rule = factory.apply(++nextId);
+        List<R> rules = new ArrayList<>(compiled.rules());
+        rules.add(rule);
+        update(rules);
+        return rule;
+    }
+
+    /**
+     * Удаляет правило по номеру.
+     *
+     * @return false, если правила с таким номером нет
+     */
+    public synchronized boolean remove(int id) {
+        List<R> rules = new ArrayList<>(compiled.rules());
+        if (!rules.removeIf(rule -> rule.id() == id)) {
+            return false;
+        }
+        update(rules);
+        return true;
+    }
+
+    private void update(List<R> rules) {
+        compiled = compile(rules);
+        try {
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.writeString(temp, gson.toJson(rules));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Main.logger.warning("Не удалось сохранить " + name + " " + file + ": " + e);
+        }
+    }
+
+    public List<R> rules() {
+        return compiled.rules();
+    }
+
+    /**
+     * Число состояний текущего автомата.
+     */
+    public int automatonSize() {
+        return compiled.automaton().size();
+    }
+
+    /**
+     * Ищет правила аккаунта, совпавшие с текстом, за один проход автомата.
+     *
+     * @param account api_id аккаунта
+     * @param text    непустой текст
+     * @param first   вернуть не больше одного правила
+     * @return совпавшие правила в порядке добавления
+     */
+    public List<R> match(long account, String text, boolean first) {
+        Compiled<R> current = compiled;
+        if (current.rules().isEmpty()) {
+            return List.of();
+        }
+        BitSet found = current.automaton().match(text);
+        List<R> result = List.of();
+        for (int i = found.nextSetBit(0); i >= 0; i = found.nextSetBit(i + 1)) {
+            R rule = current.rules().get(i);
+            if (rule.account() == 0 || rule.account() == account) {
+                if (first) {
+                    return List.of(rule);
+                }
+                if (result.isEmpty()) {
+                    result = new ArrayList<>();
+                }
+                result.add(rule);
+            }
+        }
+        return result;
+    }
+}
@@ -21,6 +21,8 @@ public class Main {
         ProgramFlow flow = null;
         try {
             flow = new ProgramFlow();
+            ProgramFlow started = flow;
+            Runtime.getRuntime().addShutdownHook(new Thread(started::shutdown, "shutdown"));
             Thread.currentThread().join();
         } catch (TelegramApiException | UnsupportedNativeLibraryException | IOException | InterruptedException e) {
             throw new RuntimeException(e);
@@ -0,0 +1,412 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Хэш-таблица маршрутов в отображаемом в память файле (FileChannel.map).
+ * Слоты фиксированной ширины лежат вне кучи, поэтому GC их не видит,
+ * а открытие файла не требует разбора: таблица готова к работе сразу после отображения.
+ *
+ * Формат: заголовок 64 байта и слоты по 32 байта
+ * [ключ, api_id юзербота, id чата, минута обращения (int), контрольная сумма слота (int)].
+ *
+ * Согласованность после сбоя:
+ * - заголовок защищён CRC32 и содержит счётчик поколений, который растёт при каждом открытии и расширении;
+ * - при открытии флаг «закрыт корректно» сбрасывается, при закрытии выставляется после fsync слотов
+ *   вместе с номером поколения, в котором файл закрыт; флагу верят, только если этот номер совпадает
+ *   с текущим поколением заголовка;
+ * - иначе (или если CRC заголовка не совпал) все слоты проверяются по контрольным суммам,
+ *   повреждённые (недописанные в момент сбоя) отбрасываются, а таблица всегда перестраивается заново:
+ *   сбой посреди сдвига кластера при удалении оставляет дыры в цепочках пробирования и дубликаты ключей
+ *   даже при целых слотах;
+ * - расширение пишет новую таблицу в соседний файл и атомарно заменяет им старый.
+ * Маршрут, который записывался в момент падения ОС, может быть потерян; остальные сохраняются.
+ */
+class MappedRouteTable implements RouteStore {
+
+    private static final int MAGIC = 0x4D525431; // "MRT1"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 32;
+
+    // Смещения полей заголовка
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_CAPACITY = 8;
+    private static final int H_CLEAN = 12;
+    private static final int H_GENERATION = 16;
+    private static final int H_SIZE = 24;
+    private static final int H_CLEAN_GENERATION = 32;
+    private static final int H_CHECKSUM = 40;
+
+    // Смещения полей слота
+    private static final int S_KEY = 0;
+    private static final int S_USER_BOT = 8;
+    private static final int S_CHAT = 16;
+    private static final int S_TOUCHED = 24;
+    private static final int S_CHECKSUM = 28;
+
+    private static final int MIN_CAPACITY = 1024;
+    // Одно отображение ограничено 2 ГБ, поэтому таблица не больше 2^25 слотов (1 ГБ)
+    private static final int MAX_CAPACITY = 1 << 25;
+    private static final int LOAD_FACTOR_PERCENT = 75;
+
+    private final Path path;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int mask;
+    private int size;
+    private int resizeAt;
+    private long generation;
+    private final boolean created;
+
+    private MappedRouteTable(Path path) throws IOException {
+        this.path = path;
+        this.created = !Files.exists(path) || Files.size(path) < HEADER_SIZE;
+        if (created) {
+            Files.deleteIfExists(path);
+            remap(createFile(path, MIN_CAPACITY, 0));
+            return;
+        }
+
+        this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long fileSize = channel.size();
+        MappedByteBuffer mapped = map(channel, fileSize);
+        int headerCapacity = mapped.getInt(H_CAPACITY);
+        boolean headerValid = mapped.getInt(H_MAGIC) == MAGIC && mapped.getInt(H_VERSION) == VERSION
+                && mapped.getLong(H_CHECKSUM) == headerChecksum(mapped)
+                && headerCapacity >= MIN_CAPACITY && Integer.bitCount(headerCapacity) == 1
+                && HEADER_SIZE + (long) headerCapacity * SLOT_SIZE <= fileSize;
+        int fileCapacity = (int) Math.min(MAX_CAPACITY, (fileSize - HEADER_SIZE) / SLOT_SIZE);
+        this.buffer = mapped;
+        setCapacity(headerValid ? headerCapacity : Integer.highestOneBit(fileCapacity));
+        this.generation = headerValid ? mapped.getLong(H_GENERATION) : 0L;
+
+        boolean clean = headerValid && mapped.getInt(H_CLEAN) == 1
+                && mapped.getLong(H_CLEAN_GENERATION) == generation;
+        if (clean) {
+            this.size = mapped.getInt(H_SIZE);
+        } else {
+            recover();
+        }
+        generation++;
+        writeHeader(false);
+        buffer.force();
+    }
+
+    /**
+     * Открывает (или создаёт) таблицу в указанном файле.
+     */
+    static MappedRouteTable open(Path path) throws IOException {
+        return new MappedRouteTable(path);
+    }
+
+    /**
+     * true, если файл таблицы был создан при открытии и данные нужно импортировать.
+     */
+    boolean isCreated() {
+        return created;
+    }
+
+    long generation() {
+        return generation;
+    }
+
+    @Override
+    public int indexOf(long key) {
+        if (key == 0L) {
+            return -1;
+        }
+        for (int slot = slotOf(key); ; slot = (slot + 1) & mask) {
+            long current = buffer.getLong(offset(slot) + S_KEY);
+            if (current == key) {
+                return slot;
+            }
+            if (current == 0L) {
+                return -1;
+            }
+        }
+    }
+
+    @Override
+    public long keyAt(int slot) {
+        return buffer.getLong(offset(slot) + S_KEY);
+    }
+
+    @Override
+    public long userBotIdAt(int slot) {
+        return buffer.getLong(offset(slot) + S_USER_BOT);
+    }
+
+    @Override
+    public long chatIdAt(int slot) {
+        return buffer.getLong(offset(slot) + S_CHAT);
+    }
+
+    @Override
+    public int touchedAt(int slot) {
+        return buffer.getInt(offset(slot) + S_TOUCHED);
+    }
+
+    @Override
+    public void touch(int slot, int minute) {
+        int base = offset(slot);
+        buffer.putInt(base + S_TOUCHED, minute);
+        buffer.putInt(base + S_CHECKSUM, slotChecksum(buffer.getLong(base + S_KEY),
+                buffer.getLong(base + S_USER_BOT), buffer.getLong(base + S_CHAT), minute));
+    }
+
+    @Override
+    public void put(long key, long userBotId, long chatId, int minute) {
+        if (key == 0L) {
+            throw new IllegalArgumentException("Идентификатор сообщения не может быть 0");
+        }
+        int slot = slotOf(key);
+        long current;
+        while ((current = keyAt(slot)) != 0L && current != key) {
+            slot = (slot + 1) & mask;
+        }
+        writeSlot(buffer, offset(slot), key, userBotId, chatId, minute);
+        if (current == 0L && ++size > resizeAt) {
+            try {
+                resize(capacity * 2);
+            } catch (IOException e) {
+                throw new IllegalStateException("Не удалось расширить таблицу маршрутов", e);
+            }
+        }
+    }
+
+    @Override
+    public boolean remove(long key) {
+        int slot = indexOf(key);
+        if (slot < 0) {
+            return false;
+        }
+        int gap = slot;
+        for (int next = (gap + 1) & mask; keyAt(next) != 0L; next = (next + 1) & mask) {
+            int home = slotOf(keyAt(next));
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                copySlot(next, gap);
+                gap = next;
+            }
+        }
+        clearSlot(offset(gap));
+        size--;
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public long memoryBytes() {
+        return HEADER_SIZE + (long) capacity * SLOT_SIZE;
+    }
+
+    /**
+     * Сбрасывает изменённые страницы на диск. Вызывается под той же блокировкой, что и изменения таблицы:
+     * расширение подменяет файл и отображение.
+     */
+    @Override
+    public void flush() {
+        buffer.force();
+    }
+
+    /**
+     * Сбрасывает слоты на диск и помечает файл как корректно закрытый.
+     */
+    @Override
+    public void close() throws IOException {
+        buffer.force();
+        writeHeader(true);
+        buffer.force();
+        channel.close();
+    }
+
+    /**
+     * Проверяет все слоты после некорректного завершения, отбрасывает повреждённые
+     * и всегда перестраивает таблицу: перестройка заново раскладывает цепочки пробирования и убирает дубликаты.
+     */
+    private void recover() throws IOException {
+        int valid = 0;
+        int dropped = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            int base = offset(slot);
+            long key = buffer.getLong(base + S_KEY);
+            if (key == 0L) {
+                continue;
+            }
+            int expected = slotChecksum(key, buffer.getLong(base + S_USER_BOT), buffer.getLong(base + S_CHAT),
+                    buffer.getInt(base + S_TOUCHED));
+            if (buffer.getInt(base + S_CHECKSUM) == expected) {
+                valid++;
+            } else {
+                clearSlot(base);
+                dropped++;
+            }
+        }
+        int rebuiltCapacity = Math.max(MIN_CAPACITY, capacity);
+        while (valid > (long) rebuiltCapacity * LOAD_FACTOR_PERCENT / 100 && rebuiltCapacity < MAX_CAPACITY) {
+            rebuiltCapacity *= 2;
+        }
+        resize(rebuiltCapacity);
+        Main.logger.warning("Таблица маршрутов " + path + " не была закрыта корректно: восстановлено "
+                + size + " маршрутов, отброшено повреждённых " + dropped + ", дубликатов " + (valid - size));
+    }
+
+    /**
+     * Переносит все маршруты в новый файл заданной ёмкости и атомарно подменяет им текущий.
+     * Повторная копия уже перенесённого ключа пропускается; size пересчитывается по перенесённым маршрутам.
+     */
+    private void resize(int newCapacity) throws IOException {
+        if (newCapacity > MAX_CAPACITY) {
+            throw new IOException("Таблица маршрутов достигла предельного размера " + MAX_CAPACITY);
+        }
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.deleteIfExists(tmp);
+        FileChannel target = createFile(tmp, newCapacity, generation + 1);
+        MappedByteBuffer mapped = map(target, HEADER_SIZE + (long) newCapacity * SLOT_SIZE);
+        int newMask = newCapacity - 1;
+        int moved = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            int base = offset(slot);
+            long key = buffer.getLong(base + S_KEY);
+            if (key != 0L) {
+                int targetSlot = mix(key) & newMask;
+                long current;
+                while ((current = mapped.getLong(HEADER_SIZE + targetSlot * SLOT_SIZE + S_KEY)) != 0L && current != key) {
+                    targetSlot = (targetSlot + 1) & newMask;
+                }
+                if (current == key) {
+                    continue;
+                }
+                writeSlot(mapped, HEADER_SIZE + targetSlot * SLOT_SIZE, key, buffer.getLong(base + S_USER_BOT),
+                        buffer.getLong(base + S_CHAT), buffer.getInt(base + S_TOUCHED));
+                moved++;
+            }
+        }
+        this.size = moved;
+        mapped.force();
+        target.close();
+        channel.close();
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        remap(FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE));
+    }
+
+    private void remap(FileChannel opened) throws IOException {
+        this.channel = opened;
+        this.buffer = map(opened, opened.size());
+        setCapacity(buffer.getInt(H_CAPACITY));
+        this.generation = buffer.getLong(H_GENERATION);
+    }
+
+    private static FileChannel createFile(Path file, int capacity, long generation) throws IOException {
+        FileChannel created = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long length = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+        // Файл расширяется записью последнего байта; промежуток остаётся разреженным и читается нулями
+        created.write(ByteBuffer.allocate(1), length - 1);
+        MappedByteBuffer header = created.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(H_MAGIC, MAGIC);
+        header.putInt(H_VERSION, VERSION);
+        header.putInt(H_CAPACITY, capacity);
+        header.putInt(H_CLEAN, 0);
+        header.putLong(H_GENERATION, generation);
+        header.putInt(H_SIZE, 0);
+        header.putLong(H_CLEAN_GENERATION, -1L);
+        header.putLong(H_CHECKSUM, headerChecksum(header));
+        header.force();
+        return created;
+    }
+
+    private void writeHeader(boolean clean) {
+        buffer.putInt(H_CAPACITY, capacity);
+        buffer.putInt(H_CLEAN, clean ? 1 : 0);
+        buffer.putLong(H_GENERATION, generation);
+        buffer.putInt(H_VERSION, VERSION);
+        buffer.putInt(H_SIZE, size);
+        buffer.putLong(H_CLEAN_GENERATION, clean ? generation : -1L);
+        buffer.putLong(H_CHECKSUM, headerChecksum(buffer));
+    }
+
+    private static long headerChecksum(ByteBuffer header) {
+        CRC32 crc = new CRC32();
+        ByteBuffer covered = header.duplicate();
+        covered.position(0).limit(H_CHECKSUM);
+        crc.update(covered);
+        return crc.getValue();
+    }
+
+    private static void writeSlot(ByteBuffer target, int base, long key, long userBotId, long chatId, int minute) {
+        // Ключ пишется последним: до этого момента новый слот остаётся пустым для поиска
+        target.putLong(base + S_USER_BOT, userBotId);
+        target.putLong(base + S_CHAT, chatId);
+        target.putInt(base + S_TOUCHED, minute);
+        target.putInt(base + S_CHECKSUM, slotChecksum(key, userBotId, chatId, minute));
+        target.putLong(base + S_KEY, key);
+    }
+
+    private void copySlot(int from, int to) {
+        int source = offset(from);
+        writeSlot(buffer, offset(to), buffer.getLong(source + S_KEY), buffer.getLong(source + S_USER_BOT),
+                buffer.getLong(source + S_CHAT), buffer.getInt(source + S_TOUCHED));
+    }
+
+    private void clearSlot(int base) {
+        buffer.putLong(base + S_KEY, 0L);
+        buffer.putLong(base + S_USER_BOT, 0L);
+        buffer.putLong(base + S_CHAT, 0L);
+        buffer.putLong(base + S_TOUCHED, 0L);
+    }
+
+    private static int slotChecksum(long key, long userBotId, long chatId, int minute) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        h = (h ^ userBotId) * 0xC2B2AE3D27D4EB4FL;
+        h = (h ^ chatId) * 0x165667B19E3779F9L;
+        h = (h ^ minute) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) | 1;
+    }
+
+    private int slotOf(long key) {
+        return mix(key) & mask;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private void setCapacity(int newCapacity) {
+        this.capacity = newCapacity;
+        this.mask = newCapacity - 1;
+        this.resizeAt = (int) ((long) newCapacity * LOAD_FACTOR_PERCENT / 100);
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long length) throws IOException {
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+        return mapped;
+    }
+}
@@ -0,0 +1,277 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Кэш уже загруженных в Telegram медиафайлов, позволяющий пересылать повторяющиеся стикеры, GIF и т.п.
+ * по ссылке, без скачивания и повторной загрузки.
+ *
+ * Хранит соответствия в обе стороны:
+ * <ul>
+ *     <li>remote.uniqueId файла TDLib → file_id Bot API, полученный после первой отправки через бота;</li>
+ *     <li>(api_id юзербота, file_unique_id Bot API) → remote.id файла TDLib этого юзербота
+ *     (для отправки через InputFileRemote).</li>
+ * </ul>
+ * Записи ограничены по числу (вытесняются давно не использованные) и по возрасту.
+ * Состояние хранится в append-only журнале и переписывается компактной копией при открытии,
+ * если журнал заметно больше актуального содержимого. Потеря хвоста журнала при сбое не опасна:
+ * файл просто будет загружен заново.
+ */
+public class MediaCache implements AutoCloseable {
+
+    private static final int MAGIC = 0x4D434331; // "MCC1"
+    private static final byte KIND_TO_BOT = 1;
+    private static final byte KIND_TO_TDLIB = 2;
+    // Пустое значение в журнале означает удаление записи
+    private static final String REMOVED = "";
+
+    private record Entry(String value, long createdAt) {
+    }
+
+    /**
+     * Счётчики попаданий одного направления.
+     */
+    private static final class Counter {
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+
+        String summary(String name) {
+            long hitCount = hits.sum();
+            long total = hitCount + misses.sum();
+            return String.format("%s: попаданий %d из %d (%.1f%%)",
+                    name, hitCount, total, total == 0 ? 0.0 : hitCount * 100.0 / total);
+        }
+    }
+
+    private final Path path;
+    private final int maxEntries;
+    private final long maxAgeMillis;
+    private final Map<String, Entry> entries;
+    private final Counter toBot = new Counter();
+    private final Counter toTdlib = new Counter();
+    private DataOutputStream log;
+    private int logRecords;
+
+    /**
+     * Открывает кэш, восстанавливая его из журнала.
+     *
+     * @param path       путь к файлу журнала
+     * @param maxEntries максимальное число записей
+     * @param maxAgeDays максимальный возраст записи в днях, 0 — без ограничения
+     */
+    public MediaCache(Path path, int maxEntries, int maxAgeDays) throws IOException {
+        this.path = path;
+        this.maxEntries = maxEntries;
+        this.maxAgeMillis = maxAgeDays > 0 ? TimeUnit.DAYS.toMillis(maxAgeDays) : Long.MAX_VALUE;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > MediaCache.this.maxEntries;
+            }
+        };
+        replay();
+        if (logRecords > entries.size() * 2 + 1024) {
+            rewrite();
+        }
+        this.log = openForAppend();
+    }
+
+    /**
+     * Возвращает file_id Bot API для файла TDLib.
+     *
+     * @param uniqueId remote.uniqueId файла TDLib
+     * @return file_id или null, если файл через бота ещё не отправлялся
+     */
+    public String getBotFileId(String uniqueId) {
+        return lookup(KIND_TO_BOT, uniqueId, toBot);
+    }
+
+    public void putBotFileId(String uniqueId, String botFileId) {
+        put(KIND_TO_BOT, uniqueId, botFileId);
+    }
+
+    /**
+     * Возвращает remote.id файла TDLib для файла Bot API.
+     *
+     * @param userBotId    api_id юзербота, через которого отправляется файл
+     * @param fileUniqueId file_unique_id файла Bot API
+     * @return remote.id или null, если этот юзербот файл ещё не отправлял
+     */
+    public String getTdlibRemoteId(long userBotId, String fileUniqueId) {
+        return lookup(KIND_TO_TDLIB, userBotId + ":" + fileUniqueId, toTdlib);
+    }
+
+    public void putTdlibRemoteId(long userBotId, String fileUniqueId, String remoteId) {
+        put(KIND_TO_TDLIB, userBotId + ":" + fileUniqueId, remoteId);
+    }
+
+    /**
+     * Удаляет ссылку, которую Telegram отказался принять.
+     */
+    public void invalidateBotFileId(String uniqueId) {
+        put(KIND_TO_BOT, uniqueId, REMOVED);
+    }
+
+    public void invalidateTdlibRemoteId(long userBotId, String fileUniqueId) {
+        put(KIND_TO_TDLIB, userBotId + ":" + fileUniqueId, REMOVED);
+    }
+
+    public String statsSummary() {
+        int size;
+        synchronized (this) {
+            size = entries.size();
+        }
+        return "записей " + size + "\n" + toBot.summary("TDLib → бот") + "\n" + toTdlib.summary("бот → TDLib");
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        log.close();
+    }
+
+    private String lookup(byte kind, String key, Counter counter) {
+        if (key == null || key.isEmpty()) {
+            counter.misses.increment();
+            return null;
+        }
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(kind + key);
+            if (entry != null && System.currentTimeMillis() - entry.createdAt() > maxAgeMillis) {
+                entries.remove(kind + key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            counter.misses.increment();
+            return null;
+        }
+        counter.hits.increment();
+        return entry.value();
+    }
+
+    private synchronized void put(byte kind, String key, String value) {
+        if (key == null || key.isEmpty() || value == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (value.isEmpty()) {
+            if (entries.remove(kind + key) == null) {
+                return;
+            }
+        } else {
+            entries.put(kind + key, new Entry(value, now));
+        }
+        try {
+            writeRecord(log, kind, key, value, now);
+            log.flush();
+            logRecords++;
+        } catch (IOException e) {
+            Main.logger.warning("Ошибка записи журнала медиакэша: " + e);
+        }
+    }
+
+    private void replay() throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long validEnd = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Неизвестный формат медиакэша: " + path);
+            }
+            validEnd = Integer.BYTES;
+            while (true) {
+                byte kind = in.readByte();
+                String key = in.readUTF();
+                String value = in.readUTF();
+                long createdAt = in.readLong();
+                validEnd += 1 + 2 + utfLength(key) + 2 + utfLength(value) + Long.BYTES;
+                logRecords++;
+                if (value.isEmpty() || now - createdAt > maxAgeMillis) {
+                    entries.remove(kind + key);
+                } else {
+                    entries.put(kind + key, new Entry(value, createdAt));
+                }
+            }
+        } catch (EOFException e) {
+            // Конец журнала или недописанная последняя запись
+        }
+        if (validEnd < Files.size(path)) {
+            if (validEnd == 0) {
+                Files.delete(path);
+            } else {
+                try (var channel = Files.newByteChannel(path, StandardOpenOption.WRITE)) {
+                    channel.truncate(validEnd);
+                }
+            }
+        }
+    }
+
+    /**
+     * Переписывает журнал актуальным содержимым кэша.
+     */
+    private void rewrite() throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                String key = entry.getKey();
+                writeRecord(out, Byte.parseByte(key.substring(0, 1)), key.substring(1),
+                        entry.getValue().value(), entry.getValue().createdAt());
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logRecords = entries.size();
+    }
+
+    private DataOutputStream openForAppend() throws IOException {
+        boolean created = !Files.exists(path);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+        if (created) {
+            out.writeInt(MAGIC);
+            out.flush();
+        }
+        return out;
+    }
+
+    private static void writeRecord(DataOutputStream out, byte kind, String key, String value, long createdAt) throws IOException {
+        out.writeByte(kind);
+        out.writeUTF(key);
+        out.writeUTF(value);
+        out.writeLong(createdAt);
+    }
+
+    /**
+     * Длина строки в модифицированной UTF-8, которую использует {@link DataOutputStream#writeUTF(String)}.
+     */
+    private static int utfLength(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length++;
+            } else if (c > 0x07FF) {
+                length += 3;
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,255 @@
+package org.example;
+
+import it.tdlight.client.SimpleTelegramClient;
+import it.tdlight.jni.TdApi;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Неблокирующая загрузка файлов TDLib для одного юзербота.
+ * Загрузка запускается асинхронным DownloadFile, а о её завершении сообщает обновление UpdateFile,
+ * поэтому ни один поток не ждёт окончания загрузки. Одновременно выполняется не больше заданного
+ * числа загрузок, остальные ждут в очереди.
+ * Загрузка, не завершившаяся за отведённое время или отменённая вызывающим кодом, останавливается
+ * через CancelDownloadFile.
+ *
+ * Скачанные файлы выдаются в аренду ({@link MediaLease}) со счётчиком ссылок: когда освобождена
+ * последняя аренда, файл при необходимости удаляется из кэша TDLib через DeleteFile.
+ * Ссылка берётся в момент запроса аренды, а не после загрузки, поэтому файл не удаляется,
+ * пока его ещё скачивает или отправляет другая пересылка.
+ */
+public class MediaDownloader {
+
+    private final int maxConcurrent;
+    private final long timeoutMs;
+    private final boolean deleteAfterRelease;
+
+    /**
+     * Загрузка одного файла. Занимает место в пуле загрузок только после запуска.
+     */
+    private static final class Pending {
+        final int fileId;
+        final CompletableFuture<TdApi.File> future = new CompletableFuture<>();
+        boolean started;
+
+        Pending(int fileId) {
+            this.fileId = fileId;
+        }
+    }
+
+    private final Map<Integer, Pending> inProgress = new HashMap<>();
+    private final Queue<Pending> waiting = new ArrayDeque<>();
+    // Число неосвобождённых аренд по id файла
+    private final Map<Integer, Integer> leases = new HashMap<>();
+    private int active;
+    private SimpleTelegramClient client;
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder deleted = new LongAdder();
+
+    /**
+     * @param maxConcurrent максимальное число одновременных загрузок
+     * @param timeoutMs     максимальное время загрузки одного файла, включая ожидание в очереди
+     * @param deleteAfterRelease удалять ли файл из кэша TDLib после освобождения последней аренды
+     */
+    public MediaDownloader(int maxConcurrent, long timeoutMs, boolean deleteAfterRelease) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.timeoutMs = timeoutMs;
+        this.deleteAfterRelease = deleteAfterRelease;
+    }
+
+    /**
+     * Привязывает загрузчик к клиенту. Загрузчик создаётся раньше клиента,
+     * потому что обработчик UpdateFile регистрируется на этапе сборки клиента.
+     */
+    void bind(SimpleTelegramClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Запускает загрузку файла.
+     * Повторный запрос того же файла, пока он загружается, возвращает ту же задачу.
+     * Отмена возвращённой задачи (cancel) останавливает загрузку в TDLib.
+     *
+     * Состояние файла из сообщения не используется: файл могли удалить из кэша после того, как сообщение
+     * было получено. DownloadFile для уже скачанного файла сразу отвечает его текущим состоянием,
+     * а для удалённого запускает загрузку заново.
+     *
+     * @param file файл TDLib
+     * @return задача, завершающаяся файлом с заполненным local.path
+     */
+    public CompletableFuture<TdApi.File> download(TdApi.File file) {
+        Pending pending;
+        boolean startNow = false;
+        synchronized (this) {
+            pending = inProgress.get(file.id);
+            if (pending != null) {
+                return pending.future;
+            }
+            pending = new Pending(file.id);
+            inProgress.put(file.id, pending);
+            if (active < maxConcurrent) {
+                active++;
+                pending.started = true;
+                startNow = true;
+            } else {
+                waiting.add(pending);
+            }
+        }
+
+        Pending registered = pending;
+        pending.future.orTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                .whenComplete((result, error) -> finish(registered, error));
+        if (startNow) {
+            start(pending);
+        }
+        return pending.future;
+    }
+
+    /**
+     * Скачивает файл и выдаёт аренду на него.
+     * Аренду нужно освободить, когда файл больше не нужен (например, после отправки в Bot API).
+     *
+     * @param file файл TDLib
+     * @return задача, завершающаяся арендой скачанного файла
+     */
+    public CompletableFuture<MediaLease> lease(TdApi.File file) {
+        synchronized (leases) {
+            leases.merge(file.id, 1, Integer::sum);
+        }
+        CompletableFuture<MediaLease> leased = download(file)
+                .thenApply(downloaded -> new MediaLease(this, downloaded.id, downloaded.local.path));
+        // Если аренда не выдана (ошибка, таймаут или отмена), ссылка возвращается сразу
+        leased.whenComplete((lease, error) -> {
+            if (error != null) {
+                release(file.id);
+            }
+        });
+        return leased;
+    }
+
+    /**
+     * Освобождает аренду файла, вызывается из {@link MediaLease#release()}.
+     */
+    void release(int fileId) {
+        boolean last;
+        synchronized (leases) {
+            last = leases.merge(fileId, -1, Integer::sum) <= 0;
+            if (last) {
+                leases.remove(fileId);
+            }
+        }
+        if (last && deleteAfterRelease) {
+            deleted.increment();
+            client.send(new TdApi.DeleteFile(fileId)).whenComplete((ok, error) -> {
+                if (error != null) {
+                    Main.logger.warning("Не удалось удалить файл " + fileId + " из кэша TDLib: " + error);
+                }
+            });
+        }
+    }
+
+    /**
+     * Обработчик UpdateFile: завершает задачу, когда файл скачан,
+     * и завершает её с ошибкой, если TDLib остановил загрузку.
+     */
+    public void onUpdateFile(TdApi.UpdateFile update) {
+        TdApi.File file = update.file;
+        Pending pending;
+        synchronized (this) {
+            pending = inProgress.get(file.id);
+            if (pending == null || !pending.started) {
+                return;
+            }
+        }
+        if (file.local.isDownloadingCompleted) {
+            pending.future.complete(file);
+        } else if (!file.local.isDownloadingActive && !file.local.canBeDownloaded) {
+            pending.future.completeExceptionally(new IllegalStateException("Файл " + file.id + " недоступен для загрузки"));
+        }
+    }
+
+    public String statsSummary() {
+        int activeNow;
+        int waitingNow;
+        synchronized (this) {
+            activeNow = active;
+            waitingNow = waiting.size();
+        }
+        int leased;
+        synchronized (leases) {
+            leased = leases.size();
+        }
+        return "загрузок активно " + activeNow + ", в очереди " + waitingNow
+                + ", завершено " + completed.sum() + ", ошибок " + failed.sum()
+                + ", по таймауту " + timedOut.sum() + ", отменено " + cancelled.sum()
+                + "; файлов в аренде " + leased + ", удалено из кэша " + deleted.sum();
+    }
+
+    private void start(Pending pending) {
+        CompletableFuture<TdApi.File> future = pending.future;
+        client.send(new TdApi.DownloadFile(pending.fileId, 1, 0, 0, false)).whenComplete((file, error) -> {
+            if (error != null) {
+                future.completeExceptionally(error);
+            } else if (file.local.isDownloadingCompleted) {
+                future.complete(file);
+            }
+        });
+    }
+
+    /**
+     * Освобождает место загрузки и запускает следующую из очереди.
+     * Если задача завершилась по таймауту или отменена, загрузка в TDLib останавливается.
+     */
+    private void finish(Pending pending, Throwable error) {
+        Pending next = null;
+        synchronized (this) {
+            inProgress.remove(pending.fileId, pending);
+            if (pending.started) {
+                // Место переходит к первой ещё не завершённой задаче из очереди
+                do {
+                    next = waiting.poll();
+                } while (next != null && next.future.isDone());
+                if (next != null) {
+                    next.started = true;
+                } else {
+                    active--;
+                }
+            } else {
+                waiting.remove(pending);
+            }
+        }
+
+        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+        if (cause == null) {
+            completed.increment();
+        } else if (cause instanceof TimeoutException || cause instanceof CancellationException) {
+            if (cause instanceof TimeoutException) {
+                timedOut.increment();
+            } else {
+                cancelled.increment();
+            }
+            if (pending.started) {
+                client.send(new TdApi.CancelDownloadFile(pending.fileId, false));
+            }
+        } else {
+            failed.increment();
+        }
+
+        if (next != null) {
+            start(next);
+        }
+    }
+}
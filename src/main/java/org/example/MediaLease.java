@@ -0,0 +1,43 @@
+package org.example;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Право пользоваться скачанным файлом TDLib, пока он загружается в Bot API.
+ * Файл передаётся в InputFile напрямую из каталога загрузок TDLib, без копирования,
+ * поэтому его нельзя удалять, пока хотя бы одна аренда не освобождена.
+ * Повторный вызов {@link #release()} ничего не делает.
+ */
+public class MediaLease {
+
+    private final MediaDownloader owner;
+    private final int fileId;
+    private final String path;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    MediaLease(MediaDownloader owner, int fileId, String path) {
+        this.owner = owner;
+        this.fileId = fileId;
+        this.path = path;
+    }
+
+    public int getFileId() {
+        return fileId;
+    }
+
+    /**
+     * Путь к файлу в каталоге загрузок TDLib.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Освобождает аренду. Когда освобождена последняя аренда файла, загрузчик может удалить его из кэша TDLib.
+     */
+    public void release() {
+        if (released.compareAndSet(false, true)) {
+            owner.release(fileId);
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package org.example;
 
-import it.tdlight.client.SimpleTelegramClient;
 import it.tdlight.jni.TdApi;
 import it.tdlight.jni.TdApi.*;
 import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
@@ -13,24 +12,86 @@ import org.telegram.telegrambots.meta.api.methods.send.SendVoice;
 import org.telegram.telegrambots.meta.api.objects.InputFile;
 
 import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletionException;
 
 public class MessageConverter {
 
     /**
      * Преобразует сообщение TDLight в формат для Telegram Bots API.
-     * Для мультимедийных сообщений скачивает файл во временную директорию.
+     * Для мультимедийных сообщений скачивает файл через TDLib.
+     * Синхронная обёртка над {@link #convertTdlightMessageAsync(MediaDownloader, Message, String)}.
      *
-     * @param client    клиент TDLight, необходим для загрузки файлов
-     * @param tdMessage сообщение TDLight
+     * @param downloader загрузчик файлов юзербота, получившего сообщение
+     * @param tdMessage  сообщение TDLight
      * @return объект BotApiMethod (например, SendMessage, SendPhoto, SendVoice и т.д.)
      */
-    public static PartialBotApiMethod<?> convertTdlightMessage(SimpleTelegramClient client, Message tdMessage, String prefixCaption) {
-        String chatId = String.valueOf(tdMessage.chatId);
+    public static PartialBotApiMethod<?> convertTdlightMessage(MediaDownloader downloader, Message tdMessage, String prefixCaption) {
+        try {
+            return convertTdlightMessageAsync(downloader, tdMessage, prefixCaption).join();
+        } catch (CompletionException e) {
+            throw new RuntimeException("Ошибка при преобразовании сообщения", e.getCause());
+        }
+    }
+
+    /**
+     * Асинхронно преобразует сообщение TDLight в формат для Telegram Bots API.
+     * Поток не блокируется на время загрузки медиафайла. Файл передаётся в InputFile прямо
+     * из каталога загрузок TDLib и остаётся в кэше TDLib; чтобы освобождать файлы после отправки,
+     * используйте {@link #downloadMediaAsync(MediaDownloader, Message)}.
+     *
+     * @param downloader загрузчик файлов юзербота, получившего сообщение
+     * @param tdMessage  сообщение TDLight
+     * @return задача, завершающаяся объектом BotApiMethod
+     */
+    public static CompletableFuture<PartialBotApiMethod<?>> convertTdlightMessageAsync(MediaDownloader downloader, Message tdMessage, String prefixCaption) {
+        TdApi.File file = mediaFile(tdMessage.content);
+        CompletableFuture<String> path = file == null
+                ? CompletableFuture.completedFuture(null)
+                : downloader.download(file).thenApply(downloaded -> downloaded.local.path);
+        return path.thenApply(filePath -> convert(tdMessage, String.valueOf(tdMessage.chatId), prefixCaption, filePath));
+    }
+
+    /**
+     * Скачивает медиафайл сообщения, если он есть, и выдаёт аренду на него.
+     * Копия файла не создаётся: аренду нужно освободить после отправки сообщения в Bot API.
+     *
+     * @param downloader загрузчик файлов юзербота
+     * @param tdMessage  сообщение TDLight
+     * @return задача с арендой файла или null, если в сообщении нет поддерживаемого медиа
+     */
+    public static CompletableFuture<MediaLease> downloadMediaAsync(MediaDownloader downloader, Message tdMessage) {
+        TdApi.File file = mediaFile(tdMessage.content);
+        if (file == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return downloader.lease(file);
+    }
+
+    /**
+     * Собирает запрос Bot API из сообщения TDLight и уже скачанного медиафайла.
+     *
+     * @param tdMessage     сообщение TDLight
+     * @param chatId        чат бота, в который отправляется сообщение
+     * @param prefixCaption подпись, добавляемая перед текстом сообщения
+     * @param filePath      путь к медиафайлу из {@link MediaLease#getPath()}
+     * @return объект BotApiMethod (например, SendMessage, SendPhoto, SendVoice и т.д.)
+     */
+    public static PartialBotApiMethod<?> convert(Message tdMessage, String chatId, String prefixCaption, String filePath) {
+        return convert(tdMessage, chatId, prefixCaption, filePath != null ? new InputFile(new File(filePath)) : null);
+    }
+
+    /**
+     * Собирает запрос Bot API из сообщения TDLight и готового InputFile:
+     * локального файла или file_id уже загруженного через бота файла (см. {@link MediaCache}).
+     *
+     * @param tdMessage     сообщение TDLight
+     * @param chatId        чат бота, в который отправляется сообщение
+     * @param prefixCaption подпись, добавляемая перед текстом сообщения
+     * @param media         медиафайл сообщения или null, если сообщение без медиа
+     * @return объект BotApiMethod (например, SendMessage, SendPhoto, SendVoice и т.д.)
+     */
+    public static PartialBotApiMethod<?> convert(Message tdMessage, String chatId, String prefixCaption, InputFile media) {
         MessageContent content = tdMessage.content;
 
         // Текстовое сообщение
@@ -44,45 +105,34 @@ public class MessageConverter {
         // Фотография
         else if (content instanceof MessagePhoto) {
             MessagePhoto photoMessage = (MessagePhoto) content;
-            Photo photo = photoMessage.photo;
-            // Выбираем самый большой размер
-            PhotoSize largestSize = photo.sizes[photo.sizes.length - 1];
-            String filePath = downloadFileSync(client, largestSize.photo.id);
             SendPhoto sendPhoto = new SendPhoto();
             sendPhoto.setChatId(chatId);
-            sendPhoto.setPhoto(new InputFile(new File(filePath)));
+            sendPhoto.setPhoto(media);
             sendPhoto.setCaption(prefixCaption + photoMessage.caption.text);
             return sendPhoto;
         }
         // Голосовое сообщение
         else if (content instanceof MessageVoiceNote) {
             MessageVoiceNote voiceMessage = (MessageVoiceNote) content;
-            VoiceNote voiceNote = voiceMessage.voiceNote;
-            String filePath = downloadFileSync(client, voiceNote.voice.id);
             SendVoice sendVoice = new SendVoice();
             sendVoice.setChatId(chatId);
-            sendVoice.setVoice(new InputFile(new File(filePath)));
+            sendVoice.setVoice(media);
             sendVoice.setCaption(prefixCaption + voiceMessage.caption.text);
             return sendVoice;
         }
         // Стикер
         else if (content instanceof MessageSticker) {
-            MessageSticker stickerMessage = (MessageSticker) content;
-            Sticker sticker = stickerMessage.sticker;
-            String filePath = downloadFileSync(client, sticker.sticker.id);
             SendSticker sendSticker = new SendSticker();
             sendSticker.setChatId(chatId);
-            sendSticker.setSticker(new InputFile(new File(filePath)));
+            sendSticker.setSticker(media);
             return sendSticker;
         }
         // Анимация (например, GIF)
         else if (content instanceof MessageAnimation) {
             MessageAnimation animationMessage = (MessageAnimation) content;
-            Animation animation = animationMessage.animation;
-            String filePath = downloadFileSync(client, animation.animation.id);
             SendAnimation sendAnimation = new SendAnimation();
             sendAnimation.setChatId(chatId);
-            sendAnimation.setAnimation(new InputFile(new File(filePath)));
+            sendAnimation.setAnimation(media);
             sendAnimation.setCaption(prefixCaption + animationMessage.caption.text);
             return sendAnimation;
         }
@@ -96,35 +146,42 @@ public class MessageConverter {
     }
 
     /**
-     * Скачивает файл с помощью TDLight и копирует его во временный файл.
+     * Возвращает текст сообщения или подпись медиафайла.
      *
-     * @param client TDLight клиент
-     * @param fileId идентификатор файла из TDLight
-     * @return путь к временному файлу
+     * @param content содержимое сообщения TDLight
+     * @return текст или null, если у сообщения нет текста
      */
-    private static String downloadFileSync(SimpleTelegramClient client, int fileId) {
-        CompletableFuture<TdApi.File> future = new CompletableFuture<>();
-        client.send(new TdApi.DownloadFile(fileId, 1, 0, 0, true), result -> {
-            future.complete(result.get());
-        });
-
-        TdApi.File file;
-        try {
-            // Ждём завершения скачивания (максимум 30 секунд)
-            file = future.get(30, TimeUnit.SECONDS);
-        } catch (Exception e) {
-            throw new RuntimeException("Ошибка при скачивании файла", e);
+    static String text(MessageContent content) {
+        if (content instanceof MessageText textMessage) {
+            return textMessage.text.text;
+        } else if (content instanceof MessagePhoto photoMessage) {
+            return photoMessage.caption.text;
+        } else if (content instanceof MessageVoiceNote voiceMessage) {
+            return voiceMessage.caption.text;
+        } else if (content instanceof MessageAnimation animationMessage) {
+            return animationMessage.caption.text;
         }
+        return null;
+    }
 
-        // Копируем файл из пути, который вернул TDLight, во временную директорию
-        try {
-            File original = new File(file.local.path);
-            // Создаём временный файл с префиксом "tdlight_"
-            File tempFile = File.createTempFile("tdlight_", "_" + fileId);
-            Files.copy(original.toPath(), tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-            return tempFile.getAbsolutePath();
-        } catch (IOException e) {
-            throw new RuntimeException("Ошибка копирования файла во временную директорию", e);
+    /**
+     * Возвращает файл, который нужно скачать для пересылки сообщения.
+     * Для фотографии выбирается самый большой размер.
+     *
+     * @param content содержимое сообщения TDLight
+     * @return файл TDLight или null, если содержимое не требует загрузки
+     */
+    static TdApi.File mediaFile(MessageContent content) {
+        if (content instanceof MessagePhoto photoMessage) {
+            Photo photo = photoMessage.photo;
+            return photo.sizes[photo.sizes.length - 1].photo;
+        } else if (content instanceof MessageVoiceNote voiceMessage) {
+            return voiceMessage.voiceNote.voice;
+        } else if (content instanceof MessageSticker stickerMessage) {
+            return stickerMessage.sticker.sticker;
+        } else if (content instanceof MessageAnimation animationMessage) {
+            return animationMessage.animation.animation;
         }
+        return null;
     }
 }
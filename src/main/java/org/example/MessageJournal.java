@@ -0,0 +1,313 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Supplier;
+
+/**
+ * Бинарный append-only журнал маппинга сообщений.
+ * Каждая запись имеет фиксированный размер: id сообщения бота, api_id юзербота, id чата
+ * и минута последнего обращения (4 × 8 байт). Запись с api_id = 0 означает удаление маппинга.
+ * Журналы первой версии (без времени обращения) читаются, но при открытии переписываются в текущий формат.
+ *
+ * Записи копятся в памяти и сбрасываются фоновым потоком пачками (group commit):
+ * одна запись в файл и один fsync на всю пачку. Когда журнал вырастает сверх порога,
+ * тот же поток переписывает его компактной копией актуального состояния.
+ */
+class MessageJournal implements AutoCloseable {
+
+    static final int RECORD_SIZE = 32;
+    static final int VERSION = 2;
+    static final long TOMBSTONE = 0L;
+
+    private static final int MAGIC = 0x4D4D4A31; // "MMJ1"
+    private static final int V1_RECORD_SIZE = 24;
+    private static final int HEADER_SIZE = 8;
+
+    // Интервал group commit и размер пачки, при котором сброс начинается досрочно
+    private static final long FLUSH_INTERVAL_MS = 50;
+    private static final int FLUSH_BATCH_RECORDS = 4096;
+    // Минимальный размер журнала, после которого имеет смысл компактировать
+    private static final long COMPACT_THRESHOLD_BYTES = 8L * 1024 * 1024;
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Получатель записей при чтении журнала.
+     */
+    interface RecordVisitor {
+        void accept(long messageId, long userBotId, long chatId, long touchedAt);
+    }
+
+    private final Path path;
+    private final Supplier<long[]> snapshotSupplier;
+    private final ByteBuffer ioBuffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final Object pendingLock = new Object();
+    private final Thread flusher;
+
+    private FileChannel channel;
+    private long[] pending = new long[FLUSH_BATCH_RECORDS * 4];
+    private long[] spare = new long[FLUSH_BATCH_RECORDS * 4];
+    private int pendingCount;
+    private long compactThreshold = COMPACT_THRESHOLD_BYTES;
+    private volatile boolean closed;
+
+    /**
+     * Открывает журнал и запускает фоновый поток сброса.
+     * Перед вызовом журнал должен быть прочитан через {@link #replay(Path, long, RecordVisitor)}.
+     *
+     * @param path             путь к файлу журнала
+     * @param snapshotSupplier возвращает копию актуального маппинга в виде четвёрок
+     *                         [messageId, userBotId, chatId, touchedAt]
+     */
+    MessageJournal(Path path, Supplier<long[]> snapshotSupplier) throws IOException {
+        this.path = path;
+        this.snapshotSupplier = snapshotSupplier;
+        this.channel = openForAppend(path);
+        this.flusher = new Thread(this::flushLoop, "message-journal-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Читает журнал и передаёт все записи в visitor в порядке их добавления.
+     * Недописанная последняя запись (обрыв при сбое) отбрасывается.
+     * Записям первой версии в качестве времени обращения передаётся defaultTouchedAt.
+     *
+     * @return версия формата прочитанного журнала или 0, если файла не было
+     */
+    static int replay(Path path, long defaultTouchedAt, RecordVisitor visitor) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            long size = in.size();
+            if (size < HEADER_SIZE) {
+                in.truncate(0);
+                writeHeader(in);
+                return VERSION;
+            }
+            buffer.limit(HEADER_SIZE);
+            readFully(in, buffer, 0);
+            buffer.flip();
+            int magic = buffer.getInt();
+            int version = buffer.getInt();
+            if (magic != MAGIC || (version != 1 && version != VERSION)) {
+                throw new IOException("Неизвестный формат журнала: " + path);
+            }
+            int recordSize = version == 1 ? V1_RECORD_SIZE : RECORD_SIZE;
+
+            long position = HEADER_SIZE;
+            long validEnd = HEADER_SIZE + (size - HEADER_SIZE) / recordSize * recordSize;
+            while (position < validEnd) {
+                buffer.clear();
+                int chunk = (int) Math.min(buffer.capacity() / recordSize * recordSize, validEnd - position);
+                buffer.limit(chunk);
+                readFully(in, buffer, position);
+                buffer.flip();
+                while (buffer.remaining() >= recordSize) {
+                    long messageId = buffer.getLong();
+                    long userBotId = buffer.getLong();
+                    long chatId = buffer.getLong();
+                    long touchedAt = version == 1 ? defaultTouchedAt : buffer.getLong();
+                    visitor.accept(messageId, userBotId, chatId, touchedAt);
+                }
+                position += chunk;
+            }
+            if (validEnd != size) {
+                Main.logger.warning("Журнал " + path + " обрезан до последней целой записи");
+                in.truncate(validEnd);
+            }
+            return version;
+        }
+    }
+
+    /**
+     * Создаёт журнал, содержащий ровно переданные записи. Используется для импорта
+     * и при компактировании: файл пишется рядом и атомарно заменяет старый.
+     */
+    static void writeSnapshot(Path path, long[] records, int count) throws IOException {
+        Path tmp = writeSnapshotTemp(path, records, count);
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Записывает снимок во временный файл рядом с журналом и возвращает путь к нему.
+     */
+    private static Path writeSnapshotTemp(Path path, long[] records, int count) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeHeader(out);
+            writeRecords(out, buffer, records, count);
+            out.force(true);
+        }
+        return tmp;
+    }
+
+    /**
+     * Добавляет запись в очередь на запись. Не блокируется на диске:
+     * запись попадёт в файл со следующей пачкой group commit.
+     */
+    void append(long messageId, long userBotId, long chatId, long touchedAt) {
+        synchronized (pendingLock) {
+            if (pendingCount * 4 == pending.length) {
+                long[] grown = new long[pending.length * 2];
+                System.arraycopy(pending, 0, grown, 0, pending.length);
+                pending = grown;
+            }
+            int offset = pendingCount * 4;
+            pending[offset] = messageId;
+            pending[offset + 1] = userBotId;
+            pending[offset + 2] = chatId;
+            pending[offset + 3] = touchedAt;
+            pendingCount++;
+            if (pendingCount >= FLUSH_BATCH_RECORDS) {
+                pendingLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Сбрасывает накопленные записи и закрывает журнал.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        synchronized (pendingLock) {
+            pendingLock.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        channel.close();
+    }
+
+    private void flushLoop() {
+        while (!closed) {
+            synchronized (pendingLock) {
+                if (pendingCount < FLUSH_BATCH_RECORDS && !closed) {
+                    try {
+                        pendingLock.wait(FLUSH_INTERVAL_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            try {
+                flush();
+                if (channel.size() > compactThreshold) {
+                    compact();
+                }
+            } catch (IOException e) {
+                Main.logger.warning("Ошибка записи журнала маппинга: " + e);
+            }
+        }
+    }
+
+    /**
+     * Записывает одну пачку накопленных записей и делает fsync.
+     * Вызывается только из потока сброса (или при закрытии после его остановки).
+     */
+    private void flush() throws IOException {
+        long[] batch;
+        int count;
+        synchronized (pendingLock) {
+            if (pendingCount == 0) {
+                return;
+            }
+            batch = pending;
+            count = pendingCount;
+            pending = spare.length >= batch.length ? spare : new long[batch.length];
+            pendingCount = 0;
+        }
+        writeRecords(channel, ioBuffer, batch, count);
+        channel.force(false);
+        spare = batch;
+    }
+
+    /**
+     * Переписывает журнал снимком актуального маппинга.
+     * Записи, добавленные после снимка, остаются в очереди и попадут уже в новый файл;
+     * повторное применение put при воспроизведении идемпотентно.
+     */
+    private void compact() throws IOException {
+        long[] snapshot = snapshotSupplier.get();
+        int live = snapshot.length / 4;
+        long liveBytes = HEADER_SIZE + (long) live * RECORD_SIZE;
+        if (channel.size() < liveBytes * 2) {
+            // Журнал в основном состоит из живых записей — переписывать его бессмысленно
+            compactThreshold = Math.max(COMPACT_THRESHOLD_BYTES, liveBytes * 2);
+            return;
+        }
+        long before = channel.size();
+        // Снимок пишется, пока старый журнал открыт: ошибка записи его не затрагивает
+        Path tmp = writeSnapshotTemp(path, snapshot, live);
+        channel.close();
+        try {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            // Если подмена не удалась, дозапись продолжается в прежний журнал
+            channel = openForAppend(path);
+        }
+        compactThreshold = Math.max(COMPACT_THRESHOLD_BYTES, liveBytes * 2);
+        Main.logger.info("Журнал маппинга компактирован: " + before + " -> " + channel.size() + " байт");
+    }
+
+    private static FileChannel openForAppend(Path path) throws IOException {
+        FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (out.size() == 0) {
+            writeHeader(out);
+            out.force(true);
+        }
+        out.position(out.size());
+        return out;
+    }
+
+    private static void writeHeader(FileChannel out) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        while (header.hasRemaining()) {
+            out.write(header);
+        }
+    }
+
+    private static void writeRecords(FileChannel out, ByteBuffer buffer, long[] records, int count) throws IOException {
+        buffer.clear();
+        for (int i = 0; i < count * 4; i += 4) {
+            if (buffer.remaining() < RECORD_SIZE) {
+                drain(out, buffer);
+            }
+            buffer.putLong(records[i]).putLong(records[i + 1]).putLong(records[i + 2]).putLong(records[i + 3]);
+        }
+        drain(out, buffer);
+    }
+
+    private static void drain(FileChannel out, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = in.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Неожиданный конец журнала");
+            }
+            position += read;
+        }
+    }
+}
@@ -4,115 +4,483 @@ import com.google.gson.reflect.TypeToken;
 
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.lang.reflect.Type;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Класс MessageMapper хранит отображение между идентификаторами сообщений.
- * Данные загружаются из скрытого JSON-файла при создании экземпляра,
- * а изменения автоматически сохраняются при обновлении маппинга.
+ * Поддерживаются два режима хранения (параметр mapperStorage в config.json):
+ * - journal: таблица в куче ({@link RouteTable}), восстанавливаемая из бинарного журнала
+ *   ({@link MessageJournal}), куда дописывается каждое изменение;
+ * - mmap: таблица в отображаемом в память файле ({@link MappedRouteTable}) вне кучи,
+ *   открывается мгновенно независимо от размера.
+ * Старый JSON-файл однократно импортируется при первом запуске; при переходе с journal на mmap
+ * таблица заполняется из журнала.
+ *
+ * Политика хранения ограничивает число маршрутов и/или их возраст с момента последнего обращения.
+ * Вытеснение выполняет фоновый поток раз в минуту; вытесненные маршруты при необходимости
+ * переносятся в холодный сегмент на диске ({@link ColdRouteSegment}) и продолжают находиться,
+ * хоть и медленнее. Холодный сегмент ограничен своим сроком хранения, а удалённые маршруты
+ * отмечаются в нём надгробиями, чтобы не вернуться из него.
  */
-public class MessageMapper {
+public class MessageMapper implements AutoCloseable {
 
-    // JSON файл для хранения данных
-    private static final String DEFAULT_FILE_PATH = "message_mapper.json";
+    /**
+     * Режим хранения маршрутов.
+     */
+    public enum Storage {
+        JOURNAL,
+        MMAP;
+
+        public static Storage fromConfig(String value) {
+            return value == null || value.isEmpty() ? JOURNAL : valueOf(value.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    // Базовое имя файлов маппинга: .journal, .routes и .cold
+    private static final String DEFAULT_BASE_PATH = "message_mapper";
+    // JSON файл, в котором маппинг хранился раньше
+    private static final String LEGACY_JSON_PATH = "message_mapper.json";
+    private static final long SWEEP_INTERVAL_MINUTES = 1;
+    private static final long MMAP_FLUSH_INTERVAL_SECONDS = 1;
+    private static final long MAINTENANCE_SHUTDOWN_SECONDS = 10;
+
+    // Отображение: ключ – message_id сообщения бота, значение – (api_id юзербота, id чата)
+    private final RouteStore mapping;
+    // Журнал изменений; null в режиме mmap, где файлом является сама таблица
+    private final MessageJournal journal;
+    private final Storage storage;
+    private final int maxEntries;
+    private final int maxAgeMinutes;
+    private final ColdRouteSegment cold;
+    private final int coldMaxAgeMinutes;
+    // Удалённые маршруты, надгробия которых ещё не записаны в холодный сегмент; под монитором
+    private final Set<Long> coldRemovals = new HashSet<>();
+    private final ScheduledExecutorService maintenance;
 
-    // Отображение: ключ – исходный message_id, значение – привязанный message_id
-    private Map<Long, AbstractMap.SimpleEntry<Long, Long>> mapping;
-    private final Gson gson = new Gson();
-    private final String filePath;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder coldHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
 
     /**
-     * Конструктор по умолчанию, использующий путь по умолчанию.
+     * Конструктор по умолчанию: журнал по пути по умолчанию, маршруты хранятся без ограничений.
      */
-    public MessageMapper() {
-        this(DEFAULT_FILE_PATH);
+    public MessageMapper() throws IOException {
+        this(Storage.JOURNAL, 0, 0, false, 0);
     }
 
     /**
-     * Конструктор, позволяющий задать путь к файлу.
+     * Конструктор, использующий путь по умолчанию и заданные режим и политику хранения.
+     */
+    public MessageMapper(Storage storage, int maxEntries, int maxAgeMinutes, boolean spillToCold,
+                         int coldMaxAgeMinutes) throws IOException {
+        this(DEFAULT_BASE_PATH, storage, maxEntries, maxAgeMinutes, spillToCold, coldMaxAgeMinutes);
+    }
+
+    /**
+     * Конструктор, позволяющий задать базовый путь к файлам, режим и политику хранения.
      *
-     * @param filePath путь к JSON файлу для хранения данных
+     * @param basePath      базовый путь; к нему добавляются расширения .journal, .routes и .cold
+     * @param storage       режим хранения маршрутов
+     * @param maxEntries    максимальное число активных маршрутов, 0 — без ограничения
+     * @param maxAgeMinutes максимальный возраст маршрута с последнего обращения, 0 — без ограничения
+     * @param spillToCold   переносить ли вытесненные маршруты в холодный сегмент на диске
+     * @param coldMaxAgeMinutes сколько маршрут хранится в холодном сегменте с последнего обращения, 0 — без ограничения
      */
-    public MessageMapper(String filePath) {
-        this.filePath = filePath;
-        loadFromFile();
+    public MessageMapper(String basePath, Storage storage, int maxEntries, int maxAgeMinutes, boolean spillToCold,
+                         int coldMaxAgeMinutes) throws IOException {
+        this.storage = storage;
+        this.maxEntries = maxEntries;
+        this.maxAgeMinutes = maxAgeMinutes;
+        this.coldMaxAgeMinutes = coldMaxAgeMinutes;
+        Path journalPath = Paths.get(basePath + ".journal");
+
+        if (storage == Storage.MMAP) {
+            MappedRouteTable table = MappedRouteTable.open(Paths.get(basePath + ".routes"));
+            this.mapping = table;
+            if (table.isCreated()) {
+                if (MessageJournal.replay(journalPath, currentMinute(), this::applyRecord) > 0) {
+                    Main.logger.info("Таблица маршрутов заполнена из журнала " + journalPath + ": " + table.size());
+                } else {
+                    importLegacyJson(null);
+                }
+            }
+            this.journal = null;
+        } else {
+            this.mapping = new RouteTable();
+            int version = MessageJournal.replay(journalPath, currentMinute(), this::applyRecord);
+            if (version == 0) {
+                importLegacyJson(journalPath);
+            } else if (version < MessageJournal.VERSION) {
+                MessageJournal.writeSnapshot(journalPath, snapshot(), mapping.size());
+            }
+            this.journal = new MessageJournal(journalPath, this::snapshot);
+        }
+        this.cold = spillToCold ? new ColdRouteSegment(Paths.get(basePath + ".cold")) : null;
+
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "message-mapper-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (maxEntries > 0 || maxAgeMinutes > 0) {
+            this.maintenance.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL_MINUTES, SWEEP_INTERVAL_MINUTES, TimeUnit.MINUTES);
+        }
+        if (journal == null) {
+            this.maintenance.scheduleWithFixedDelay(this::flushMapped, MMAP_FLUSH_INTERVAL_SECONDS, MMAP_FLUSH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
     }
 
     /**
-     * Получает привязанный идентификатор по исходному messageId.
+     * Маршрут пересланного сообщения: юзербот и чат, куда нужно отправлять ответы.
+     * Объект изменяемый, чтобы вызывающий код мог переиспользовать его между поисками
+     * и поиск не создавал мусора.
+     */
+    public static final class Route {
+        private long userBotId;
+        private long chatId;
+
+        public long getUserBotId() {
+            return userBotId;
+        }
+
+        public long getChatId() {
+            return chatId;
+        }
+    }
+
+    /**
+     * Получает маршрут по идентификатору сообщения бота.
      *
-     * @param messageId исходный идентификатор сообщения
-     * @return привязанный message_id или null, если привязка отсутствует
+     * @param messageId идентификатор сообщения бота
+     * @param into      объект, в который записывается найденный маршрут
+     * @return true, если привязка найдена; иначе into не изменяется
      */
-    public synchronized AbstractMap.SimpleEntry<Long, Long> getMapping(Long messageId) {
-        return mapping.get(messageId);
+    public boolean getMapping(long messageId, Route into) {
+        synchronized (this) {
+            int slot = mapping.indexOf(messageId);
+            if (slot >= 0) {
+                touch(slot, messageId);
+                into.userBotId = mapping.userBotIdAt(slot);
+                into.chatId = mapping.chatIdAt(slot);
+                hits.increment();
+                return true;
+            }
+        }
+
+        // Промах в памяти: ищем в холодном сегменте вне монитора, чтобы не задерживать остальные запросы
+        if (cold != null) {
+            try {
+                long[] route = cold.lookup(messageId);
+                if (route != null && restoreFromCold(messageId, route)) {
+                    into.userBotId = route[0];
+                    into.chatId = route[1];
+                    coldHits.increment();
+                    return true;
+                }
+            } catch (IOException e) {
+                Main.logger.warning("Ошибка чтения холодного сегмента маппинга: " + e);
+            }
+        }
+        misses.increment();
+        return false;
+    }
+
+    /**
+     * Отмечает обращение к маршруту. В режиме journal обращение дописывается в журнал повторной записью маршрута,
+     * иначе после перезапуска недавно использованные маршруты вытеснялись бы по возрасту последней записи.
+     * Время хранится с точностью до минуты, поэтому в журнал попадает не больше одной записи на маршрут в минуту.
+     * Вызывается под монитором.
+     */
+    private void touch(int slot, long messageId) {
+        int now = currentMinute();
+        if (mapping.touchedAt(slot) == now) {
+            return;
+        }
+        mapping.touch(slot, now);
+        if (journal != null) {
+            journal.append(messageId, mapping.userBotIdAt(slot), mapping.chatIdAt(slot), now);
+        }
     }
 
     /**
      * Добавляет или обновляет привязку для заданного messageId.
-     * После изменения данные автоматически сохраняются в файл.
+     * Изменение дописывается в журнал и сохраняется на диск с ближайшей пачкой.
      *
-     * @param messageId      исходный идентификатор сообщения
-     * @param chatId привязанный идентификатор сообщения
+     * @param messageId идентификатор сообщения бота
+     * @param userBotId api_id юзербота, получившего исходное сообщение
+     * @param chatId    идентификатор исходного чата
      */
-    public synchronized void putMapping(Long messageId, Long userBotId, Long chatId) {
-        AbstractMap.SimpleEntry<Long, Long> bound = new AbstractMap.SimpleEntry<>(userBotId, chatId);
-        mapping.put(messageId, bound);
-        saveToFile();
+    public synchronized void putMapping(long messageId, long userBotId, long chatId) {
+        int now = currentMinute();
+        mapping.put(messageId, userBotId, chatId, now);
+        if (journal != null) {
+            journal.append(messageId, userBotId, chatId, now);
+        }
     }
 
     /**
      * Удаляет привязку для указанного messageId.
-     * После изменения данные автоматически сохраняются в файл.
+     * Изменение дописывается в журнал и сохраняется на диск с ближайшей пачкой.
      *
      * @param messageId идентификатор сообщения, привязку которого требуется удалить
      */
-    public synchronized void removeMapping(Long messageId) {
-        mapping.remove(messageId);
-        saveToFile();
+    public synchronized void removeMapping(long messageId) {
+        if (mapping.remove(messageId) && journal != null) {
+            journal.append(messageId, MessageJournal.TOMBSTONE, 0L, 0L);
+        }
+        // Холодный сегмент пишет только фоновый поток: надгробие ставится туда же в очередь
+        if (cold != null && coldRemovals.add(messageId)) {
+            maintenance.execute(() -> removeFromCold(messageId));
+        }
+    }
+
+    /**
+     * Возвращает в память маршрут, найденный в холодном сегменте, если его не удалили, пока шёл поиск.
+     */
+    private synchronized boolean restoreFromCold(long messageId, long[] route) {
+        if (coldRemovals.contains(messageId)) {
+            return false;
+        }
+        // Маршрут снова востребован — возвращаем его в память
+        putMapping(messageId, route[0], route[1]);
+        return true;
+    }
+
+    /**
+     * Записывает надгробие удалённого маршрута в холодный сегмент. Выполняется в фоновом потоке.
+     */
+    private void removeFromCold(long messageId) {
+        try {
+            cold.remove(messageId, currentMinute());
+            cold.mergeIfNeeded(coldAgeCutoff());
+        } catch (IOException | RuntimeException e) {
+            Main.logger.warning("Ошибка удаления маршрута " + messageId + " из холодного сегмента: " + e);
+        } finally {
+            synchronized (this) {
+                coldRemovals.remove(messageId);
+            }
+        }
+    }
+
+    private int coldAgeCutoff() {
+        return coldMaxAgeMinutes > 0 ? currentMinute() - coldMaxAgeMinutes : Integer.MIN_VALUE;
+    }
+
+    /**
+     * Возвращает сводку по маппингу для команды /stats.
+     */
+    public String statsSummary() {
+        int size;
+        long memory;
+        synchronized (this) {
+            size = mapping.size();
+            memory = mapping.memoryBytes();
+        }
+        return String.format("Маппинг (%s): %d маршрутов (%d КБ), попаданий %d, из холодного сегмента %d, промахов %d, вытеснено %d",
+                storage.name().toLowerCase(Locale.ROOT), size, memory / 1024, hits.sum(), coldHits.sum(), misses.sum(), evictions.sum());
     }
 
     /**
-     * Сохраняет текущее отображение в JSON файл.
-     * Метод вызывается автоматически при каждом изменении.
+     * Сбрасывает незаписанные изменения на диск и закрывает журнал.
      */
-    private synchronized void saveToFile() {
-        try (FileWriter writer = new FileWriter(filePath)) {
-            Map<String, List<Long>> jsonCompatibleMap = new HashMap<>();
-            for (Map.Entry<Long, AbstractMap.SimpleEntry<Long, Long>> entry : mapping.entrySet()) {
-                jsonCompatibleMap.put(
-                    entry.getKey().toString(),
-                    Arrays.asList(entry.getValue().getKey(), entry.getValue().getValue())
-                );
+    @Override
+    public void close() throws IOException {
+        // Дожидаемся записи отложенных надгробий; периодические задачи после shutdown не запускаются
+        maintenance.shutdown();
+        try {
+            if (!maintenance.awaitTermination(MAINTENANCE_SHUTDOWN_SECONDS, TimeUnit.SECONDS)) {
+                maintenance.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            maintenance.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (journal != null) {
+                journal.close();
             }
-            gson.toJson(jsonCompatibleMap, writer);
-        } catch (IOException e) {
-            e.printStackTrace();
+            mapping.close();
+        }
+        if (cold != null) {
+            cold.close();
         }
     }
 
     /**
-     * Загружает отображение из JSON файла.
-     * Если файл не существует или содержит некорректные данные, создаётся пустой маппинг.
+     * Вытесняет маршруты, нарушающие политику хранения. Выполняется в фоновом потоке:
+     * выбор жертв и их удаление берут монитор ненадолго, запись в холодный сегмент идёт вне его.
      */
-    private synchronized void loadFromFile() {
-        File file = new File(filePath);
-        if (!file.exists()) {
-            mapping = new HashMap<>();
+    private void sweep() {
+        try {
+            long[] victims = selectVictims(currentMinute());
+            int count = victims.length / 4;
+            if (count == 0) {
+                return;
+            }
+            // Сначала маршруты надёжно попадают в холодный сегмент, и только потом исчезают из памяти
+            if (cold != null) {
+                cold.appendRun(victims, count);
+            }
+            int evicted = 0;
+            synchronized (this) {
+                for (int i = 0; i < victims.length; i += 4) {
+                    int slot = mapping.indexOf(victims[i]);
+                    // Маршрут, к которому обратились после выбора, остаётся в памяти
+                    if (slot >= 0 && mapping.touchedAt(slot) == (int) victims[i + 3]) {
+                        mapping.remove(victims[i]);
+                        if (journal != null) {
+                            journal.append(victims[i], MessageJournal.TOMBSTONE, 0L, 0L);
+                        }
+                        evicted++;
+                    }
+                }
+            }
+            evictions.add(evicted);
+            if (cold != null) {
+                cold.mergeIfNeeded(coldAgeCutoff());
+            }
+        } catch (IOException | RuntimeException e) {
+            Main.logger.warning("Ошибка вытеснения маршрутов: " + e);
+        }
+    }
+
+    /**
+     * Периодически сбрасывает изменённые страницы отображаемой таблицы на диск.
+     * Под блокировкой маппинга: расширение таблицы подменяет её файл и отображение.
+     */
+    private void flushMapped() {
+        try {
+            synchronized (this) {
+                mapping.flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            Main.logger.warning("Ошибка сброса таблицы маршрутов: " + e);
+        }
+    }
+
+    /**
+     * Выбирает маршруты старше maxAgeMinutes и самые давно использованные сверх maxEntries.
+     *
+     * @return четвёрки [messageId, userBotId, chatId, touchedAt]
+     */
+    private long[] selectVictims(int now) {
+        int ageCutoff = maxAgeMinutes > 0 ? now - maxAgeMinutes : Integer.MIN_VALUE;
+        int lruCutoff = Integer.MIN_VALUE;
+        int lruTies = 0;
+
+        int[] touched = null;
+        synchronized (this) {
+            if (maxEntries > 0 && mapping.size() > maxEntries) {
+                touched = new int[mapping.size()];
+                int n = 0;
+                for (int slot = 0; slot < mapping.capacity(); slot++) {
+                    if (mapping.keyAt(slot) != 0L) {
+                        touched[n++] = mapping.touchedAt(slot);
+                    }
+                }
+            }
+        }
+        if (touched != null) {
+            // Порог LRU ищем вне монитора: всё, что старше порога, и часть ровесников порога уходят
+            Arrays.sort(touched);
+            int excess = touched.length - maxEntries;
+            lruCutoff = touched[excess - 1];
+            int below = 0;
+            while (touched[below] < lruCutoff) {
+                below++;
+            }
+            lruTies = excess - below;
+        }
+
+        long[] victims = new long[64];
+        int n = 0;
+        synchronized (this) {
+            for (int slot = 0; slot < mapping.capacity(); slot++) {
+                long key = mapping.keyAt(slot);
+                if (key == 0L) {
+                    continue;
+                }
+                int touchedAt = mapping.touchedAt(slot);
+                boolean victim = touchedAt < ageCutoff || touchedAt < lruCutoff;
+                if (!victim && touchedAt == lruCutoff && lruTies > 0) {
+                    lruTies--;
+                    victim = true;
+                }
+                if (victim) {
+                    if (n + 4 > victims.length) {
+                        victims = Arrays.copyOf(victims, victims.length * 2);
+                    }
+                    victims[n++] = key;
+                    victims[n++] = mapping.userBotIdAt(slot);
+                    victims[n++] = mapping.chatIdAt(slot);
+                    victims[n++] = touchedAt;
+                }
+            }
+        }
+        return Arrays.copyOf(victims, n);
+    }
+
+    /**
+     * Применяет запись журнала при воспроизведении.
+     */
+    private void applyRecord(long messageId, long userBotId, long chatId, long touchedAt) {
+        if (messageId == 0L) {
             return;
         }
-        try (FileReader reader = new FileReader(file)) {
-            Type type = new TypeToken<HashMap<Long, Long>>() {}.getType();
-            mapping = deserializeMap(reader);
-            if (mapping == null) {
-                mapping = new HashMap<>();
+        if (userBotId == MessageJournal.TOMBSTONE) {
+            mapping.remove(messageId);
+        } else {
+            mapping.put(messageId, userBotId, chatId, (int) touchedAt);
+        }
+    }
+
+    /**
+     * Возвращает копию текущего маппинга для компактирования журнала.
+     */
+    private synchronized long[] snapshot() {
+        return mapping.toRecords();
+    }
+
+    private static int currentMinute() {
+        return (int) TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+    }
+
+    /**
+     * Однократно переносит маппинг из старого JSON файла в хранилище.
+     * После успешного импорта JSON файл переименовывается, чтобы не импортироваться повторно.
+     *
+     * @param journalPath журнал, в который записывается импорт, или null в режиме mmap
+     */
+    private void importLegacyJson(Path journalPath) throws IOException {
+        File file = new File(LEGACY_JSON_PATH);
+        if (file.exists()) {
+            try (FileReader reader = new FileReader(file)) {
+                Map<Long, AbstractMap.SimpleEntry<Long, Long>> legacy = deserializeMap(reader);
+                if (legacy != null) {
+                    int now = currentMinute();
+                    for (Map.Entry<Long, AbstractMap.SimpleEntry<Long, Long>> entry : legacy.entrySet()) {
+                        mapping.put(entry.getKey(), entry.getValue().getKey(), entry.getValue().getValue(), now);
+                    }
+                }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-            mapping = new HashMap<>();
+        }
+        if (journalPath != null) {
+            MessageJournal.writeSnapshot(journalPath, snapshot(), mapping.size());
+        }
+        if (file.exists()) {
+            Files.move(file.toPath(), Paths.get(LEGACY_JSON_PATH + ".imported"), StandardCopyOption.REPLACE_EXISTING);
+            Main.logger.info("Импортировано " + mapping.size() + " записей из " + LEGACY_JSON_PATH);
         }
     }
 
@@ -123,6 +491,9 @@ public class MessageMapper {
         // Определяем тип данных Map<String, List<Long>>
         Type type = new TypeToken<Map<String, List<Long>>>() {}.getType();
         Map<String, List<Long>> jsonMap = gson.fromJson(json, type);
+        if (jsonMap == null) {
+            return null;
+        }
 
         // Преобразуем обратно в Map<Long, SimpleEntry<Long, Long>>
         Map<Long, AbstractMap.SimpleEntry<Long, Long>> resultMap = new HashMap<>();
@@ -136,4 +507,3 @@ public class MessageMapper {
         return resultMap;
     }
 }
-
@@ -0,0 +1,699 @@
+package org.example;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import org.telegram.telegrambots.meta.api.methods.PartialBotApiMethod;
+import org.telegram.telegrambots.meta.api.methods.send.SendAnimation;
+import org.telegram.telegrambots.meta.api.methods.send.SendMediaGroup;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.send.SendPhoto;
+import org.telegram.telegrambots.meta.api.methods.send.SendSticker;
+import org.telegram.telegrambots.meta.api.methods.send.SendVoice;
+import org.telegram.telegrambots.meta.api.objects.InputFile;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.media.InputMedia;
+import org.telegram.telegrambots.meta.api.objects.media.InputMediaPhoto;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Планировщик исходящих запросов бота-менеджера с учётом ограничений Telegram.
+ *
+ * Перед отправкой запрос должен получить токен из общего ведра (ограничение на бота) и из ведра
+ * своего чата. Запросы разложены по полосам приоритета: запросы авторизации уходят раньше ответов
+ * на команды, а те — раньше массовой пересылки. Внутри полосы порядок сохраняется для каждого чата:
+ * в один чат одновременно отправляется не больше одного запроса.
+ *
+ * Если Telegram ответил 429, чат блокируется на retry_after секунд, а запрос возвращается в начало
+ * своей полосы. Такие запросы записываются в файл очереди повторов; при остановке туда же
+ * записываются все неотправленные запросы. При следующем запуске они отправляются заново,
+ * а для пересланных сообщений восстанавливается маршрут ответа (см. {@link DeliveryListener}).
+ */
+public class OutboundScheduler implements AutoCloseable {
+
+    private static final int SENDER_THREADS = 4;
+    private static final int MAX_CHAT_BUCKETS = 1000;
+    private static final long DEFAULT_RETRY_AFTER_SECONDS = 1;
+
+    /**
+     * Полосы приоритета, от старшей к младшей.
+     */
+    public enum Lane {
+        AUTH, COMMAND, BULK
+    }
+
+    /**
+     * Исходный чат пересылаемого сообщения, нужен для восстановления маршрута после перезапуска.
+     */
+    public record Origin(long userBotId, long chatId) {
+    }
+
+    /**
+     * Непосредственная отправка запроса в Bot API.
+     * Возвращает отправленные сообщения: одно, несколько для альбома или ни одного.
+     */
+    public interface Sender {
+        List<Message> send(PartialBotApiMethod<?> method) throws TelegramApiException;
+    }
+
+    /**
+     * Получатель сообщений, доставленных из очереди повторов прошлого запуска.
+     */
+    public interface DeliveryListener {
+        void delivered(Origin origin, Message sent);
+    }
+
+    private static final class Outgoing {
+        final PartialBotApiMethod<?> method;
+        final String chatId;
+        final Lane lane;
+        final Origin origin;
+        final CompletableFuture<List<Message>> result = new CompletableFuture<>();
+        final long enqueuedNanos = System.nanoTime();
+        // Запрос получил 429 и находится в очереди повторов
+        boolean retrying;
+        // Запрос восстановлен из файла очереди повторов
+        boolean replayed;
+
+        Outgoing(PartialBotApiMethod<?> method, String chatId, Lane lane, Origin origin) {
+            this.method = method;
+            this.chatId = chatId;
+            this.lane = lane;
+            this.origin = origin;
+        }
+    }
+
+    /**
+     * Ведро токенов: rate токенов в секунду, не больше burst в запасе.
+     */
+    private static final class TokenBucket {
+        private final double rate;
+        private final double burst;
+        private double tokens;
+        private long updatedNanos;
+        private long blockedUntilNanos;
+
+        TokenBucket(double rate, double burst, long now) {
+            this.rate = rate;
+            this.burst = Math.max(1, burst);
+            this.tokens = this.burst;
+            this.updatedNanos = now;
+        }
+
+        /**
+         * Время в наносекундах до появления токена; 0, если токен есть.
+         */
+        long waitNanos(long now) {
+            tokens = Math.min(burst, tokens + (now - updatedNanos) * rate / 1e9);
+            updatedNanos = now;
+            if (now < blockedUntilNanos) {
+                return blockedUntilNanos - now;
+            }
+            return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / rate * 1e9);
+        }
+
+        void take() {
+            tokens -= 1;
+        }
+
+        void blockUntil(long until) {
+            blockedUntilNanos = Math.max(blockedUntilNanos, until);
+            tokens = 0;
+        }
+
+        boolean idle(long now) {
+            return now >= blockedUntilNanos && waitNanos(now) == 0 && tokens >= burst;
+        }
+    }
+
+    private final Sender sender;
+    private final Path retryFile;
+    private final double chatRate;
+    private final double chatBurst;
+    private final Gson gson = new Gson();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Map<Lane, ArrayDeque<Outgoing>> lanes = new EnumMap<>(Lane.class);
+    private final Map<String, TokenBucket> chatBuckets = new HashMap<>();
+    private final TokenBucket globalBucket;
+    private final Set<Outgoing> retrying = new LinkedHashSet<>();
+    // Чаты, в которые сейчас отправляется запрос
+    private final Set<String> busyChats = new HashSet<>();
+    private final ThreadPoolExecutor senders;
+    private final Thread dispatcher;
+    private int inFlight;
+    private boolean closed;
+    private DeliveryListener deliveryListener;
+
+    // Статистика
+    private final long startedNanos = System.nanoTime();
+    private long sent;
+    private long failed;
+    private long throttled;
+    private long totalDelayNanos;
+    private long maxDelayNanos;
+
+    /**
+     * @param sender          непосредственная отправка запроса
+     * @param globalPerSecond общее число запросов в секунду
+     * @param chatPerSecond   число запросов в секунду в один чат
+     * @param chatBurst       сколько запросов в один чат можно отправить подряд без ожидания
+     * @param retryFile       файл очереди повторов
+     */
+    public OutboundScheduler(Sender sender, double globalPerSecond, double chatPerSecond, double chatBurst, Path retryFile) {
+        this.sender = sender;
+        this.retryFile = retryFile;
+        this.chatRate = chatPerSecond;
+        this.chatBurst = chatBurst;
+        this.globalBucket = new TokenBucket(globalPerSecond, globalPerSecond, System.nanoTime());
+        for (Lane lane : Lane.values()) {
+            lanes.put(lane, new ArrayDeque<>());
+        }
+        AtomicInteger counter = new AtomicInteger();
+        this.senders = new ThreadPoolExecutor(SENDER_THREADS, SENDER_THREADS, 0L, TimeUnit.MILLISECONDS,
+                // Диспетчер не выдаёт больше SENDER_THREADS задач одновременно, поэтому очередь не растёт
+                new LinkedBlockingQueue<>(),
+                r -> {
+                    Thread thread = new Thread(r, "outbound-send-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.dispatcher = new Thread(this::dispatchLoop, "outbound-dispatcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * Ставит запрос в очередь.
+     *
+     * @param method запрос Bot API
+     * @param lane   полоса приоритета
+     * @param origin исходный чат пересылаемого сообщения или null
+     * @return задача, завершающаяся отправленными сообщениями
+     */
+    public CompletableFuture<List<Message>> submit(PartialBotApiMethod<?> method, Lane lane, Origin origin) {
+        Outgoing outgoing = new Outgoing(method, chatIdOf(method), lane, origin);
+        enqueue(outgoing);
+        return outgoing.result;
+    }
+
+    private void enqueue(Outgoing outgoing) {
+        lock.lock();
+        try {
+            if (closed) {
+                outgoing.result.completeExceptionally(new CancellationException("Планировщик отправки остановлен"));
+                return;
+            }
+            lanes.get(outgoing.lane).addLast(outgoing);
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Отправляет запросы, оставшиеся в файле очереди повторов от прошлого запуска.
+     *
+     * @param listener получатель доставленных пересланных сообщений, восстанавливающий маршруты
+     */
+    public void replayPersisted(DeliveryListener listener) {
+        this.deliveryListener = listener;
+        List<Stored> stored;
+        try {
+            if (!Files.exists(retryFile)) {
+                return;
+            }
+            Type type = new TypeToken<List<Stored>>() {}.getType();
+            stored = gson.fromJson(Files.readString(retryFile), type);
+        } catch (IOException | RuntimeException e) {
+            Main.logger.warning("Не удалось прочитать очередь повторов " + retryFile + ": " + e);
+            return;
+        }
+        if (stored == null || stored.isEmpty()) {
+            return;
+        }
+        Main.logger.info("Повторная отправка " + stored.size() + " запросов из " + retryFile);
+        for (Stored entry : stored) {
+            Origin origin = entry.originUserBotId != null ? new Origin(entry.originUserBotId, entry.originChatId) : null;
+            Outgoing outgoing = new Outgoing(entry.restore(), entry.chatId, Lane.valueOf(entry.lane), origin);
+            outgoing.replayed = true;
+            // Запись остаётся в файле, пока запрос не будет доставлен
+            outgoing.retrying = true;
+            lock.lock();
+            try {
+                retrying.add(outgoing);
+            } finally {
+                lock.unlock();
+            }
+            enqueue(outgoing);
+        }
+    }
+
+    private void dispatchLoop() {
+        lock.lock();
+        try {
+            while (!closed) {
+                if (inFlight >= SENDER_THREADS) {
+                    changed.await();
+                    continue;
+                }
+                long now = System.nanoTime();
+                long minWait = Long.MAX_VALUE;
+                Outgoing next = null;
+                long globalWait = globalBucket.waitNanos(now);
+                if (globalWait > 0) {
+                    minWait = globalWait;
+                } else {
+                    for (Lane lane : Lane.values()) {
+                        Iterator<Outgoing> iterator = lanes.get(lane).iterator();
+                        while (next == null && iterator.hasNext()) {
+                            Outgoing candidate = iterator.next();
+                            if (busyChats.contains(candidate.chatId)) {
+                                continue;
+                            }
+                            long wait = chatBucket(candidate.chatId, now).waitNanos(now);
+                            if (wait == 0) {
+                                iterator.remove();
+                                next = candidate;
+                            } else {
+                                minWait = Math.min(minWait, wait);
+                            }
+                        }
+                        if (next != null) {
+                            break;
+                        }
+                    }
+                }
+                if (next == null) {
+                    if (minWait == Long.MAX_VALUE) {
+                        changed.await();
+                    } else {
+                        changed.awaitNanos(minWait);
+                    }
+                    continue;
+                }
+                globalBucket.take();
+                chatBucket(next.chatId, now).take();
+                busyChats.add(next.chatId);
+                inFlight++;
+                Outgoing outgoing = next;
+                senders.execute(() -> send(outgoing));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void send(Outgoing outgoing) {
+        try {
+            List<Message> messages = sender.send(outgoing.method);
+            long delay = System.nanoTime() - outgoing.enqueuedNanos;
+            lock.lock();
+            try {
+                sent++;
+                totalDelayNanos += delay;
+                maxDelayNanos = Math.max(maxDelayNanos, delay);
+                if (outgoing.retrying) {
+                    retrying.remove(outgoing);
+                    persistRetrying();
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (outgoing.replayed && outgoing.origin != null && deliveryListener != null) {
+                for (Message message : messages) {
+                    deliveryListener.delivered(outgoing.origin, message);
+                }
+            }
+            outgoing.result.complete(messages);
+        } catch (TelegramApiRequestException e) {
+            if (e.getErrorCode() != null && e.getErrorCode() == 429) {
+                retryLater(outgoing, e);
+            } else {
+                fail(outgoing, e);
+            }
+        } catch (TelegramApiException | RuntimeException e) {
+            fail(outgoing, e);
+        } finally {
+            lock.lock();
+            try {
+                busyChats.remove(outgoing.chatId);
+                inFlight--;
+                changed.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Блокирует чат на время, указанное Telegram, и возвращает запрос в начало полосы.
+     */
+    private void retryLater(Outgoing outgoing, TelegramApiRequestException e) {
+        Integer retryAfter = e.getParameters() != null ? e.getParameters().getRetryAfter() : null;
+        long seconds = retryAfter != null ? retryAfter : DEFAULT_RETRY_AFTER_SECONDS;
+        lock.lock();
+        try {
+            throttled++;
+            long now = System.nanoTime();
+            chatBucket(outgoing.chatId, now).blockUntil(now + TimeUnit.SECONDS.toNanos(seconds));
+            if (closed) {
+                // Планировщик уже сохранил очередь; добавляем запрос к сохранённым
+                retrying.add(outgoing);
+                persistRetrying();
+                outgoing.result.completeExceptionally(new CancellationException("Отправка отложена до перезапуска"));
+                return;
+            }
+            lanes.get(outgoing.lane).addFirst(outgoing);
+            if (!outgoing.retrying) {
+                outgoing.retrying = true;
+                retrying.add(outgoing);
+                persistRetrying();
+            }
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void fail(Outgoing outgoing, Exception e) {
+        lock.lock();
+        try {
+            failed++;
+            if (outgoing.retrying) {
+                retrying.remove(outgoing);
+                persistRetrying();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (outgoing.replayed) {
+            Main.logger.warning("Не удалось повторно отправить запрос в чат " + outgoing.chatId + ": " + e);
+        }
+        outgoing.result.completeExceptionally(e);
+    }
+
+    private TokenBucket chatBucket(String chatId, long now) {
+        TokenBucket bucket = chatBuckets.get(chatId);
+        if (bucket == null) {
+            if (chatBuckets.size() >= MAX_CHAT_BUCKETS) {
+                chatBuckets.values().removeIf(candidate -> candidate.idle(now));
+            }
+            bucket = new TokenBucket(chatRate, chatBurst, now);
+            chatBuckets.put(chatId, bucket);
+        }
+        return bucket;
+    }
+
+    /**
+     * Перезаписывает файл очереди повторов. Вызывается под блокировкой; 429 — редкое событие,
+     * поэтому файл переписывается целиком.
+     */
+    private void persistRetrying() {
+        persist(retrying);
+    }
+
+    private void persist(Iterable<Outgoing> outgoing) {
+        List<Stored> stored = new ArrayList<>();
+        for (Outgoing entry : outgoing) {
+            stored.add(Stored.of(entry));
+        }
+        try {
+            if (stored.isEmpty()) {
+                Files.deleteIfExists(retryFile);
+                return;
+            }
+            Path temp = retryFile.resolveSibling(retryFile.getFileName() + ".tmp");
+            Files.writeString(temp, gson.toJson(stored));
+            Files.move(temp, retryFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Main.logger.warning("Не удалось сохранить очередь повторов " + retryFile + ": " + e);
+        }
+    }
+
+    /**
+     * Число запросов, ожидающих отправки, по полосам.
+     */
+    public Map<Lane, Integer> queueDepths() {
+        lock.lock();
+        try {
+            Map<Lane, Integer> depths = new EnumMap<>(Lane.class);
+            lanes.forEach((lane, queue) -> depths.put(lane, queue.size()));
+            return depths;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String statsSummary() {
+        lock.lock();
+        try {
+            double uptimeSeconds = Math.max(1e-9, (System.nanoTime() - startedNanos) / 1e9);
+            return String.format("в очереди AUTH %d, COMMAND %d, BULK %d; отправлено %d (%.2f в секунду), ошибок %d, "
+                            + "ответов 429 %d, в очереди повторов %d; задержка в очереди средняя %d мс, максимальная %d мс",
+                    lanes.get(Lane.AUTH).size(), lanes.get(Lane.COMMAND).size(), lanes.get(Lane.BULK).size(),
+                    sent, sent / uptimeSeconds, failed, throttled, retrying.size(),
+                    sent == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalDelayNanos / sent),
+                    TimeUnit.NANOSECONDS.toMillis(maxDelayNanos));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Останавливает планировщик: неотправленные запросы сохраняются в файл очереди повторов,
+     * а их задачи завершаются с CancellationException.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        List<Outgoing> pending = new ArrayList<>();
+        lock.lock();
+        try {
+            closed = true;
+            Set<Outgoing> toStore = new LinkedHashSet<>(retrying);
+            for (ArrayDeque<Outgoing> queue : lanes.values()) {
+                toStore.addAll(queue);
+                pending.addAll(queue);
+                queue.clear();
+            }
+            retrying.clear();
+            retrying.addAll(toStore);
+            persistRetrying();
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Outgoing outgoing : pending) {
+            outgoing.result.completeExceptionally(new CancellationException("Отправка отложена до перезапуска"));
+        }
+        senders.shutdown();
+        senders.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Возвращает чат запроса; все отправляемые ботом запросы содержат chat_id.
+     */
+    static String chatIdOf(PartialBotApiMethod<?> method) {
+        if (method instanceof SendMessage sendMessage) {
+            return sendMessage.getChatId();
+        } else if (method instanceof SendPhoto sendPhoto) {
+            return sendPhoto.getChatId();
+        } else if (method instanceof SendVoice sendVoice) {
+            return sendVoice.getChatId();
+        } else if (method instanceof SendSticker sendSticker) {
+            return sendSticker.getChatId();
+        } else if (method instanceof SendAnimation sendAnimation) {
+            return sendAnimation.getChatId();
+        } else if (method instanceof SendMediaGroup sendMediaGroup) {
+            return sendMediaGroup.getChatId();
+        }
+        return "";
+    }
+
+    /**
+     * Запись файла очереди повторов. Медиафайл сохраняется ссылкой: file_id или путём к локальному файлу.
+     * Для альбома части сохраняются в items.
+     */
+    private static final class Stored {
+        String kind;
+        String chatId;
+        String text;
+        String fileId;
+        String path;
+        String lane;
+        Long originUserBotId;
+        Long originChatId;
+        List<Stored> items;
+
+        static Stored of(Outgoing outgoing) {
+            Stored stored = new Stored();
+            stored.chatId = outgoing.chatId;
+            stored.lane = outgoing.lane.name();
+            if (outgoing.origin != null) {
+                stored.originUserBotId = outgoing.origin.userBotId();
+                stored.originChatId = outgoing.origin.chatId();
+            }
+            PartialBotApiMethod<?> method = outgoing.method;
+            InputFile media = null;
+            if (method instanceof SendMessage sendMessage) {
+                stored.kind = "message";
+                stored.text = sendMessage.getText();
+            } else if (method instanceof SendPhoto sendPhoto) {
+                stored.kind = "photo";
+                stored.text = sendPhoto.getCaption();
+                media = sendPhoto.getPhoto();
+            } else if (method instanceof SendVoice sendVoice) {
+                stored.kind = "voice";
+                stored.text = sendVoice.getCaption();
+                media = sendVoice.getVoice();
+            } else if (method instanceof SendSticker sendSticker) {
+                stored.kind = "sticker";
+                media = sendSticker.getSticker();
+            } else if (method instanceof SendAnimation sendAnimation) {
+                stored.kind = "animation";
+                stored.text = sendAnimation.getCaption();
+                media = sendAnimation.getAnimation();
+            } else if (method instanceof SendMediaGroup sendMediaGroup) {
+                stored.kind = "mediagroup";
+                stored.items = new ArrayList<>();
+                for (InputMedia part : sendMediaGroup.getMedias()) {
+                    Stored item = new Stored();
+                    item.kind = "photo";
+                    item.text = part.getCaption();
+                    if (part.isNewMedia() && part.getNewMediaFile() != null) {
+                        item.path = part.getNewMediaFile().getPath();
+                    } else if (!part.isNewMedia()) {
+                        item.fileId = part.getMedia();
+                    }
+                    stored.items.add(item);
+                }
+            }
+            if (media != null) {
+                if (media.isNew() && media.getNewMediaFile() != null) {
+                    stored.path = media.getNewMediaFile().getPath();
+                } else if (!media.isNew()) {
+                    stored.fileId = media.getAttachName();
+                }
+            }
+            return stored;
+        }
+
+        /**
+         * Восстанавливает запрос. Если локальный файл не сохранился (TDLib удаляет файлы после отправки),
+         * вместо медиа отправляется подпись с пометкой.
+         */
+        PartialBotApiMethod<?> restore() {
+            if ("mediagroup".equals(kind)) {
+                return restoreMediaGroup();
+            }
+            InputFile media = null;
+            if (fileId != null) {
+                media = new InputFile(fileId);
+            } else if (path != null && Files.exists(Path.of(path))) {
+                media = new InputFile(new File(path));
+            }
+            String caption = text != null ? text : "";
+            if (!"message".equals(kind) && media == null) {
+                SendMessage fallback = new SendMessage();
+                fallback.setChatId(chatId);
+                fallback.setText(caption + "\n[медиафайл не сохранился после перезапуска]");
+                return fallback;
+            }
+            switch (kind) {
+                case "photo" -> {
+                    SendPhoto sendPhoto = new SendPhoto();
+                    sendPhoto.setChatId(chatId);
+                    sendPhoto.setPhoto(media);
+                    sendPhoto.setCaption(caption);
+                    return sendPhoto;
+                }
+                case "voice" -> {
+                    SendVoice sendVoice = new SendVoice();
+                    sendVoice.setChatId(chatId);
+                    sendVoice.setVoice(media);
+                    sendVoice.setCaption(caption);
+                    return sendVoice;
+                }
+                case "sticker" -> {
+                    SendSticker sendSticker = new SendSticker();
+                    sendSticker.setChatId(chatId);
+                    sendSticker.setSticker(media);
+                    return sendSticker;
+                }
+                case "animation" -> {
+                    SendAnimation sendAnimation = new SendAnimation();
+                    sendAnimation.setChatId(chatId);
+                    sendAnimation.setAnimation(media);
+                    sendAnimation.setCaption(caption);
+                    return sendAnimation;
+                }
+                default -> {
+                    SendMessage sendMessage = new SendMessage();
+                    sendMessage.setChatId(chatId);
+                    sendMessage.setText(caption);
+                    return sendMessage;
+                }
+            }
+        }
+
+        /**
+         * Восстанавливает альбом. Если хотя бы один файл не сохранился, отправляются подписи с пометкой.
+         */
+        private PartialBotApiMethod<?> restoreMediaGroup() {
+            List<InputMedia> medias = new ArrayList<>();
+            StringBuilder captions = new StringBuilder();
+            for (Stored item : items) {
+                InputMediaPhoto photo = new InputMediaPhoto();
+                if (item.fileId != null) {
+                    photo.setMedia(item.fileId);
+                } else if (item.path != null && Files.exists(Path.of(item.path))) {
+                    photo.setMedia(new File(item.path), "photo" + medias.size());
+                } else {
+                    photo = null;
+                }
+                if (item.text != null && !item.text.isEmpty()) {
+                    captions.append(item.text).append('\n');
+                }
+                if (photo != null) {
+                    photo.setCaption(item.text);
+                    medias.add(photo);
+                }
+            }
+            if (medias.size() < items.size()) {
+                SendMessage fallback = new SendMessage();
+                fallback.setChatId(chatId);
+                fallback.setText(captions + "[альбом не сохранился после перезапуска]");
+                return fallback;
+            }
+            return new SendMediaGroup(chatId, medias);
+        }
+    }
+}
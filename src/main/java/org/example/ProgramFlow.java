@@ -2,7 +2,6 @@ package org.example;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
-import it.tdlight.jni.TdApi;
 import it.tdlight.util.UnsupportedNativeLibraryException;
 import org.telegram.telegrambots.meta.TelegramBotsApi;
 import org.telegram.telegrambots.meta.api.objects.Message;
@@ -11,135 +10,250 @@ import org.telegram.telegrambots.updatesreceivers.DefaultBotSession;
 
 import java.io.IOException;
 import java.lang.reflect.Type;
-import java.nio.file.Files;
+import java.net.InetSocketAddress;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.AbstractMap;
-import java.util.HashMap;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 public class ProgramFlow {
+    // Сколько ждать открытия базы TDLib, прежде чем отдать место при запуске следующему аккаунту
+    private static final long DATABASE_OPEN_TIMEOUT_SECONDS = 60;
+    // Сколько сообщений показывать в ответе на /search
+    private static final int SEARCH_RESULTS = 10;
+    // Сообщение Bot API не длиннее 4096 символов; запас оставлен под строку "… и ещё N"
+    private static final int MAX_LIST_LENGTH = 4000;
+
+    private BotConfig config;
     private Bot bot;
     private Map<Long, UserBot> userBots;
     private MessageMapper messageMapper;
     private ReverseMessageConverter reverseConverter;
     private CredentialsService credentialsService;
+    private ForwardPipeline forwardPipeline;
+    private MediaCache mediaCache;
+    private TelegramFileDownloader fileDownloader;
+    private ReplyPipeline replyPipeline;
+    // Общая фабрика клиентов TDLib для всех юзерботов
+    private TdlibRuntime tdlibRuntime;
+    // Готовность каждого аккаунта: завершается после авторизации или с ошибкой запуска
+    private final Map<Long, CompletableFuture<UserBot>> readiness = new ConcurrentHashMap<>();
+    // Усыпление простаивающих аккаунтов и пробуждение по ответу
+    private SessionManager sessionManager;
+    private TriggerEngine triggerEngine;
+    private AutoResponder autoResponder;
+    private ScheduledSender scheduledSender;
+    private Broadcaster broadcaster;
+    private SearchIndex searchIndex;
+    // Приём обновлений через webhook; null в режиме long polling
+    private WebhookReceiver webhookReceiver;
 
     public ProgramFlow() throws TelegramApiException, IOException, UnsupportedNativeLibraryException {
-        this.messageMapper = new MessageMapper();
-        this.userBots = new HashMap<>();
+        // Загружаем настройки из файла config.json
+        this.config = BotConfig.load(Path.of("config.json"));
+        // Убираем временные файлы медиа, оставшиеся от прошлых запусков
+        TempFileJanitor.sweepAsync(Duration.ofHours(1));
+        this.messageMapper = new MessageMapper(MessageMapper.Storage.fromConfig(config.getMapperStorage()), config.getMapperMaxEntries(),
+                (int) TimeUnit.HOURS.toMinutes(config.getMapperMaxAgeHours()), config.isMapperColdSegment(),
+                (int) TimeUnit.DAYS.toMinutes(config.getMapperColdMaxAgeDays()));
+        this.mediaCache = new MediaCache(Path.of("media_cache.log"), config.getMediaCacheMaxEntries(), config.getMediaCacheMaxAgeDays());
+        this.userBots = new ConcurrentHashMap<>();
+        this.tdlibRuntime = new TdlibRuntime();
+        this.sessionManager = new SessionManager(
+                (cred, announceReady) -> this.registerUserBot(cred.getApi_id(), cred.getApi_hash(), cred.getPhonenumber(), announceReady),
+                this.userBots::remove,
+                config.getSessionIdleMinutes(), config.getSessionCatchUpMinutes(), Set.copyOf(config.getAlwaysOnAccounts()));
+        this.scheduledSender = new ScheduledSender(Path.of(config.getScheduledSendsFile()), this.sessionManager);
 
         this.credentialsService = new CredentialsService();
+        this.triggerEngine = new TriggerEngine(Path.of(config.getTriggersFile()));
+        this.autoResponder = new AutoResponder(Path.of(config.getAutoRepliesFile()),
+                config.getAutoReplyChatCooldownSeconds(), config.getAutoReplyBudgetPerHour());
+        this.searchIndex = new SearchIndex(Path.of(config.getSearchIndexDir()), config.getSearchFlushDocs());
         this.registerBot();
-        for (Credential cred: this.credentialsService.getCredentials()) {
-                int apiId = cred.getApi_id();
-                String apiHash = cred.getApi_hash();
-                String phoneNumber = cred.getPhonenumber();
-                this.registerUserBot(apiId, apiHash, phoneNumber);
+        this.forwardPipeline = new ForwardPipeline(this.bot, this.messageMapper, this.mediaCache, config.getAdminId(), config.getForwardMaxInFlight(),
+                config.getAlbumWindowMs(), config.getTextCoalesceWindowMs(), this.triggerEngine,
+                "filter".equalsIgnoreCase(config.getTriggerMode()), this.searchIndex);
+        // Досылаем запросы, отложенные из-за ограничений Telegram в прошлом запуске, и восстанавливаем их маршруты
+        this.bot.getOutbound().replayPersisted((origin, sent) ->
+                this.messageMapper.putMapping(sent.getMessageId(), origin.userBotId(), origin.chatId()));
+        // Аккаунты поднимаются в фоне: бот уже принимает команды
+        startUserBots(this.credentialsService.getCredentials());
+    }
+
+    /**
+     * Запускает аккаунты параллельно, не более startupConcurrency одновременно открывают базу TDLib.
+     * Когда все аккаунты авторизованы или не смогли запуститься, администратору отправляется отчёт о запуске.
+     */
+    private void startUserBots(List<Credential> credentials) {
+        AtomicInteger counter = new AtomicInteger();
+        int concurrency = Math.max(1, config.getStartupConcurrency());
+        ExecutorService startup = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread thread = new Thread(r, "startup-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<CompletableFuture<UserBot>> started = new ArrayList<>();
+        for (Credential cred : credentials) {
+            long apiId = cred.getApi_id();
+            CompletableFuture<UserBot> accountReady = new CompletableFuture<>();
+            this.readiness.put(apiId, accountReady);
+            started.add(accountReady);
+            startup.execute(() -> {
+                try {
+                    UserBot userBot = this.registerUserBot(cred.getApi_id(), cred.getApi_hash(), cred.getPhonenumber());
+                    // Место освобождается, когда база открыта: авторизация может ждать кода сколько угодно
+                    userBot.getDatabaseOpened().get(DATABASE_OPEN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (TimeoutException e) {
+                    Main.logger.warning("База TDLib аккаунта " + apiId + " не открылась за "
+                            + DATABASE_OPEN_TIMEOUT_SECONDS + " с, запускаем следующие");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    accountReady.completeExceptionally(e);
+                }
+            });
+        }
+        startup.shutdown();
+        CompletableFuture.allOf(started.stream()
+                        .map(future -> future.handle((userBot, error) -> null))
+                        .toArray(CompletableFuture[]::new))
+                .thenRun(() -> {
+                    String report = startupReport();
+                    Main.logger.info(report);
+                    this.bot.send_message(report);
+                });
+    }
+
+    /**
+     * Отчёт о запуске: инициализация TDLib и этапы запуска каждого аккаунта.
+     */
+    public String startupReport() {
+        StringBuilder report = new StringBuilder("Запуск аккаунтов: инициализация TDLib ")
+                .append(this.tdlibRuntime.getInitMillis()).append(" мс (общая)");
+        for (Map.Entry<Long, CompletableFuture<UserBot>> entry : new TreeMap<>(this.readiness).entrySet()) {
+            report.append("\n").append(entry.getKey()).append(": ");
+            UserBot userBot = this.userBots.get(entry.getKey());
+            if (userBot != null) {
+                report.append(userBot.startupSummary());
+            } else if (entry.getValue().isCompletedExceptionally()) {
+                Throwable error = entry.getValue().handle((ignored, e) -> e).join();
+                report.append("ошибка запуска: ").append(error instanceof CompletionException ? error.getCause() : error);
+            } else {
+                report.append("ожидает запуска");
             }
+        }
+        return report.toString();
     }
 
     public void registerBot() throws TelegramApiException, IOException {
-        // Загружаем настройки из файла config.json
-        BotConfig config = BotConfig.load(Path.of("config.json"));
         // Создаем и регистрируем бота
-        TelegramBotsApi botsApi = new TelegramBotsApi(DefaultBotSession.class);
         this.bot = new Bot(config, this);
-        this.reverseConverter = new ReverseMessageConverter(this.bot.getBotToken());
-        botsApi.registerBot(this.bot);
+        this.fileDownloader = new TelegramFileDownloader(this.bot.getBotToken(), config.getBotApiBaseUrl(),
+                Duration.ofSeconds(config.getBotApiConnectTimeoutSeconds()), Duration.ofSeconds(config.getBotApiReadTimeoutSeconds()),
+                config.getBotApiMaxDownloads());
+        this.reverseConverter = new ReverseMessageConverter(this.fileDownloader, this.mediaCache,
+                "stream".equalsIgnoreCase(config.getReplyMediaMode()));
+        this.replyPipeline = new ReplyPipeline(this.reverseConverter, this.mediaCache, this.searchIndex);
+        this.broadcaster = new Broadcaster(this.sessionManager, this.reverseConverter, this.mediaCache, this.bot,
+                config.getBroadcastPerAccountPerMinute(), config.getBroadcastProgressSeconds());
+        if ("webhook".equalsIgnoreCase(config.getUpdateMode())) {
+            startWebhook();
+        } else {
+            TelegramBotsApi botsApi = new TelegramBotsApi(DefaultBotSession.class);
+            botsApi.registerBot(this.bot);
+        }
         System.out.println("Bot started successfully.");
     }
 
-    public void registerUserBot(int apiId, String apiHash, String phoneNumber) throws UnsupportedNativeLibraryException, IOException {
+    /**
+     * Запускает приём обновлений через webhook и регистрирует его в Telegram.
+     */
+    private void startWebhook() throws IOException {
+        String secretToken = config.getWebhookSecretToken();
+        if (secretToken == null || secretToken.isEmpty()) {
+            secretToken = WebhookReceiver.generateSecretToken();
+        }
+        this.webhookReceiver = new WebhookReceiver(this.bot,
+                new InetSocketAddress(config.getWebhookListenHost(), config.getWebhookListenPort()),
+                config.getWebhookPath(), secretToken);
+        this.webhookReceiver.start();
+        try {
+            WebhookReceiver.registerWebhook(config.getBotApiBaseUrl(), this.bot.getBotToken(), config.getWebhookUrl(),
+                    secretToken, config.getWebhookMaxConnections());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Регистрация webhook прервана", e);
+        }
+    }
+
+    public UserBot registerUserBot(int apiId, String apiHash, String phoneNumber) {
+        return registerUserBot(apiId, apiHash, phoneNumber, true);
+    }
+
+    /**
+     * @param announceReady сообщать администратору об авторизации, даже если вход прошёл по сохранённой сессии
+     */
+    public UserBot registerUserBot(int apiId, String apiHash, String phoneNumber, boolean announceReady) {
 
 
         // Создаем экземпляр UserBot с использованием полученных параметров
         try {
-            this.userBots.put((long) apiId, new UserBot(apiId, apiHash, phoneNumber, this.bot));
-
-            // Регистрируем обработчик входящих сообщений
-            this.userBots.get((long) apiId).addMessageHandler(update -> {
-                TdApi.MessageContent content = update.message.content;
-                String text;
-                if (content instanceof TdApi.MessageText messageText) {
-                    text = messageText.text.text;
+            UserBot userBot = new UserBot(apiId, apiHash, phoneNumber, this.bot, config, this.fileDownloader, this.tdlibRuntime,
+                    announceReady);
+
+            // Регистрируем обработчик входящих сообщений: пересылка идёт через конвейер
+            userBot.addMessageHandler(update -> {
+                // Автоответ уходит сразу из аккаунта, сообщение при этом пересылается как обычно
+                this.autoResponder.onMessage(apiId, userBot, update.message);
+                // Аккаунт не засыпает, пока сообщение пересылается
+                this.sessionManager.retain(apiId);
+                this.forwardPipeline.submit(apiId, userBot, update.message)
+                        .whenComplete((ignored, error) -> this.sessionManager.release(apiId));
+            });
+            this.userBots.put((long) apiId, userBot);
+            this.sessionManager.opened(new Credential(apiId, apiHash, phoneNumber), userBot);
+
+            // При пробуждении аккаунта готовность отслеживается заново
+            CompletableFuture<UserBot> accountReady = this.readiness.compute((long) apiId,
+                    (k, existing) -> existing != null && !existing.isDone() ? existing : new CompletableFuture<>());
+            userBot.getReady().whenComplete((ignored, error) -> {
+                if (error != null) {
+                    accountReady.completeExceptionally(error);
                 } else {
-                    text = "(" + content.getClass().getSimpleName() + ")";
+                    accountReady.complete(userBot);
                 }
-                long chatId = update.message.chatId;
-                int messageDate = update.message.date;
-
-                // Получаем информацию о чате
-                this.userBots.get((long) apiId).getClient().send(new TdApi.GetChat(chatId))
-                    .thenComposeAsync(chat -> {
-                        // Проверяем тип чата и игнорируем групповые чаты
-                        if (chat.type instanceof TdApi.ChatTypeBasicGroup || chat.type instanceof TdApi.ChatTypeSupergroup) {
-                            return CompletableFuture.completedFuture(null);
-                        }
-
-                        // Получаем информацию об отправителе, если это пользователь
-                        if (update.message.senderId instanceof TdApi.MessageSenderUser senderUser) {
-                            long userId = senderUser.userId;
-                            if (senderUser.userId != this.userBots.get((long) apiId).getClient().getMe().id) {
-                                return this.userBots.get((long) apiId).getClient().send(new TdApi.GetUser(userId))
-                                        .thenApply(user -> new Object[]{chat, user});
-                            } else {
-                                return CompletableFuture.completedFuture(new Object[]{chat, null});
-                            }
-                        } else {
-                            return CompletableFuture.completedFuture(new Object[]{chat, null});
-                        }
-                    })
-                    .whenCompleteAsync((result, error) -> {
-                        if (error != null) {
-                            Main.logger.warning("Ошибка при получении информации о чате или пользователе: " + error);
-                        } else if (result != null && ((TdApi.User) result[1]).id != this.userBots.get((long) apiId).getClient().getMe().id) {
-                            TdApi.Chat chat = (TdApi.Chat) result[0];
-                            TdApi.User user = (TdApi.User) result[1];
-
-                            // Форматируем время сообщения
-                            String formattedTime = java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
-                                .withZone(java.time.ZoneId.systemDefault())
-                                .format(java.time.Instant.ofEpochSecond(messageDate));
-
-                            // Формируем строку с информацией об отправителе
-                            String senderInfo = "";
-                            if (user != null) {
-                                if (user.usernames.activeUsernames.length != 0) {
-                                    senderInfo += " (@" + user.usernames.activeUsernames[0] + ")";
-                                }
-                            }
-
-
-                            String caption = String.format("New message from %s %s:\n",
-                                chat.title, senderInfo, formattedTime);
-                            try {
-                                Message sentMessage = this.bot.execute(MessageConverter.convertTdlightMessage(this.userBots.get((long) apiId).getClient(), update.message, caption));
-                                this.messageMapper.putMapping(Long.valueOf(sentMessage.getMessageId()), (long) apiId, update.message.chatId);
-                            } catch (TelegramApiException e) {
-                                throw new RuntimeException(e);
-                            }
-                            TdApi.ViewMessages viewMessages = new TdApi.ViewMessages();
-                            viewMessages.chatId = chatId;
-                            viewMessages.messageIds = new long[]{update.message.id};  // Можно передавать массив сообщений
-                            viewMessages.forceRead = true;  // Принудительное чтение
-
-                            this.userBots.get((long) apiId).getClient().send(viewMessages, res -> {});
-                            }
-                        });
-                });
-
+            });
 
             Main.logger.info("UserBot запущен. Ожидание входящих сообщений...");
             // Приложение работает до принудительного завершения
-
+            return userBot;
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Возвращает будущее готовности аккаунта или null, если аккаунт не запускался.
+     */
+    public CompletableFuture<UserBot> getReadiness(long apiId) {
+        return this.readiness.get(apiId);
+    }
+
     /**
      * Обрабатывает команду /add, извлекая аргументы из сообщения и отправляя ответ через send_message.
      *
@@ -154,15 +268,366 @@ public class ProgramFlow {
         this.bot.send_message("Добавление пользователя...");
     }
 
+    /**
+     * Обрабатывает команду /trigger:
+     * /trigger add [@api_id] фраза — добавить правило (для всех аккаунтов или для одного),
+     * /trigger del номер — удалить правило, /trigger list — показать правила.
+     *
+     * @param message входящее сообщение с командой /trigger
+     */
+    public void processTriggerCommand(Message message) {
+        String[] arguments = message.getText().replaceFirst("/trigger", "").trim().split("\\s+", 2);
+        String action = arguments[0];
+        String rest = arguments.length > 1 ? arguments[1].trim() : "";
+        try {
+            if ("add".equals(action) && !rest.isEmpty()) {
+                long account = 0;
+                if (rest.startsWith("@")) {
+                    String[] scoped = rest.substring(1).split("\\s+", 2);
+                    account = Long.parseLong(scoped[0]);
+                    rest = scoped.length > 1 ? scoped[1] : "";
+                }
+                TriggerEngine.Rule rule = this.triggerEngine.add(account, rest);
+                this.bot.send_message("Правило " + rule.id() + " добавлено: " + rule.pattern()
+                        + (account != 0 ? " (аккаунт " + account + ")" : ""));
+            } else if ("del".equals(action) && !rest.isEmpty()) {
+                int id = Integer.parseInt(rest);
+                this.bot.send_message(this.triggerEngine.remove(id) ? "Правило " + id + " удалено." : "Правила " + id + " нет.");
+            } else if ("list".equals(action)) {
+                this.bot.send_message(triggerList());
+            } else {
+                this.bot.send_message("Использование: /trigger add [@api_id] фраза | /trigger del номер | /trigger list");
+            }
+        } catch (IllegalArgumentException e) {
+            this.bot.send_message("Неверная команда: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Обрабатывает команду /autoreply:
+     * /autoreply add [@api_id] фраза => ответ — добавить правило, /autoreply del номер — удалить,
+     * /autoreply list — показать правила. В ответе можно использовать {username} и {chat}.
+     *
+     * @param message входящее сообщение с командой /autoreply
+     */
+    public void processAutoReplyCommand(Message message) {
+        String[] arguments = message.getText().replaceFirst("/autoreply", "").trim().split("\\s+", 2);
+        String action = arguments[0];
+        String rest = arguments.length > 1 ? arguments[1].trim() : "";
+        try {
+            if ("add".equals(action) && rest.contains("=>")) {
+                long account = 0;
+                if (rest.startsWith("@")) {
+                    String[] scoped = rest.substring(1).split("\\s+", 2);
+                    account = Long.parseLong(scoped[0]);
+                    rest = scoped.length > 1 ? scoped[1] : "";
+                }
+                int separator = rest.indexOf("=>");
+                AutoResponder.Rule rule = this.autoResponder.add(account, rest.substring(0, Math.max(0, separator)),
+                        separator >= 0 ? rest.substring(separator + 2) : "");
+                this.bot.send_message("Автоответ " + rule.id() + " добавлен: " + rule.pattern() + " => " + rule.template()
+                        + (account != 0 ? " (аккаунт " + account + ")" : ""));
+            } else if ("del".equals(action) && !rest.isEmpty()) {
+                int id = Integer.parseInt(rest);
+                this.bot.send_message(this.autoResponder.remove(id) ? "Автоответ " + id + " удалён." : "Автоответа " + id + " нет.");
+            } else if ("list".equals(action)) {
+                List<AutoResponder.Rule> rules = this.autoResponder.rules();
+                this.bot.send_message(rules.isEmpty() ? "Автоответов нет." : boundedList("Автоответы (" + rules.size() + "):",
+                        rules, rule -> "\n" + rule.id() + ". " + rule.pattern() + " => " + rule.template()
+                                + (rule.account() != 0 ? " (аккаунт " + rule.account() + ")" : "")));
+            } else {
+                this.bot.send_message("Использование: /autoreply add [@api_id] фраза => ответ | /autoreply del номер | /autoreply list");
+            }
+        } catch (IllegalArgumentException e) {
+            this.bot.send_message("Неверная команда: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Обрабатывает команду /schedule без ответа на сообщение:
+     * /schedule 30m @api_id chat_id текст — отложить сообщение, /schedule list — показать отложенные,
+     * /schedule cancel номер — отменить. Ответом на пересланное сообщение командой /schedule 30m текст
+     * сообщение откладывается в тот же чат (см. {@link #handleReply}).
+     *
+     * @param message входящее сообщение с командой /schedule
+     */
+    public void processScheduleCommand(Message message) {
+        String[] arguments = message.getText().replaceFirst("/schedule", "").trim().split("\\s+", 4);
+        try {
+            if ("list".equals(arguments[0])) {
+                this.bot.send_message(scheduleList());
+            } else if ("cancel".equals(arguments[0]) && arguments.length > 1) {
+                long id = Long.parseLong(arguments[1]);
+                this.bot.send_message(this.scheduledSender.cancel(id) ? "Отложенное сообщение " + id + " отменено."
+                        : "Отложенного сообщения " + id + " нет.");
+            } else if (arguments.length == 4 && arguments[1].startsWith("@")) {
+                ScheduledSender.Entry entry = this.scheduledSender.schedule(Long.parseLong(arguments[1].substring(1)),
+                        Long.parseLong(arguments[2]), arguments[3], ScheduledSender.parseDelay(arguments[0]));
+                this.bot.send_message("Сообщение " + entry.id() + " будет отправлено через " + arguments[0] + ".");
+            } else {
+                this.bot.send_message("Использование: /schedule 30m @api_id chat_id текст | /schedule list | /schedule cancel номер"
+                        + "\nИли ответьте на пересланное сообщение: /schedule 30m текст");
+            }
+        } catch (IllegalArgumentException e) {
+            this.bot.send_message("Неверная команда: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Обрабатывает команду /broadcast: рассылка текста или сообщения, на которое отвечает команда.
+     * Цели — api_id:chat_id или api_id:all через запятую; вместо api_id можно указать * (все аккаунты).
+     *
+     * @param message входящее сообщение с командой /broadcast
+     */
+    public void processBroadcastCommand(Message message) {
+        String[] arguments = message.getText().replaceFirst("/broadcast", "").trim().split("\\s+", 2);
+        Message source = message.getReplyToMessage();
+        try {
+            if ("list".equals(arguments[0])) {
+                List<String> summaries = this.broadcaster.activeSummaries();
+                this.bot.send_message(summaries.isEmpty() ? "Рассылок нет." : String.join("\n", summaries));
+            } else if ("cancel".equals(arguments[0]) && arguments.length > 1) {
+                int id = Integer.parseInt(arguments[1]);
+                this.bot.send_message(this.broadcaster.cancel(id) ? "Рассылка " + id + " отменяется."
+                        : "Рассылки " + id + " нет.");
+            } else if (!arguments[0].isEmpty() && (source != null || arguments.length == 2)) {
+                List<Broadcaster.Target> targets = Broadcaster.parseTargets(arguments[0], this.readiness.keySet());
+                int id = this.broadcaster.start(targets, source, source == null ? arguments[1] : null);
+                this.bot.send_message("Рассылка " + id + " запущена: целей " + targets.size() + ".");
+            } else {
+                this.bot.send_message("Использование: /broadcast api_id:chat_id,api_id:all текст | /broadcast list"
+                        + " | /broadcast cancel номер\nИли ответьте на своё сообщение: /broadcast *:all");
+            }
+        } catch (IllegalArgumentException e) {
+            this.bot.send_message("Неверная команда: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Обрабатывает команду /search: ищет пересланные сообщения и ответы, содержащие все слова запроса.
+     * Формат: /search [@api_id] слова; слово со * на конце ищется по началу.
+     *
+     * @param message входящее сообщение с командой /search
+     */
+    public void processSearchCommand(Message message) {
+        String query = message.getText().replaceFirst("/search", "").trim();
+        long account = 0;
+        try {
+            if (query.startsWith("@")) {
+                String[] scoped = query.substring(1).split("\\s+", 2);
+                account = Long.parseLong(scoped[0]);
+                query = scoped.length > 1 ? scoped[1] : "";
+            }
+            if (query.isEmpty()) {
+                this.bot.send_message("Использование: /search [@api_id] слова");
+                return;
+            }
+            long started = System.nanoTime();
+            List<SearchIndex.Document> found = this.searchIndex.search(query, account, SEARCH_RESULTS);
+            long micros = (System.nanoTime() - started) / 1000;
+            this.bot.send_message(searchList(found, micros));
+        } catch (IllegalArgumentException e) {
+            this.bot.send_message("Неверная команда: " + e.getMessage());
+        }
+    }
+
+    private static String searchList(List<SearchIndex.Document> found, long micros) {
+        if (found.isEmpty()) {
+            return "Ничего не найдено.";
+        }
+        return boundedList("Найдено (последние " + found.size() + ", " + micros / 1000.0 + " мс):", found, document -> {
+            String text = document.text().length() > 300 ? document.text().substring(0, 300) + "…" : document.text();
+            return "\n\n" + Instant.ofEpochMilli(document.timeMillis()) + " " + document.account() + "/" + document.chatId()
+                    + (document.outgoing() ? " → ответ" : " ← " + document.label()) + " [#" + document.botMessageId() + "]\n" + text;
+        });
+    }
+
+    private String scheduleList() {
+        List<ScheduledSender.Entry> entries = this.scheduledSender.pending();
+        if (entries.isEmpty()) {
+            return "Отложенных сообщений нет.";
+        }
+        return boundedList("Отложенные сообщения (" + entries.size() + "):", entries,
+                entry -> "\n" + entry.id() + ". " + Instant.ofEpochMilli(entry.dueAtMillis())
+                        + " → " + entry.account() + "/" + entry.chatId() + ": " + entry.text());
+    }
+
+    private String triggerList() {
+        List<TriggerEngine.Rule> rules = this.triggerEngine.rules();
+        if (rules.isEmpty()) {
+            return "Правил нет.";
+        }
+        return boundedList("Правила (" + rules.size() + "):", rules,
+                rule -> "\n" + rule.id() + ". " + rule.pattern() + (rule.account() != 0 ? " (аккаунт " + rule.account() + ")" : ""));
+    }
+
+    /**
+     * Собирает список для одного сообщения бота: строки добавляются, пока помещаются,
+     * вместо остальных дописывается их число.
+     *
+     * @param header заголовок списка
+     * @param items  элементы списка
+     * @param line   строка элемента вместе с ведущим переводом строки
+     */
+    private static <T> String boundedList(String header, List<T> items, Function<T, String> line) {
+        StringBuilder list = new StringBuilder(header);
+        for (int i = 0; i < items.size(); i++) {
+            String next = line.apply(items.get(i));
+            if (list.length() + next.length() > MAX_LIST_LENGTH) {
+                list.append("\n… и ещё ").append(items.size() - i);
+                break;
+            }
+            list.append(next);
+        }
+        return list.toString();
+    }
+
+    /**
+     * Обрабатывает команду /stats: отправляет администратору сводку по внутренним счётчикам.
+     */
+    public void processStatsCommand() {
+        StringBuilder stats = new StringBuilder(this.messageMapper.statsSummary());
+        stats.append("\n\nTDLib: ").append(this.tdlibRuntime.statsSummary());
+        stats.append("\n\n").append(startupReport());
+        stats.append("\n\nСессии: ").append(this.sessionManager.statsSummary());
+        stats.append("\n\nМедиакэш: ").append(this.mediaCache.statsSummary());
+        stats.append("\n\nТриггеры: ").append(this.triggerEngine.statsSummary());
+        stats.append("\n\nАвтоответы: ").append(this.autoResponder.statsSummary());
+        stats.append("\n\nОтложенные сообщения: ").append(this.scheduledSender.statsSummary());
+        stats.append("\n\nРассылки: ").append(this.broadcaster.statsSummary());
+        stats.append("\n\nПоиск: ").append(this.searchIndex.statsSummary());
+        stats.append("\n\nПересылка: ").append(this.forwardPipeline.statsSummary());
+        stats.append("\n\nОтветы: ").append(this.replyPipeline.statsSummary());
+        stats.append("\n\nИсходящие запросы бота: ").append(this.bot.getOutbound().statsSummary());
+        if (this.webhookReceiver != null) {
+            stats.append("\n\nWebhook: ").append(this.webhookReceiver.statsSummary());
+        }
+        for (Map.Entry<Long, UserBot> entry : this.userBots.entrySet()) {
+            stats.append("\n\nКэш чатов юзербота ").append(entry.getKey()).append(": ")
+                    .append(entry.getValue().getChatInfoCache().statsSummary())
+                    .append("\nОтметки о прочтении: ").append(entry.getValue().getReadReceipts().statsSummary())
+                    .append("\nМедиа: ").append(entry.getValue().getMediaDownloader().statsSummary())
+                    .append("\nОтветы: ").append(entry.getValue().getFileStreamer().statsSummary());
+        }
+        this.bot.send_message(stats.toString());
+    }
+
+    /**
+     * Останавливает компоненты, которым нужно сохранить состояние перед выходом.
+     */
+    public void shutdown() {
+        // Прерывание одной остановки не мешает закрыть остальные компоненты, флаг восстанавливается в конце
+        boolean interrupted = false;
+        if (this.webhookReceiver != null) {
+            try {
+                this.webhookReceiver.close();
+            } catch (InterruptedException e) {
+                interrupted = true;
+                Main.logger.warning("Остановка приёма webhook прервана");
+            }
+        }
+        try {
+            this.forwardPipeline.close();
+        } catch (InterruptedException e) {
+            interrupted = true;
+            Main.logger.warning("Остановка конвейера пересылки прервана");
+        }
+        try {
+            this.replyPipeline.close();
+        } catch (InterruptedException e) {
+            interrupted = true;
+            Main.logger.warning("Остановка конвейера ответов прервана");
+        }
+        try {
+            this.searchIndex.close();
+        } catch (InterruptedException e) {
+            interrupted = true;
+            Main.logger.warning("Остановка поискового индекса прервана");
+        }
+        try {
+            this.bot.getOutbound().close();
+        } catch (InterruptedException e) {
+            interrupted = true;
+            Main.logger.warning("Остановка очереди исходящих сообщений прервана");
+        }
+        this.broadcaster.close();
+        this.sessionManager.close();
+        try {
+            this.scheduledSender.close();
+        } catch (IOException e) {
+            Main.logger.warning("Ошибка закрытия журнала отложенных сообщений: " + e);
+        }
+        // Клиенты закрываются до общей среды TDLib: close() досылает отметки о прочтении и закрывает базу аккаунта
+        for (UserBot userBot : this.userBots.values()) {
+            try {
+                userBot.close();
+            } catch (Exception e) {
+                Main.logger.warning("Ошибка закрытия юзербота: " + e);
+            }
+        }
+        try {
+            this.tdlibRuntime.close();
+        } catch (Exception e) {
+            Main.logger.warning("Ошибка закрытия среды TDLib: " + e);
+        }
+        try {
+            this.messageMapper.close();
+        } catch (IOException e) {
+            Main.logger.warning("Ошибка закрытия журнала маппинга: " + e);
+        }
+        try {
+            this.mediaCache.close();
+        } catch (IOException e) {
+            Main.logger.warning("Ошибка закрытия медиакэша: " + e);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Находит маршрут ответа и ставит ответ в конвейер отправки.
+     * Вызывается из потока long polling бота и не ждёт скачивания медиафайла и отправки.
+     */
     public void handleReply(Message message) {
-        AbstractMap.SimpleEntry<Long, Long> replyMap = this.messageMapper.getMapping(Long.valueOf(message.getReplyToMessage().getMessageId()));
-        long chatId = replyMap.getValue();
-        long apiId = replyMap.getKey();
-        TdApi.SendMessage tdSendMessage = reverseConverter.convertTelegramMessage(message, chatId);
-        // Отправляем сообщение через TDLight клиент
-        this.userBots.get((long) apiId).getClient().send(tdSendMessage, result -> {
-            TdApi.Message sentMessage = result.get();
-            System.out.println("Сообщение успешно отправлено. ID: " + sentMessage.id);
+        if (message.getText() != null && message.getText().startsWith("/broadcast")) {
+            // Ответ командой /broadcast рассылает сообщение, на которое дан ответ
+            processBroadcastCommand(message);
+            return;
+        }
+        MessageMapper.Route route = new MessageMapper.Route();
+        if (!this.messageMapper.getMapping(message.getReplyToMessage().getMessageId(), route)) {
+            Main.logger.warning("Нет маршрута для сообщения " + message.getReplyToMessage().getMessageId());
+            return;
+        }
+        long chatId = route.getChatId();
+        long apiId = route.getUserBotId();
+        String text = message.getText();
+        if (text != null && text.startsWith("/schedule")) {
+            // Ответ командой /schedule 30m текст откладывает сообщение в чат пересланного сообщения
+            String[] arguments = text.replaceFirst("/schedule", "").trim().split("\\s+", 2);
+            try {
+                if (arguments.length < 2) {
+                    throw new IllegalArgumentException("нужны задержка и текст");
+                }
+                ScheduledSender.Entry entry = this.scheduledSender.schedule(apiId, chatId, arguments[1],
+                        ScheduledSender.parseDelay(arguments[0]));
+                this.bot.send_message("Сообщение " + entry.id() + " будет отправлено через " + arguments[0] + ".");
+            } catch (IllegalArgumentException e) {
+                this.bot.send_message("Неверная команда: " + e.getMessage());
+            }
+            return;
+        }
+        // Спящий аккаунт будится; ответ встаёт в очередь чата сразу и уходит после авторизации.
+        // Аренда сессии отпускается, когда ответ отправлен или отправка не удалась
+        CompletableFuture<UserBot> userBot = this.sessionManager.acquire(apiId);
+        userBot.whenComplete((ignored, error) -> {
+            if (error != null) {
+                Main.logger.warning("Юзербот " + apiId + " недоступен, ответ не отправлен: " + error);
+                this.bot.send_message("Юзербот " + apiId + " недоступен, ответ не отправлен.");
+            }
         });
+        this.replyPipeline.submit(message, userBot, apiId, chatId)
+                .whenComplete((ignored, error) -> this.sessionManager.release(apiId));
     }
 }
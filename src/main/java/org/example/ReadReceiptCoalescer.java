@@ -0,0 +1,161 @@
+package org.example;
+
+import it.tdlight.client.SimpleTelegramClient;
+import it.tdlight.jni.TdApi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Объединяет отметки о прочтении одного юзербота.
+ * Id сообщений копятся по чатам и отправляются одним ViewMessages на чат:
+ * по истечении окна после первого сообщения пачки или сразу при достижении предельного размера пачки.
+ * Своих потоков нет: окна отсчитывает общий планировщик {@link TdlibRuntime#getScheduler()}.
+ */
+public class ReadReceiptCoalescer implements AutoCloseable {
+
+    // Сколько ждать подтверждения отправки оставшихся пачек при закрытии
+    private static final long CLOSE_TIMEOUT_MS = 2000;
+
+    /**
+     * Накопленные id сообщений одного чата.
+     */
+    private static final class Batch {
+        long[] messageIds = new long[8];
+        int count;
+        ScheduledFuture<?> flushTask;
+
+        void add(long messageId) {
+            if (count == messageIds.length) {
+                long[] grown = new long[count * 2];
+                System.arraycopy(messageIds, 0, grown, 0, count);
+                messageIds = grown;
+            }
+            messageIds[count++] = messageId;
+        }
+    }
+
+    private final SimpleTelegramClient client;
+    private final long windowMs;
+    private final int maxBatch;
+    private final ScheduledExecutorService scheduler;
+    private final Map<Long, Batch> batches = new HashMap<>();
+
+    private final LongAdder flushedBatches = new LongAdder();
+    private final LongAdder flushedMessages = new LongAdder();
+    private final AtomicInteger largestBatch = new AtomicInteger();
+    private boolean closed;
+
+    /**
+     * @param client    клиент юзербота
+     * @param scheduler общий планировщик, отсчитывающий окна; при закрытии не останавливается
+     * @param windowMs  сколько миллисекунд копить отметки чата перед отправкой
+     * @param maxBatch  размер пачки, при котором она отправляется, не дожидаясь окна
+     */
+    public ReadReceiptCoalescer(SimpleTelegramClient client, ScheduledExecutorService scheduler, long windowMs, int maxBatch) {
+        this.client = client;
+        this.scheduler = scheduler;
+        this.windowMs = windowMs;
+        this.maxBatch = Math.max(1, maxBatch);
+    }
+
+    /**
+     * Ставит сообщение в очередь на отметку о прочтении.
+     */
+    public void markRead(long chatId, long messageId) {
+        Batch ready = null;
+        synchronized (this) {
+            if (closed) {
+                ready = new Batch();
+                ready.add(messageId);
+            } else {
+                Batch batch = batches.computeIfAbsent(chatId, id -> new Batch());
+                batch.add(messageId);
+                if (batch.count >= maxBatch) {
+                    ready = takeBatch(chatId);
+                } else if (batch.flushTask == null) {
+                    batch.flushTask = scheduler.schedule(() -> flush(chatId), windowMs, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+        if (ready != null) {
+            send(chatId, ready);
+        }
+    }
+
+    private void flush(long chatId) {
+        Batch batch;
+        synchronized (this) {
+            batch = takeBatch(chatId);
+        }
+        if (batch != null) {
+            send(chatId, batch);
+        }
+    }
+
+    private Batch takeBatch(long chatId) {
+        Batch batch = batches.remove(chatId);
+        if (batch != null && batch.flushTask != null) {
+            batch.flushTask.cancel(false);
+        }
+        return batch;
+    }
+
+    private CompletableFuture<TdApi.Ok> send(long chatId, Batch batch) {
+        TdApi.ViewMessages viewMessages = new TdApi.ViewMessages();
+        viewMessages.chatId = chatId;
+        viewMessages.messageIds = batch.count == batch.messageIds.length
+                ? batch.messageIds
+                : Arrays.copyOf(batch.messageIds, batch.count);
+        viewMessages.forceRead = true;  // Принудительное чтение
+
+        flushedBatches.increment();
+        flushedMessages.add(batch.count);
+        largestBatch.accumulateAndGet(batch.count, Math::max);
+        return client.send(viewMessages).whenComplete((ok, error) -> {
+            if (error != null) {
+                Main.logger.warning("Ошибка отметки о прочтении в чате " + chatId + ": " + error);
+            }
+        });
+    }
+
+    public String statsSummary() {
+        long batchCount = flushedBatches.sum();
+        long messageCount = flushedMessages.sum();
+        return String.format("отметок %d в %d запросах (в среднем %.1f, максимум %d), сэкономлено запросов %d",
+                messageCount, batchCount, batchCount == 0 ? 0.0 : (double) messageCount / batchCount,
+                largestBatch.get(), messageCount - batchCount);
+    }
+
+    /**
+     * Отправляет все накопленные отметки и ждёт их подтверждения, но не дольше {@link #CLOSE_TIMEOUT_MS}.
+     * Отложенные отправки этого юзербота снимаются с общего планировщика.
+     */
+    @Override
+    public void close() {
+        Map<Long, Batch> remaining;
+        synchronized (this) {
+            closed = true;
+            remaining = new HashMap<>(batches);
+            for (Long chatId : remaining.keySet()) {
+                takeBatch(chatId);
+            }
+        }
+        List<CompletableFuture<TdApi.Ok>> sent = new ArrayList<>();
+        remaining.forEach((chatId, batch) -> sent.add(send(chatId, batch)));
+        try {
+            CompletableFuture.allOf(sent.toArray(new CompletableFuture[0])).get(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            Main.logger.warning("Не все отметки о прочтении подтверждены при закрытии: " + e);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package org.example;
+
+import it.tdlight.jni.TdApi;
+import org.telegram.telegrambots.meta.api.objects.Message;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Конвейер отправки ответов администратора через юзерботов.
+ *
+ * Поток long polling бота только находит маршрут ответа и ставит ответ в очередь, поэтому скачивание
+ * медиафайла через Bot API не задерживает обработку следующих обновлений (в том числе кодов авторизации).
+ * Преобразование и отправка выполняются на отдельном ограниченном пуле потоков с ограниченной очередью;
+ * при переполнении очереди задачу выполняет вызывающий поток (CallerRunsPolicy).
+ *
+ * Ответы в один чат уходят строго в порядке поступления: ответ отправляется только после отправки
+ * предыдущего ответа того же чата, при этом скачивание файлов следующих ответов идёт параллельно.
+ */
+public class ReplyPipeline implements AutoCloseable {
+
+    private static final int REPLY_THREADS = 2;
+    private static final int QUEUE_CAPACITY = 64;
+
+    /**
+     * Ключ очереди отправки: чат конкретного юзербота.
+     */
+    private record ChatKey(long userBotId, long chatId) {
+    }
+
+    private final ReverseMessageConverter reverseConverter;
+    private final MediaCache mediaCache;
+    private final SearchIndex searchIndex;
+    private final ThreadPoolExecutor executor;
+
+    // Последний ответ в каждом чате: следующий ответ чата выстраивается за ним
+    private final Map<ChatKey, CompletableFuture<Void>> chatTails = new ConcurrentHashMap<>();
+
+    // Ответы, принятые в конвейер и ещё не отправленные
+    private final AtomicInteger pending = new AtomicInteger();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * @param reverseConverter преобразователь сообщений Bot API в запросы TDLib
+     * @param mediaCache       кэш медиафайлов, уже загруженных юзерботами
+     * @param searchIndex      поисковый индекс, в который попадают отправленные ответы
+     */
+    public ReplyPipeline(ReverseMessageConverter reverseConverter, MediaCache mediaCache, SearchIndex searchIndex) {
+        this.reverseConverter = reverseConverter;
+        this.mediaCache = mediaCache;
+        this.searchIndex = searchIndex;
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(REPLY_THREADS, REPLY_THREADS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+                r -> {
+                    Thread thread = new Thread(r, "reply-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Ставит ответ в очередь чата и сразу возвращает управление.
+     *
+     * @param message ответ администратора из Bot API
+     * @param userBot юзербот, через которого отправляется ответ; может быть ещё не готов (аккаунт просыпается)
+     * @param apiId   api_id юзербота
+     * @param chatId  чат юзербота, в который отправляется ответ
+     * @return завершается после отправки ответа или ошибки; ошибка уже записана в лог
+     */
+    public CompletableFuture<Void> submit(Message message, CompletableFuture<UserBot> userBot, long apiId, long chatId) {
+        pending.incrementAndGet();
+        CompletableFuture<TdApi.SendMessage> prepared = CompletableFuture
+                .supplyAsync(() -> reverseConverter.convertTelegramMessage(message, chatId, apiId), executor)
+                .thenCompose(future -> future);
+
+        ChatKey key = new ChatKey(apiId, chatId);
+        CompletableFuture<Void> tail = chatTails.compute(key, (k, previous) -> {
+            CompletableFuture<Void> after = previous != null ? previous : CompletableFuture.completedFuture(null);
+            // Ошибка предыдущего ответа не останавливает очередь чата
+            return after.handle((ignored, error) -> null)
+                    .thenCompose(ignored -> CompletableFuture.allOf(prepared, userBot))
+                    .thenComposeAsync(ignored -> send(message, userBot.join(), apiId, prepared.join(), true), executor);
+        });
+
+        tail.whenComplete((ignored, error) -> {
+            chatTails.remove(key, tail);
+            pending.decrementAndGet();
+            if (error != null) {
+                failed.increment();
+                Main.logger.warning("Ошибка отправки ответа в чат " + chatId + ": "
+                        + (error instanceof CompletionException ? error.getCause() : error));
+            } else {
+                sent.increment();
+                searchIndex.add(apiId, chatId, message.getMessageId(), message.getDate() * 1000L, true, "",
+                        message.getText() != null ? message.getText() : message.getCaption());
+            }
+        });
+        return tail.handle((ignored, error) -> null);
+    }
+
+    /**
+     * Отправляет ответ через юзербота и запоминает загруженный медиафайл в кэше.
+     * Если Telegram не принял файл по ссылке из кэша, ссылка удаляется и ответ отправляется повторно с загрузкой файла.
+     */
+    private CompletableFuture<Void> send(Message message, UserBot userBot, long apiId, TdApi.SendMessage tdSendMessage,
+                                         boolean retryWithUpload) {
+        boolean usesCachedFile = ReverseMessageConverter.usesRemoteFile(tdSendMessage);
+        String fileUniqueId = ReverseMessageConverter.fileUniqueId(message);
+        // Отправляем сообщение через TDLight клиент и дожидаемся окончания загрузки, чтобы получить remote id файла
+        return userBot.getClient().sendMessage(tdSendMessage, true).handle((sentMessage, error) -> {
+            // Скачанная через Bot API копия больше не нужна: TDLib уже загрузил файл
+            deleteTempFile(ReverseMessageConverter.localPath(tdSendMessage));
+            if (error != null) {
+                if (usesCachedFile && retryWithUpload) {
+                    Main.logger.warning("Файл из медиакэша не принят, загружаем заново: " + error);
+                    mediaCache.invalidateTdlibRemoteId(apiId, fileUniqueId);
+                    return reverseConverter.convertTelegramMessage(message, tdSendMessage.chatId, apiId)
+                            .thenCompose(retry -> send(message, userBot, apiId, retry, false));
+                }
+                return CompletableFuture.<Void>failedFuture(error);
+            }
+            Main.logger.fine("Ответ отправлен в чат " + sentMessage.chatId + ", id " + sentMessage.id);
+            TdApi.File file = MessageConverter.mediaFile(sentMessage.content);
+            if (!usesCachedFile && file != null && file.remote != null) {
+                mediaCache.putTdlibRemoteId(apiId, fileUniqueId, file.remote.id);
+            }
+            return CompletableFuture.<Void>completedFuture(null);
+        }).thenCompose(result -> result);
+    }
+
+    static void deleteTempFile(String path) {
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(Path.of(path));
+        } catch (IOException e) {
+            Main.logger.warning("Не удалось удалить временный файл " + path + ": " + e);
+        }
+    }
+
+    /**
+     * Число ответов, принятых в конвейер и ещё не отправленных.
+     */
+    public int queueDepth() {
+        return pending.get();
+    }
+
+    public String statsSummary() {
+        return "в очереди " + queueDepth() + " (ждут потока " + executor.getQueue().size() + "), отправлено "
+                + sent.sum() + ", ошибок " + failed.sum();
+    }
+
+    /**
+     * Останавливает конвейер, давая уже принятым ответам время завершиться.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+}
@@ -8,33 +8,48 @@ import org.telegram.telegrambots.meta.api.objects.games.Animation;
 import org.telegram.telegrambots.meta.api.objects.stickers.Sticker;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 
 /**
  * Класс ReverseMessageConverter преобразует сообщение, полученное через Telegram Bots API,
  * в объект TdApi.SendMessage для отправки через TDLight (TDLib).
- * Для мультимедийных сообщений файлы скачиваются во временную директорию.
+ * Для мультимедийных сообщений файлы скачиваются во временную директорию,
+ * если юзербот ещё не отправлял этот файл (см. {@link MediaCache}).
+ * Скачивание не блокирует вызывающий поток: результат возвращается в виде CompletableFuture.
  */
 public class ReverseMessageConverter {
 
-    private final String botToken;
+    private final TelegramFileDownloader fileDownloader;
+    private final MediaCache mediaCache;
+    private final boolean streamMedia;
 
     /**
-     * Конструктор, принимающий токен бота для загрузки файлов.
+     * Конструктор, принимающий загрузчик файлов бота.
      *
-     * @param botToken токен бота Telegram
+     * @param fileDownloader загрузчик файлов через Bot API
+     * @param mediaCache     кэш уже загруженных файлов
+     * @param streamMedia    передавать файлы в TDLib потоково ({@link GeneratedFileStreamer})
+     *                       вместо предварительного скачивания во временный файл
      */
-    public ReverseMessageConverter(String botToken) {
-        this.botToken = botToken;
+    public ReverseMessageConverter(TelegramFileDownloader fileDownloader, MediaCache mediaCache, boolean streamMedia) {
+        this.fileDownloader = fileDownloader;
+        this.mediaCache = mediaCache;
+        this.streamMedia = streamMedia;
     }
 
     /**
-     * Преобразует сообщение Telegram Bots API в запрос для TDLight (TDLib).
-     * В случае мультимедийных сообщений происходит загрузка файла.
+     * Асинхронно преобразует сообщение Telegram Bots API в запрос для TDLight (TDLib).
+     * В случае мультимедийных сообщений файл скачивается через Bot API без блокировки потока;
+     * если скачать файл не удалось, задача завершается текстовым сообщением с описанием ошибки.
      *
-     * @param message сообщение из Telegram Bots API
-     * @return объект TdApi.SendMessage, готовый для отправки через TDLight
+     * @param message   сообщение из Telegram Bots API
+     * @param chatId    чат юзербота, в который отправляется сообщение
+     * @param userBotId api_id юзербота, через которого отправляется сообщение
+     * @return задача с объектом TdApi.SendMessage, готовым для отправки через TDLight
      */
-    public TdApi.SendMessage convertTelegramMessage(Message message, long chatId) {
+    public CompletableFuture<TdApi.SendMessage> convertTelegramMessage(Message message, long chatId, long userBotId) {
         TdApi.SendMessage sendMessage = new TdApi.SendMessage();
         sendMessage.chatId = chatId;
         sendMessage.options = new TdApi.MessageSendOptions();
@@ -50,69 +65,44 @@ public class ReverseMessageConverter {
             List<PhotoSize> photos = message.getPhoto();
             // Выбираем наибольший размер
             PhotoSize largestPhoto = photos.get(photos.size() - 1);
-            String fileId = largestPhoto.getFileId();
-            try {
-                // Загружаем файл по file_id
-                String localPath = TelegramFileDownloader.downloadFile(fileId, botToken);
+            // Загружаем файл по file_id или берём уже загруженный юзерботом
+            return withMedia(sendMessage, inputFile(largestPhoto.getFileId(), largestPhoto.getFileUniqueId(), userBotId), file -> {
                 InputMessagePhoto inputMessagePhoto = new InputMessagePhoto();
-                inputMessagePhoto.photo = new TdApi.InputFileLocal(localPath);
+                inputMessagePhoto.photo = file;
                 String caption = (message.getCaption() != null) ? message.getCaption() : "";
                 inputMessagePhoto.caption = new TdApi.FormattedText(caption, null);
-                sendMessage.inputMessageContent = inputMessagePhoto;
-            } catch (Exception e) {
-                // В случае ошибки формируем текстовое сообщение с информацией об ошибке
-                InputMessageText inputMessageText = new InputMessageText();
-                inputMessageText.text = new TdApi.FormattedText("Ошибка загрузки фото: " + e.getMessage(), null);
-                sendMessage.inputMessageContent = inputMessageText;
-            }
+                return inputMessagePhoto;
+            }, "Ошибка загрузки фото: ");
         }
         // Голосовое сообщение
         else if (message.getVoice() != null) {
             Voice voice = message.getVoice();
-            String fileId = voice.getFileId();
-            try {
-                String localPath = TelegramFileDownloader.downloadFile(fileId, botToken);
+            return withMedia(sendMessage, inputFile(voice.getFileId(), voice.getFileUniqueId(), userBotId), file -> {
                 InputMessageVoiceNote inputMessageVoiceNote = new InputMessageVoiceNote();
-                inputMessageVoiceNote.voiceNote = new TdApi.InputFileLocal(localPath);
+                inputMessageVoiceNote.voiceNote = file;
                 inputMessageVoiceNote.duration = voice.getDuration();
-                sendMessage.inputMessageContent = inputMessageVoiceNote;
-            } catch (Exception e) {
-                InputMessageText inputMessageText = new InputMessageText();
-                inputMessageText.text = new TdApi.FormattedText("Ошибка загрузки голосового сообщения: " + e.getMessage(), null);
-                sendMessage.inputMessageContent = inputMessageText;
-            }
+                return inputMessageVoiceNote;
+            }, "Ошибка загрузки голосового сообщения: ");
         }
         // Стикер
         else if (message.getSticker() != null) {
             Sticker sticker = message.getSticker();
-            String fileId = sticker.getFileId();
-            try {
-                String localPath = TelegramFileDownloader.downloadFile(fileId, botToken);
+            return withMedia(sendMessage, inputFile(sticker.getFileId(), sticker.getFileUniqueId(), userBotId), file -> {
                 InputMessageSticker inputMessageSticker = new InputMessageSticker();
-                inputMessageSticker.sticker = new TdApi.InputFileLocal(localPath);
-                sendMessage.inputMessageContent = inputMessageSticker;
-            } catch (Exception e) {
-                InputMessageText inputMessageText = new InputMessageText();
-                inputMessageText.text = new TdApi.FormattedText("Ошибка загрузки стикера: " + e.getMessage(), null);
-                sendMessage.inputMessageContent = inputMessageText;
-            }
+                inputMessageSticker.sticker = file;
+                return inputMessageSticker;
+            }, "Ошибка загрузки стикера: ");
         }
         // Анимация (например, GIF)
         else if (message.getAnimation() != null) {
             Animation animation = message.getAnimation();
-            String fileId = animation.getFileId();
-            try {
-                String localPath = TelegramFileDownloader.downloadFile(fileId, botToken);
+            return withMedia(sendMessage, inputFile(animation.getFileId(), animation.getFileUniqueId(), userBotId), file -> {
                 InputMessageAnimation inputMessageAnimation = new InputMessageAnimation();
-                inputMessageAnimation.animation = new TdApi.InputFileLocal(localPath);
+                inputMessageAnimation.animation = file;
                 String caption = (message.getCaption() != null) ? message.getCaption() : "";
                 inputMessageAnimation.caption = new TdApi.FormattedText(caption, null);
-                sendMessage.inputMessageContent = inputMessageAnimation;
-            } catch (Exception e) {
-                InputMessageText inputMessageText = new InputMessageText();
-                inputMessageText.text = new TdApi.FormattedText("Ошибка загрузки анимации: " + e.getMessage(), null);
-                sendMessage.inputMessageContent = inputMessageText;
-            }
+                return inputMessageAnimation;
+            }, "Ошибка загрузки анимации: ");
         }
         // Если тип сообщения не поддерживается
         else {
@@ -121,7 +111,106 @@ public class ReverseMessageConverter {
             sendMessage.inputMessageContent = inputMessageText;
         }
 
-        return sendMessage;
+        return CompletableFuture.completedFuture(sendMessage);
     }
-}
 
+    /**
+     * Дополняет запрос содержимым с медиафайлом, когда файл будет готов.
+     * В случае ошибки формирует текстовое сообщение с информацией об ошибке.
+     */
+    private static CompletableFuture<TdApi.SendMessage> withMedia(TdApi.SendMessage sendMessage, CompletableFuture<TdApi.InputFile> file,
+                                                                  Function<TdApi.InputFile, InputMessageContent> content, String errorPrefix) {
+        return file.handle((inputFile, error) -> {
+            if (error == null) {
+                sendMessage.inputMessageContent = content.apply(inputFile);
+            } else {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                InputMessageText inputMessageText = new InputMessageText();
+                inputMessageText.text = new TdApi.FormattedText(errorPrefix + cause.getMessage(), null);
+                sendMessage.inputMessageContent = inputMessageText;
+            }
+            return sendMessage;
+        });
+    }
+
+    /**
+     * Возвращает файл для отправки через TDLib: ссылку на уже загруженный юзерботом файл,
+     * потоково генерируемый файл или локальную копию, скачанную через Bot API.
+     * Только скачивание локальной копии выполняется асинхронно, остальные варианты готовы сразу.
+     */
+    private CompletableFuture<TdApi.InputFile> inputFile(String fileId, String fileUniqueId, long userBotId) {
+        String remoteId = mediaCache.getTdlibRemoteId(userBotId, fileUniqueId);
+        if (remoteId != null) {
+            return CompletableFuture.completedFuture(new TdApi.InputFileRemote(remoteId));
+        }
+        if (streamMedia) {
+            return CompletableFuture.completedFuture(GeneratedFileStreamer.inputFile(fileId, 0));
+        }
+        return fileDownloader.downloadFileAsync(fileId).thenApply(path -> new TdApi.InputFileLocal(path.toString()));
+    }
+
+    /**
+     * Проверяет, отправляется ли файл сообщения по ссылке из кэша.
+     */
+    static boolean usesRemoteFile(TdApi.SendMessage sendMessage) {
+        return inputFileOf(sendMessage) instanceof TdApi.InputFileRemote;
+    }
+
+    /**
+     * Возвращает путь к временному файлу, скачанному для отправки, или null, если файл не скачивался.
+     */
+    static String localPath(TdApi.SendMessage sendMessage) {
+        return inputFileOf(sendMessage) instanceof TdApi.InputFileLocal local ? local.path : null;
+    }
+
+    private static TdApi.InputFile inputFileOf(TdApi.SendMessage sendMessage) {
+        InputMessageContent content = sendMessage.inputMessageContent;
+        TdApi.InputFile file = null;
+        if (content instanceof InputMessagePhoto photo) {
+            file = photo.photo;
+        } else if (content instanceof InputMessageVoiceNote voiceNote) {
+            file = voiceNote.voiceNote;
+        } else if (content instanceof InputMessageSticker sticker) {
+            file = sticker.sticker;
+        } else if (content instanceof InputMessageAnimation animation) {
+            file = animation.animation;
+        }
+        return file;
+    }
+
+    /**
+     * Возвращает file_id медиафайла сообщения Bot API.
+     *
+     * @return file_id или null, если в сообщении нет поддерживаемого медиа
+     */
+    static String fileId(Message message) {
+        if (message.getPhoto() != null && !message.getPhoto().isEmpty()) {
+            return message.getPhoto().get(message.getPhoto().size() - 1).getFileId();
+        } else if (message.getVoice() != null) {
+            return message.getVoice().getFileId();
+        } else if (message.getSticker() != null) {
+            return message.getSticker().getFileId();
+        } else if (message.getAnimation() != null) {
+            return message.getAnimation().getFileId();
+        }
+        return null;
+    }
+
+    /**
+     * Возвращает file_unique_id медиафайла сообщения Bot API.
+     *
+     * @return file_unique_id или null, если в сообщении нет поддерживаемого медиа
+     */
+    static String fileUniqueId(Message message) {
+        if (message.getPhoto() != null && !message.getPhoto().isEmpty()) {
+            return message.getPhoto().get(message.getPhoto().size() - 1).getFileUniqueId();
+        } else if (message.getVoice() != null) {
+            return message.getVoice().getFileUniqueId();
+        } else if (message.getSticker() != null) {
+            return message.getSticker().getFileUniqueId();
+        } else if (message.getAnimation() != null) {
+            return message.getAnimation().getFileUniqueId();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,78 @@
+package org.example;
+
+import java.io.IOException;
+
+/**
+ * Хранилище маршрутов MessageMapper: хэш-таблица с открытой адресацией, доступная по номерам слотов.
+ * Доступ по слотам позволяет читать маршрут без создания объектов и обходить таблицу при вытеснении.
+ * Реализации не потокобезопасны, синхронизацию обеспечивает {@link MessageMapper}.
+ */
+interface RouteStore extends AutoCloseable {
+
+    /**
+     * Возвращает номер слота для ключа или -1, если ключа нет.
+     */
+    int indexOf(long key);
+
+    /**
+     * Ключ в слоте или 0, если слот пуст. Вместе с {@link #capacity()} позволяет обойти таблицу.
+     */
+    long keyAt(int slot);
+
+    long userBotIdAt(int slot);
+
+    long chatIdAt(int slot);
+
+    int touchedAt(int slot);
+
+    void touch(int slot, int minute);
+
+    /**
+     * Добавляет или перезаписывает маршрут для ключа.
+     */
+    void put(long key, long userBotId, long chatId, int minute);
+
+    /**
+     * Удаляет ключ.
+     *
+     * @return true, если ключ присутствовал
+     */
+    boolean remove(long key);
+
+    int size();
+
+    int capacity();
+
+    /**
+     * Объём памяти, занимаемый таблицей, в байтах.
+     */
+    long memoryBytes();
+
+    /**
+     * Сбрасывает изменения на диск, если хранилище файловое.
+     */
+    default void flush() throws IOException {
+    }
+
+    @Override
+    default void close() throws IOException {
+    }
+
+    /**
+     * Копирует содержимое таблицы в массив четвёрок [messageId, userBotId, chatId, touchedAt].
+     */
+    default long[] toRecords() {
+        long[] records = new long[size() * 4];
+        int i = 0;
+        for (int slot = 0; slot < capacity(); slot++) {
+            long key = keyAt(slot);
+            if (key != 0L) {
+                records[i++] = key;
+                records[i++] = userBotIdAt(slot);
+                records[i++] = chatIdAt(slot);
+                records[i++] = touchedAt(slot);
+            }
+        }
+        return records;
+    }
+}
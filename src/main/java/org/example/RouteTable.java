@@ -0,0 +1,193 @@
+package org.example;
+
+/**
+ * Хэш-таблица с открытой адресацией: id сообщения бота → (api_id юзербота, id чата).
+ * Для политики хранения рядом лежит минута последнего обращения к маршруту.
+ * Данные лежат в параллельных массивах примитивов, поэтому запись не создаёт объектов,
+ * а поиск не распаковывает значения. Коллизии разрешаются линейным пробированием,
+ * удаление выполняется сдвигом хвоста кластера (без «надгробий»).
+ *
+ * Ключ 0 служит признаком пустого слота: id сообщений в Telegram всегда положительны.
+ * Таблица хранится в куче; её состояние восстанавливается из {@link MessageJournal}.
+ */
+class RouteTable implements RouteStore {
+
+    private static final long EMPTY = 0L;
+    private static final int MIN_CAPACITY = 16;
+    // При заполнении выше 3/4 таблица увеличивается вдвое
+    private static final int LOAD_FACTOR_PERCENT = 75;
+
+    private long[] keys;
+    private long[] userBotIds;
+    private long[] chatIds;
+    private int[] touchedAt;
+    private int mask;
+    private int size;
+    private int resizeAt;
+
+    RouteTable() {
+        this(MIN_CAPACITY);
+    }
+
+    RouteTable(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    /**
+     * Возвращает номер слота для ключа или -1, если ключа нет.
+     * Значения читаются через {@link #userBotIdAt(int)} и {@link #chatIdAt(int)}.
+     */
+    @Override
+    public int indexOf(long key) {
+        if (key == EMPTY) {
+            return -1;
+        }
+        for (int slot = slotOf(key); ; slot = (slot + 1) & mask) {
+            long current = keys[slot];
+            if (current == key) {
+                return slot;
+            }
+            if (current == EMPTY) {
+                return -1;
+            }
+        }
+    }
+
+    @Override
+    public long userBotIdAt(int slot) {
+        return userBotIds[slot];
+    }
+
+    @Override
+    public long chatIdAt(int slot) {
+        return chatIds[slot];
+    }
+
+    @Override
+    public int touchedAt(int slot) {
+        return touchedAt[slot];
+    }
+
+    @Override
+    public void touch(int slot, int minute) {
+        touchedAt[slot] = minute;
+    }
+
+    @Override
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    @Override
+    public int capacity() {
+        return keys.length;
+    }
+
+    @Override
+    public void put(long key, long userBotId, long chatId, int minute) {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("Идентификатор сообщения не может быть 0");
+        }
+        int slot = slotOf(key);
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        boolean added = keys[slot] == EMPTY;
+        keys[slot] = key;
+        userBotIds[slot] = userBotId;
+        chatIds[slot] = chatId;
+        touchedAt[slot] = minute;
+        if (added && ++size > resizeAt) {
+            rehash(keys.length * 2);
+        }
+    }
+
+    /**
+     * Удаляет ключ. Следующие за ним элементы кластера сдвигаются назад,
+     * чтобы цепочки пробирования оставались непрерывными.
+     *
+     * @return true, если ключ присутствовал
+     */
+    @Override
+    public boolean remove(long key) {
+        int slot = indexOf(key);
+        if (slot < 0) {
+            return false;
+        }
+        int gap = slot;
+        for (int next = (gap + 1) & mask; keys[next] != EMPTY; next = (next + 1) & mask) {
+            int home = slotOf(keys[next]);
+            // Элемент можно перенести в дыру, если его «домашний» слот не лежит между дырой и ним
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                userBotIds[gap] = userBotIds[next];
+                chatIds[gap] = chatIds[next];
+                touchedAt[gap] = touchedAt[next];
+                gap = next;
+            }
+        }
+        keys[gap] = EMPTY;
+        userBotIds[gap] = 0L;
+        chatIds[gap] = 0L;
+        touchedAt[gap] = 0;
+        size--;
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Объём памяти, занимаемый массивами таблицы, в байтах.
+     */
+    @Override
+    public long memoryBytes() {
+        return (long) keys.length * (3 * Long.BYTES + Integer.BYTES);
+    }
+
+    private int slotOf(long key) {
+        // Перемешивание Фибоначчи: последовательные id сообщений не образуют кластеров
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = keys;
+        long[] oldUserBotIds = userBotIds;
+        long[] oldChatIds = chatIds;
+        int[] oldTouchedAt = touchedAt;
+        allocate(newCapacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key != EMPTY) {
+                int slot = slotOf(key);
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                userBotIds[slot] = oldUserBotIds[i];
+                chatIds[slot] = oldChatIds[i];
+                touchedAt[slot] = oldTouchedAt[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        userBotIds = new long[capacity];
+        chatIds = new long[capacity];
+        touchedAt = new int[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) ((long) capacity * LOAD_FACTOR_PERCENT / 100);
+    }
+
+    private static int capacityFor(int expectedSize) {
+        long needed = Math.max(MIN_CAPACITY, (long) expectedSize * 100 / LOAD_FACTOR_PERCENT + 1);
+        if (needed > (1 << 30)) {
+            throw new IllegalArgumentException("Слишком много записей: " + expectedSize);
+        }
+        return Integer.highestOneBit((int) needed - 1) << 1;
+    }
+}
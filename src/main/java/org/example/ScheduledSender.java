@@ -0,0 +1,324 @@
+package org.example;
+
+import com.google.gson.Gson;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Отложенные сообщения, которые отправляются из аккаунтов юзерботов в заданное время.
+ *
+ * Сроки хранятся в {@link TimingWheel}: добавление и отмена стоят O(1) при любом числе отложенных сообщений,
+ * а всё, что наступило в одном тике, отправляется одной пачкой. Каждое добавление и выполнение записывается
+ * строкой JSON в журнал; при запуске журнал перечитывается и переписывается компактно, поэтому отложенные
+ * сообщения переживают перезапуск. Во время работы журнал переписывается, когда выполненных записей в нём
+ * становится заметно больше, чем ожидающих. Сообщения, срок которых прошёл, пока программа не работала, уходят сразу.
+ * Спящий аккаунт будится через {@link SessionManager}.
+ */
+public class ScheduledSender implements AutoCloseable {
+
+    private static final long TICK_MS = 100;
+    // Журнал переписывается, когда в нём не меньше стольких строк выполненных и отменённых сообщений
+    private static final int COMPACT_MIN_DEAD = 1000;
+    // ... и их больше, чем ожидающих, в столько раз
+    private static final int COMPACT_DEAD_RATIO = 2;
+
+    /**
+     * Отложенное сообщение: аккаунт, чат, текст и время отправки (мс от эпохи).
+     */
+    public record Entry(long id, long account, long chatId, String text, long dueAtMillis) {
+    }
+
+    /**
+     * Строка журнала: добавление (entry) или выполнение/отмена (id).
+     */
+    private static final class JournalRecord {
+        String op;
+        Entry entry;
+        Long id;
+    }
+
+    private final Path file;
+    private final SessionManager sessions;
+    private final Gson gson = new Gson();
+    private final TimingWheel<Entry> wheel;
+    private final Map<Long, TimingWheel.Timeout<Entry>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final Object journalLock = new Object();
+    private BufferedWriter journal;
+    // Ожидающие сообщения по содержимому журнала и число строк в нём; меняются под journalLock
+    private final Map<Long, Entry> journaled = new LinkedHashMap<>();
+    private long journalRecords;
+
+    private final LongAdder fired = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder compactions = new LongAdder();
+    private final LongAdder timersFired = new LongAdder();
+    private final LongAdder driftNanos = new LongAdder();
+    private final AtomicLong maxDriftNanos = new AtomicLong();
+
+    /**
+     * @param file     журнал отложенных сообщений
+     * @param sessions сессии аккаунтов, через которые отправляются сообщения
+     * @throws IOException если журнал не удалось прочитать или открыть
+     */
+    public ScheduledSender(Path file, SessionManager sessions) throws IOException {
+        this.file = file;
+        this.sessions = sessions;
+        this.wheel = new TimingWheel<>(TICK_MS, TimeUnit.MILLISECONDS, "scheduled-sends", this::fire);
+        Map<Long, Entry> restored = load();
+        synchronized (journalLock) {
+            journaled.putAll(restored);
+            compact();
+        }
+        for (Entry entry : restored.values()) {
+            nextId.accumulateAndGet(entry.id(), Math::max);
+            add(entry, deadlineNanos(entry.dueAtMillis()));
+        }
+        if (!restored.isEmpty()) {
+            Main.logger.info("Восстановлено отложенных сообщений: " + restored.size());
+        }
+    }
+
+    private Map<Long, Entry> load() throws IOException {
+        Map<Long, Entry> entries = new LinkedHashMap<>();
+        if (!Files.exists(file)) {
+            return entries;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                JournalRecord record;
+                try {
+                    record = gson.fromJson(line, JournalRecord.class);
+                } catch (RuntimeException e) {
+                    // Недописанная последняя строка после аварийного завершения
+                    Main.logger.warning("Пропущена повреждённая строка журнала " + file + ": " + e);
+                    continue;
+                }
+                if ("add".equals(record.op) && record.entry != null) {
+                    entries.put(record.entry.id(), record.entry);
+                } else if ("done".equals(record.op) && record.id != null) {
+                    entries.remove(record.id);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Переписывает журнал одними записями ожидающих сообщений и заново открывает его на дозапись.
+     * Вызывается под journalLock.
+     */
+    private void compact() throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Entry entry : journaled.values()) {
+                writer.write(gson.toJson(addRecord(entry)));
+                writer.newLine();
+            }
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            journalRecords = journaled.size();
+        } finally {
+            // Если подмена не удалась, дозапись продолжается в прежний журнал
+            journal = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+    }
+
+    private static JournalRecord addRecord(Entry entry) {
+        JournalRecord record = new JournalRecord();
+        record.op = "add";
+        record.entry = entry;
+        return record;
+    }
+
+    private void append(JournalRecord record) {
+        synchronized (journalLock) {
+            if ("add".equals(record.op)) {
+                journaled.put(record.entry.id(), record.entry);
+            } else {
+                journaled.remove(record.id);
+            }
+            try {
+                journal.write(gson.toJson(record));
+                journal.newLine();
+                journal.flush();
+                journalRecords++;
+                long dead = journalRecords - journaled.size();
+                if (dead >= COMPACT_MIN_DEAD && dead > (long) journaled.size() * COMPACT_DEAD_RATIO) {
+                    compact();
+                    compactions.increment();
+                }
+            } catch (IOException e) {
+                Main.logger.warning("Не удалось записать журнал отложенных сообщений: " + e);
+            }
+        }
+    }
+
+    private static long deadlineNanos(long dueAtMillis) {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(dueAtMillis - System.currentTimeMillis());
+    }
+
+    /**
+     * Откладывает сообщение.
+     *
+     * @param account api_id аккаунта, из которого будет отправлено сообщение
+     * @param chatId  чат аккаунта
+     * @param text    текст сообщения
+     * @param delay   через сколько отправить
+     * @return добавленное сообщение
+     */
+    public Entry schedule(long account, long chatId, String text, Duration delay) {
+        Entry entry = new Entry(nextId.incrementAndGet(), account, chatId, text, System.currentTimeMillis() + delay.toMillis());
+        append(addRecord(entry));
+        add(entry, System.nanoTime() + delay.toNanos());
+        return entry;
+    }
+
+    private void add(Entry entry, long deadlineNanos) {
+        // Под блокировкой колеса: задача не может сработать раньше, чем попадёт в pending
+        synchronized (wheel) {
+            pending.put(entry.id(), wheel.schedule(entry, deadlineNanos));
+        }
+    }
+
+    /**
+     * Отменяет отложенное сообщение.
+     *
+     * Судьбу сообщения решает тот, кто первым убрал его из pending: {@link #fire} пропускает уже убранные
+     * записи, поэтому после успешного remove сообщение не отправится и отмена записывается в журнал,
+     * даже если колесо успело вынуть таймер.
+     *
+     * @return false, если сообщения нет или оно уже отправлено
+     */
+    public boolean cancel(long id) {
+        TimingWheel.Timeout<Entry> timeout = pending.remove(id);
+        if (timeout == null) {
+            return false;
+        }
+        wheel.cancel(timeout);
+        append(doneRecord(id));
+        return true;
+    }
+
+    private static JournalRecord doneRecord(long id) {
+        JournalRecord record = new JournalRecord();
+        record.op = "done";
+        record.id = id;
+        return record;
+    }
+
+    /**
+     * Отложенные сообщения в порядке времени отправки.
+     */
+    public List<Entry> pending() {
+        List<Entry> entries = new ArrayList<>();
+        for (TimingWheel.Timeout<Entry> timeout : pending.values()) {
+            entries.add(timeout.value());
+        }
+        entries.sort(Comparator.comparingLong(Entry::dueAtMillis));
+        return entries;
+    }
+
+    /**
+     * Отправляет пачку сообщений, срок которых наступил в одном тике. Вызывается потоком колеса.
+     */
+    private void fire(List<TimingWheel.Timeout<Entry>> due) {
+        batches.increment();
+        long now = System.nanoTime();
+        for (TimingWheel.Timeout<Entry> timeout : due) {
+            Entry entry = timeout.value();
+            if (pending.remove(entry.id()) == null) {
+                continue;
+            }
+            long drift = now - timeout.deadlineNanos();
+            timersFired.increment();
+            driftNanos.add(drift);
+            maxDriftNanos.accumulateAndGet(drift, Math::max);
+            sessions.acquire(entry.account())
+                    .thenCompose(userBot -> userBot.sendMessage(entry.chatId(), entry.text()))
+                    .whenComplete((sent, error) -> {
+                        sessions.release(entry.account());
+                        if (error != null) {
+                            failed.increment();
+                            Main.logger.warning("Не удалось отправить отложенное сообщение " + entry.id() + ": " + error);
+                        } else {
+                            fired.increment();
+                        }
+                        // Неудачная отправка не повторяется, чтобы сообщение не ушло с большим опозданием
+                        append(doneRecord(entry.id()));
+                    });
+        }
+    }
+
+    /**
+     * Разбирает задержку вида 90s, 30m, 2h или 1d.
+     *
+     * @throws IllegalArgumentException если формат не распознан
+     */
+    public static Duration parseDelay(String text) {
+        if (text.length() < 2) {
+            throw new IllegalArgumentException("Неверная задержка: " + text);
+        }
+        long amount;
+        try {
+            amount = Long.parseLong(text.substring(0, text.length() - 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Неверная задержка: " + text);
+        }
+        if (amount < 0) {
+            throw new IllegalArgumentException("Неверная задержка: " + text);
+        }
+        return switch (text.charAt(text.length() - 1)) {
+            case 's' -> Duration.ofSeconds(amount);
+            case 'm' -> Duration.ofMinutes(amount);
+            case 'h' -> Duration.ofHours(amount);
+            case 'd' -> Duration.ofDays(amount);
+            default -> throw new IllegalArgumentException("Неверная задержка: " + text + " (нужно s, m, h или d)");
+        };
+    }
+
+    public String statsSummary() {
+        long timers = timersFired.sum();
+        return "ожидают " + pending.size() + ", отправлено " + fired.sum() + ", ошибок " + failed.sum()
+                + ", пачек " + batches.sum() + ", сжатий журнала " + compactions.sum() + ", опоздание таймера: среднее "
+                + (timers > 0 ? driftNanos.sum() / timers / 1_000_000 : 0)
+                + " мс, максимальное " + maxDriftNanos.get() / 1_000_000 + " мс";
+    }
+
+    /**
+     * Останавливает колесо; ожидающие сообщения остаются в журнале и будут восстановлены при запуске.
+     */
+    @Override
+    public void close() throws IOException {
+        wheel.close();
+        synchronized (journalLock) {
+            journal.close();
+        }
+    }
+}
@@ -0,0 +1,591 @@
+package org.example;
+
+import com.google.gson.Gson;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
+
+/**
+ * Полнотекстовый поиск по пересланным сообщениям и ответам администратора (/search).
+ *
+ * Индекс устроен как набор неизменяемых сегментов на диске ({@link SearchSegment}) и буфер в памяти.
+ * Новые документы попадают в буфер и в его журнал (строка JSON на документ), поэтому не теряются при перезапуске;
+ * заполненный буфер записывается новым сегментом. Когда накапливается {@code MERGE_FACTOR} сегментов
+ * одного порядка размера, они сливаются в один, так что сегментов остаётся O(log n) и поиск
+ * при миллионах сообщений проверяет несколько десятков словарей.
+ *
+ * Индексирование идёт на отдельном потоке через ограниченную очередь: вызывающий поток (конвейер пересылки)
+ * только ставит документ в очередь и никогда не ждёт; при переполнении документ отбрасывается и учитывается
+ * в статистике. Поиск выполняется на вызывающем потоке и не мешает индексированию.
+ */
+public class SearchIndex implements AutoCloseable {
+
+    private static final int QUEUE_CAPACITY = 10000;
+    private static final int MERGE_FACTOR = 10;
+    // Смещения в сегменте 32-битные: слитый сегмент не должен приближаться к 2 ГБ
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+    private static final int MAX_TEXT_LENGTH = 1000;
+    private static final int MAX_LABEL_LENGTH = 128;
+    private static final int MAX_PREFIX_TERMS = 256;
+
+    /**
+     * Проиндексированное сообщение: аккаунт и чат, сообщение бота в чате администратора,
+     * время, направление (входящее или ответ администратора), отправитель и текст.
+     */
+    public record Document(long account, long chatId, long botMessageId, long timeMillis, boolean outgoing,
+                           String label, String text) {
+    }
+
+    /**
+     * Терм запроса: слово или начало слова (запрос со {@code *}).
+     */
+    private record QueryTerm(String term, boolean prefix) {
+    }
+
+    /**
+     * Растущий массив номеров документов буфера.
+     */
+    private static final class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    /**
+     * Буфер в памяти: документы с номерами от firstDocId и их термы. Изменяется только потоком индексирования
+     * под блокировкой индекса; после заморозки (запись в сегмент) не изменяется.
+     * Термы упорядочены так же, как в сегменте, поэтому поиск по началу слова читает один диапазон словаря:
+     * в термах только буквы и цифры без суррогатных пар, и для них порядок строк совпадает с беззнаковым
+     * порядком байт UTF-8.
+     */
+    private static final class Memtable {
+        final long firstDocId;
+        final Path journalPath;
+        final List<Document> documents = new ArrayList<>();
+        final NavigableMap<String, IntList> postings = new TreeMap<>();
+        BufferedWriter journal;
+
+        Memtable(long firstDocId, Path journalPath) {
+            this.firstDocId = firstDocId;
+            this.journalPath = journalPath;
+        }
+
+        /**
+         * @param document документ с сохраняемым началом текста
+         * @param text     полный текст, из которого берутся термы
+         */
+        void add(Document document, String text) {
+            int local = documents.size();
+            documents.add(document);
+            for (String term : SearchTokenizer.tokens(text, true)) {
+                IntList list = postings.computeIfAbsent(term, k -> new IntList());
+                // Повтор терма в том же документе не добавляет номер дважды
+                if (list.size == 0 || list.values[list.size - 1] != local) {
+                    list.add(local);
+                }
+            }
+        }
+
+        /**
+         * Документы буфера с термом запроса, по убыванию номеров.
+         */
+        SearchSegment.DocIterator postings(QueryTerm query) {
+            if (!query.prefix()) {
+                IntList list = postings.get(query.term());
+                int size = list != null ? list.size : 0;
+                int[] docs = new int[size];
+                for (int i = 0; i < size; i++) {
+                    docs[i] = list.values[size - 1 - i];
+                }
+                return new SearchSegment.ArrayIterator(docs);
+            }
+            BitSet found = new BitSet(documents.size());
+            int terms = 0;
+            for (IntList list : prefixRange(query.term()).values()) {
+                if (terms++ == MAX_PREFIX_TERMS) {
+                    break;
+                }
+                for (int i = 0; i < list.size; i++) {
+                    found.set(list.values[i]);
+                }
+            }
+            return new SearchSegment.ArrayIterator(SearchSegment.descending(found));
+        }
+
+        /**
+         * Термы с заданным началом: от самого начала до следующей за ним строки, исключительно.
+         */
+        private SortedMap<String, IntList> prefixRange(String prefix) {
+            // Последний символ терма — буква или цифра, поэтому следующий за ним символ существует
+            String next = prefix.substring(0, prefix.length() - 1) + (char) (prefix.charAt(prefix.length() - 1) + 1);
+            return postings.subMap(prefix, true, next, false);
+        }
+    }
+
+    /**
+     * Сегменты по возрастанию номеров и замороженный буфер, который сейчас записывается в сегмент.
+     */
+    private record State(List<SearchSegment> segments, Memtable flushing) {
+    }
+
+    private final Path directory;
+    private final int flushDocs;
+    private final Gson gson = new Gson();
+    private final ThreadPoolExecutor executor;
+    // Защищает active и state: поиск видит их согласованными
+    private final Object lock = new Object();
+    private Memtable active;
+    private volatile State state;
+
+    private final LongAdder indexed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder indexNanos = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder merges = new LongAdder();
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder searchNanos = new LongAdder();
+    private final AtomicLong maxSearchNanos = new AtomicLong();
+
+    /**
+     * @param directory каталог индекса; создаётся, если его нет
+     * @param flushDocs сколько документов копить в памяти до записи сегмента
+     * @throws IOException если каталог или сегменты не удалось прочитать
+     */
+    public SearchIndex(Path directory, int flushDocs) throws IOException {
+        this.directory = directory;
+        this.flushDocs = Math.max(1, flushDocs);
+        Files.createDirectories(directory);
+        List<SearchSegment> segments = loadSegments();
+        long nextDocId = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).endDocId();
+        this.state = new State(List.copyOf(segments), null);
+        this.active = new Memtable(nextDocId, journalPath(nextDocId));
+        replayJournals(nextDocId);
+        this.active.journal = openJournal(this.active.journalPath);
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+                r -> {
+                    Thread thread = new Thread(r, "search-index");
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (r, executor) -> dropped.increment());
+    }
+
+    /**
+     * Открывает сегменты каталога. Сегменты, покрытые более крупным (остались от прерванного слияния), удаляются.
+     */
+    private List<SearchSegment> loadSegments() throws IOException {
+        List<SearchSegment> found = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                if (file.getFileName().toString().endsWith(".tmp")) {
+                    Files.deleteIfExists(file);
+                } else if (SearchSegment.isSegmentFile(file)) {
+                    try {
+                        found.add(SearchSegment.open(file));
+                    } catch (IOException e) {
+                        Main.logger.warning("Пропущен сегмент поиска " + file + ": " + e);
+                    }
+                }
+            }
+        }
+        found.sort(Comparator.comparingLong(SearchSegment::firstDocId)
+                .thenComparing(Comparator.comparingInt(SearchSegment::docCount).reversed()));
+        List<SearchSegment> segments = new ArrayList<>();
+        for (SearchSegment segment : found) {
+            if (!segments.isEmpty() && segment.endDocId() <= segments.get(segments.size() - 1).endDocId()) {
+                Files.deleteIfExists(segment.path());
+                continue;
+            }
+            segments.add(segment);
+        }
+        return segments;
+    }
+
+    /**
+     * Переносит в новый буфер документы из журналов буферов, не успевших стать сегментами.
+     */
+    private void replayJournals(long nextDocId) throws IOException {
+        List<Path> journals = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "pending-*.log")) {
+            files.forEach(journals::add);
+        }
+        journals.sort(Comparator.comparingLong(SearchIndex::journalFirstDocId));
+        for (Path journal : journals) {
+            long docId = journalFirstDocId(journal);
+            try (BufferedReader reader = Files.newBufferedReader(journal, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isBlank()) {
+                        continue;
+                    }
+                    Document document;
+                    try {
+                        document = gson.fromJson(line, Document.class);
+                    } catch (RuntimeException e) {
+                        // Недописанная последняя строка после аварийного завершения
+                        Main.logger.warning("Пропущена повреждённая строка журнала " + journal + ": " + e);
+                        continue;
+                    }
+                    // Документы, уже записанные в сегмент до сбоя, не дублируются
+                    if (docId++ >= nextDocId && document != null) {
+                        active.add(document, document.text());
+                    }
+                }
+            }
+        }
+        if (!active.documents.isEmpty()) {
+            Main.logger.info("Восстановлено документов поиска из журнала: " + active.documents.size());
+        }
+        // Восстановленные документы переписываются в журнал нового буфера, старые журналы удаляются
+        Path temp = active.journalPath.resolveSibling(active.journalPath.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Document document : active.documents) {
+                writer.write(gson.toJson(document));
+                writer.newLine();
+            }
+        }
+        for (Path journal : journals) {
+            Files.deleteIfExists(journal);
+        }
+        Files.move(temp, active.journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static BufferedWriter openJournal(Path path) throws IOException {
+        return Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private Path journalPath(long firstDocId) {
+        return directory.resolve(String.format("pending-%019d.log", firstDocId));
+    }
+
+    private static long journalFirstDocId(Path journal) {
+        String name = journal.getFileName().toString();
+        return Long.parseLong(name.substring("pending-".length(), name.length() - ".log".length()));
+    }
+
+    private Path segmentPath(long firstDocId, long endDocId) {
+        return directory.resolve(String.format("segment-%019d-%019d.seg", firstDocId, endDocId));
+    }
+
+    /**
+     * Ставит сообщение в очередь индексирования. Не блокирует: при переполненной очереди сообщение
+     * не индексируется.
+     */
+    public void add(long account, long chatId, long botMessageId, long timeMillis, boolean outgoing, String label, String text) {
+        if (text == null || text.isBlank()) {
+            return;
+        }
+        Document document = new Document(account, chatId, botMessageId, timeMillis, outgoing,
+                truncate(label, MAX_LABEL_LENGTH), truncate(text, MAX_TEXT_LENGTH));
+        executor.execute(() -> index(document, text));
+    }
+
+    private static String truncate(String text, int length) {
+        if (text == null) {
+            return "";
+        }
+        return text.length() > length ? text.substring(0, length) : text;
+    }
+
+    /**
+     * Добавляет документ в буфер; выполняется потоком индексирования.
+     * Термы берутся из полного текста, хранится его начало.
+     */
+    private void index(Document document, String fullText) {
+        long started = System.nanoTime();
+        try {
+            active.journal.write(gson.toJson(document));
+            active.journal.newLine();
+            active.journal.flush();
+        } catch (IOException e) {
+            Main.logger.warning("Не удалось записать журнал поиска: " + e);
+        }
+        synchronized (lock) {
+            active.add(document, fullText);
+        }
+        indexed.increment();
+        indexNanos.add(System.nanoTime() - started);
+        if (active.documents.size() >= flushDocs) {
+            try {
+                flush();
+            } catch (IOException e) {
+                Main.logger.warning("Не удалось записать сегмент поиска: " + e);
+            }
+        }
+    }
+
+    /**
+     * Записывает буфер сегментом и при необходимости сливает сегменты. Выполняется потоком индексирования.
+     */
+    private void flush() throws IOException {
+        Memtable frozen;
+        synchronized (lock) {
+            frozen = active;
+            long next = frozen.firstDocId + frozen.documents.size();
+            active = new Memtable(next, journalPath(next));
+            active.journal = openJournal(active.journalPath);
+            state = new State(state.segments(), frozen);
+        }
+        frozen.journal.close();
+
+        List<SearchSegment.Term> terms = new ArrayList<>(frozen.postings.size());
+        for (Map.Entry<String, IntList> entry : frozen.postings.entrySet()) {
+            IntList list = entry.getValue();
+            int[] docs = new int[list.size];
+            for (int i = 0; i < list.size; i++) {
+                docs[i] = list.values[list.size - 1 - i];
+            }
+            terms.add(new SearchSegment.Term(entry.getKey().getBytes(StandardCharsets.UTF_8), docs));
+        }
+        // Словарь буфера уже упорядочен по байтам UTF-8, как того требует сегмент
+        long end = frozen.firstDocId + frozen.documents.size();
+        SearchSegment segment = SearchSegment.write(segmentPath(frozen.firstDocId, end), frozen.firstDocId, frozen.documents, terms);
+        synchronized (lock) {
+            List<SearchSegment> segments = new ArrayList<>(state.segments());
+            segments.add(segment);
+            state = new State(List.copyOf(segments), null);
+        }
+        Files.deleteIfExists(frozen.journalPath);
+        flushes.increment();
+        while (mergeTail()) {
+            merges.increment();
+        }
+    }
+
+    /**
+     * Сливает последние MERGE_FACTOR сегментов, если они одного порядка размера.
+     *
+     * @return true, если слияние выполнено
+     */
+    private boolean mergeTail() throws IOException {
+        List<SearchSegment> segments = state.segments();
+        if (segments.size() < MERGE_FACTOR) {
+            return false;
+        }
+        List<SearchSegment> tail = segments.subList(segments.size() - MERGE_FACTOR, segments.size());
+        int tier = tier(tail.get(0).docCount());
+        long bytes = 0;
+        for (SearchSegment segment : tail) {
+            if (tier(segment.docCount()) != tier) {
+                return false;
+            }
+            bytes += segment.sizeBytes();
+        }
+        if (bytes > MAX_SEGMENT_BYTES) {
+            return false;
+        }
+        List<SearchSegment> merging = List.copyOf(tail);
+        SearchSegment first = merging.get(0);
+        SearchSegment merged = SearchSegment.merge(
+                segmentPath(first.firstDocId(), merging.get(merging.size() - 1).endDocId()), merging);
+        synchronized (lock) {
+            List<SearchSegment> current = new ArrayList<>(state.segments());
+            current.subList(current.size() - MERGE_FACTOR, current.size()).clear();
+            current.add(merged);
+            state = new State(List.copyOf(current), state.flushing());
+        }
+        // Поиск, уже читающий старые сегменты, продолжает работать: отображение в память переживает удаление файла
+        for (SearchSegment segment : merging) {
+            Files.deleteIfExists(segment.path());
+        }
+        return true;
+    }
+
+    /**
+     * Порядок размера сегмента относительно буфера: 0 — до MERGE_FACTOR буферов, 1 — до MERGE_FACTOR², ...
+     */
+    private int tier(int docCount) {
+        int tier = 0;
+        long limit = (long) flushDocs * MERGE_FACTOR;
+        while (docCount >= limit) {
+            tier++;
+            limit *= MERGE_FACTOR;
+        }
+        return tier;
+    }
+
+    /**
+     * Ищет сообщения, содержащие все слова запроса (слово со {@code *} на конце — по началу слова).
+     *
+     * @param query   запрос
+     * @param account api_id аккаунта или 0 для всех аккаунтов
+     * @param limit   сколько сообщений вернуть
+     * @return найденные сообщения, новые первыми
+     * @throws IllegalArgumentException если в запросе нет слов
+     */
+    public List<Document> search(String query, long account, int limit) {
+        long started = System.nanoTime();
+        List<QueryTerm> terms = parse(query);
+        List<Document> found = new ArrayList<>();
+        State snapshot;
+        synchronized (lock) {
+            collect(active, terms, account, limit, found);
+            snapshot = state;
+        }
+        if (snapshot.flushing() != null) {
+            collect(snapshot.flushing(), terms, account, limit, found);
+        }
+        List<SearchSegment> segments = snapshot.segments();
+        for (int i = segments.size() - 1; i >= 0 && found.size() < limit; i--) {
+            collect(segments.get(i), terms, account, limit, found);
+        }
+        long elapsed = System.nanoTime() - started;
+        searches.increment();
+        searchNanos.add(elapsed);
+        maxSearchNanos.accumulateAndGet(elapsed, Math::max);
+        return found;
+    }
+
+    private static List<QueryTerm> parse(String query) {
+        List<QueryTerm> terms = new ArrayList<>();
+        for (String word : query.trim().split("\\s+")) {
+            boolean prefix = word.endsWith("*");
+            List<String> tokens = SearchTokenizer.tokens(word, !prefix);
+            for (int i = 0; i < tokens.size(); i++) {
+                terms.add(new QueryTerm(tokens.get(i), prefix && i == tokens.size() - 1));
+            }
+        }
+        if (terms.isEmpty()) {
+            throw new IllegalArgumentException("В запросе нет слов");
+        }
+        return terms;
+    }
+
+    private static void collect(Memtable memtable, List<QueryTerm> terms, long account, int limit, List<Document> found) {
+        if (found.size() >= limit || memtable.documents.isEmpty()) {
+            return;
+        }
+        SearchSegment.DocIterator[] iterators = new SearchSegment.DocIterator[terms.size()];
+        for (int i = 0; i < terms.size(); i++) {
+            iterators[i] = memtable.postings(terms.get(i));
+        }
+        intersect(iterators, doc -> {
+            Document document = memtable.documents.get(doc);
+            if (account == 0 || document.account() == account) {
+                found.add(document);
+            }
+            return found.size() < limit;
+        });
+    }
+
+    private static void collect(SearchSegment segment, List<QueryTerm> terms, long account, int limit, List<Document> found) {
+        SearchSegment.DocIterator[] iterators = new SearchSegment.DocIterator[terms.size()];
+        for (int i = 0; i < terms.size(); i++) {
+            byte[] term = terms.get(i).term().getBytes(StandardCharsets.UTF_8);
+            iterators[i] = terms.get(i).prefix() ? segment.prefixPostings(term, MAX_PREFIX_TERMS) : segment.postings(term);
+            if (iterators[i].cost() == 0) {
+                return;
+            }
+        }
+        intersect(iterators, doc -> {
+            if (account == 0 || segment.account(doc) == account) {
+                found.add(segment.document(doc));
+            }
+            return found.size() < limit;
+        });
+    }
+
+    /**
+     * Пересечение убывающих списков «чехардой»: ведёт самый короткий, остальные догоняют его через advance.
+     * Номера декодируются лениво, поэтому обход заканчивается, как только consumer набрал нужное число сообщений.
+     *
+     * @param consumer получает общие номера от новых к старым; возвращает false, чтобы остановить обход
+     */
+    private static void intersect(SearchSegment.DocIterator[] iterators, IntPredicate consumer) {
+        Arrays.sort(iterators, Comparator.comparingInt(SearchSegment.DocIterator::cost));
+        SearchSegment.DocIterator lead = iterators[0];
+        int doc = lead.next();
+        while (doc >= 0) {
+            int agreed = doc;
+            for (int i = 1; i < iterators.length && agreed == doc; i++) {
+                agreed = iterators[i].advance(doc);
+            }
+            if (agreed < 0) {
+                return;
+            }
+            if (agreed == doc) {
+                if (!consumer.test(doc)) {
+                    return;
+                }
+                doc = lead.next();
+            } else {
+                doc = lead.advance(agreed);
+            }
+        }
+    }
+
+    /**
+     * Число документов, ожидающих индексирования.
+     */
+    public int queueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public String statsSummary() {
+        State snapshot = state;
+        long documents = 0;
+        long bytes = 0;
+        for (SearchSegment segment : snapshot.segments()) {
+            documents += segment.docCount();
+            bytes += segment.sizeBytes();
+        }
+        int buffered;
+        synchronized (lock) {
+            buffered = active.documents.size();
+        }
+        long count = indexed.sum();
+        long searchCount = searches.sum();
+        return "документов " + (documents + buffered) + " (в буфере " + buffered + "), сегментов " + snapshot.segments().size()
+                + " (" + bytes / (1024 * 1024) + " МБ), в очереди " + queueDepth() + ", отброшено " + dropped.sum()
+                + ", индексирование: среднее " + (count > 0 ? indexNanos.sum() / count / 1000 : 0) + " мкс"
+                + ", записей сегментов " + flushes.sum() + ", слияний " + merges.sum()
+                + ", поисков " + searchCount + ", время поиска: среднее "
+                + String.format("%.2f", searchCount > 0 ? searchNanos.sum() / searchCount / 1e6 : 0.0)
+                + " мс, максимальное " + String.format("%.2f", maxSearchNanos.get() / 1e6) + " мс";
+    }
+
+    /**
+     * Дожидается индексирования принятых документов и закрывает журнал буфера.
+     * Буфер не записывается сегментом: при следующем запуске он восстанавливается из журнала.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        synchronized (lock) {
+            try {
+                active.journal.close();
+            } catch (IOException e) {
+                Main.logger.warning("Ошибка закрытия журнала поиска: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,562 @@
+package org.example;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Неизменяемый сегмент поискового индекса на диске.
+ *
+ * Сегмент покрывает непрерывный диапазон номеров документов и содержит сами документы и инвертированный индекс:
+ * словарь термов, отсортированный по байтам UTF-8, и для каждого терма убывающий список локальных номеров
+ * документов, записанный разностями в varint. Убывающий порядок позволяет читать список с новых сообщений
+ * и останавливаться, как только найдено достаточно; каждые {@code SKIP_INTERVAL} номеров в таблице пропусков
+ * записаны номер и смещение, по которым пересечение со списком частого слова перескакивает целые блоки.
+ * Файл отображается в память; в куче держится только описание сегмента, поиск терма — бинарный поиск
+ * по таблице смещений словаря.
+ *
+ * Формат: [magic, version] документы, таблица смещений документов, термы, таблица смещений термов,
+ * в конце — [docCount, termCount, firstDocId, docIndexOffset, termIndexOffset, magic].
+ */
+final class SearchSegment {
+
+    private static final int MAGIC = 0x53524348; // "SRCH"
+    private static final int VERSION = 1;
+    private static final int FOOTER_SIZE = 28;
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+    private static final int SKIP_INTERVAL = 128;
+
+    /**
+     * Терм и его убывающий список документов для записи сегмента.
+     */
+    record Term(byte[] term, int[] postings) {
+    }
+
+    /**
+     * Обход убывающего списка номеров документов.
+     */
+    interface DocIterator {
+        /**
+         * Следующий номер или -1, если список закончился.
+         */
+        int next();
+
+        /**
+         * Первый номер, не больший target, начиная с текущего; -1, если таких нет.
+         */
+        int advance(int target);
+
+        /**
+         * Длина списка: пересечение начинается с самого короткого.
+         */
+        int cost();
+    }
+
+    /**
+     * Обход списка, уже находящегося в памяти.
+     */
+    static final class ArrayIterator implements DocIterator {
+        private final int[] docs;
+        private int index = -1;
+
+        /**
+         * @param docs номера по убыванию
+         */
+        ArrayIterator(int[] docs) {
+            this.docs = docs;
+        }
+
+        @Override
+        public int next() {
+            return ++index < docs.length ? docs[index] : -1;
+        }
+
+        @Override
+        public int advance(int target) {
+            if (index < 0) {
+                index = 0;
+            }
+            while (index < docs.length && docs[index] > target) {
+                index++;
+            }
+            return index < docs.length ? docs[index] : -1;
+        }
+
+        @Override
+        public int cost() {
+            return docs.length;
+        }
+    }
+
+    /**
+     * Обход списка в файле: номера декодируются по мере продвижения, блоки пропускаются по таблице пропусков.
+     */
+    private final class PostingIterator implements DocIterator {
+        private final int count;
+        private final int skipTable;
+        private final int skipCount;
+        private final int data;
+        private int position;
+        private int index = -1;
+        private int current = -1;
+        private int nextSkip;
+
+        PostingIterator(int termIndex) {
+            int offset = termOffset(termIndex);
+            offset += 2 + buffer.getShort(offset);
+            this.count = buffer.getInt(offset);
+            this.skipCount = buffer.getInt(offset + 4);
+            this.skipTable = offset + 8;
+            this.data = skipTable + skipCount * 8;
+            this.position = data;
+        }
+
+        @Override
+        public int next() {
+            if (index + 1 >= count) {
+                index = count;
+                return current = -1;
+            }
+            int value = readVarint();
+            current = ++index == 0 ? value : current - value;
+            return current;
+        }
+
+        @Override
+        public int advance(int target) {
+            if (index >= 0 && (current <= target || index >= count)) {
+                return index >= count ? -1 : current;
+            }
+            // Запись пропуска k описывает номер с индексом (k + 1) * SKIP_INTERVAL
+            while (nextSkip < skipCount && (nextSkip + 1) * SKIP_INTERVAL <= index) {
+                nextSkip++;
+            }
+            // Прыжок допустим, пока номер записи не меньше target: все пропущенные номера ещё больше
+            while (nextSkip < skipCount && buffer.getInt(skipTable + nextSkip * 8) >= target) {
+                index = (nextSkip + 1) * SKIP_INTERVAL;
+                current = buffer.getInt(skipTable + nextSkip * 8);
+                position = data + buffer.getInt(skipTable + nextSkip * 8 + 4);
+                nextSkip++;
+            }
+            if (index >= 0 && current <= target) {
+                return current;
+            }
+            int doc;
+            do {
+                doc = next();
+            } while (doc >= 0 && doc > target);
+            return doc;
+        }
+
+        @Override
+        public int cost() {
+            return count;
+        }
+
+        private int readVarint() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get(position++);
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+    }
+
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private final int docCount;
+    private final int termCount;
+    private final long firstDocId;
+    private final int docIndexOffset;
+    private final int termIndexOffset;
+
+    private SearchSegment(Path path, MappedByteBuffer buffer) throws IOException {
+        this.path = path;
+        this.buffer = buffer;
+        int footer = buffer.capacity() - FOOTER_SIZE;
+        if (footer < 8 || buffer.getInt(0) != MAGIC || buffer.getInt(footer + 24) != MAGIC) {
+            throw new IOException("Повреждённый сегмент поиска " + path);
+        }
+        this.docCount = buffer.getInt(footer);
+        this.termCount = buffer.getInt(footer + 4);
+        this.firstDocId = buffer.getLong(footer + 8);
+        this.docIndexOffset = buffer.getInt(footer + 16);
+        this.termIndexOffset = buffer.getInt(footer + 20);
+    }
+
+    static SearchSegment open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new SearchSegment(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Записывает сегмент из документов, собранных в памяти.
+     *
+     * @param path       файл сегмента; пишется через временный файл и атомарно переименовывается
+     * @param firstDocId номер первого документа
+     * @param documents  документы по порядку номеров
+     * @param terms      термы, отсортированные по {@link Arrays#compareUnsigned(byte[], byte[])},
+     *                   со списками документов по убыванию
+     */
+    static SearchSegment write(Path path, long firstDocId, List<SearchIndex.Document> documents, List<Term> terms) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), IO_BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            int[] docOffsets = new int[documents.size()];
+            for (int i = 0; i < documents.size(); i++) {
+                docOffsets[i] = out.size();
+                writeDocument(out, documents.get(i));
+            }
+            int docIndexOffset = writeOffsets(out, docOffsets);
+            int[] termOffsets = new int[terms.size()];
+            for (int i = 0; i < terms.size(); i++) {
+                termOffsets[i] = out.size();
+                writeTerm(out, terms.get(i).term(), terms.get(i).postings());
+            }
+            int termIndexOffset = writeOffsets(out, termOffsets);
+            writeFooter(out, documents.size(), terms.size(), firstDocId, docIndexOffset, termIndexOffset);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return open(path);
+    }
+
+    /**
+     * Сливает соседние сегменты (по возрастанию номеров, без пропусков) в один.
+     * Документы копируются байтами, списки одинаковых термов склеиваются со сдвигом номеров.
+     */
+    static SearchSegment merge(Path path, List<SearchSegment> segments) throws IOException {
+        long firstDocId = segments.get(0).firstDocId;
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), IO_BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            int total = 0;
+            for (SearchSegment segment : segments) {
+                total += segment.docCount;
+            }
+            int[] docOffsets = new int[total];
+            int doc = 0;
+            for (SearchSegment segment : segments) {
+                for (int local = 0; local < segment.docCount; local++) {
+                    int start = segment.docOffset(local);
+                    int end = local + 1 < segment.docCount ? segment.docOffset(local + 1) : segment.docIndexOffset;
+                    byte[] raw = new byte[end - start];
+                    segment.buffer.get(start, raw);
+                    docOffsets[doc++] = out.size();
+                    out.write(raw);
+                }
+            }
+            int docIndexOffset = writeOffsets(out, docOffsets);
+
+            // k-путевое слияние словарей: курсор — номер сегмента и позиция в его словаре
+            PriorityQueue<int[]> cursors = new PriorityQueue<>((a, b) -> {
+                int order = Arrays.compareUnsigned(segments.get(a[0]).termAt(a[1]), segments.get(b[0]).termAt(b[1]));
+                return order != 0 ? order : Integer.compare(a[0], b[0]);
+            });
+            for (int i = 0; i < segments.size(); i++) {
+                if (segments.get(i).termCount > 0) {
+                    cursors.add(new int[]{i, 0});
+                }
+            }
+            List<Integer> termOffsets = new ArrayList<>();
+            List<int[]> parts = new ArrayList<>();
+            while (!cursors.isEmpty()) {
+                int[] cursor = cursors.poll();
+                byte[] term = segments.get(cursor[0]).termAt(cursor[1]);
+                parts.clear();
+                int count = 0;
+                while (true) {
+                    SearchSegment segment = segments.get(cursor[0]);
+                    int[] postings = segment.postingsAt(cursor[1]);
+                    int shift = (int) (segment.firstDocId - firstDocId);
+                    for (int i = 0; i < postings.length; i++) {
+                        postings[i] += shift;
+                    }
+                    parts.add(postings);
+                    count += postings.length;
+                    if (++cursor[1] < segment.termCount) {
+                        cursors.add(cursor);
+                    }
+                    int[] next = cursors.peek();
+                    if (next == null || !Arrays.equals(segments.get(next[0]).termAt(next[1]), term)) {
+                        break;
+                    }
+                    cursor = cursors.poll();
+                }
+                // Сегменты идут по возрастанию номеров: склейка от нового сегмента к старому остаётся убывающей
+                int[] merged = new int[count];
+                int position = 0;
+                for (int i = parts.size() - 1; i >= 0; i--) {
+                    int[] part = parts.get(i);
+                    System.arraycopy(part, 0, merged, position, part.length);
+                    position += part.length;
+                }
+                termOffsets.add(out.size());
+                writeTerm(out, term, merged);
+            }
+            int termIndexOffset = writeOffsets(out, termOffsets.stream().mapToInt(Integer::intValue).toArray());
+            writeFooter(out, total, termOffsets.size(), firstDocId, docIndexOffset, termIndexOffset);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return open(path);
+    }
+
+    private static void writeDocument(DataOutputStream out, SearchIndex.Document document) throws IOException {
+        out.writeLong(document.timeMillis());
+        out.writeLong(document.account());
+        out.writeLong(document.chatId());
+        out.writeLong(document.botMessageId());
+        out.writeByte(document.outgoing() ? 1 : 0);
+        byte[] label = (document.label() != null ? document.label() : "").getBytes(StandardCharsets.UTF_8);
+        out.writeShort(Math.min(label.length, Short.MAX_VALUE));
+        out.write(label, 0, Math.min(label.length, Short.MAX_VALUE));
+        byte[] text = document.text().getBytes(StandardCharsets.UTF_8);
+        out.writeInt(text.length);
+        out.write(text);
+    }
+
+    private static void writeTerm(DataOutputStream out, byte[] term, int[] postings) throws IOException {
+        out.writeShort(term.length);
+        out.write(term);
+        out.writeInt(postings.length);
+        int skipCount = Math.max(0, (postings.length - 1) / SKIP_INTERVAL);
+        out.writeInt(skipCount);
+        // Смещения пропусков известны только после кодирования, поэтому список сначала собирается в памяти
+        ByteArrayOutputStream data = new ByteArrayOutputStream(postings.length * 2);
+        int[] skipOffsets = new int[skipCount];
+        for (int i = 0; i < postings.length; i++) {
+            int value = i == 0 ? postings[0] : postings[i - 1] - postings[i];
+            while ((value & ~0x7F) != 0) {
+                data.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data.write(value);
+            if (i > 0 && i % SKIP_INTERVAL == 0) {
+                // Позиция сразу после номера i: с неё продолжается чтение после прыжка
+                skipOffsets[i / SKIP_INTERVAL - 1] = data.size();
+            }
+        }
+        for (int k = 0; k < skipCount; k++) {
+            out.writeInt(postings[(k + 1) * SKIP_INTERVAL]);
+            out.writeInt(skipOffsets[k]);
+        }
+        data.writeTo(out);
+    }
+
+    private static int writeOffsets(DataOutputStream out, int[] offsets) throws IOException {
+        int start = out.size();
+        for (int offset : offsets) {
+            out.writeInt(offset);
+        }
+        return start;
+    }
+
+    private static void writeFooter(DataOutputStream out, int docCount, int termCount, long firstDocId,
+                                    int docIndexOffset, int termIndexOffset) throws IOException {
+        out.writeInt(docCount);
+        out.writeInt(termCount);
+        out.writeLong(firstDocId);
+        out.writeInt(docIndexOffset);
+        out.writeInt(termIndexOffset);
+        out.writeInt(MAGIC);
+    }
+
+    Path path() {
+        return path;
+    }
+
+    long firstDocId() {
+        return firstDocId;
+    }
+
+    int docCount() {
+        return docCount;
+    }
+
+    /**
+     * Номер, следующий за последним документом сегмента.
+     */
+    long endDocId() {
+        return firstDocId + docCount;
+    }
+
+    long sizeBytes() {
+        return buffer.capacity();
+    }
+
+    private int docOffset(int local) {
+        return buffer.getInt(docIndexOffset + local * 4);
+    }
+
+    private int termOffset(int index) {
+        return buffer.getInt(termIndexOffset + index * 4);
+    }
+
+    /**
+     * Документ по локальному номеру.
+     */
+    SearchIndex.Document document(int local) {
+        int position = docOffset(local);
+        long timeMillis = buffer.getLong(position);
+        long account = buffer.getLong(position + 8);
+        long chatId = buffer.getLong(position + 16);
+        long botMessageId = buffer.getLong(position + 24);
+        boolean outgoing = buffer.get(position + 32) != 0;
+        int labelLength = buffer.getShort(position + 33);
+        String label = string(position + 35, labelLength);
+        int textLength = buffer.getInt(position + 35 + labelLength);
+        String text = string(position + 39 + labelLength, textLength);
+        return new SearchIndex.Document(account, chatId, botMessageId, timeMillis, outgoing, label, text);
+    }
+
+    /**
+     * api_id документа без чтения текста; используется для фильтра по аккаунту.
+     */
+    long account(int local) {
+        return buffer.getLong(docOffset(local) + 8);
+    }
+
+    private String string(int position, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(position, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private byte[] termAt(int index) {
+        int position = termOffset(index);
+        byte[] term = new byte[buffer.getShort(position)];
+        buffer.get(position + 2, term);
+        return term;
+    }
+
+    /**
+     * Сравнивает терм словаря с ключом без копирования терма.
+     */
+    private int compareTerm(int index, byte[] key) {
+        int position = termOffset(index);
+        int length = buffer.getShort(position);
+        position += 2;
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int order = Integer.compare(buffer.get(position + i) & 0xFF, key[i] & 0xFF);
+            if (order != 0) {
+                return order;
+            }
+        }
+        return Integer.compare(length, key.length);
+    }
+
+    /**
+     * Первая позиция словаря, терм на которой не меньше ключа.
+     */
+    private int lowerBound(byte[] key) {
+        int low = 0;
+        int high = termCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareTerm(middle, key) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Весь список терма, по убыванию номеров.
+     */
+    private int[] postingsAt(int index) {
+        PostingIterator iterator = new PostingIterator(index);
+        int[] postings = new int[iterator.cost()];
+        for (int i = 0; i < postings.length; i++) {
+            postings[i] = iterator.next();
+        }
+        return postings;
+    }
+
+    /**
+     * Документы с термом.
+     */
+    DocIterator postings(byte[] term) {
+        int index = lowerBound(term);
+        if (index < termCount && compareTerm(index, term) == 0) {
+            return new PostingIterator(index);
+        }
+        return new ArrayIterator(new int[0]);
+    }
+
+    /**
+     * Документы, содержащие любой терм с заданным началом.
+     *
+     * @param maxTerms сколько термов с этим началом учитывать
+     */
+    DocIterator prefixPostings(byte[] prefix, int maxTerms) {
+        BitSet documents = new BitSet(docCount);
+        int start = lowerBound(prefix);
+        int end = Math.min(termCount, start + maxTerms);
+        for (int index = start; index < end && startsWith(index, prefix); index++) {
+            for (int doc : postingsAt(index)) {
+                documents.set(doc);
+            }
+        }
+        return new ArrayIterator(descending(documents));
+    }
+
+    /**
+     * Номера из множества по убыванию.
+     */
+    static int[] descending(BitSet documents) {
+        int[] docs = new int[documents.cardinality()];
+        int i = 0;
+        for (int doc = documents.previousSetBit(documents.length() - 1); doc >= 0; doc = documents.previousSetBit(doc - 1)) {
+            docs[i++] = doc;
+        }
+        return docs;
+    }
+
+    private boolean startsWith(int index, byte[] prefix) {
+        int position = termOffset(index);
+        if (buffer.getShort(position) < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(position + 2 + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Проверяет, что файл — сегмент индекса (а не журнал или недописанный временный файл).
+     */
+    static boolean isSegmentFile(Path path) {
+        String name = path.getFileName().toString();
+        return name.startsWith("segment-") && name.endsWith(".seg");
+    }
+
+    @Override
+    public String toString() {
+        return path.getFileName() + " [" + firstDocId + ", " + endDocId() + ")";
+    }
+}
@@ -0,0 +1,96 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Разбиение текста на термы для {@link SearchIndex}.
+ *
+ * Слово — непрерывная последовательность букв и цифр. Слова приводятся к нижнему регистру, "ё" заменяется на "е",
+ * после чего от русских и английских слов отрезаются типичные окончания, чтобы разные формы слова
+ * ("сообщение", "сообщения", "сообщением"; "message", "messages") давали один терм.
+ * Основа не короче трёх букв: короткие слова не изменяются.
+ */
+final class SearchTokenizer {
+
+    static final int MAX_TERM_LENGTH = 32;
+    private static final int MIN_STEM = 3;
+
+    // Окончания, от длинных к коротким: отрезается самое длинное подходящее
+    private static final String[] RUSSIAN_ENDINGS = {
+            "иями", "ться", "ями", "ами", "иях", "ием", "иям", "ого", "его", "ому", "ему", "ыми", "ими", "ией", "тся",
+            "ешь", "ете", "ишь", "ите", "ает", "яет", "ует", "ают", "яют", "уют", "ала", "яла", "ила", "ела",
+            "ало", "ило", "ели", "или", "али", "ых", "их", "ую", "юю", "ая", "яя", "ое", "ее", "ые", "ие", "ый",
+            "ий", "ой", "ей", "ом", "ем", "ам", "ям", "ах", "ях", "ов", "ев", "ью", "ия", "ии", "ию",
+            "а", "я", "о", "е", "ы", "и", "у", "ю", "ь", "й"
+    };
+
+    private SearchTokenizer() {
+    }
+
+    /**
+     * Термы текста в порядке появления, с повторами.
+     *
+     * @param text текст сообщения или запроса
+     * @param stem отрезать ли окончания
+     */
+    static List<String> tokens(CharSequence text, boolean stem) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                char lower = Character.toLowerCase(c);
+                word.append(lower == 'ё' ? 'е' : lower);
+            } else if (word.length() > 0) {
+                String token = stem ? stem(word.toString()) : word.toString();
+                if (token.length() > MAX_TERM_LENGTH) {
+                    token = token.substring(0, MAX_TERM_LENGTH);
+                }
+                tokens.add(token);
+                word.setLength(0);
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Отрезает окончание слова, уже приведённого к нижнему регистру.
+     */
+    static String stem(String word) {
+        if (word.length() <= MIN_STEM) {
+            return word;
+        }
+        char first = word.charAt(0);
+        if (first >= 'а' && first <= 'я') {
+            for (String ending : RUSSIAN_ENDINGS) {
+                if (word.endsWith(ending) && word.length() - ending.length() >= MIN_STEM) {
+                    return word.substring(0, word.length() - ending.length());
+                }
+            }
+            return word;
+        }
+        if (first >= 'a' && first <= 'z') {
+            return stemEnglish(word);
+        }
+        return word;
+    }
+
+    private static String stemEnglish(String word) {
+        if (word.endsWith("ies") && word.length() - 3 >= MIN_STEM) {
+            return word.substring(0, word.length() - 3) + "y";
+        }
+        if (word.endsWith("ing") && word.length() - 3 >= MIN_STEM) {
+            word = word.substring(0, word.length() - 3);
+        } else if (word.endsWith("ed") && word.length() - 2 >= MIN_STEM) {
+            word = word.substring(0, word.length() - 2);
+        } else if (word.endsWith("s") && !word.endsWith("ss") && word.length() - 1 >= MIN_STEM) {
+            word = word.substring(0, word.length() - 1);
+        }
+        // "message" и "messaging" сводятся к одной основе
+        if (word.endsWith("e") && word.length() - 1 >= MIN_STEM) {
+            word = word.substring(0, word.length() - 1);
+        }
+        return word;
+    }
+}
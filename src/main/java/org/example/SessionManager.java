@@ -0,0 +1,256 @@
+package org.example;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Жизненный цикл сессий юзерботов: усыпление простаивающих аккаунтов и пробуждение по требованию.
+ *
+ * Аккаунт, в котором дольше заданного времени не было ни входящих сообщений, ни ответов, засыпает:
+ * его клиент TDLib закрывается через {@link UserBot#close()}, от аккаунта остаются только учётные данные.
+ * Ответ администратора, маршрут которого ведёт в спящий аккаунт, будит его и отправляется после авторизации.
+ * Чтобы спящие аккаунты не теряли входящие сообщения, они периодически просыпаются: TDLib при запуске
+ * получает пропущенные обновления, после чего аккаунт снова засыпает по простою.
+ * Аккаунты из списка alwaysOnAccounts не засыпают никогда.
+ *
+ * Пока клиент аккаунта используется (пересылается входящее сообщение, отправляется ответ, идёт рассылка
+ * или отложенная отправка), на сессию взята аренда через {@link #acquire} или {@link #retain}.
+ * Аккаунт с неотпущенной арендой не засыпает, простой отсчитывается от отпускания последней аренды.
+ */
+public class SessionManager implements AutoCloseable {
+
+    // Как часто проверять простаивающие и давно спящие аккаунты
+    private static final long CHECK_INTERVAL_SECONDS = 60;
+    // Сколько ждать авторизации разбуженного аккаунта
+    private static final long WAKE_TIMEOUT_SECONDS = 120;
+
+    /**
+     * Запускает клиент аккаунта (создаёт {@link UserBot} и регистрирует его обработчики).
+     */
+    public interface Opener {
+        /**
+         * @param credential    данные аккаунта
+         * @param announceReady сообщать администратору об авторизации, даже если вход прошёл по сохранённой сессии
+         */
+        UserBot open(Credential credential, boolean announceReady);
+    }
+
+    /**
+     * Вызывается после того, как аккаунт уснул и его клиент закрыт.
+     */
+    public interface HibernationListener {
+        void hibernated(long apiId);
+    }
+
+    private static final class Session {
+        final Credential credential;
+        final boolean alwaysOn;
+        // null, пока аккаунт спит
+        UserBot userBot;
+        CompletableFuture<UserBot> waking;
+        long hibernatedAtNanos;
+        // Число взятых и ещё не отпущенных аренд клиента
+        int leases;
+        volatile long lastActivityNanos = System.nanoTime();
+
+        Session(Credential credential, boolean alwaysOn) {
+            this.credential = credential;
+            this.alwaysOn = alwaysOn;
+        }
+    }
+
+    private final Map<Long, Session> sessions = new ConcurrentHashMap<>();
+    private final Opener opener;
+    private final HibernationListener listener;
+    private final long idleNanos;
+    private final long catchUpNanos;
+    private final Set<Long> alwaysOn;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "session-manager");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LongAdder hibernations = new LongAdder();
+    private final LongAdder wakesOnReply = new LongAdder();
+    private final LongAdder wakesForCatchUp = new LongAdder();
+
+    /**
+     * @param opener         запуск клиента аккаунта
+     * @param listener       уведомление об усыплении аккаунта
+     * @param idleMinutes    через сколько минут простоя аккаунт засыпает; 0 — не усыплять
+     * @param catchUpMinutes как часто будить спящий аккаунт за пропущенными сообщениями; 0 — только по ответу
+     * @param alwaysOn       api_id аккаунтов, которые никогда не засыпают
+     */
+    public SessionManager(Opener opener, HibernationListener listener, long idleMinutes, long catchUpMinutes,
+                          Set<Long> alwaysOn) {
+        this.opener = opener;
+        this.listener = listener;
+        this.idleNanos = TimeUnit.MINUTES.toNanos(idleMinutes);
+        this.catchUpNanos = TimeUnit.MINUTES.toNanos(catchUpMinutes);
+        this.alwaysOn = alwaysOn;
+        if (idleMinutes > 0) {
+            scheduler.scheduleWithFixedDelay(this::check, CHECK_INTERVAL_SECONDS, CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Запоминает запущенный клиент аккаунта.
+     *
+     * @param credential учётные данные, по которым аккаунт будет разбужен
+     * @param userBot    запущенный клиент
+     */
+    public void opened(Credential credential, UserBot userBot) {
+        long apiId = credential.getApi_id();
+        Session session = sessions.computeIfAbsent(apiId, k -> new Session(credential, alwaysOn.contains(apiId)));
+        synchronized (session) {
+            session.userBot = userBot;
+            session.lastActivityNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Берёт аренду клиента, который уже работает (например, на время пересылки входящего сообщения).
+     * Аренду нужно отпустить через {@link #release}.
+     */
+    public void retain(long apiId) {
+        Session session = sessions.get(apiId);
+        if (session != null) {
+            synchronized (session) {
+                session.leases++;
+                session.lastActivityNanos = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Отпускает аренду, взятую через {@link #acquire} или {@link #retain}. Простой аккаунта отсчитывается
+     * с этого момента.
+     */
+    public void release(long apiId) {
+        Session session = sessions.get(apiId);
+        if (session != null) {
+            synchronized (session) {
+                if (session.leases > 0) {
+                    session.leases--;
+                }
+                session.lastActivityNanos = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Берёт аренду клиента аккаунта и возвращает его авторизованным, при необходимости разбудив аккаунт.
+     * Аренда берётся сразу, и её нужно отпустить через {@link #release} ровно один раз, когда работа
+     * с клиентом закончена, в том числе если результат завершился ошибкой.
+     *
+     * @param apiId api_id аккаунта
+     * @return клиент, готовый к отправке; завершается с ошибкой, если аккаунт неизвестен или не авторизовался
+     */
+    public CompletableFuture<UserBot> acquire(long apiId) {
+        Session session = sessions.get(apiId);
+        if (session == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Юзербот " + apiId + " ещё не запущен"));
+        }
+        CompletableFuture<UserBot> opened;
+        synchronized (session) {
+            session.leases++;
+            session.lastActivityNanos = System.nanoTime();
+            if (session.userBot != null) {
+                opened = CompletableFuture.completedFuture(session.userBot);
+            } else {
+                wakesOnReply.increment();
+                opened = wake(session);
+            }
+        }
+        return opened.thenCompose(userBot -> userBot.getReady().thenApply(ignored -> userBot))
+                .orTimeout(WAKE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Будит аккаунт; вызывается под блокировкой сессии.
+     */
+    private CompletableFuture<UserBot> wake(Session session) {
+        if (session.waking == null) {
+            // Пробуждение по сохранённой сессии администратору не сообщается: только если понадобился код
+            session.waking = CompletableFuture.supplyAsync(() -> opener.open(session.credential, false), scheduler)
+                    .whenComplete((userBot, error) -> {
+                        synchronized (session) {
+                            session.waking = null;
+                        }
+                        if (error != null) {
+                            Main.logger.warning("Не удалось разбудить юзербота " + session.credential.getApi_id() + ": " + error);
+                        }
+                    });
+        }
+        return session.waking;
+    }
+
+    /**
+     * Усыпляет простаивающие аккаунты и будит давно спящие за пропущенными сообщениями.
+     */
+    private void check() {
+        long now = System.nanoTime();
+        for (Map.Entry<Long, Session> entry : sessions.entrySet()) {
+            Session session = entry.getValue();
+            UserBot sleeping = null;
+            synchronized (session) {
+                if (session.alwaysOn) {
+                    continue;
+                }
+                if (session.userBot != null) {
+                    // Аккаунт, ожидающий кода авторизации или занятый отправкой, не усыпляется
+                    if (session.leases == 0 && now - session.lastActivityNanos >= idleNanos
+                            && session.userBot.getReady().isDone()) {
+                        sleeping = session.userBot;
+                        session.userBot = null;
+                        session.hibernatedAtNanos = now;
+                    }
+                } else if (catchUpNanos > 0 && session.waking == null && now - session.hibernatedAtNanos >= catchUpNanos) {
+                    wakesForCatchUp.increment();
+                    session.lastActivityNanos = now;
+                    wake(session);
+                }
+            }
+            if (sleeping != null) {
+                hibernate(entry.getKey(), sleeping);
+            }
+        }
+    }
+
+    private void hibernate(long apiId, UserBot userBot) {
+        listener.hibernated(apiId);
+        try {
+            userBot.close();
+        } catch (Exception e) {
+            Main.logger.warning("Ошибка закрытия юзербота " + apiId + ": " + e);
+        }
+        hibernations.increment();
+        Main.logger.info("Юзербот " + apiId + " уснул после простоя");
+    }
+
+    public String statsSummary() {
+        int active = 0;
+        for (Session session : sessions.values()) {
+            synchronized (session) {
+                if (session.userBot != null) {
+                    active++;
+                }
+            }
+        }
+        return "активных " + active + ", спящих " + (sessions.size() - active)
+                + ", усыплений " + hibernations.sum() + ", пробуждений по ответу " + wakesOnReply.sum()
+                + ", за пропущенными сообщениями " + wakesForCatchUp.sum();
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,199 @@
+package org.example;
+
+import it.tdlight.Init;
+import it.tdlight.Log;
+import it.tdlight.Slf4JLogMessageHandler;
+import it.tdlight.client.AuthenticationSupplier;
+import it.tdlight.client.SimpleTelegramClient;
+import it.tdlight.client.SimpleTelegramClientBuilder;
+import it.tdlight.client.SimpleTelegramClientFactory;
+import it.tdlight.client.TDLibSettings;
+import it.tdlight.util.UnsupportedNativeLibraryException;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.FileHandler;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * Общая среда TDLight для всех юзерботов.
+ *
+ * Нативные библиотеки и логирование TDLib инициализируются один раз, все клиенты создаются одной
+ * фабрикой {@link SimpleTelegramClientFactory} (один поток приёма ответов TDLib на всех), журнал
+ * "userbot.log" открывается один раз. Запросы авторизации выполняются на общем пуле, потоки которого
+ * создаются по требованию и завершаются после простоя; окна отметок о прочтении всех аккаунтов
+ * отсчитывает один общий планировщик.
+ *
+ * Своих потоков у аккаунта нет. На каждый аккаунт остаются экземпляр TDLib (его база и кэши в нативной памяти)
+ * и небольшое состояние в куче: кэш чатов и пользователей, очереди загрузок медиа и отметок о прочтении,
+ * потоковые передачи файлов ответов.
+ */
+public class TdlibRuntime implements AutoCloseable {
+
+    private static final Path PROC_STATUS = Path.of("/proc/self/status");
+
+    private final SimpleTelegramClientFactory clientFactory;
+    private final FileHandler fileHandler;
+    private final ExecutorService interactionExecutor;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicInteger clients = new AtomicInteger();
+    private final long initMillis;
+    // Потоки и RSS процесса перед созданием первого клиента: от них считается прирост на аккаунт
+    private volatile int baselineThreads = -1;
+    private volatile long baselineRss = -1;
+
+    /**
+     * @throws UnsupportedNativeLibraryException если нативная библиотека TDLib не подходит для платформы
+     * @throws IOException                       при ошибке настройки логирования
+     */
+    public TdlibRuntime() throws UnsupportedNativeLibraryException, IOException {
+        // Инициализация нативных библиотек и логирования TDLight
+        long started = System.nanoTime();
+        Init.init();
+        Log.setLogMessageHandler(1, new Slf4JLogMessageHandler());
+        this.initMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+        // Логирование юзерботов в файл "userbot.log" через java.util.logging
+        this.fileHandler = new FileHandler("userbot.log", true);
+        this.fileHandler.setFormatter(new SimpleFormatter());
+        Logger.getLogger(UserBot.class.getName()).addHandler(fileHandler);
+
+        this.clientFactory = new SimpleTelegramClientFactory();
+
+        AtomicInteger counter = new AtomicInteger();
+        this.interactionExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<>(),
+                r -> {
+                    Thread thread = new Thread(r, "tdlib-interaction-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "tdlib-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Длительность загрузки нативных библиотек TDLib (выполняется один раз на процесс).
+     */
+    public long getInitMillis() {
+        return initMillis;
+    }
+
+    /**
+     * Возвращает билдера клиента на общей фабрике. Клиент собирается через {@link #build}.
+     *
+     * @param settings настройки TDLib аккаунта
+     */
+    public SimpleTelegramClientBuilder builder(TDLibSettings settings) {
+        return clientFactory.builder(settings);
+    }
+
+    /**
+     * Собирает клиента и учитывает его, только если сборка удалась.
+     * Перед первым клиентом запоминает число потоков и RSS процесса, от которых в /stats считается прирост.
+     *
+     * @param builder                билдер, полученный из {@link #builder}
+     * @param authenticationSupplier данные аутентификации аккаунта
+     */
+    public SimpleTelegramClient build(SimpleTelegramClientBuilder builder, AuthenticationSupplier<?> authenticationSupplier) {
+        synchronized (this) {
+            if (baselineThreads < 0) {
+                baselineThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+                baselineRss = residentSetBytes();
+            }
+        }
+        SimpleTelegramClient client = builder.build(authenticationSupplier);
+        clients.incrementAndGet();
+        return client;
+    }
+
+    /**
+     * Вызывается при закрытии клиента, созданного через {@link #build}.
+     */
+    public void clientClosed() {
+        clients.decrementAndGet();
+    }
+
+    /**
+     * Пул для блокирующих запросов авторизации (коды, пароли), общий для всех аккаунтов.
+     */
+    public ExecutorService getInteractionExecutor() {
+        return interactionExecutor;
+    }
+
+    /**
+     * Общий планировщик коротких отложенных задач аккаунтов (окна отметок о прочтении).
+     * Задачи не должны блокироваться.
+     */
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Резидентная память процесса в байтах по /proc/self/status; -1, если недоступно (не Linux).
+     */
+    static long residentSetBytes() {
+        try {
+            for (String line : Files.readAllLines(PROC_STATUS)) {
+                if (line.startsWith("VmRSS:")) {
+                    String[] parts = line.substring("VmRSS:".length()).trim().split("\\s+");
+                    return Long.parseLong(parts[0]) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+        return -1;
+    }
+
+    public String statsSummary() {
+        int accounts = clients.get();
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        long rss = residentSetBytes();
+        StringBuilder summary = new StringBuilder("клиентов TDLib ").append(accounts)
+                .append(", потоков JVM ").append(threads);
+        if (rss >= 0) {
+            summary.append(", RSS ").append(rss / (1024 * 1024)).append(" МБ");
+        }
+        int startThreads = baselineThreads;
+        long startRss = baselineRss;
+        if (startThreads >= 0) {
+            // Прирост с момента перед первым клиентом: столько стоят сами аккаунты, без остальной программы
+            summary.append("; до первого клиента потоков ").append(startThreads);
+            if (startRss >= 0 && rss >= 0) {
+                summary.append(", RSS ").append(startRss / (1024 * 1024)).append(" МБ");
+            }
+            if (accounts > 0) {
+                summary.append("; прирост на аккаунт: потоков ").append(String.format("%.1f", (double) (threads - startThreads) / accounts));
+                if (startRss >= 0 && rss >= 0) {
+                    summary.append(", RSS ").append(String.format("%.1f", (rss - startRss) / (1024.0 * 1024) / accounts)).append(" МБ");
+                }
+            }
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Закрывает общую фабрику; вызывается после закрытия всех клиентов.
+     */
+    @Override
+    public void close() throws Exception {
+        interactionExecutor.shutdownNow();
+        scheduler.shutdownNow();
+        clientFactory.close();
+        fileHandler.close();
+    }
+}
@@ -1,72 +1,333 @@
 package org.example;
 import com.google.gson.Gson;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
  * Класс для загрузки файла из Telegram по file_id и сохранения его во временную директорию.
+ *
+ * Использует один {@link HttpClient} на все запросы, поэтому соединения с Bot API переиспользуются (keep-alive).
+ * Тело ответа пишется в файл по мере получения, без промежуточного буфера в куче.
+ * Число одновременных загрузок ограничено, остальные ждут в очереди.
+ * Адрес Bot API настраивается, что позволяет использовать локальный Bot API сервер или заглушку.
  */
 public class TelegramFileDownloader {
     private static final Gson gson = new Gson();
 
+    private final String botToken;
+    private final String baseUrl;
+    private final Duration readTimeout;
+    private final int maxInFlight;
+    private final HttpClient httpClient;
+
+    private final Queue<Runnable> waiting = new ArrayDeque<>();
+    private int active;
+
+    /**
+     * @param botToken       токен бота для доступа к Telegram API
+     * @param baseUrl        адрес Bot API, например https://api.telegram.org
+     * @param connectTimeout таймаут установки соединения
+     * @param readTimeout    максимальное время одного запроса, включая чтение тела ответа
+     * @param maxInFlight    максимальное число одновременных загрузок
+     */
+    public TelegramFileDownloader(String botToken, String baseUrl, Duration connectTimeout, Duration readTimeout, int maxInFlight) {
+        this.botToken = botToken;
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.readTimeout = readTimeout;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(connectTimeout)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
+
     /**
      * Загружает файл по file_id и возвращает путь к временному файлу.
+     * Синхронная обёртка над {@link #downloadFileAsync(String)}.
      *
-     * @param fileId   идентификатор файла из Telegram Bots API
-     * @param botToken токен бота для доступа к Telegram API
+     * @param fileId идентификатор файла из Telegram Bots API
      * @return абсолютный путь к временному файлу
      * @throws Exception при ошибке получения информации или скачивания файла
      */
-    public static String downloadFile(String fileId, String botToken) throws Exception {
-        // Получаем информацию о файле через getFile метод Telegram Bot API
-        String getFileUrl = "https://api.telegram.org/bot" + botToken + "/getFile?file_id=" + fileId;
-        URL url = new URL(getFileUrl);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod("GET");
-
-        try (InputStream responseStream = connection.getInputStream();
-             InputStreamReader reader = new InputStreamReader(responseStream)) {
-            TelegramFileResponse response = gson.fromJson(reader, TelegramFileResponse.class);
-            if (!response.ok || response.result == null || response.result.file_path == null) {
-                throw new Exception("Ошибка получения информации о файле от Telegram");
+    public String downloadFile(String fileId) throws Exception {
+        try {
+            return downloadFileAsync(fileId).join().toString();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        }
+    }
+
+    /**
+     * Асинхронно загружает файл по file_id во временный файл с префиксом "telegram_".
+     * При ошибке временный файл удаляется.
+     *
+     * @param fileId идентификатор файла из Telegram Bots API
+     * @return задача с путём к временному файлу
+     */
+    public CompletableFuture<Path> downloadFileAsync(String fileId) {
+        return limited(() -> resolveFileUrl(fileId).thenCompose(url -> downloadToTemp(url, fileId)));
+    }
+
+    /**
+     * Получатель частей файла при потоковой загрузке.
+     */
+    public interface ChunkSink {
+        /**
+         * Принимает очередную часть файла.
+         * Следующая часть не передаётся, пока возвращённая задача не завершится.
+         *
+         * @param offset смещение части от начала файла
+         * @param data   данные части
+         */
+        CompletableFuture<?> write(long offset, byte[] data);
+    }
+
+    /**
+     * Асинхронно загружает файл по file_id, передавая его получателю частями по мере поступления.
+     * Чтение из сети приостанавливается, пока получатель не обработает предыдущую часть.
+     *
+     * @param fileId    идентификатор файла из Telegram Bots API
+     * @param chunkSize размер части, передаваемой получателю (последняя часть может быть меньше)
+     * @param sink      получатель частей
+     * @return задача, завершающаяся размером файла
+     */
+    public CompletableFuture<Long> streamFileAsync(String fileId, int chunkSize, ChunkSink sink) {
+        return limited(() -> resolveFileUrl(fileId).thenCompose(url -> {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                    .timeout(readTimeout)
+                    .GET()
+                    .build();
+            ChunkingSubscriber subscriber = new ChunkingSubscriber(chunkSize, sink);
+            httpClient.sendAsync(request, responseInfo -> {
+                        if (responseInfo.statusCode() != 200) {
+                            return HttpResponse.BodySubscribers.replacing(null);
+                        }
+                        return HttpResponse.BodySubscribers.fromSubscriber(subscriber);
+                    })
+                    .whenComplete((response, error) -> {
+                        if (error != null) {
+                            subscriber.result.completeExceptionally(error);
+                        } else if (response.statusCode() != 200) {
+                            subscriber.result.completeExceptionally(new IOException("Ошибка загрузки файла: HTTP " + response.statusCode()));
+                        }
+                    });
+            // Результат берётся у получателя: если он отказался от данных, ответ HttpClient так и не завершится
+            return subscriber.result;
+        }));
+    }
+
+    /**
+     * Выполняет загрузку с учётом ограничения на число одновременных загрузок.
+     */
+    private <T> CompletableFuture<T> limited(Supplier<CompletableFuture<T>> download) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable task = () -> download.get().whenComplete((value, error) -> {
+            startNext();
+            if (error != null) {
+                result.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+            } else {
+                result.complete(value);
             }
+        });
+        boolean startNow;
+        synchronized (this) {
+            startNow = active < maxInFlight;
+            if (startNow) {
+                active++;
+            } else {
+                waiting.add(task);
+            }
+        }
+        if (startNow) {
+            task.run();
+        }
+        return result;
+    }
 
-            // Формируем URL для загрузки файла
-            String fileDownloadUrl = "https://api.telegram.org/file/bot" + botToken + "/" + response.result.file_path;
-            return downloadFileFromUrl(fileDownloadUrl, fileId);
+    /**
+     * Число загрузок, ожидающих свободного места.
+     */
+    public synchronized int queuedDownloads() {
+        return waiting.size();
+    }
+
+    private void startNext() {
+        Runnable next;
+        synchronized (this) {
+            next = waiting.poll();
+            if (next == null) {
+                active--;
+            }
+        }
+        if (next != null) {
+            next.run();
         }
     }
 
     /**
-     * Скачивает файл по заданному URL и сохраняет его во временный файл.
-     *
-     * @param fileDownloadUrl URL для загрузки файла
-     * @param fileId          идентификатор файла (для формирования имени)
-     * @return абсолютный путь к временному файлу
-     * @throws Exception при ошибке загрузки файла
+     * Получает путь к файлу через getFile и возвращает URL для его загрузки.
+     */
+    private CompletableFuture<String> resolveFileUrl(String fileId) {
+        // Получаем информацию о файле через getFile метод Telegram Bot API
+        HttpRequest getFile = HttpRequest.newBuilder(URI.create(baseUrl + "/bot" + botToken + "/getFile?file_id="
+                        + URLEncoder.encode(fileId, StandardCharsets.UTF_8)))
+                .timeout(readTimeout)
+                .GET()
+                .build();
+        return httpClient.sendAsync(getFile, HttpResponse.BodyHandlers.ofString())
+                .thenApply(response -> {
+                    TelegramFileResponse parsed = gson.fromJson(response.body(), TelegramFileResponse.class);
+                    if (response.statusCode() != 200 || parsed == null || !parsed.ok
+                            || parsed.result == null || parsed.result.file_path == null) {
+                        throw new CompletionException(new IOException(
+                                "Ошибка получения информации о файле от Telegram: HTTP " + response.statusCode()));
+                    }
+                    // Формируем URL для загрузки файла
+                    return baseUrl + "/file/bot" + botToken + "/" + parsed.result.file_path;
+                });
+    }
+
+    /**
+     * Скачивает файл по заданному URL во временный файл.
+     * Тело ответа записывается в FileChannel по мере поступления.
+     */
+    private CompletableFuture<Path> downloadToTemp(String fileDownloadUrl, String fileId) {
+        Path tempFile;
+        try {
+            // Создаем временный файл
+            tempFile = Files.createTempFile("telegram_", "_" + fileId.replaceAll("[^A-Za-z0-9_-]", ""));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        HttpRequest request = HttpRequest.newBuilder(URI.create(fileDownloadUrl))
+                .timeout(readTimeout)
+                .GET()
+                .build();
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofFile(tempFile,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+                // Таймаут запроса ограничивает только ожидание заголовков, поэтому ограничиваем и чтение тела
+                .orTimeout(readTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                .thenApply(response -> {
+                    if (response.statusCode() != 200) {
+                        throw new CompletionException(new IOException("Ошибка загрузки файла: HTTP " + response.statusCode()));
+                    }
+                    return response.body();
+                })
+                .whenComplete((path, error) -> {
+                    if (error != null) {
+                        try {
+                            Files.deleteIfExists(tempFile);
+                        } catch (IOException e) {
+                            Main.logger.warning("Не удалось удалить временный файл " + tempFile + ": " + e);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Собирает тело ответа в части заданного размера и передаёт их получателю.
+     * Следующая порция данных запрашивается у HttpClient только после того, как получатель принял часть,
+     * поэтому медленный получатель замедляет загрузку, а не копит данные в памяти.
      */
-    private static String downloadFileFromUrl(String fileDownloadUrl, String fileId) throws Exception {
-        URL downloadUrl = new URL(fileDownloadUrl);
-        HttpURLConnection downloadConnection = (HttpURLConnection) downloadUrl.openConnection();
-        downloadConnection.setRequestMethod("GET");
-
-        // Создаем временный файл
-        File tempFile = File.createTempFile("telegram_", "_" + fileId);
-        try (InputStream downloadStream = downloadConnection.getInputStream();
-             FileOutputStream outputStream = new FileOutputStream(tempFile)) {
-
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = downloadStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
+    private static final class ChunkingSubscriber implements Flow.Subscriber<List<ByteBuffer>> {
+        final CompletableFuture<Long> result = new CompletableFuture<>();
+        private final ChunkSink sink;
+        private final byte[] chunk;
+        private int filled;
+        private long offset;
+        private Flow.Subscription subscription;
+
+        ChunkingSubscriber(int chunkSize, ChunkSink sink) {
+            this.sink = sink;
+            this.chunk = new byte[chunkSize];
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> buffers) {
+            writeBuffers(buffers, 0);
+        }
+
+        /**
+         * Переносит данные из буферов в часть, отправляя каждую заполненную часть получателю.
+         * Продолжается после подтверждения записи, затем запрашивает следующую порцию.
+         */
+        private void writeBuffers(List<ByteBuffer> buffers, int index) {
+            for (int i = index; i < buffers.size(); i++) {
+                ByteBuffer buffer = buffers.get(i);
+                while (buffer.hasRemaining()) {
+                    int length = Math.min(buffer.remaining(), chunk.length - filled);
+                    buffer.get(chunk, filled, length);
+                    filled += length;
+                    if (filled == chunk.length) {
+                        int next = buffer.hasRemaining() ? i : i + 1;
+                        flush().whenComplete((ignored, error) -> {
+                            if (error != null) {
+                                subscription.cancel();
+                                result.completeExceptionally(error);
+                            } else {
+                                writeBuffers(buffers, next);
+                            }
+                        });
+                        return;
+                    }
+                }
             }
+            subscription.request(1);
+        }
+
+        private CompletableFuture<?> flush() {
+            byte[] data = filled == chunk.length ? chunk.clone() : Arrays.copyOf(chunk, filled);
+            long partOffset = offset;
+            offset += filled;
+            filled = 0;
+            return sink.write(partOffset, data);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            result.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            if (filled == 0) {
+                result.complete(offset);
+                return;
+            }
+            flush().whenComplete((ignored, error) -> {
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(offset);
+                }
+            });
         }
-        return tempFile.getAbsolutePath();
     }
 
     // Вспомогательные классы для разбора JSON ответа getFile
@@ -81,4 +342,3 @@ public class TelegramFileDownloader {
         String file_path;
     }
 }
-
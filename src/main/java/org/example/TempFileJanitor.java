@@ -0,0 +1,76 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Удаляет временные файлы медиа, оставшиеся от прошлых запусков.
+ * Раньше каждое пересланное медиа копировалось во временный файл tdlight_*, который никто не удалял;
+ * файлы telegram_* создаёт {@link TelegramFileDownloader} для медиа из ответов администратора,
+ * и они остаются, если процесс завершился до их удаления после отправки.
+ * Удаляются только файлы старше заданного возраста, чтобы не задеть работающий параллельно экземпляр.
+ */
+public class TempFileJanitor {
+
+    private static final String[] PREFIXES = {"tdlight_", "telegram_"};
+
+    /**
+     * Запускает очистку в фоновом потоке.
+     *
+     * @param minAge минимальный возраст удаляемого файла
+     */
+    public static void sweepAsync(Duration minAge) {
+        Path tempDir = Path.of(System.getProperty("java.io.tmpdir"));
+        Thread thread = new Thread(() -> sweep(tempDir, minAge), "temp-file-janitor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Удаляет устаревшие временные файлы медиа из каталога.
+     *
+     * @return число удалённых файлов
+     */
+    static int sweep(Path directory, Duration minAge) {
+        FileTime cutoff = FileTime.from(Instant.now().minus(minAge));
+        int deleted = 0;
+        long freedBytes = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, TempFileJanitor::isMediaTempFile)) {
+            for (Path file : files) {
+                try {
+                    if (!Files.isRegularFile(file) || Files.getLastModifiedTime(file).compareTo(cutoff) > 0) {
+                        continue;
+                    }
+                    long size = Files.size(file);
+                    if (Files.deleteIfExists(file)) {
+                        deleted++;
+                        freedBytes += size;
+                    }
+                } catch (IOException e) {
+                    Main.logger.warning("Не удалось удалить временный файл " + file + ": " + e);
+                }
+            }
+        } catch (IOException e) {
+            Main.logger.warning("Ошибка очистки временного каталога " + directory + ": " + e);
+        }
+        if (deleted > 0) {
+            Main.logger.info("Удалено временных файлов медиа: " + deleted + " (" + freedBytes / 1024 + " КБ)");
+        }
+        return deleted;
+    }
+
+    private static boolean isMediaTempFile(Path path) {
+        String name = path.getFileName().toString();
+        for (String prefix : PREFIXES) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
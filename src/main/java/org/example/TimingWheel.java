@@ -0,0 +1,250 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Иерархическое колесо таймеров для большого числа отложенных задач.
+ *
+ * Время делится на тики; уровень 0 содержит {@code WHEEL_SIZE} ячеек по одному тику, каждый следующий
+ * уровень — ячейки в {@code WHEEL_SIZE} раз крупнее. Задача кладётся на самый нижний уровень, диапазон которого
+ * покрывает её срок, а когда подходит время ячейки верхнего уровня, её задачи перекладываются ниже.
+ * Ячейка — двусвязный список, поэтому добавление и отмена выполняются за O(1) при любом числе задач.
+ *
+ * Колесо ведёт один поток: он просыпается раз в тик и передаёт все задачи, срок которых наступил, одним
+ * списком обработчику. Обработчик вызывается вне блокировки и не должен надолго задерживать поток колеса.
+ *
+ * @param <T> данные задачи
+ */
+public class TimingWheel<T> implements AutoCloseable {
+
+    private static final int WHEEL_BITS = 8;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    // 4 уровня по 256 ячеек: при тике 10 мс колесо покрывает больше года
+    private static final int LEVELS = 4;
+
+    /**
+     * Задача в колесе; через неё задачу можно отменить.
+     */
+    public static final class Timeout<T> {
+        private final T value;
+        private final long deadlineTick;
+        private final long deadlineNanos;
+        private Timeout<T> previous;
+        private Timeout<T> next;
+        private Bucket<T> bucket;
+
+        private Timeout(T value, long deadlineTick, long deadlineNanos) {
+            this.value = value;
+            this.deadlineTick = deadlineTick;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        public T value() {
+            return value;
+        }
+
+        /**
+         * Момент срабатывания по System.nanoTime().
+         */
+        public long deadlineNanos() {
+            return deadlineNanos;
+        }
+    }
+
+    private static final class Bucket<T> {
+        Timeout<T> head;
+
+        void add(Timeout<T> timeout) {
+            timeout.bucket = this;
+            timeout.next = head;
+            if (head != null) {
+                head.previous = timeout;
+            }
+            head = timeout;
+        }
+
+        void remove(Timeout<T> timeout) {
+            if (timeout.previous != null) {
+                timeout.previous.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.previous = timeout.previous;
+            }
+            timeout.previous = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        Timeout<T> drain() {
+            Timeout<T> drained = head;
+            head = null;
+            return drained;
+        }
+    }
+
+    private final long tickNanos;
+    private final long startNanos;
+    private final Bucket<T>[][] wheels;
+    private final Consumer<List<Timeout<T>>> handler;
+    private final Thread worker;
+    // Последний обработанный тик
+    private long currentTick;
+    private int size;
+    private volatile boolean closed;
+
+    /**
+     * @param tick     длительность тика
+     * @param unit     единица длительности тика
+     * @param name     имя потока колеса
+     * @param handler  получает задачи, срок которых наступил в одном тике
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tick, TimeUnit unit, String name, Consumer<List<Timeout<T>>> handler) {
+        this.tickNanos = unit.toNanos(tick);
+        this.startNanos = System.nanoTime();
+        this.handler = handler;
+        this.wheels = new Bucket[LEVELS][WHEEL_SIZE];
+        for (Bucket<T>[] wheel : wheels) {
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                wheel[i] = new Bucket<>();
+            }
+        }
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Добавляет задачу. Задача с прошедшим сроком срабатывает в ближайший тик.
+     *
+     * @param value         данные задачи
+     * @param deadlineNanos момент срабатывания по System.nanoTime()
+     * @return задача для отмены
+     */
+    public synchronized Timeout<T> schedule(T value, long deadlineNanos) {
+        // Округление вверх: задача не срабатывает раньше срока
+        long deadlineTick = Math.max(currentTick + 1, ceilDiv(deadlineNanos - startNanos, tickNanos));
+        Timeout<T> timeout = new Timeout<>(value, deadlineTick, deadlineNanos);
+        place(timeout);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Отменяет задачу.
+     *
+     * @return false, если задача уже сработала или отменена
+     */
+    public synchronized boolean cancel(Timeout<T> timeout) {
+        if (timeout.bucket == null) {
+            return false;
+        }
+        timeout.bucket.remove(timeout);
+        size--;
+        return true;
+    }
+
+    /**
+     * Число задач, ожидающих срабатывания.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    private void place(Timeout<T> timeout) {
+        long delta = timeout.deadlineTick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (WHEEL_BITS * (level + 1))) {
+            level++;
+        }
+        // Срок дальше последнего уровня: задача ждёт в самой дальней ячейке и будет переложена позже
+        long position = level == LEVELS - 1 && delta >= 1L << (WHEEL_BITS * LEVELS)
+                ? currentTick + (1L << (WHEEL_BITS * LEVELS)) - 1
+                : timeout.deadlineTick;
+        wheels[level][(int) ((position >>> (WHEEL_BITS * level)) & WHEEL_MASK)].add(timeout);
+    }
+
+    /**
+     * Продвигает колесо до тика {@code tick} и собирает задачи, срок которых наступил.
+     */
+    private synchronized List<Timeout<T>> advanceTo(long tick) {
+        List<Timeout<T>> due = new ArrayList<>();
+        while (currentTick < tick) {
+            currentTick++;
+            // Перекладываем ячейки верхних уровней, время которых наступило
+            for (int level = 1; level < LEVELS; level++) {
+                if ((currentTick & ((1L << (WHEEL_BITS * level)) - 1)) != 0) {
+                    break;
+                }
+                Bucket<T> bucket = wheels[level][(int) ((currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK)];
+                for (Timeout<T> timeout = bucket.drain(); timeout != null; ) {
+                    Timeout<T> next = timeout.next;
+                    timeout.previous = null;
+                    timeout.next = null;
+                    timeout.bucket = null;
+                    if (timeout.deadlineTick <= currentTick) {
+                        due.add(timeout);
+                        size--;
+                    } else {
+                        place(timeout);
+                    }
+                    timeout = next;
+                }
+            }
+            Bucket<T> bucket = wheels[0][(int) (currentTick & WHEEL_MASK)];
+            for (Timeout<T> timeout = bucket.drain(); timeout != null; ) {
+                Timeout<T> next = timeout.next;
+                timeout.previous = null;
+                timeout.next = null;
+                timeout.bucket = null;
+                due.add(timeout);
+                size--;
+                timeout = next;
+            }
+        }
+        return due;
+    }
+
+    private void run() {
+        while (!closed) {
+            long nextTick;
+            synchronized (this) {
+                nextTick = currentTick + 1;
+            }
+            long sleepNanos = startNanos + nextTick * tickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            // После паузы (GC, перегрузка) колесо догоняет все пропущенные тики сразу
+            long nowTick = (System.nanoTime() - startNanos) / tickNanos;
+            List<Timeout<T>> due = advanceTo(Math.max(nextTick, nowTick));
+            if (!due.isEmpty()) {
+                try {
+                    handler.accept(due);
+                } catch (RuntimeException e) {
+                    Main.logger.warning("Ошибка обработки задач колеса таймеров: " + e);
+                }
+            }
+        }
+    }
+
+    private static long ceilDiv(long value, long divisor) {
+        return -Math.floorDiv(-value, divisor);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        worker.interrupt();
+    }
+}
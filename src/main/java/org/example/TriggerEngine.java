@@ -0,0 +1,93 @@
+package org.example;
+
+import com.google.gson.reflect.TypeToken;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Правила-триггеры по ключевым словам для входящих сообщений юзерботов.
+ *
+ * Все правила компилируются в один {@link KeywordAutomaton}, поэтому текст сообщения просматривается
+ * за один проход при любом числе правил. Правило действует на все аккаунты или только на один (по api_id).
+ * Правила хранятся в triggers.json ({@link KeywordRuleStore}) и меняются командами /trigger; после изменения
+ * автомат перестраивается и подменяется целиком, поиск при этом не блокируется.
+ */
+public class TriggerEngine {
+
+    /**
+     * Правило: ключевое слово или фраза и аккаунт, к которому оно относится (0 — все аккаунты).
+     */
+    public record Rule(int id, long account, String pattern) implements KeywordRuleStore.KeywordRule {
+    }
+
+    private final KeywordRuleStore<Rule> store;
+
+    private final LongAdder scanned = new LongAdder();
+    private final LongAdder matched = new LongAdder();
+    private final LongAdder scanNanos = new LongAdder();
+
+    /**
+     * @param file файл правил; если его нет, список правил пуст
+     */
+    public TriggerEngine(Path file) {
+        this.store = new KeywordRuleStore<>(file, new TypeToken<List<Rule>>() {}.getType(), "правила");
+    }
+
+    /**
+     * Добавляет правило.
+     *
+     * @param account api_id аккаунта или 0 для всех аккаунтов
+     * @param pattern ключевое слово или фраза; {@code *} в конце — любое окончание слова
+     * @return добавленное правило
+     * @throws IllegalArgumentException если в шаблоне нет ни одной буквы или цифры
+     */
+    public Rule add(long account, String pattern) {
+        if (KeywordAutomaton.normalize(pattern).isBlank()) {
+            throw new IllegalArgumentException("В шаблоне нет ни одной буквы или цифры");
+        }
+        return store.add(id -> new Rule(id, account, pattern.trim()));
+    }
+
+    /**
+     * Удаляет правило по номеру.
+     *
+     * @return false, если правила с таким номером нет
+     */
+    public boolean remove(int id) {
+        return store.remove(id);
+    }
+
+    public List<Rule> rules() {
+        return store.rules();
+    }
+
+    /**
+     * Ищет правила, совпавшие с текстом сообщения аккаунта. Не обращается к TDLib.
+     *
+     * @param account api_id аккаунта, получившего сообщение
+     * @param text    текст или подпись сообщения; null — совпадений нет
+     * @return совпавшие правила в порядке добавления
+     */
+    public List<Rule> match(long account, String text) {
+        if (text == null || text.isEmpty()) {
+            return List.of();
+        }
+        long started = System.nanoTime();
+        List<Rule> result = store.match(account, text, false);
+        scanNanos.add(System.nanoTime() - started);
+        scanned.increment();
+        if (!result.isEmpty()) {
+            matched.increment();
+        }
+        return result;
+    }
+
+    public String statsSummary() {
+        long messages = scanned.sum();
+        return "правил " + store.rules().size() + ", состояний автомата " + store.automatonSize()
+                + ", проверено сообщений " + messages + ", совпадений " + matched.sum()
+                + ", среднее время проверки " + (messages > 0 ? scanNanos.sum() / messages / 1000 : 0) + " мкс";
+    }
+}
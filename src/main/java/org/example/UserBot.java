@@ -1,28 +1,21 @@
 package org.example;
 
-import it.tdlight.Init;
-import it.tdlight.Log;
-import it.tdlight.Slf4JLogMessageHandler;
 import it.tdlight.client.APIToken;
 import it.tdlight.client.AuthenticationSupplier;
 import it.tdlight.client.SimpleTelegramClient;
 import it.tdlight.client.SimpleTelegramClientBuilder;
-import it.tdlight.client.SimpleTelegramClientFactory;
 import it.tdlight.client.TDLibSettings;
 import it.tdlight.jni.TdApi;
-import it.tdlight.util.UnsupportedNativeLibraryException;
 
-import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
-import java.util.logging.FileHandler;
 import java.util.logging.Logger;
-import java.util.logging.SimpleFormatter;
 
 /**
  * Класс юзербота на базе TDLight Java.
@@ -33,8 +26,21 @@ public class UserBot implements AutoCloseable {
 
     private static final Logger logger = Logger.getLogger(UserBot.class.getName());
     private final SimpleTelegramClient client;
-    private final SimpleTelegramClientFactory clientFactory;
+    private final TdlibRuntime runtime;
     private final List<Consumer<TdApi.UpdateNewMessage>> messageHandlers = new ArrayList<>();
+    private final ChatInfoCache chatInfoCache;
+    private final ReadReceiptCoalescer readReceipts;
+    private final MediaDownloader mediaDownloader;
+    private final GeneratedFileStreamer fileStreamer;
+
+    // Этапы запуска: создание клиента, открытие базы TDLib и готовность авторизации
+    private final long startedNanos = System.nanoTime();
+    private volatile long clientBuiltNanos;
+    private volatile long databaseOpenedNanos;
+    private volatile long readyNanos;
+    private final CompletableFuture<Void> databaseOpened = new CompletableFuture<>();
+    private final CompletableFuture<Void> ready = new CompletableFuture<>();
+    private final AtomicBoolean closed = new AtomicBoolean();
 
     /**
      * Конструктор юзербота.
@@ -42,20 +48,17 @@ public class UserBot implements AutoCloseable {
      * @param apiId                   ваш api_id
      * @param apiHash                 ваш api_hash
      * @param phone  поставщик аутентификации (например, AuthenticationSupplier.consoleLogin())
-     * @throws IOException            при ошибке настройки логирования
+     * @param config                настройки бота (кэш чатов, отметки о прочтении, загрузка медиа)
+     * @param fileDownloader        загрузчик файлов Bot API для потоковой отправки ответов
+     * @param runtime               общая среда TDLight: фабрика клиентов, нативные библиотеки и журнал
+     * @param announceReady         сообщать об авторизации, даже если вход прошёл по сохранённой сессии без кода
      */
-    public UserBot(int apiId, String apiHash, String phone, Bot managerBot) throws IOException, UnsupportedNativeLibraryException {
-        // Инициализация нативных библиотек и логирования TDLight
-        Init.init();
-        Log.setLogMessageHandler(1, new Slf4JLogMessageHandler());
-        setupFileLogger();
+    public UserBot(int apiId, String apiHash, String phone, Bot managerBot, BotConfig config, TelegramFileDownloader fileDownloader,
+                   TdlibRuntime runtime, boolean announceReady) {
+        this.runtime = runtime;
 
         AuthenticationSupplier<?> authenticationSupplier = AuthenticationSupplier.user(phone);
 
-
-        // Создаём фабрику клиентов
-        this.clientFactory = new SimpleTelegramClientFactory();
-
         // Формируем APIToken из переданных apiId и apiHash
         APIToken apiToken = new APIToken(apiId, apiHash);
 
@@ -65,8 +68,8 @@ public class UserBot implements AutoCloseable {
         settings.setDatabaseDirectoryPath(sessionPath.resolve("data"));
         settings.setDownloadedFilesDirectoryPath(sessionPath.resolve("downloads"));
 
-        // Получаем билдера клиента
-        SimpleTelegramClientBuilder clientBuilder = clientFactory.builder(settings);
+        // Получаем билдера клиента на общей фабрике
+        SimpleTelegramClientBuilder clientBuilder = runtime.builder(settings);
 
         // Регистрируем обработчик новых сообщений, который пересылает обновление всем зарегистрированным обработчикам
         clientBuilder.addUpdateHandler(TdApi.UpdateNewMessage.class, update -> {
@@ -75,27 +78,61 @@ public class UserBot implements AutoCloseable {
             }
         });
 
+        // Заполняем кэш сведений о чатах и пользователях из обновлений, чтобы пересылка обходилась без GetChat/GetUser
+        this.chatInfoCache = new ChatInfoCache(config.getChatCacheMaxEntries());
+        clientBuilder.addUpdateHandler(TdApi.UpdateNewChat.class, chatInfoCache::onNewChat);
+        clientBuilder.addUpdateHandler(TdApi.UpdateChatTitle.class, chatInfoCache::onChatTitle);
+        clientBuilder.addUpdateHandler(TdApi.UpdateUser.class, chatInfoCache::onUser);
+        clientBuilder.addUpdateHandler(TdApi.UpdateUserFullInfo.class, chatInfoCache::onUserFullInfo);
+
+        // Загрузки медиа завершаются по обновлениям UpdateFile
+        this.mediaDownloader = new MediaDownloader(config.getMediaDownloadsPerUserBot(),
+                TimeUnit.SECONDS.toMillis(config.getMediaDownloadTimeoutSeconds()), config.isMediaDeleteAfterSend());
+        clientBuilder.addUpdateHandler(TdApi.UpdateFile.class, mediaDownloader::onUpdateFile);
+
+        // Файлы ответов, отправляемые потоково, генерируются по запросу TDLib
+        this.fileStreamer = new GeneratedFileStreamer(fileDownloader);
+        clientBuilder.addUpdateHandler(TdApi.UpdateFileGenerationStart.class, fileStreamer::onGenerationStart);
+        clientBuilder.addUpdateHandler(TdApi.UpdateFileGenerationStop.class, fileStreamer::onGenerationStop);
+
+        AtomicBoolean promptNeeded = new AtomicBoolean();
         clientBuilder.addUpdateHandler(TdApi.UpdateAuthorizationState.class, update -> {
-            if (update.authorizationState instanceof TdApi.AuthorizationStateReady) {
-                managerBot.send_message("Юзербот " + phone + " авторизован!");
+            // Любое состояние после WaitTdlibParameters означает, что база TDLib открыта
+            if (!(update.authorizationState instanceof TdApi.AuthorizationStateWaitTdlibParameters)
+                    && !databaseOpened.isDone()) {
+                databaseOpenedNanos = System.nanoTime();
+                databaseOpened.complete(null);
+            }
+            if (update.authorizationState instanceof TdApi.AuthorizationStateWaitPhoneNumber
+                    || update.authorizationState instanceof TdApi.AuthorizationStateWaitCode
+                    || update.authorizationState instanceof TdApi.AuthorizationStateWaitPassword
+                    || update.authorizationState instanceof TdApi.AuthorizationStateWaitOtherDeviceConfirmation) {
+                promptNeeded.set(true);
+            } else if (update.authorizationState instanceof TdApi.AuthorizationStateReady) {
+                readyNanos = System.nanoTime();
+                ready.complete(null);
+                // Пробуждение по сохранённой сессии не повторяет уведомление: администратор уже знает об аккаунте
+                if (announceReady || promptNeeded.get()) {
+                    managerBot.send_message("Юзербот " + phone + " авторизован!", OutboundScheduler.Lane.AUTH);
+                }
+            } else if (update.authorizationState instanceof TdApi.AuthorizationStateClosed) {
+                IllegalStateException closed = new IllegalStateException("Клиент TDLib закрыт до авторизации");
+                databaseOpened.completeExceptionally(closed);
+                ready.completeExceptionally(closed);
             }
         });
 
         // Создаём клиента, передавая данные аутентификации
-        this.client = clientBuilder.build(authenticationSupplier);
-        ExecutorService blockingExecutor = Executors.newSingleThreadExecutor();
+        this.client = runtime.build(clientBuilder, authenticationSupplier);
+        this.clientBuiltNanos = System.nanoTime();
+        this.mediaDownloader.bind(client);
+        this.fileStreamer.bind(client);
 
-        BotClientInteraction clientInteraction = new BotClientInteraction(blockingExecutor, client, managerBot);
+        BotClientInteraction clientInteraction = new BotClientInteraction(runtime.getInteractionExecutor(), client, managerBot);
         client.setClientInteraction(clientInteraction);
-    }
 
-    /**
-     * Настраивает логирование в файл "userbot.log" через java.util.logging.
-     */
-    private void setupFileLogger() throws IOException {
-        FileHandler fileHandler = new FileHandler("userbot.log", true);
-        fileHandler.setFormatter(new SimpleFormatter());
-        logger.addHandler(fileHandler);
+        this.readReceipts = new ReadReceiptCoalescer(client, runtime.getScheduler(), config.getReadReceiptWindowMs(),
+                config.getReadReceiptMaxBatch());
     }
 
     /**
@@ -108,18 +145,19 @@ public class UserBot implements AutoCloseable {
     }
 
     /**
-     * Пример метода отправки текстового сообщения в указанный чат.
+     * Отправляет текстовое сообщение в указанный чат.
      *
      * @param chatId идентификатор чата
      * @param text   текст сообщения
+     * @return отправленное сообщение; завершается после подтверждения сервером
      */
-    public void sendMessage(long chatId, String text) {
+    public CompletableFuture<TdApi.Message> sendMessage(long chatId, String text) {
         TdApi.SendMessage req = new TdApi.SendMessage();
         req.chatId = chatId;
         TdApi.InputMessageText inputMessageText = new TdApi.InputMessageText();
         inputMessageText.text = new TdApi.FormattedText(text, new TdApi.TextEntity[0]);
         req.inputMessageContent = inputMessageText;
-        client.sendMessage(req, true).whenComplete((message, error) -> {
+        return client.sendMessage(req, true).whenComplete((message, error) -> {
             if (error != null) {
                 logger.warning("Ошибка отправки сообщения: " + error);
             } else {
@@ -128,6 +166,46 @@ public class UserBot implements AutoCloseable {
         });
     }
 
+    /**
+     * Завершается, когда TDLib открыл базу аккаунта (или выяснилось, что открыть не удалось).
+     */
+    public CompletableFuture<Void> getDatabaseOpened() {
+        return databaseOpened;
+    }
+
+    /**
+     * Завершается, когда аккаунт авторизован и готов пересылать сообщения.
+     */
+    public CompletableFuture<Void> getReady() {
+        return ready;
+    }
+
+    /**
+     * Возвращает длительность этапов запуска аккаунта для отчёта о запуске.
+     */
+    public String startupSummary() {
+        StringBuilder summary = new StringBuilder("клиент ").append(millis(startedNanos, clientBuiltNanos)).append(" мс");
+        if (databaseOpened.isDone() && databaseOpenedNanos != 0) {
+            summary.append(", база ").append(millis(clientBuiltNanos, databaseOpenedNanos)).append(" мс");
+        } else {
+            summary.append(", база открывается");
+        }
+        if (ready.isCompletedExceptionally()) {
+            summary.append(", не авторизован (клиент закрыт)");
+        } else if (ready.isDone()) {
+            summary.append(", авторизация ").append(millis(databaseOpenedNanos, readyNanos)).append(" мс")
+                    .append(", всего ").append(millis(startedNanos, readyNanos)).append(" мс");
+        } else {
+            summary.append(", ожидает авторизации");
+        }
+        return summary.toString();
+    }
+
+    private static long millis(long from, long to) {
+        // Обновления TDLib могут прийти раньше, чем build() вернёт управление
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(to - from));
+    }
+
     /**
      * Возвращает внутренний клиент, если требуется доп. настройка.
      */
@@ -136,11 +214,44 @@ public class UserBot implements AutoCloseable {
     }
 
     /**
-     * Закрывает клиента и освобождает ресурсы.
+     * Возвращает кэш сведений о чатах и пользователях этого юзербота.
+     */
+    public ChatInfoCache getChatInfoCache() {
+        return chatInfoCache;
+    }
+
+    /**
+     * Возвращает очередь отметок о прочтении этого юзербота.
+     */
+    public ReadReceiptCoalescer getReadReceipts() {
+        return readReceipts;
+    }
+
+    /**
+     * Возвращает загрузчик медиафайлов этого юзербота.
+     */
+    public MediaDownloader getMediaDownloader() {
+        return mediaDownloader;
+    }
+
+    /**
+     * Возвращает потоковый передатчик файлов ответов этого юзербота.
+     */
+    public GeneratedFileStreamer getFileStreamer() {
+        return fileStreamer;
+    }
+
+    /**
+     * Закрывает клиента и освобождает ресурсы. Общая фабрика клиентов остаётся открытой.
+     * Повторный вызов ничего не делает.
      */
     @Override
     public void close() throws Exception {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        readReceipts.close();
         client.close();
-        clientFactory.close();
+        runtime.clientClosed();
     }
 }
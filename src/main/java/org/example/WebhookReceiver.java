@@ -0,0 +1,200 @@
+package org.example;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Приём обновлений бота-менеджера через webhook вместо long polling.
+ *
+ * Встроенный HTTP-сервер JDK принимает POST-запросы Telegram, проверяет заголовок
+ * X-Telegram-Bot-Api-Secret-Token и разбирает тело потоково (Jackson читает прямо из тела запроса,
+ * без промежуточной строки). Обновления передаются в {@link Bot#onUpdateReceived} одним потоком
+ * в порядке поступления, как и при long polling; ответ Telegram отправляется сразу после постановки
+ * обновления в очередь. Если очередь переполнена, сервер отвечает 503 и Telegram повторит доставку позже.
+ *
+ * Сервер работает по HTTP: Telegram требует HTTPS, поэтому перед ним ставится обратный прокси,
+ * адрес которого указывается в webhookUrl.
+ */
+public class WebhookReceiver implements AutoCloseable {
+
+    static final String SECRET_HEADER = "X-Telegram-Bot-Api-Secret-Token";
+    private static final int HANDLER_THREADS = 4;
+    private static final int DISPATCH_QUEUE_CAPACITY = 1024;
+
+    private final Bot bot;
+    private final String secretToken;
+    private final HttpServer server;
+    private final ThreadPoolExecutor handlerExecutor;
+    private final ThreadPoolExecutor dispatcher;
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder unauthorized = new LongAdder();
+    private final LongAdder malformed = new LongAdder();
+    private final LongAdder overloaded = new LongAdder();
+
+    /**
+     * @param bot         бот, которому передаются обновления
+     * @param address     адрес, на котором слушает сервер
+     * @param path        путь, на который Telegram отправляет обновления
+     * @param secretToken секрет, который Telegram передаёт в заголовке каждого запроса
+     * @throws IOException если не удалось занять порт
+     */
+    public WebhookReceiver(Bot bot, InetSocketAddress address, String path, String secretToken) throws IOException {
+        this.bot = bot;
+        this.secretToken = secretToken;
+        this.handlerExecutor = newExecutor("webhook-http", HANDLER_THREADS, HANDLER_THREADS * 16,
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        // Один поток сохраняет порядок обработки обновлений, как у long polling
+        this.dispatcher = newExecutor("webhook-dispatch", 1, DISPATCH_QUEUE_CAPACITY, new ThreadPoolExecutor.AbortPolicy());
+        this.server = HttpServer.create(address, 0);
+        this.server.createContext(path, this::handle);
+        this.server.setExecutor(handlerExecutor);
+    }
+
+    public void start() {
+        server.start();
+        Main.logger.info("Webhook-сервер слушает " + server.getAddress());
+    }
+
+    /**
+     * Возвращает адрес, на котором фактически слушает сервер (полезно при порте 0).
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            String token = exchange.getRequestHeaders().getFirst(SECRET_HEADER);
+            if (token == null || !MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+                    secretToken.getBytes(StandardCharsets.UTF_8))) {
+                unauthorized.increment();
+                exchange.sendResponseHeaders(401, -1);
+                return;
+            }
+            Update update;
+            try (InputStream body = exchange.getRequestBody()) {
+                update = objectMapper.readValue(body, Update.class);
+            } catch (IOException e) {
+                malformed.increment();
+                Main.logger.warning("Не удалось разобрать обновление webhook: " + e);
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            try {
+                dispatcher.execute(() -> dispatch(update));
+            } catch (RejectedExecutionException e) {
+                overloaded.increment();
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            received.increment();
+            exchange.sendResponseHeaders(200, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void dispatch(Update update) {
+        try {
+            bot.onUpdateReceived(update);
+        } catch (RuntimeException e) {
+            Main.logger.warning("Ошибка обработки обновления " + update.getUpdateId() + ": " + e);
+        }
+    }
+
+    /**
+     * Регистрирует webhook в Telegram через setWebhook.
+     *
+     * @param baseUrl        адрес Bot API
+     * @param botToken       токен бота
+     * @param url            публичный HTTPS-адрес webhook
+     * @param secretToken    секрет для заголовка X-Telegram-Bot-Api-Secret-Token
+     * @param maxConnections максимальное число одновременных соединений Telegram
+     * @throws IOException если Telegram не принял webhook
+     */
+    public static void registerWebhook(String baseUrl, String botToken, String url, String secretToken, int maxConnections)
+            throws IOException, InterruptedException {
+        String base = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        String form = "url=" + URLEncoder.encode(url, StandardCharsets.UTF_8)
+                + "&secret_token=" + URLEncoder.encode(secretToken, StandardCharsets.UTF_8)
+                + "&max_connections=" + maxConnections
+                + "&allowed_updates=" + URLEncoder.encode("[\"message\"]", StandardCharsets.UTF_8);
+        HttpRequest request = HttpRequest.newBuilder(URI.create(base + "/bot" + botToken + "/setWebhook"))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(form))
+                .build();
+        HttpResponse<String> response = HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IOException("Telegram не принял webhook: HTTP " + response.statusCode() + " " + response.body());
+        }
+    }
+
+    /**
+     * Генерирует случайный секрет для заголовка webhook.
+     */
+    static String generateSecretToken() {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        return HexFormat.of().formatHex(bytes);
+    }
+
+    public String statsSummary() {
+        return "принято " + received.sum() + ", ждут обработки " + dispatcher.getQueue().size()
+                + ", отклонено (секрет) " + unauthorized.sum() + ", ошибок разбора " + malformed.sum()
+                + ", отказов при перегрузке " + overloaded.sum();
+    }
+
+    /**
+     * Останавливает сервер и дожидается обработки уже принятых обновлений.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        server.stop(1);
+        handlerExecutor.shutdown();
+        dispatcher.shutdown();
+        dispatcher.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private static ThreadPoolExecutor newExecutor(String name, int threads, int queueCapacity,
+                                                  RejectedExecutionHandler policy) {
+        AtomicInteger counter = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread thread = new Thread(r, name + "-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                policy);
+    }
+}
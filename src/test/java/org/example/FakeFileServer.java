@@ -0,0 +1,133 @@
+package org.example;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Локальная заглушка файловой части Bot API для проверки {@link TelegramFileDownloader}.
+ *
+ * Отвечает на getFile и отдаёт файлы по пути /file/bot&lt;токен&gt;/files/&lt;file_id&gt;.
+ * Для каждого file_id задаётся поведение: обычный ответ, код ошибки, ответ, оборванный на середине тела,
+ * или задержка перед ответом. Неизвестный file_id получает ответ getFile с ok=false.
+ */
+class FakeFileServer implements AutoCloseable {
+
+    private enum Mode {
+        OK,
+        STATUS,
+        TRUNCATED,
+        STALLED
+    }
+
+    private record FileEntry(Mode mode, byte[] content, int status, long delayMs) {
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "fake-file-server");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, FileEntry> files = new ConcurrentHashMap<>();
+
+    FakeFileServer() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext("/", this::handle);
+        this.server.setExecutor(executor);
+        this.server.start();
+    }
+
+    String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Файл отдаётся целиком с кодом 200.
+     */
+    void put(String fileId, byte[] content) {
+        files.put(fileId, new FileEntry(Mode.OK, content, 200, 0));
+    }
+
+    /**
+     * getFile отвечает успешно, а запрос самого файла получает заданный код.
+     */
+    void failWith(String fileId, int status) {
+        files.put(fileId, new FileEntry(Mode.STATUS, new byte[0], status, 0));
+    }
+
+    /**
+     * Объявляется полная длина файла, но соединение закрывается после половины тела.
+     */
+    void truncate(String fileId, byte[] content) {
+        files.put(fileId, new FileEntry(Mode.TRUNCATED, content, 200, 0));
+    }
+
+    /**
+     * Заголовки и тело отправляются только после задержки.
+     */
+    void stall(String fileId, byte[] content, long delayMs) {
+        files.put(fileId, new FileEntry(Mode.STALLED, content, 200, delayMs));
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            if (path.endsWith("/getFile")) {
+                String query = exchange.getRequestURI().getQuery();
+                String fileId = query != null && query.startsWith("file_id=") ? query.substring("file_id=".length()) : "";
+                String json = files.containsKey(fileId)
+                        ? "{\"ok\":true,\"result\":{\"file_id\":\"" + fileId + "\",\"file_path\":\"files/" + fileId + "\"}}"
+                        : "{\"ok\":false,\"error_code\":400,\"description\":\"Bad Request: invalid file_id\"}";
+                respond(exchange, files.containsKey(fileId) ? 200 : 400, json.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            FileEntry entry = files.get(path.substring(path.lastIndexOf('/') + 1));
+            if (entry == null) {
+                respond(exchange, 404, new byte[0]);
+                return;
+            }
+            switch (entry.mode()) {
+                case OK -> respond(exchange, 200, entry.content());
+                case STATUS -> respond(exchange, entry.status(), new byte[0]);
+                case TRUNCATED -> {
+                    exchange.sendResponseHeaders(200, entry.content().length);
+                    OutputStream body = exchange.getResponseBody();
+                    body.write(entry.content(), 0, entry.content().length / 2);
+                    body.flush();
+                    // Закрытие недописанного тела с фиксированной длиной разрывает соединение
+                    body.close();
+                }
+                case STALLED -> {
+                    Thread.sleep(entry.delayMs());
+                    respond(exchange, 200, entry.content());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            exchange.getResponseBody().write(body);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,76 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Проверка {@link KeywordAutomaton}: совпадения только по границам слов, шаблоны-префиксы со {@code *},
+ * нормализация регистра, ё и латинских двойников, фразы из нескольких слов и вложенные шаблоны.
+ */
+class KeywordAutomatonTest {
+
+    @Test
+    void matchesWholeWordsOnly() {
+        KeywordAutomaton automaton = KeywordAutomaton.compile(List.of("цена"));
+        assertEquals(bits(0), automaton.match("Какая цена?"));
+        assertEquals(bits(0), automaton.match("цена"));
+        assertEquals(bits(), automaton.match("ценами"));
+        assertEquals(bits(), automaton.match("бесценна"));
+        assertEquals(bits(), automaton.match("рыноцена"));
+    }
+
+    @Test
+    void prefixPatternMatchesWordContinuations() {
+        KeywordAutomaton automaton = KeywordAutomaton.compile(List.of("цен*"));
+        assertEquals(bits(0), automaton.match("цена"));
+        assertEquals(bits(0), automaton.match("с такой ценой"));
+        assertEquals(bits(0), automaton.match("цен"));
+        // Начало слова по-прежнему обязательно
+        assertEquals(bits(), automaton.match("бесценный"));
+    }
+
+    @Test
+    void normalizesCaseYoAndHomoglyphs() {
+        KeywordAutomaton automaton = KeywordAutomaton.compile(List.of("Ёлка", "скидка"));
+        assertEquals(bits(0), automaton.match("ЕЛКА"));
+        assertEquals(bits(0), automaton.match("ёлка!"));
+        // Латинские "c", "k" и "a" выглядят как кириллические
+        assertEquals(bits(1), automaton.match("ckидкa"));
+    }
+
+    @Test
+    void phraseIgnoresPunctuationBetweenWords() {
+        KeywordAutomaton automaton = KeywordAutomaton.compile(List.of("купить сейчас"));
+        assertEquals(bits(0), automaton.match("Купить, сейчас!"));
+        assertEquals(bits(0), automaton.match("купить   —   сейчас"));
+        assertEquals(bits(), automaton.match("купить не сейчас"));
+    }
+
+    @Test
+    void reportsOverlappingAndNestedPatterns() {
+        KeywordAutomaton automaton = KeywordAutomaton.compile(List.of("новый год", "год", "новый", "од"));
+        BitSet matched = automaton.match("С новый год!");
+        assertEquals(bits(0, 1, 2), matched);
+    }
+
+    @Test
+    void emptyPatternsNeverMatch() {
+        KeywordAutomaton automaton = KeywordAutomaton.compile(List.of("", "*", "!!!", "да"));
+        assertEquals(bits(3), automaton.match("да да"));
+        assertEquals(bits(), automaton.match(""));
+        assertTrue(automaton.size() > 1);
+    }
+
+    private static BitSet bits(int... indexes) {
+        BitSet bits = new BitSet();
+        for (int index : indexes) {
+            bits.set(index);
+        }
+        return bits;
+    }
+}
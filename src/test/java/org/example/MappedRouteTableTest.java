@@ -0,0 +1,109 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Проверка открытия {@link MappedRouteTable} после корректного и некорректного завершения:
+ * без close() таблица перестраивается по слотам, повреждённые слоты отбрасываются, остальные маршруты сохраняются.
+ */
+class MappedRouteTableTest {
+
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 32;
+    // Смещение id чата в слоте
+    private static final int S_CHAT = 16;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void reopensCleanlyClosedTable() throws IOException {
+        Path path = directory.resolve("clean.routes");
+        try (MappedRouteTable table = MappedRouteTable.open(path)) {
+            assertTrue(table.isCreated());
+            for (long key = 1; key <= 5_000; key++) {
+                table.put(key, key + 1, -key, 7);
+            }
+            table.remove(10);
+        }
+        try (MappedRouteTable table = MappedRouteTable.open(path)) {
+            assertFalse(table.isCreated());
+            assertEquals(4_999, table.size());
+            assertEquals(-1, table.indexOf(10));
+            assertRoute(table, 4_000, 4_001, -4_000);
+        }
+    }
+
+    @Test
+    void recoversAfterUncleanShutdown() throws IOException {
+        Path path = directory.resolve("crash.routes");
+        MappedRouteTable crashed = MappedRouteTable.open(path);
+        for (long key = 1; key <= 2_000; key++) {
+            crashed.put(key, key + 1, -key, 7);
+        }
+        for (long key = 1; key <= 2_000; key += 3) {
+            crashed.remove(key);
+        }
+        long generation = crashed.generation();
+        // Процесс «падает»: страницы на диске, но флаг корректного закрытия не выставлен
+        crashed.flush();
+
+        try (MappedRouteTable table = MappedRouteTable.open(path)) {
+            assertTrue(table.generation() > generation);
+            assertEquals(2_000 - 667, table.size());
+            for (long key = 1; key <= 2_000; key++) {
+                if (key % 3 == 1) {
+                    assertEquals(-1, table.indexOf(key));
+                } else {
+                    assertRoute(table, key, key + 1, -key);
+                }
+            }
+        }
+    }
+
+    @Test
+    void dropsTornSlotsOnRecovery() throws IOException {
+        Path path = directory.resolve("torn.routes");
+        MappedRouteTable crashed = MappedRouteTable.open(path);
+        for (long key = 1; key <= 100; key++) {
+            crashed.put(key, key + 1, -key, 7);
+        }
+        int tornSlot = crashed.indexOf(42);
+        crashed.flush();
+
+        // Слот записан наполовину: id чата изменился, а контрольная сумма осталась старой
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            ByteBuffer chat = ByteBuffer.allocate(8);
+            chat.putLong(123_456_789L).flip();
+            channel.write(chat, HEADER_SIZE + (long) tornSlot * SLOT_SIZE + S_CHAT);
+        }
+
+        try (MappedRouteTable table = MappedRouteTable.open(path)) {
+            assertEquals(99, table.size());
+            assertEquals(-1, table.indexOf(42));
+            for (long key = 1; key <= 100; key++) {
+                if (key != 42) {
+                    assertRoute(table, key, key + 1, -key);
+                }
+            }
+        }
+    }
+
+    private static void assertRoute(MappedRouteTable table, long key, long userBotId, long chatId) {
+        int slot = table.indexOf(key);
+        assertTrue(slot >= 0, "ключ " + key + " не найден");
+        assertEquals(userBotId, table.userBotIdAt(slot));
+        assertEquals(chatId, table.chatIdAt(slot));
+    }
+}
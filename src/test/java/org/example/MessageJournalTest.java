@@ -0,0 +1,151 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Проверка {@link MessageJournal}: воспроизведение записей и обрезка недописанного хвоста,
+ * компактирование в фоне и перевод журнала первой версии в текущий формат при открытии {@link MessageMapper}.
+ */
+class MessageJournalTest {
+
+    private static final int MAGIC = 0x4D4D4A31;
+    private static final long COMPACT_TIMEOUT_MS = 10_000;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void replaysRecordsInOrder() throws IOException {
+        Path path = directory.resolve("replay.journal");
+        try (MessageJournal journal = new MessageJournal(path, () -> new long[0])) {
+            journal.append(1, 100, -1, 5);
+            journal.append(2, 200, -2, 6);
+            journal.append(1, MessageJournal.TOMBSTONE, 0, 0);
+        }
+
+        List<long[]> records = replay(path);
+        assertEquals(3, records.size());
+        assertArrayEquals(new long[]{1, 100, -1, 5}, records.get(0));
+        assertArrayEquals(new long[]{2, 200, -2, 6}, records.get(1));
+        assertArrayEquals(new long[]{1, MessageJournal.TOMBSTONE, 0, 0}, records.get(2));
+    }
+
+    @Test
+    void truncatesTornTail() throws IOException {
+        Path path = directory.resolve("torn.journal");
+        try (MessageJournal journal = new MessageJournal(path, () -> new long[0])) {
+            journal.append(1, 100, -1, 5);
+        }
+        long complete = Files.size(path);
+        // Процесс упал посреди записи: в конце файла часть записи
+        Files.write(path, new byte[MessageJournal.RECORD_SIZE / 2], StandardOpenOption.APPEND);
+
+        List<long[]> records = replay(path);
+        assertEquals(1, records.size());
+        assertArrayEquals(new long[]{1, 100, -1, 5}, records.get(0));
+        assertEquals(complete, Files.size(path));
+    }
+
+    @Test
+    void compactsToLiveRecords() throws Exception {
+        Path path = directory.resolve("compact.journal");
+        Map<Long, long[]> live = new LinkedHashMap<>();
+        MessageJournal journal = new MessageJournal(path, () -> {
+            synchronized (live) {
+                long[] snapshot = new long[live.size() * 4];
+                int i = 0;
+                for (long[] record : live.values()) {
+                    System.arraycopy(record, 0, snapshot, i, 4);
+                    i += 4;
+                }
+                return snapshot;
+            }
+        });
+        try {
+            // Порог компактирования 8 МБ: 300 тысяч перезаписей десяти маршрутов его перекрывают
+            for (int i = 0; i < 300_000; i++) {
+                long key = 1 + i % 10;
+                synchronized (live) {
+                    live.put(key, new long[]{key, i, -key, i / 1000});
+                }
+                journal.append(key, i, -key, i / 1000);
+            }
+            long deadline = System.currentTimeMillis() + COMPACT_TIMEOUT_MS;
+            while (Files.size(path) > 1024 * 1024 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertTrue(Files.size(path) < 1024 * 1024, "журнал не компактирован: " + Files.size(path));
+            // Журнал после подмены продолжает принимать записи
+            journal.append(11, 1, -11, 0);
+        } finally {
+            journal.close();
+        }
+
+        Map<Long, long[]> replayed = new LinkedHashMap<>();
+        for (long[] record : replay(path)) {
+            replayed.put(record[0], record);
+        }
+        assertEquals(11, replayed.size());
+        for (long key = 1; key <= 10; key++) {
+            assertArrayEquals(live.get(key), replayed.get(key));
+        }
+        assertArrayEquals(new long[]{11, 1, -11, 0}, replayed.get(11L));
+    }
+
+    @Test
+    void mapperUpgradesVersionOneJournal() throws IOException {
+        String basePath = directory.resolve("mapper").toString();
+        Path path = Path.of(basePath + ".journal");
+        ByteBuffer v1 = ByteBuffer.allocate(8 + 3 * 24).order(ByteOrder.LITTLE_ENDIAN);
+        v1.putInt(MAGIC).putInt(1);
+        v1.putLong(1).putLong(100).putLong(-1);
+        v1.putLong(2).putLong(200).putLong(-2);
+        v1.putLong(1).putLong(MessageJournal.TOMBSTONE).putLong(0);
+        v1.flip();
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            out.write(v1);
+        }
+
+        try (MessageMapper mapper = new MessageMapper(basePath, MessageMapper.Storage.JOURNAL, 0, 0, false, 0)) {
+            MessageMapper.Route route = new MessageMapper.Route();
+            assertFalse(mapper.getMapping(1, route));
+            assertTrue(mapper.getMapping(2, route));
+            assertEquals(200, route.getUserBotId());
+            assertEquals(-2, route.getChatId());
+        }
+
+        List<long[]> records = new ArrayList<>();
+        int version = MessageJournal.replay(path, -1, (messageId, userBotId, chatId, touchedAt) ->
+                records.add(new long[]{messageId, userBotId, chatId, touchedAt}));
+        assertEquals(MessageJournal.VERSION, version);
+        // Снимок содержит только живой маршрут, время обращения взято при переводе, а не -1
+        assertEquals(2, records.get(0)[0]);
+        assertEquals(200, records.get(0)[1]);
+        assertTrue(records.get(0)[3] > 0);
+    }
+
+    private static List<long[]> replay(Path path) throws IOException {
+        List<long[]> records = new ArrayList<>();
+        assertEquals(MessageJournal.VERSION, MessageJournal.replay(path, -1, (messageId, userBotId, chatId, touchedAt) ->
+                records.add(new long[]{messageId, userBotId, chatId, touchedAt})));
+        return records;
+    }
+}
@@ -0,0 +1,133 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Проверка удаления из {@link RouteTable} сдвигом хвоста кластера: после удаления каждый оставшийся ключ
+ * должен находиться по своей цепочке пробирования, в том числе в кластере, переходящем через конец таблицы.
+ */
+class RouteTableTest {
+
+    private static final int EXPECTED_SIZE = 100;
+
+    @Test
+    void removeShiftsCollidingKeysBack() {
+        RouteTable table = new RouteTable(EXPECTED_SIZE);
+        Map<Integer, List<Long>> byHome = keysByHomeSlot(table.capacity());
+        int home = firstHomeWith(byHome, 3);
+        List<Long> colliding = byHome.get(home);
+        long neighbour = byHome.get(home + 1).get(0);
+
+        // Кластер: три ключа одного слота и ключ следующего слота, вытесненный ими дальше
+        table.put(colliding.get(0), 1, 10, 0);
+        table.put(colliding.get(1), 2, 20, 0);
+        table.put(colliding.get(2), 3, 30, 0);
+        table.put(neighbour, 4, 40, 0);
+
+        assertTrue(table.remove(colliding.get(0)));
+        assertFalse(table.remove(colliding.get(0)));
+        assertEquals(-1, table.indexOf(colliding.get(0)));
+        assertRoute(table, colliding.get(1), 2, 20);
+        assertRoute(table, colliding.get(2), 3, 30);
+        assertRoute(table, neighbour, 4, 40);
+        // Хвост кластера сдвинулся назад: первый оставшийся ключ занял освободившийся домашний слот
+        assertEquals(home, table.indexOf(colliding.get(1)));
+        assertEquals(3, table.size());
+    }
+
+    @Test
+    void removeShiftsAcrossTableEnd() {
+        RouteTable table = new RouteTable(EXPECTED_SIZE);
+        int last = table.capacity() - 1;
+        Map<Integer, List<Long>> byHome = keysByHomeSlot(table.capacity());
+        List<Long> atEnd = byHome.get(last);
+        long atStart = byHome.get(0).get(0);
+
+        // Второй ключ последнего слота переносится в слот 0, ключ слота 0 — в слот 1
+        table.put(atEnd.get(0), 1, 10, 0);
+        table.put(atEnd.get(1), 2, 20, 0);
+        table.put(atStart, 3, 30, 0);
+        assertEquals(0, table.indexOf(atEnd.get(1)));
+
+        assertTrue(table.remove(atEnd.get(0)));
+        assertEquals(last, table.indexOf(atEnd.get(1)));
+        assertEquals(0, table.indexOf(atStart));
+        assertRoute(table, atEnd.get(1), 2, 20);
+        assertRoute(table, atStart, 3, 30);
+    }
+
+    @Test
+    void randomRemovalsMatchHashMap() {
+        Random random = new Random(42);
+        RouteTable table = new RouteTable();
+        Map<Long, Long> expected = new HashMap<>();
+        List<Long> keys = new ArrayList<>();
+        for (int round = 0; round < 50_000; round++) {
+            if (keys.isEmpty() || random.nextInt(3) != 0) {
+                // Узкий диапазон ключей даёт длинные кластеры и повторные вставки
+                long key = 1 + random.nextInt(20_000);
+                if (expected.put(key, key * 7) == null) {
+                    keys.add(key);
+                }
+                table.put(key, key * 7, -key, round);
+            } else {
+                long key = keys.remove(random.nextInt(keys.size()));
+                expected.remove(key);
+                assertTrue(table.remove(key));
+            }
+        }
+        assertEquals(expected.size(), table.size());
+        for (long key = 1; key <= 20_000; key++) {
+            Long userBotId = expected.get(key);
+            if (userBotId == null) {
+                assertEquals(-1, table.indexOf(key));
+            } else {
+                assertRoute(table, key, userBotId, -key);
+            }
+        }
+    }
+
+    private static void assertRoute(RouteTable table, long key, long userBotId, long chatId) {
+        int slot = table.indexOf(key);
+        assertTrue(slot >= 0, "ключ " + key + " не найден");
+        assertEquals(key, table.keyAt(slot));
+        assertEquals(userBotId, table.userBotIdAt(slot));
+        assertEquals(chatId, table.chatIdAt(slot));
+    }
+
+    /**
+     * Домашние слоты ключей 1..n в таблице заданной ёмкости: ключ, вставленный в пустую таблицу,
+     * занимает именно свой домашний слот.
+     */
+    private static Map<Integer, List<Long>> keysByHomeSlot(int capacity) {
+        RouteTable probe = new RouteTable(EXPECTED_SIZE);
+        assertEquals(capacity, probe.capacity());
+        Map<Integer, List<Long>> byHome = new HashMap<>();
+        for (long key = 1; key <= capacity * 64L; key++) {
+            probe.put(key, 1, 1, 0);
+            byHome.computeIfAbsent(probe.indexOf(key), slot -> new ArrayList<>()).add(key);
+            probe.remove(key);
+        }
+        return byHome;
+    }
+
+    private static int firstHomeWith(Map<Integer, List<Long>> byHome, int keys) {
+        for (int home = 0; ; home++) {
+            List<Long> atHome = byHome.get(home);
+            List<Long> next = byHome.get(home + 1);
+            if (atHome != null && atHome.size() >= keys && next != null) {
+                return home;
+            }
+        }
+    }
+}
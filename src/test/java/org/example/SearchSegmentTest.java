@@ -0,0 +1,117 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Проверка {@link SearchSegment}: переход {@code advance} по таблице пропусков должен давать те же номера,
+ * что и обход списка подряд, а слияние сегментов — склеивать списки термов со сдвигом номеров документов.
+ */
+class SearchSegmentTest {
+
+    private static final int DOCS = 5_000;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void advanceMatchesLinearScan() throws IOException {
+        Random random = new Random(7);
+        // Частый терм с длинным списком и редкий, короче одного интервала пропусков
+        BitSet frequent = new BitSet();
+        BitSet rare = new BitSet();
+        for (int doc = 0; doc < DOCS; doc++) {
+            if (random.nextInt(3) == 0) {
+                frequent.set(doc);
+            }
+            if (random.nextInt(100) == 0) {
+                rare.set(doc);
+            }
+        }
+        List<SearchSegment.Term> terms = List.of(
+                new SearchSegment.Term(bytes("rare"), SearchSegment.descending(rare)),
+                new SearchSegment.Term(bytes("word"), SearchSegment.descending(frequent)));
+        SearchSegment segment = SearchSegment.write(directory.resolve("segment-1.seg"), 0, documents(0, DOCS), terms);
+
+        for (SearchSegment.Term term : terms) {
+            assertArrayEquals(term.postings(), drain(segment.postings(term.term())));
+            for (int run = 0; run < 200; run++) {
+                SearchSegment.DocIterator expected = new SearchSegment.ArrayIterator(term.postings());
+                SearchSegment.DocIterator actual = segment.postings(term.term());
+                int target = DOCS;
+                while (target >= 0) {
+                    // Цели убывают, как при пересечении списков; между прыжками — шаги next
+                    target -= random.nextInt(random.nextBoolean() ? 8 : 600);
+                    int doc = expected.advance(target);
+                    assertEquals(doc, actual.advance(target), "advance(" + target + ")");
+                    if (doc < 0) {
+                        break;
+                    }
+                    if (random.nextBoolean()) {
+                        assertEquals(expected.next(), actual.next());
+                    }
+                    target = Math.min(target, doc);
+                }
+            }
+        }
+        assertEquals(0, drain(segment.postings(bytes("missing"))).length);
+    }
+
+    @Test
+    void mergeConcatenatesShiftedPostings() throws IOException {
+        SearchSegment first = SearchSegment.write(directory.resolve("segment-1.seg"), 100, documents(100, 3), List.of(
+                new SearchSegment.Term(bytes("alpha"), new int[]{2, 0}),
+                new SearchSegment.Term(bytes("beta"), new int[]{1})));
+        SearchSegment second = SearchSegment.write(directory.resolve("segment-2.seg"), 103, documents(103, 2), List.of(
+                new SearchSegment.Term(bytes("alpha"), new int[]{1}),
+                new SearchSegment.Term(bytes("gamma"), new int[]{1, 0})));
+
+        SearchSegment merged = SearchSegment.merge(directory.resolve("segment-3.seg"), List.of(first, second));
+
+        assertEquals(100, merged.firstDocId());
+        assertEquals(5, merged.docCount());
+        assertEquals(105, merged.endDocId());
+        for (int local = 0; local < 5; local++) {
+            assertEquals(documents(100, 5).get(local), merged.document(local));
+            assertEquals(100 + local, merged.account(local));
+        }
+        // Номера второго сегмента сдвинуты на размер первого, списки остаются убывающими
+        assertArrayEquals(new int[]{4, 2, 0}, drain(merged.postings(bytes("alpha"))));
+        assertArrayEquals(new int[]{1}, drain(merged.postings(bytes("beta"))));
+        assertArrayEquals(new int[]{4, 3}, drain(merged.postings(bytes("gamma"))));
+        assertArrayEquals(new int[]{4, 3, 2, 1, 0}, drain(merged.prefixPostings(bytes(""), 10)));
+    }
+
+    private static List<SearchIndex.Document> documents(long firstDocId, int count) {
+        List<SearchIndex.Document> documents = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            long doc = firstDocId + i;
+            documents.add(new SearchIndex.Document(doc, -doc, doc * 10, doc * 1000, doc % 2 == 0,
+                    "чат " + doc, "сообщение " + doc));
+        }
+        return documents;
+    }
+
+    private static int[] drain(SearchSegment.DocIterator iterator) {
+        List<Integer> docs = new ArrayList<>();
+        for (int doc = iterator.next(); doc >= 0; doc = iterator.next()) {
+            docs.add(doc);
+        }
+        return docs.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static byte[] bytes(String term) {
+        return term.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,119 @@
+package org.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Проверка {@link TelegramFileDownloader} на локальной заглушке Bot API ({@link FakeFileServer}):
+ * успешная загрузка, ошибки getFile и загрузки файла, оборванное тело ответа и таймаут.
+ * После любой ошибки временный файл telegram_* должен быть удалён.
+ */
+class TelegramFileDownloaderTest {
+
+    private static final Duration READ_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration SHORT_READ_TIMEOUT = Duration.ofSeconds(1);
+
+    private FakeFileServer server;
+    private TelegramFileDownloader downloader;
+
+    @BeforeEach
+    void start() throws IOException {
+        server = new FakeFileServer();
+        downloader = new TelegramFileDownloader("TEST", server.baseUrl(), Duration.ofSeconds(2), READ_TIMEOUT, 2);
+    }
+
+    @AfterEach
+    void stop() {
+        server.close();
+    }
+
+    @Test
+    void downloadsFileContent() throws Exception {
+        byte[] content = randomBytes(300_000);
+        String fileId = uniqueId("ok");
+        server.put(fileId, content);
+
+        Path file = downloader.downloadFileAsync(fileId).join();
+        try {
+            assertTrue(file.getFileName().toString().startsWith("telegram_"));
+            assertArrayEquals(content, Files.readAllBytes(file));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void failsOnUnknownFileId() {
+        String fileId = uniqueId("missing");
+        CompletionException error = assertThrows(CompletionException.class, () -> downloader.downloadFileAsync(fileId).join());
+        assertTrue(error.getCause() instanceof IOException, String.valueOf(error.getCause()));
+        assertFalse(tempFileExists(fileId));
+    }
+
+    @Test
+    void failsOnNon200Response() {
+        String fileId = uniqueId("notfound");
+        server.failWith(fileId, 404);
+        CompletionException error = assertThrows(CompletionException.class, () -> downloader.downloadFileAsync(fileId).join());
+        assertTrue(error.getCause() instanceof IOException, String.valueOf(error.getCause()));
+        assertTrue(error.getCause().getMessage().contains("404"), error.getCause().getMessage());
+        assertFalse(tempFileExists(fileId));
+    }
+
+    @Test
+    void failsOnTruncatedBody() {
+        String fileId = uniqueId("truncated");
+        server.truncate(fileId, randomBytes(200_000));
+        assertThrows(CompletionException.class, () -> downloader.downloadFileAsync(fileId).join());
+        assertFalse(tempFileExists(fileId));
+    }
+
+    @Test
+    void failsOnTimeout() {
+        TelegramFileDownloader impatient = new TelegramFileDownloader("TEST", server.baseUrl(), Duration.ofSeconds(2),
+                SHORT_READ_TIMEOUT, 2);
+        String fileId = uniqueId("stalled");
+        server.stall(fileId, randomBytes(1_000), SHORT_READ_TIMEOUT.toMillis() * 10);
+        long started = System.nanoTime();
+        assertThrows(CompletionException.class, () -> impatient.downloadFileAsync(fileId).join());
+        long elapsedMs = (System.nanoTime() - started) / 1_000_000;
+        assertTrue(elapsedMs < SHORT_READ_TIMEOUT.toMillis() * 5, "загрузка ждала " + elapsedMs + " мс");
+        assertFalse(tempFileExists(fileId));
+    }
+
+    private static String uniqueId(String prefix) {
+        return prefix + "_" + System.nanoTime();
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Проверяет, остался ли во временном каталоге файл telegram_* для заданного file_id.
+     */
+    private static boolean tempFileExists(String fileId) {
+        Path tempDir = Path.of(System.getProperty("java.io.tmpdir"));
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(tempDir, "telegram_*_" + fileId)) {
+            return stream.iterator().hasNext();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}